@@ -0,0 +1,121 @@
+package executables;
+
+import gedi.utils.sortedNodesList.StaticSizeSortedArrayList;
+import gedi.utils.sortedNodesList.StaticSizeSortedDoubleTree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Compares the boxed {@link StaticSizeSortedArrayList} with the primitive {@link StaticSizeSortedDoubleTree}
+ * on a sliding window over synthetic read-start counts, using the same access pattern as the DENSITY module
+ * (one insert/delete, one rank query and one select per position).
+ */
+public class SortedWindowBenchmark {
+    public static void main(String[] args) {
+        int length = 2_000_000;
+        int[] windowSizes = new int[] {100, 500, 2000};
+        int i = 0;
+        for (; i < args.length; i++) {
+            if (args[i].equals("-n")) {
+                i++;
+                length = Integer.parseInt(args[i]);
+            } else if (args[i].equals("-w")) {
+                i++;
+                String[] split = args[i].split(",");
+                windowSizes = new int[split.length];
+                for (int j = 0; j < split.length; j++) {
+                    windowSizes[j] = Integer.parseInt(split[j]);
+                }
+            } else if (args[i].equals("-h")) {
+                usage();
+                return;
+            } else {
+                break;
+            }
+        }
+        if (i != args.length) {
+            usage();
+            return;
+        }
+
+        double[] data = createData(length, new Random(42));
+
+        System.out.println("Window\tPositions\tArrayList [ns/pos]\tDoubleTree [ns/pos]\tSpeed-up");
+        for (int windowSize : windowSizes) {
+            // warm-up, so both implementations are compiled before measuring
+            runArrayList(data, windowSize, Math.min(length, 200_000));
+            runDoubleTree(data, windowSize, Math.min(length, 200_000));
+
+            long start = System.nanoTime();
+            double checksumList = runArrayList(data, windowSize, length);
+            long listTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            double checksumTree = runDoubleTree(data, windowSize, length);
+            long treeTime = System.nanoTime() - start;
+
+            if (checksumList != checksumTree) {
+                throw new IllegalStateException("Both implementations returned different results for window size " + windowSize);
+            }
+
+            int positions = length - 2 * windowSize - 1;
+            System.out.println(String.format("%d\t%d\t%.1f\t%.1f\t%.2fx", windowSize, positions,
+                    listTime / (double) positions, treeTime / (double) positions, listTime / (double) treeTime));
+        }
+    }
+
+    /**
+     * Mostly zeros with occasional small counts and a few high peaks, similar to a 5'-end coverage track
+     */
+    private static double[] createData(int length, Random random) {
+        double[] data = new double[length];
+        for (int i = 0; i < length; i++) {
+            double r = random.nextDouble();
+            if (r < 0.7) {
+                data[i] = 0;
+            } else if (r < 0.999) {
+                data[i] = random.nextInt(20);
+            } else {
+                data[i] = random.nextInt(5000);
+            }
+        }
+        return data;
+    }
+
+    private static double runArrayList(double[] data, int windowSize, int length) {
+        List<Double> init = new ArrayList<>(windowSize);
+        for (int i = 0; i < windowSize; i++) {
+            init.add(data[i]);
+        }
+        StaticSizeSortedArrayList<Double> window = new StaticSizeSortedArrayList<>(init, Double::compareTo);
+        double checksum = 0;
+        for (int i = windowSize; i < length - (windowSize + 1); i++) {
+            double threshold = window.getValueAtIndex(windowSize / 2);
+            checksum += window.getNextLowerIndex(threshold + 0.5);
+            window.insertSortedAndDelete(data[i], data[i - windowSize]);
+        }
+        return checksum;
+    }
+
+    private static double runDoubleTree(double[] data, int windowSize, int length) {
+        double[] init = new double[windowSize];
+        System.arraycopy(data, 0, init, 0, windowSize);
+        StaticSizeSortedDoubleTree window = new StaticSizeSortedDoubleTree(init);
+        double checksum = 0;
+        for (int i = windowSize; i < length - (windowSize + 1); i++) {
+            double threshold = window.getValueAtIndex(windowSize / 2);
+            checksum += window.getNextLowerIndex(threshold + 0.5);
+            window.insertSortedAndDelete(data[i], data[i - windowSize]);
+        }
+        return checksum;
+    }
+
+    public static void usage() {
+        System.out.println("SortedWindowBenchmark [Options]");
+        System.out.println("\tOptions:");
+        System.out.println("\t\t-n\t\t\tNumber of positions (default: 2000000)");
+        System.out.println("\t\t-w\t\t\tComma separated window sizes (default: 100,500,2000)");
+    }
+}
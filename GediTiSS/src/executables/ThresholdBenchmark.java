@@ -0,0 +1,128 @@
+package executables;
+
+import gedi.utils.QuantileSketch;
+import gedi.utils.TiSSUtils;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the exact autoparam threshold ({@link TiSSUtils#calculateThreshold(double[], int)}) with the one estimated
+ * from a {@link QuantileSketch} fed value by value, as the modules do with -approxAutoparam.
+ *
+ * The values are either read from a column of a *ThresholdData.tsv file written with -autoparam or drawn from a
+ * log-normal distribution. For the estimate, the difference to the exact threshold is reported as value and as rank.
+ */
+public class ThresholdBenchmark {
+    private static final double AVG_FRACTION = 0.2;
+
+    public static void main(String[] args) throws IOException {
+        int length = 10_000_000;
+        int k = QuantileSketch.DEFAULT_K;
+        int column = 2;
+        String file = null;
+        int i = 0;
+        for (; i < args.length; i++) {
+            if (args[i].equals("-n")) {
+                i++;
+                length = Integer.parseInt(args[i]);
+            } else if (args[i].equals("-k")) {
+                i++;
+                k = Integer.parseInt(args[i]);
+            } else if (args[i].equals("-f")) {
+                i++;
+                file = args[i];
+            } else if (args[i].equals("-c")) {
+                i++;
+                column = Integer.parseInt(args[i]);
+            } else if (args[i].equals("-h")) {
+                usage();
+                return;
+            } else {
+                break;
+            }
+        }
+        if (i != args.length) {
+            usage();
+            return;
+        }
+
+        double[] values = file == null ? createData(length, new Random(42)) : readColumn(file, column);
+
+        long start = System.nanoTime();
+        double exact = TiSSUtils.calculateThreshold(values.clone(), (int)(values.length*AVG_FRACTION));
+        long exactTime = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        QuantileSketch sketch = new QuantileSketch(k);
+        for (double v : values) {
+            sketch.update(v);
+        }
+        double approx = TiSSUtils.calculateThreshold(sketch, AVG_FRACTION);
+        long approxTime = System.nanoTime() - start;
+
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        long rankDiff = Math.abs(rank(sorted, approx) - rank(sorted, exact));
+
+        System.out.println("Values\tk\tRetained\tExact\tApprox\tValue error\tRank error\tRank error bound\tExact [ms]\tApprox [ms]");
+        System.out.println(String.format("%d\t%d\t%d\t%.6g\t%.6g\t%.3g\t%.3g\t%.3g\t%.1f\t%.1f", values.length, k,
+                sketch.getRetained(), exact, approx, Math.abs(approx - exact) / Math.abs(exact),
+                rankDiff / (double) values.length, sketch.getNormalizedRankError(), exactTime / 1e6, approxTime / 1e6));
+    }
+
+    /**
+     * @return the number of values less than {@code value}
+     */
+    private static long rank(double[] sorted, double value) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sorted[mid] < value) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private static double[] readColumn(String file, int column) throws IOException {
+        double[] values = new double[1024];
+        int n = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
+            String line = reader.readLine();
+            while ((line = reader.readLine()) != null) {
+                if (n == values.length) {
+                    values = Arrays.copyOf(values, n * 2);
+                }
+                values[n++] = Double.parseDouble(line.split("\t")[column]);
+            }
+        }
+        return Arrays.copyOf(values, n);
+    }
+
+    /**
+     * Log-normal values, similar to the fold-changes of SPARSE_PEAK candidates
+     */
+    private static double[] createData(int length, Random random) {
+        double[] data = new double[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = Math.exp(random.nextGaussian());
+        }
+        return data;
+    }
+
+    public static void usage() {
+        System.out.println("ThresholdBenchmark [Options]");
+        System.out.println("\tOptions:");
+        System.out.println("\t\t-f\t\t\tThreshold data file written with -autoparam (default: random values)");
+        System.out.println("\t\t-c\t\t\tZero-based column of the values in the file (default: 2)");
+        System.out.println("\t\t-n\t\t\tNumber of random values (default: 10000000)");
+        System.out.println("\t\t-k\t\t\tSize of the quantile sketch (default: " + QuantileSketch.DEFAULT_K + ")");
+    }
+}
@@ -0,0 +1,126 @@
+package executables;
+
+import gedi.util.datastructure.array.NumericArray;
+import gedi.utils.WindowStats;
+
+import java.util.Random;
+
+/**
+ * Compares recomputing the sample standard deviation of the whole window at each position (O(w), as the DENSE_PEAK
+ * module did before) with the prefix sums of {@link WindowStats} (O(1)) on synthetic dense coverage, using the
+ * same access pattern as the DENSE_PEAK module (z-score against an upstream and a downstream window). The time of the
+ * prefix sums includes building the statistics.
+ */
+public class WindowMomentsBenchmark {
+    public static void main(String[] args) {
+        int length = 2_000_000;
+        int[] windowSizes = new int[] {100, 500, 2000};
+        int i = 0;
+        for (; i < args.length; i++) {
+            if (args[i].equals("-n")) {
+                i++;
+                length = Integer.parseInt(args[i]);
+            } else if (args[i].equals("-w")) {
+                i++;
+                String[] split = args[i].split(",");
+                windowSizes = new int[split.length];
+                for (int j = 0; j < split.length; j++) {
+                    windowSizes[j] = Integer.parseInt(split[j]);
+                }
+            } else if (args[i].equals("-h")) {
+                usage();
+                return;
+            } else {
+                break;
+            }
+        }
+        if (i != args.length) {
+            usage();
+            return;
+        }
+
+        double[] data = createData(length, new Random(42));
+
+        NumericArray array = NumericArray.createMemory(length, NumericArray.NumericArrayType.Double);
+        for (int j = 0; j < length; j++) {
+            array.setDouble(j, data[j]);
+        }
+
+        System.out.println("Window\tPositions\tRecomputed [ns/pos]\tPrefix sums [ns/pos]\tSpeed-up\tMax z difference");
+        for (int windowSize : windowSizes) {
+            int warmUp = Math.min(length, 200_000);
+            runRecomputed(data, windowSize, warmUp, new double[warmUp]);
+            runPrefixSums(array, windowSize, warmUp, new double[warmUp]);
+
+            double[] zRecomputed = new double[length];
+            double[] zPrefixSums = new double[length];
+
+            long start = System.nanoTime();
+            runRecomputed(data, windowSize, length, zRecomputed);
+            long recomputedTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            runPrefixSums(array, windowSize, length, zPrefixSums);
+            long prefixSumsTime = System.nanoTime() - start;
+
+            double maxDiff = 0;
+            for (int j = 0; j < length; j++) {
+                maxDiff = Math.max(maxDiff, Math.abs(zRecomputed[j] - zPrefixSums[j]));
+            }
+
+            int positions = length - 2 * windowSize - 1;
+            System.out.println(String.format("%d\t%d\t%.1f\t%.1f\t%.2fx\t%.3g", windowSize, positions,
+                    recomputedTime / (double) positions, prefixSumsTime / (double) positions, recomputedTime / (double) prefixSumsTime, maxDiff));
+        }
+    }
+
+    /**
+     * Dense coverage with a low background and occasional high peaks, similar to cRNA-seq 5'-ends
+     */
+    private static double[] createData(int length, Random random) {
+        double[] data = new double[length];
+        for (int i = 0; i < length; i++) {
+            data[i] = random.nextInt(30) + (random.nextDouble() < 0.001 ? random.nextInt(5000) : 0);
+        }
+        return data;
+    }
+
+    private static void runRecomputed(double[] data, int windowSize, int length, double[] z) {
+        for (int i = windowSize; i < length - (windowSize + 1); i++) {
+            z[i] = zScore(data[i], recomputedSd(data, i - windowSize, i)) + zScore(data[i], recomputedSd(data, i + 1, i + windowSize + 1));
+        }
+    }
+
+    private static double recomputedSd(double[] data, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += data[i];
+        }
+        double mean = sum / (to - from);
+        double sqSum = 0;
+        for (int i = from; i < to; i++) {
+            sqSum += Math.pow(data[i] - mean, 2);
+        }
+        return Math.sqrt(sqSum / (to - from - 1));
+    }
+
+    private static void runPrefixSums(NumericArray data, int windowSize, int length, double[] z) {
+        WindowStats stats = new WindowStats(data);
+        for (int i = windowSize; i < length - (windowSize + 1); i++) {
+            double value = data.getDouble(i);
+            z[i] = zScore(value, Math.sqrt(stats.sampleVariance(i - windowSize, i)))
+                    + zScore(value, Math.sqrt(stats.sampleVariance(i + 1, i + windowSize + 1)));
+        }
+    }
+
+    private static double zScore(double value, double sd) {
+        return value / Math.max(sd, 1);
+    }
+
+    public static void usage() {
+        System.out.println("WindowMomentsBenchmark [Options]");
+        System.out.println("\tOptions:");
+        System.out.println("\t\t-n\t\t\tNumber of positions (default: 2000000)");
+        System.out.println("\t\t-w\t\t\tComma separated window sizes (default: 100,500,2000)");
+    }
+}
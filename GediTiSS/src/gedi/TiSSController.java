@@ -7,6 +7,8 @@ import gedi.core.reference.Chromosome;
 import gedi.core.reference.ReferenceSequence;
 import gedi.core.reference.Strandness;
 import gedi.core.region.GenomicRegionStorage;
+import gedi.data.BamCoverage;
+import gedi.data.ConversionCache;
 import gedi.data.Data;
 import gedi.data.DataWrapper;
 import gedi.modules.*;
@@ -18,6 +20,7 @@ import gedi.utils.AnalysisModuleType;
 import gedi.utils.ReadType;
 import gedi.utils.TiSSUtils;
 
+import java.io.File;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.List;
@@ -46,6 +49,17 @@ public class TiSSController extends GediProgram {
         addInput(params.readType);
         addInput(params.useUpAndDownstream);
         addInput(params.minReadNum);
+        addInput(params.nthreads);
+        addInput(params.noCoverageIndex);
+        addInput(params.stream);
+        addInput(params.approxAutoparam);
+        addInput(params.fused);
+        addInput(params.memBudget);
+        addInput(params.prefetch);
+        addInput(params.bamFiles);
+        addInput(params.keepCit);
+        addInput(params.bamCache);
+        addInput(params.noBamCache);
 
         addInput(params.prefix);
 
@@ -54,6 +68,7 @@ public class TiSSController extends GediProgram {
         addOutput(params.outKA);
         addOutput(params.outXRN1);
         addOutput(params.outEquTrans);
+        addOutput(params.runtimeFile);
     }
 
     @Override
@@ -77,8 +92,19 @@ public class TiSSController extends GediProgram {
         ReadType readType = getParameter(16);
         boolean useUpAndDownstream = getParameter(17);
         int minReadNum = getParameter(18);
-
-        String prefix = getParameter(19);
+        int nthreads = getParameter(19);
+        boolean noCoverageIndex = getParameter(20);
+        boolean stream = getParameter(21);
+        boolean approxAutoparam = getParameter(22);
+        boolean fused = getParameter(23);
+        double memBudget = getParameter(24);
+        int prefetch = getParameter(25);
+        List<String> bamFiles = getParameters(26);
+        boolean keepCit = getParameter(27);
+        String bamCache = getParameter(28);
+        boolean noBamCache = getParameter(29);
+
+        String prefix = getParameter(30);
 
         final boolean useMultiCourse = timecourses != null && !timecourses.isEmpty();
 
@@ -102,7 +128,29 @@ public class TiSSController extends GediProgram {
             testChrs = null;
         }
 
-        DataWrapper dataWrapper = new DataWrapper(reads, strandness, readType, testChrs);
+        DataWrapper dataWrapper;
+        if (bamFiles != null && !bamFiles.isEmpty() && !keepCit && readType != ReadType.DENSITY) {
+            // see ConvertBam, the BAM files were not converted
+            List<BamCoverage> bams = new ArrayList<>();
+            for (String bam : bamFiles) {
+                bams.add(new BamCoverage(new File(bam), strandness, readType));
+            }
+            if (stream) {
+                context.getLog().warning("Streaming is not supported when counting the reads directly from BAM files. Use -keepCit to stream.");
+            }
+            dataWrapper = DataWrapper.fromBams(bams, strandness, readType, testChrs);
+            if (!noCoverageIndex && !noBamCache) {
+                dataWrapper.useCoverageIndex(new ConversionCache(new File(bamCache)));
+            }
+        } else {
+            dataWrapper = new DataWrapper(reads, strandness, readType, testChrs);
+            dataWrapper.useCoverageIndex(!noCoverageIndex);
+        }
+        dataWrapper.setStreaming(stream);
+        if (memBudget > 0) {
+            dataWrapper.setMemoryBudget((long) (memBudget * DataWrapper.GB));
+        }
+        dataWrapper.setPrefetchThreads(prefetch);
         List<Data> data = new ArrayList<>();
         List<Data> singleLanes = new ArrayList<>(reps.length);
         List<Data> multiLanes = new ArrayList<>(reps.length);
@@ -121,6 +169,9 @@ public class TiSSController extends GediProgram {
             }
         }
         dataWrapper.initData(genomic, data);
+        if (!stream) {
+            dataWrapper.prepareCoverageIndices(genomic, nthreads);
+        }
 
         AnalyzeCustom analyzer = new AnalyzeCustom();
 
@@ -151,7 +202,11 @@ public class TiSSController extends GediProgram {
             }
         }
 
-        analyzer.startAnalyzing(dataWrapper, genomic);
+        analyzer.setApproximateThresholds(useMM && approxAutoparam);
+        analyzer.setFused(fused);
+        analyzer.startAnalyzing(dataWrapper, genomic, nthreads);
+        dataWrapper.shutdownPrefetch();
+        analyzer.writeOutRuntime(new LineOrientedFile(getOutputFile(5).getPath()));
 
         context.getLog().info("Analyzation modules finished");
         context.getLog().info("Writing final file(s)");
@@ -4,6 +4,7 @@ import gedi.core.data.reads.AlignedReadsData;
 import gedi.core.genomic.Genomic;
 import gedi.core.reference.Strandness;
 import gedi.core.region.GenomicRegionStorage;
+import gedi.data.ConversionCache;
 import gedi.util.program.GediParameter;
 import gedi.util.program.GediParameterSet;
 import gedi.util.program.parametertypes.*;
@@ -29,11 +30,21 @@ public class TiSSParameterSet extends GediParameterSet {
     public GediParameter<Double> pseudoCount = new GediParameter<Double>(this,"pseudo", "A pseudo count be added to each position", false, new DoubleParameterType(), 1., true);
     public GediParameter<Integer> cleanupThresh = new GediParameter<Integer>(this,"cleanupThresh", "Threshold at which multi-occurrences of a value will be filtered out", false, new IntParameterType(), 100, true);
     public GediParameter<String> testChromosomes = new GediParameter<String>(this,"testChr", "The chromosomes to use (for testing purposes, individual chromosomes separated by comma, i.e. 1+,1-,...)", false, new StringParameterType(), true);
+    public GediParameter<Integer> nthreads = new GediParameter<Integer>(this,"nthreads", "The number of threads to use for the analysis", false, new IntParameterType(), Runtime.getRuntime().availableProcessors(), true);
+    public GediParameter<Boolean> noCoverageIndex = new GediParameter<Boolean>(this, "noCovIndex", "Do not build or use the coverage index stored next to the CIT files (<cit>.tisscov)", false, new BooleanParameterType(), false, true);
+    public GediParameter<Boolean> stream = new GediParameter<Boolean>(this, "stream", "Stream the reads of each chromosome through the DENSITY, KINETIC, SPARSE_PEAK and DENSE_PEAK modules instead of loading whole chromosomes into memory", false, new BooleanParameterType(), false, true);
+    public GediParameter<Boolean> approxAutoparam = new GediParameter<Boolean>(this, "approxAutoparam", "Estimate the -autoparam thresholds from quantile sketches filled during the scan instead of sorting all candidates", false, new BooleanParameterType(), false, true);
+    public GediParameter<Boolean> fused = new GediParameter<Boolean>(this, "fused", "Scan each chromosome once for all modules working on the same lanes instead of once per module", false, new BooleanParameterType(), false, true);
+    public GediParameter<Double> memBudget = new GediParameter<Double>(this, "memBudget", "The memory in GB the read counts of the chromosomes kept in memory may take (default: the maximum heap size minus 1 GB). Least recently used chromosomes are evicted first.", false, new DoubleParameterType(), 0., true);
+    public GediParameter<Integer> prefetch = new GediParameter<Integer>(this, "prefetch", "The number of threads loading the next chromosome of each module in the background while the current one is analyzed, if it fits into the memory budget (0 to disable)", false, new IntParameterType(), 1, true);
     public GediParameter<Integer> minReadNum = new GediParameter<Integer>(this,"minReadNum", "Minimum amount of reads to call a TiSS", false, new IntParameterType(), 0, true);
 
     // GenomicCreate
     public GediParameter<String> chromSizes = new GediParameter<String>(this,"chromSizes", "tsv file containing the sizes of each chromosome", true, new StringParameterType(), true);
     public GediParameter<String> bamFiles = new GediParameter<String>(this,"bams", "Whitespace separated list of bam-files", true, new StringParameterType(), true);
+    public GediParameter<Boolean> keepCit = new GediParameter<Boolean>(this, "keepCit", "Convert the bam-files into a CIT-file (${prefix}BAM2CIT_convertedReads.cit) instead of counting the reads directly from them", false, new BooleanParameterType(), false, true);
+    public GediParameter<String> bamCache = new GediParameter<String>(this, "bamCache", "Directory keeping the CIT-files and coverage indices of bam-files between runs, keyed by their path, size and modification time", false, new StringParameterType(), ConversionCache.getDefaultDirectory().getPath(), true);
+    public GediParameter<Boolean> noBamCache = new GediParameter<Boolean>(this, "noBamCache", "Convert the bam-files again instead of using the -bamCache", false, new BooleanParameterType(), false, true);
 
     // dense_peak parameters
     public GediParameter<String> replicates = new GediParameter<String>(this,"rep", "A string to identify samples to combine (for ex.: XX_X -> combines read counts from sample 0, 1 and 3 with 2 being ignored) underscore character (_) for skip", false, new StringParameterType(), true);
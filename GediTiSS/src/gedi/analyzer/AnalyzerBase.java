@@ -2,6 +2,7 @@ package gedi.analyzer;
 
 import gedi.core.genomic.Genomic;
 import gedi.core.reference.ReferenceSequence;
+import gedi.data.Data;
 import gedi.data.DataWrapper;
 import gedi.modules.KineticActivity;
 import gedi.modules.ModuleBase;
@@ -12,37 +13,73 @@ import gedi.util.io.text.LineOrientedFile;
 import gedi.util.io.text.LineWriter;
 import gedi.util.mutable.MutablePair;
 import gedi.util.r.RRunner;
+import gedi.utils.datastructures.TissResultTable;
 
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public abstract class AnalyzerBase{
     protected List<ModuleBase> modules = new ArrayList<>();
+    private GlobalModuleScheduler globalScheduler;
+    private boolean fused;
 
     public final void startAnalyzing(DataWrapper dataWrapper, Genomic genomic) {
-        //TODO: Make nice
+        startAnalyzing(dataWrapper, genomic, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Runs all modules on all references using a single pool of {@code nthreads} worker threads.
+     * The tiles of large references are scanned in a second pool of the same size, so a few long chromosomes
+     * can still use all cores.
+     */
+    public final void startAnalyzing(DataWrapper dataWrapper, Genomic genomic, int nthreads) {
         Map<Integer, Set<ModuleBase>> pooledModules = modulePooling();
         List<ModuleScheduler> schedulers = new ArrayList<>();
+        List<Data> accesses = new ArrayList<>();
         for (Integer key : pooledModules.keySet()) {
-            schedulers.add(new ModuleScheduler(pooledModules.get(key), genomic, dataWrapper));
-        }
-        System.err.println("Number of schedulers: " + schedulers.size());
-        List<Thread> threads = new ArrayList<>();
-        for (ModuleScheduler scheduler : schedulers) {
-            threads.add(new Thread(scheduler::run));
-        }
-        for(Thread thread : threads) {
-            thread.start();
+            ModuleScheduler scheduler = new ModuleScheduler(pooledModules.get(key), genomic, dataWrapper, fused);
+            schedulers.add(scheduler);
+            accesses.addAll(scheduler.getAccesses());
         }
-        for (Thread thread : threads) {
-            try {
-                thread.join();
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        // the read counts of a reference stay in memory until all of its modules are done and not any longer
+        dataWrapper.setAccesses(accesses);
+        System.err.println("Number of schedulers: " + schedulers.size() + ", number of threads: " + nthreads);
+        ForkJoinPool tilePool = nthreads > 1 ? new ForkJoinPool(nthreads) : null;
+        modules.forEach(m -> m.setTilePool(tilePool));
+        try {
+            globalScheduler = new GlobalModuleScheduler(schedulers, nthreads);
+            globalScheduler.run();
+        } finally {
+            modules.forEach(m -> m.setTilePool(null));
+            if (tilePool != null) {
+                tilePool.shutdown();
             }
         }
     }
 
+    /**
+     * See {@link ModuleBase#setApproximateThreshold(boolean)}, needs to be set before the analysis is started
+     */
+    public void setApproximateThresholds(boolean approximate) {
+        modules.forEach(m -> m.setApproximateThreshold(approximate));
+    }
+
+    /**
+     * If set, the modules working on the same lanes scan each reference together in a single pass instead of one
+     * after another, see {@link FusedModuleRunnable}. Needs to be set before the analysis is started.
+     */
+    public void setFused(boolean fused) {
+        this.fused = fused;
+    }
+
+    public void writeOutRuntime(LineOrientedFile file) throws IOException {
+        if (globalScheduler == null) {
+            throw new IllegalStateException("The analysis has not been run yet.");
+        }
+        globalScheduler.writeOutRuntime(file);
+    }
+
     private Map<Integer, Set<ModuleBase>> modulePooling() {
         Map<Integer, Set<ModuleBase>> pooledModules = new HashMap<>();
         for (ModuleBase module : modules) {
@@ -76,30 +113,26 @@ public abstract class AnalyzerBase{
 
         ModuleBase module = modules.get(0);
         writer.write("Reference (Strand)\tPosition");
-        if (module.getResultsNew().keySet().size() > 0) {
-            // TODO: This can be null if no TiSS were found (in that case however, there are other problems with the dataset...)
-            ReferenceSequence ref = EI.wrap(module.getResultsNew().keySet()).filter(k -> module.getResultsNew().get(k).keySet().size() > 0).next();
-            for (ModuleBase mod : modules) {
-                if (mod.getResultsNew().get(ref) != null) {
-                    if (mod.getResultsNew().get(ref).keySet().size() > 0) {
-                        Integer pos = mod.getResultsNew().get(ref).keySet().iterator().next();
-                        Set<String> headers = mod.getResultsNew().get(ref).get(pos).keySet();
-                        for (String header : headers) {
-                            writer.write("\t" + header);
-                        }
-                    }
-                }
+        for (ModuleBase mod : modules) {
+            for (String header : mod.getResultsNew().getColumns()) {
+                writer.write("\t" + header);
             }
         }
         writer.writeLine();
-        for (ReferenceSequence ref : module.getResultsNew().keySet()) {
-            Map<Integer, Map<String, Double>> tiss = module.getResultsNew().get(ref);
-            for (Integer i : tiss.keySet()) {
-                if (wasPeakFoundInAllLanes(i, ref, modules)) {
-                    writer.write(ref.toPlusMinusString() + "\t" + i.toString());
-                    for (ModuleBase mod : modules) {
-                        for (String head : mod.getResultsNew().get(ref).get(i).keySet()) {
-                            writer.write("\t" + mod.getResultsNew().get(ref).get(i).get(head));
+        TissResultTable.Rows[] modRows = new TissResultTable.Rows[modules.size()];
+        int[] rows = new int[modules.size()];
+        for (ReferenceSequence ref : module.getResultsNew().getReferences()) {
+            for (int j = 0; j < modules.size(); j++) {
+                modRows[j] = modules.get(j).getResultsNew().get(ref);
+            }
+            TissResultTable.Rows tiss = modRows[0];
+            for (int row = 0; row < tiss.size(); row++) {
+                int pos = tiss.getPosition(row);
+                if (findPeakInAllLanes(pos, modRows, rows)) {
+                    writer.write(ref.toPlusMinusString() + "\t" + pos);
+                    for (int j = 0; j < modRows.length; j++) {
+                        for (int c = 0; c < modules.get(j).getResultsNew().getColumnCount(); c++) {
+                            writer.write("\t" + modRows[j].getValue(rows[j], c));
                         }
                     }
                     writer.writeLine();
@@ -164,9 +197,15 @@ public abstract class AnalyzerBase{
         r.run(false);
     }
 
-    private boolean wasPeakFoundInAllLanes(Integer i, ReferenceSequence ref, List<ModuleBase> modulesToCheck) {
-        for (int j = 1; j < modulesToCheck.size(); j++) {
-            if (!modulesToCheck.get(j).getResultsNew().get(ref).keySet().contains(i)) {
+    /**
+     * Looks up {@code pos} in the rows of all modules
+     * @param rows receives the row of {@code pos} for each module
+     * @return true if all modules found {@code pos}
+     */
+    private boolean findPeakInAllLanes(int pos, TissResultTable.Rows[] modRows, int[] rows) {
+        for (int j = 0; j < modRows.length; j++) {
+            rows[j] = modRows[j] == null ? -1 : modRows[j].indexOf(pos);
+            if (rows[j] < 0) {
                 return false;
             }
         }
@@ -0,0 +1,156 @@
+package gedi.analyzer;
+
+import gedi.core.reference.ReferenceSequence;
+import gedi.data.Data;
+import gedi.data.DataWrapper;
+import gedi.modules.FusedScan;
+import gedi.modules.ModuleBase;
+import gedi.util.datastructure.array.NumericArray;
+import gedi.utils.multithreading.NotifyOnFinishedRunnable;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs all modules of a {@link ModuleScheduler} on one reference in a single pass, see {@link FusedScan}.
+ *
+ * Modules sharing the same {@link Data} share a single access to its read counts, so the read counts are loaded
+ * once per reference and released once all modules are done. If the lanes do not fit into the memory budget together,
+ * the modules are run lane by lane instead.
+ */
+public class FusedModuleRunnable extends NotifyOnFinishedRunnable {
+    private final List<ModuleBase> modules;
+    private final List<Data> lanes = new ArrayList<>();
+    private final List<Data> heldLanes = new ArrayList<>();
+    private ReferenceSequence ref;
+    private int access;
+    private DataWrapper dataWrapper;
+    private int refLength;
+    private long waitNanoTime;
+
+    public FusedModuleRunnable(List<ModuleBase> modules) {
+        this.modules = modules;
+        Map<Data, Boolean> seen = new IdentityHashMap<>();
+        for (ModuleBase module : modules) {
+            if (seen.put(module.getLane(), Boolean.TRUE) == null) {
+                lanes.add(module.getLane());
+            }
+        }
+    }
+
+    public void init(DataWrapper data, int access, int refLength, ReferenceSequence ref) {
+        this.dataWrapper = data;
+        for (ModuleBase module : modules) {
+            module.setDataWrapper(data);
+        }
+        this.access = access;
+        this.refLength = refLength;
+        this.ref = ref;
+    }
+
+    @Override
+    public void doRun() {
+        heldLanes.clear();
+        if (dataWrapper.estimateMemory(lanes, ref, refLength) > dataWrapper.getMemoryBudget()) {
+            runLaneByLane();
+            return;
+        }
+        long start = System.nanoTime();
+        Map<Data, NumericArray[]> laneData = accessAllLanes();
+        waitNanoTime = System.nanoTime() - start;
+        heldLanes.addAll(lanes);
+        List<NumericArray[]> data = new ArrayList<>(modules.size());
+        for (ModuleBase module : modules) {
+            data.add(laneData.get(module.getLane()));
+        }
+        FusedScan.findTiSS(modules, data, ref, refLength);
+    }
+
+    /**
+     * Accesses the read counts of all lanes at once. If one of them cannot be loaded right now, the ones accessed so
+     * far are given back before waiting for memory, as holding them could keep others (or this runnable) from ever
+     * getting the memory they wait for.
+     */
+    private Map<Data, NumericArray[]> accessAllLanes() {
+        Map<Data, NumericArray[]> laneData = new IdentityHashMap<>();
+        while (true) {
+            long releaseGeneration = dataWrapper.getReleaseGeneration();
+            for (Data lane : lanes) {
+                NumericArray[] readCounts = dataWrapper.startAccessingData2(lane, ref, refLength);
+                if (readCounts == null) {
+                    break;
+                }
+                laneData.put(lane, readCounts);
+            }
+            if (laneData.size() == lanes.size()) {
+                return laneData;
+            }
+            for (Data lane : laneData.keySet()) {
+                dataWrapper.cancelAccessingData(lane, ref);
+            }
+            try {
+                // every cancelled access counts as a release, so only wait if nothing else was released meanwhile
+                dataWrapper.awaitRelease(releaseGeneration + laneData.size());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("Interrupted while waiting for memory.", e);
+            }
+            laneData.clear();
+        }
+    }
+
+    /**
+     * Runs the modules of one lane after another if the lanes do not fit into the memory budget together. Each lane
+     * is finished right after its modules are done, so the next one can take its memory.
+     */
+    private void runLaneByLane() {
+        waitNanoTime = 0;
+        for (Data lane : lanes) {
+            List<ModuleBase> laneModules = new ArrayList<>();
+            for (ModuleBase module : modules) {
+                if (module.getLane() == lane) {
+                    laneModules.add(module);
+                }
+            }
+            long start = System.nanoTime();
+            NumericArray[] readCounts = ModuleRunnable.accessData(dataWrapper, lane, ref, refLength);
+            waitNanoTime += System.nanoTime() - start;
+            heldLanes.add(lane);
+            FusedScan.findTiSS(laneModules, Collections.nCopies(laneModules.size(), readCounts), ref, refLength);
+            heldLanes.remove(lane);
+            dataWrapper.finishAccessingData(lane, ref);
+        }
+    }
+
+    public List<ModuleBase> getModules() {
+        return modules;
+    }
+
+    /**
+     * @return the distinct lanes of the modules, each of them accessed once per reference
+     */
+    public List<Data> getLanes() {
+        return lanes;
+    }
+
+    /**
+     * @return the lanes the last run still accesses, to be finished once its results are taken
+     */
+    public List<Data> getHeldLanes() {
+        return heldLanes;
+    }
+
+    public int getAccess() {
+        return access;
+    }
+
+    /**
+     * @return the time the last run spent waiting for the read counts of its lanes, in nanoseconds
+     */
+    public long getWaitNanoTime() {
+        return waitNanoTime;
+    }
+}
@@ -0,0 +1,196 @@
+package gedi.analyzer;
+
+import gedi.util.io.text.LineOrientedFile;
+import gedi.util.io.text.LineWriter;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the work units of all {@link ModuleScheduler}s on a fixed number of worker threads.
+ *
+ * Whenever a worker becomes idle, it takes the longest reference that can be started in any of the schedulers
+ * (longest processing time first). This way, the long chromosomes start first and no lane pool leaves workers idle
+ * while another one still has work. A worker with nothing to do waits until another worker finishes its unit.
+ */
+public class GlobalModuleScheduler {
+    private final List<ModuleScheduler> schedulers;
+    private final int nthreads;
+
+    private final List<WorkUnit> finishedUnits = new ArrayList<>();
+    private Throwable failure;
+    private long makespan;
+
+    public GlobalModuleScheduler(List<ModuleScheduler> schedulers, int nthreads) {
+        this.schedulers = schedulers;
+        this.nthreads = Math.max(1, nthreads);
+    }
+
+    /**
+     * Runs all work units and returns once all of them are finished
+     * @throws IllegalStateException if one of the modules failed
+     */
+    public void run() {
+        long start = System.nanoTime();
+        ExecutorService executor = Executors.newFixedThreadPool(nthreads);
+        try {
+            List<Future<?>> workers = new ArrayList<>();
+            for (int i = 0; i < nthreads; i++) {
+                workers.add(executor.submit(this::work));
+            }
+            for (Future<?> worker : workers) {
+                worker.get();
+            }
+        } catch (Exception e) {
+            throw new IllegalStateException("Scheduling the modules failed.", e);
+        } finally {
+            executor.shutdownNow();
+        }
+        makespan = System.nanoTime() - start;
+        synchronized (this) {
+            if (failure != null) {
+                throw new IllegalStateException("A module failed during the analysis.", failure);
+            }
+        }
+    }
+
+    private void work() {
+        WorkUnit unit;
+        while ((unit = takeNext()) != null) {
+            long start = System.nanoTime();
+            try {
+                unit.getScheduler().run(unit);
+            } catch (Throwable e) {
+                fail(e);
+                return;
+            }
+            unit.setNanoTime(System.nanoTime() - start);
+            finished(unit);
+        }
+    }
+
+    private synchronized WorkUnit takeNext() {
+        while (true) {
+            if (failure != null || allFinished()) {
+                return null;
+            }
+            WorkUnit next = null;
+            for (ModuleScheduler scheduler : schedulers) {
+                WorkUnit unit = scheduler.peekNext();
+                if (unit != null && (next == null || unit.getLength() > next.getLength())) {
+                    next = unit;
+                }
+            }
+            if (next != null) {
+                next.getScheduler().start(next);
+                return next;
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+        }
+    }
+
+    private boolean allFinished() {
+        for (ModuleScheduler scheduler : schedulers) {
+            if (!scheduler.allModulesFinished()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private synchronized void finished(WorkUnit unit) {
+        finishedUnits.add(unit);
+        notifyAll();
+    }
+
+    private synchronized void fail(Throwable e) {
+        if (failure == null) {
+            failure = e;
+        }
+        notifyAll();
+    }
+
+    /**
+     * @return the wall clock time of {@link #run()} in nanoseconds
+     */
+    public long getMakespan() {
+        return makespan;
+    }
+
+    /**
+     * @return the summed up time of all work units in nanoseconds
+     */
+    public synchronized long getTotalTaskTime() {
+        long total = 0;
+        for (WorkUnit unit : finishedUnits) {
+            total += unit.getNanoTime();
+        }
+        return total;
+    }
+
+    /**
+     * @return the summed up time the work units waited for their read counts in nanoseconds
+     */
+    public synchronized long getTotalWaitTime() {
+        long total = 0;
+        for (WorkUnit unit : finishedUnits) {
+            total += unit.getWaitNanoTime();
+        }
+        return total;
+    }
+
+    public synchronized List<WorkUnit> getFinishedUnits() {
+        return Collections.unmodifiableList(new ArrayList<>(finishedUnits));
+    }
+
+    /**
+     * Writes the time of each work unit and the makespan compared to the summed up task times. The time waited for
+     * read counts is reported separately, so it shows whether loading or computing dominates.
+     */
+    public void writeOutRuntime(LineOrientedFile file) throws IOException {
+        LineWriter writer = file.write();
+        writer.writeLine("Module\tLane\tReference\tLength\tSeconds\tWait seconds");
+        for (WorkUnit unit : getFinishedUnits()) {
+            writer.writeLine(unit.getName() + "\t" + Arrays.toString(unit.getModule().getLane().getLane()) + "\t" + unit.getRef().toPlusMinusString() + "\t" + unit.getLength() + "\t" + seconds(unit.getNanoTime()) + "\t" + seconds(unit.getWaitNanoTime()));
+        }
+        long totalTaskTime = getTotalTaskTime();
+        long totalWaitTime = getTotalWaitTime();
+        writer.writeLine();
+        writer.writeLine("Threads\t" + nthreads);
+        writer.writeLine("Makespan [s]\t" + seconds(makespan));
+        writer.writeLine("Sum of task times [s]\t" + seconds(totalTaskTime));
+        writer.writeLine("Lower bound [s]\t" + seconds(lowerBound(totalTaskTime)));
+        writer.writeLine("Parallel efficiency\t" + String.format(Locale.US, "%.3f", makespan == 0 ? 0 : totalTaskTime / ((double) makespan * nthreads)));
+        writer.writeLine("Sum of data wait times [s]\t" + seconds(totalWaitTime));
+        writer.writeLine("Sum of compute times [s]\t" + seconds(totalTaskTime - totalWaitTime));
+        writer.writeLine("Data wait fraction\t" + String.format(Locale.US, "%.3f", totalTaskTime == 0 ? 0 : totalWaitTime / (double) totalTaskTime));
+        writer.close();
+    }
+
+    /**
+     * The makespan can never be shorter than the longest unit or the total time spread evenly over all threads
+     */
+    private long lowerBound(long totalTaskTime) {
+        long longest = 0;
+        for (WorkUnit unit : getFinishedUnits()) {
+            longest = Math.max(longest, unit.getNanoTime());
+        }
+        return Math.max(longest, totalTaskTime / nthreads);
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.US, "%.3f", nanos / 1e9);
+    }
+}
@@ -39,6 +39,44 @@ public class ModuleAccessionListManager {
         return next;
     }
 
+    /**
+     * Returns the first index still needed by {@code module} that is not used by any other module, without
+     * accessing it. Returns -1 if there is none or if the module is currently accessing an index itself.
+     */
+    public synchronized int peekNextFree(ModuleBase module) {
+        AccessionList accessionList = moduleAccessList.get(module);
+        if (accessionList.isAccessing()) {
+            return -1;
+        }
+        for (int i = 0; i < accessionList.size(); i++) {
+            if (accessionList.isNeeded(i) && !isUsed(module, i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Returns the first index still needed by {@code module}, whether or not another module uses it right now.
+     * Returns -1 if there is none.
+     */
+    public synchronized int peekNextNeeded(ModuleBase module) {
+        AccessionList accessionList = moduleAccessList.get(module);
+        for (int i = 0; i < accessionList.size(); i++) {
+            if (accessionList.isNeeded(i)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    public synchronized void startAccess(ModuleBase module, int index) {
+        if (!moduleAccessList.get(module).isNeeded(index) || isUsed(module, index)) {
+            throw new IllegalStateException("Index " + index + " cannot be accessed by " + module.getModuleName());
+        }
+        moduleAccessList.get(module).startAccess(index);
+    }
+
     public synchronized void finishAccess(ModuleBase module, int index) {
         moduleAccessList.get(module).stopAccess(index);
     }
@@ -1,18 +1,27 @@
 package gedi.analyzer;
 
 import gedi.core.reference.ReferenceSequence;
+import gedi.data.CoverageStream;
+import gedi.data.Data;
 import gedi.data.DataWrapper;
 import gedi.modules.ModuleBase;
+import gedi.modules.StreamableModule;
 import gedi.util.datastructure.array.NumericArray;
 import gedi.utils.multithreading.NotifyOnFinishedRunnable;
 
 public class ModuleRunnable extends NotifyOnFinishedRunnable {
+    /**
+     * Number of positions handed to a streamed module at once, besides the halo
+     */
+    public static final int STREAM_CHUNK_SIZE = 1 << 16;
 
     private ModuleBase module;
     private ReferenceSequence ref;
     private int access;
     private DataWrapper dataWrapper;
     private int refLength;
+    private boolean streamed;
+    private long waitNanoTime;
 
     public ModuleRunnable(ModuleBase module) {
         this.module = module;
@@ -20,6 +29,7 @@ public class ModuleRunnable extends NotifyOnFinishedRunnable {
 
     public void init(DataWrapper data, int access, int refLength, ReferenceSequence ref) {
         this.dataWrapper = data;
+        module.setDataWrapper(data);
         this.access = access;
         this.refLength = refLength;
         this.ref = ref;
@@ -28,19 +38,53 @@ public class ModuleRunnable extends NotifyOnFinishedRunnable {
     @Override
     public void doRun() {
 //        System.err.println("[" + Thread.currentThread().getName() + "] " + module.getModuleName() + "-module starts searching for TiSS in: " + ref.toPlusMinusString());
+        streamed = dataWrapper.isStreaming() && module instanceof StreamableModule;
+        waitNanoTime = 0;
+        if (streamed) {
+            runStreamed();
+            return;
+        }
+        long start = System.nanoTime();
+        NumericArray[] data = accessData(dataWrapper, module.getLane(), ref, refLength);
+        waitNanoTime = System.nanoTime() - start;
+        module.findTiSS(data, ref);
+    }
+
+    /**
+     * Accesses the read counts of {@code lane} on {@code ref}, waiting for other modules to release their data if
+     * there is not enough memory right now
+     */
+    static NumericArray[] accessData(DataWrapper dataWrapper, Data lane, ReferenceSequence ref, int refLength) {
         NumericArray[] data;
         do {
-            data = dataWrapper.startAccessingData2(module.getLane(), ref, refLength);
+            long releaseGeneration = dataWrapper.getReleaseGeneration();
+            data = dataWrapper.startAccessingData2(lane, ref, refLength);
             if (data == null) {
+                // Not enough memory right now, wait until some other module releases its data
                 try {
-//                    System.err.println(Thread.currentThread().getName() + " is sleeping");
-                    Thread.sleep(1000);
+                    dataWrapper.awaitRelease(releaseGeneration);
                 } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("Interrupted while waiting for memory.", e);
                 }
             }
         } while (data == null);
-        module.findTiSS(data, ref);
+        return data;
+    }
+
+    /**
+     * Feeds the module chunk by chunk, only the chunk and its halo are in memory
+     */
+    private void runStreamed() {
+        StreamableModule streamable = (StreamableModule) module;
+        int halo = streamable.getStreamingHalo();
+        CoverageStream stream = dataWrapper.openStream(module.getLane(), ref, refLength, STREAM_CHUNK_SIZE + 2*halo);
+        for (int from = 0, to; from < refLength; from = to) {
+            to = refLength - from <= STREAM_CHUNK_SIZE ? refLength : from + STREAM_CHUNK_SIZE;
+            int windowStart = Math.max(0, from - halo);
+            int windowEnd = Math.min(refLength, to + halo);
+            streamable.findTiSSStreamed(stream.window(windowStart, windowEnd), windowStart, from, to, refLength, ref);
+        }
     }
 
     public ModuleBase getModule() {
@@ -50,4 +94,18 @@ public class ModuleRunnable extends NotifyOnFinishedRunnable {
     public int getAccess() {
         return access;
     }
+
+    /**
+     * @return the time the last run spent waiting for its read counts to be loaded or for memory, in nanoseconds
+     */
+    public long getWaitNanoTime() {
+        return waitNanoTime;
+    }
+
+    /**
+     * @return whether the last run streamed the read counts instead of accessing them in memory
+     */
+    public boolean isStreamed() {
+        return streamed;
+    }
 }
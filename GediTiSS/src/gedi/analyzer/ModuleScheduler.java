@@ -5,32 +5,85 @@ import gedi.core.reference.ReferenceSequence;
 import gedi.data.Data;
 import gedi.data.DataWrapper;
 import gedi.modules.ModuleBase;
-import gedi.util.datastructure.array.NumericArray;
+import gedi.modules.StreamableModule;
 import gedi.util.functions.EI;
 import gedi.utils.multithreading.RunnableFinishedListener;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 
+/**
+ * Keeps track of the (module, reference) work units of all modules working on the same lanes.
+ *
+ * A module never works on more than one reference at a time and no reference is worked on by two modules
+ * of the same scheduler at once. The references are ordered longest-first, so {@link #peekNext()} always offers
+ * the longest reference that can be started right now. The units are executed by the {@link GlobalModuleScheduler}.
+ *
+ * If fused, all modules work on the same reference together in a single unit, see {@link FusedModuleRunnable}.
+ * The first module then stands for all of them in the accession lists.
+ *
+ * Whenever a unit is run, the read counts of the next reference of its module are prefetched in the background, see
+ * {@link DataWrapper#prefetch}.
+ */
 public class ModuleScheduler implements RunnableFinishedListener {
 //    private Data moduleLanes;
     private Map<ModuleBase, Data> moduleLanes;
     private ModuleAccessionListManager moduleAccessionListManager;
     private Map<ModuleBase, ModuleRunnable> moduleRunnables;
     private ReferenceSequence[] refs;
-    private Genomic genomic;
+    private int[] refLengths;
     private DataWrapper dataWrapper;
+    private FusedModuleRunnable fusedRunnable;
 
     public ModuleScheduler(Set<ModuleBase> modules, Genomic genomic, DataWrapper dataWrapper) {
+        this(modules, genomic, dataWrapper, false);
+    }
+
+    /**
+     * @param fused run all modules on a reference in a single pass. Ignored for a single module or if the read
+     *              counts are streamed.
+     */
+    public ModuleScheduler(Set<ModuleBase> modules, Genomic genomic, DataWrapper dataWrapper, boolean fused) {
 //        System.err.println("ModuleScheduler created with " + modules.size() + " modules.");
         this.dataWrapper = dataWrapper;
-        this.genomic = genomic;
         this.refs = EI.wrap(dataWrapper.getLoadedChromosomes()).toArray(new ReferenceSequence[0]);
+        Map<ReferenceSequence, Integer> lengths = EI.wrap(refs).toMap(new HashMap<ReferenceSequence, Integer>(), r -> r, r -> genomic.getLength(r.toPlusMinusString()));
+        Arrays.sort(refs, Comparator.comparing((ReferenceSequence r) -> lengths.get(r)).reversed().thenComparing(ReferenceSequence::toPlusMinusString));
+        this.refLengths = new int[refs.length];
+        for (int i = 0; i < refs.length; i++) {
+            refLengths[i] = lengths.get(refs[i]);
+        }
 //        this.moduleLanes = EI.wrap(modules).next().getLane();
         this.moduleLanes = EI.wrap(modules).toMap(new HashMap<ModuleBase, Data>(), m -> m, ModuleBase::getLane);
-        this.moduleAccessionListManager = new ModuleAccessionListManager(modules, refs.length);
-        init(modules);
+        if (fused && modules.size() > 1 && !dataWrapper.isStreaming()) {
+            fusedRunnable = new FusedModuleRunnable(new ArrayList<>(modules));
+            fusedRunnable.addListener(this);
+            this.moduleAccessionListManager = new ModuleAccessionListManager(Collections.singleton(getFusedKey()), refs.length);
+            this.moduleRunnables = new HashMap<>();
+        } else {
+            this.moduleAccessionListManager = new ModuleAccessionListManager(modules, refs.length);
+            init(modules);
+        }
+    }
+
+    /**
+     * @return the lanes accessed on each reference, one entry per access
+     */
+    public List<Data> getAccesses() {
+        if (fusedRunnable != null) {
+            return fusedRunnable.getLanes();
+        }
+        return new ArrayList<>(moduleLanes.values());
+    }
+
+    private ModuleBase getFusedKey() {
+        return fusedRunnable.getModules().get(0);
     }
 
     private void init(Set<ModuleBase> modules) {
@@ -42,20 +95,73 @@ public class ModuleScheduler implements RunnableFinishedListener {
         }
     }
 
-    public void run() {
+    /**
+     * @return the longest work unit that can be started right now or null if there is none
+     */
+    public synchronized WorkUnit peekNext() {
+        if (fusedRunnable != null) {
+            int access = moduleAccessionListManager.peekNextFree(getFusedKey());
+            return access < 0 ? null : new WorkUnit(this, fusedRunnable.getModules(), refs[access], access, refLengths[access]);
+        }
+        WorkUnit next = null;
         for (ModuleBase module : moduleRunnables.keySet()) {
-            run(module);
+            int access = moduleAccessionListManager.peekNextFree(module);
+            if (access >= 0 && (next == null || refLengths[access] > next.getLength())) {
+                next = new WorkUnit(this, module, refs[access], access, refLengths[access]);
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Marks {@code unit} as started. Needs to be called before {@link #run(WorkUnit)}.
+     */
+    public synchronized void start(WorkUnit unit) {
+        moduleAccessionListManager.startAccess(unit.getModule(), unit.getAccess());
+    }
+
+    /**
+     * Runs {@code unit} in the calling thread and releases its data afterwards
+     */
+    public void run(WorkUnit unit) {
+        prefetchNext(unit.getModule());
+        if (fusedRunnable != null) {
+            fusedRunnable.init(dataWrapper, unit.getAccess(), unit.getLength(), unit.getRef());
+            fusedRunnable.run();
+            unit.setWaitNanoTime(fusedRunnable.getWaitNanoTime());
+            return;
         }
-        while (!allModulesFinished()) {
-            try {
-                Thread.sleep(1000);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+        ModuleRunnable moduleRunnable = moduleRunnables.get(unit.getModule());
+        moduleRunnable.init(dataWrapper, unit.getAccess(), unit.getLength(), unit.getRef());
+        moduleRunnable.run();
+        unit.setWaitNanoTime(moduleRunnable.getWaitNanoTime());
+    }
+
+    /**
+     * Loads the read counts of the reference {@code module} is going to work on next while it works on the current
+     * one. Streamed modules do not need them.
+     */
+    private void prefetchNext(ModuleBase module) {
+        int next;
+        synchronized (this) {
+            next = moduleAccessionListManager.peekNextNeeded(module);
+        }
+        if (next < 0) {
+            return;
+        }
+        if (fusedRunnable != null) {
+            for (Data lane : fusedRunnable.getLanes()) {
+                dataWrapper.prefetch(lane, refs[next], refLengths[next]);
             }
+        } else if (!dataWrapper.isStreaming() || !(module instanceof StreamableModule)) {
+            dataWrapper.prefetch(moduleLanes.get(module), refs[next], refLengths[next]);
         }
     }
 
-    private boolean allModulesFinished() {
+    public synchronized boolean allModulesFinished() {
+        if (fusedRunnable != null) {
+            return moduleAccessionListManager.allFinished(getFusedKey());
+        }
         for (ModuleBase module : moduleRunnables.keySet()) {
             if (!moduleAccessionListManager.allFinished(module)) {
                 return false;
@@ -64,39 +170,34 @@ public class ModuleScheduler implements RunnableFinishedListener {
         return true;
     }
 
-    private void run(ModuleBase module) {
-        if (moduleAccessionListManager.allFinished(module)) {
-            System.err.println(module.getModuleName() + " finished all its analysis.");
-            return;
-        }
-        int nextAccess = moduleAccessionListManager.accessNextFree(module);
-        if (nextAccess < 0) {
-            ModuleWaiting moduleWaiting = new ModuleWaiting(module, 1000);
-            moduleWaiting.addListener(this);
-            new Thread(moduleWaiting).start();
-            return;
-        }
-        ModuleRunnable moduleRunnable = moduleRunnables.get(module);
-        moduleRunnable.init(dataWrapper, nextAccess, genomic.getLength(refs[nextAccess].toPlusMinusString()), refs[nextAccess]);
-        Thread thread = new Thread(moduleRunnable);
-        thread.start();
-    }
-
     @Override
     public void notifyRunnableFinished(Runnable runnable) {
         if (runnable instanceof ModuleRunnable) {
             ModuleRunnable moduleRunnable = (ModuleRunnable) runnable;
             System.err.println("[" + Thread.currentThread().getName() + "] " + moduleRunnable.getModule().getModuleName() + " finished for: " + refs[moduleRunnable.getAccess()].toPlusMinusString());
-            dataWrapper.finishAccessingData(moduleLanes.get(moduleRunnable.getModule()), refs[moduleRunnable.getAccess()]);
+            if (moduleRunnable.isStreamed()) {
+                dataWrapper.skipAccessingData(moduleLanes.get(moduleRunnable.getModule()), refs[moduleRunnable.getAccess()]);
+            } else {
+                dataWrapper.finishAccessingData(moduleLanes.get(moduleRunnable.getModule()), refs[moduleRunnable.getAccess()]);
+            }
             System.err.println("[" + Thread.currentThread().getName() + "] " + moduleRunnable.getModule().getModuleName() + " released data for: " + refs[moduleRunnable.getAccess()].toPlusMinusString());
-            moduleAccessionListManager.finishAccess(moduleRunnable.getModule(), moduleRunnable.getAccess());
-            run(moduleRunnable.getModule());
-        } else if (runnable instanceof ModuleWaiting) {
-            ModuleWaiting moduleWaiting = (ModuleWaiting) runnable;
-            System.err.print("[" + Thread.currentThread().getName() + "] " + moduleWaiting.getModule().getModuleName() + ": Waiting thread finished waiting.\r");
-            ModuleBase module = moduleWaiting.getModule();
-            run(module);
-         } else {
+            synchronized (this) {
+                moduleAccessionListManager.finishAccess(moduleRunnable.getModule(), moduleRunnable.getAccess());
+                if (moduleAccessionListManager.allFinished(moduleRunnable.getModule())) {
+                    System.err.println(moduleRunnable.getModule().getModuleName() + " finished all its analysis.");
+                }
+            }
+        } else if (runnable instanceof FusedModuleRunnable) {
+            FusedModuleRunnable fused = (FusedModuleRunnable) runnable;
+            ReferenceSequence ref = refs[fused.getAccess()];
+            for (Data lane : fused.getHeldLanes()) {
+                dataWrapper.finishAccessingData(lane, ref);
+            }
+            System.err.println("[" + Thread.currentThread().getName() + "] " + fused.getModules().size() + " fused modules finished and released data for: " + ref.toPlusMinusString());
+            synchronized (this) {
+                moduleAccessionListManager.finishAccess(getFusedKey(), fused.getAccess());
+            }
+        } else {
             System.err.println("We should never arrive here.");
             throw new IllegalStateException("Unsafe territory. Did you forget to implement a runnable-subclass catch?");
         }
@@ -0,0 +1,88 @@
+package gedi.analyzer;
+
+import gedi.core.reference.ReferenceSequence;
+import gedi.modules.ModuleBase;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * A single module working on a single reference, or all modules of a scheduler if they are fused
+ */
+public class WorkUnit {
+    private final ModuleScheduler scheduler;
+    private final ModuleBase module;
+    private final List<ModuleBase> modules;
+    private final ReferenceSequence ref;
+    private final int access;
+    private final int length;
+    private long nanoTime;
+    private long waitNanoTime;
+
+    WorkUnit(ModuleScheduler scheduler, ModuleBase module, ReferenceSequence ref, int access, int length) {
+        this(scheduler, Collections.singletonList(module), ref, access, length);
+    }
+
+    /**
+     * @param modules the fused modules, the first one stands for all of them in the {@link ModuleScheduler}
+     */
+    WorkUnit(ModuleScheduler scheduler, List<ModuleBase> modules, ReferenceSequence ref, int access, int length) {
+        this.scheduler = scheduler;
+        this.module = modules.get(0);
+        this.modules = modules;
+        this.ref = ref;
+        this.access = access;
+        this.length = length;
+    }
+
+    public ModuleScheduler getScheduler() {
+        return scheduler;
+    }
+
+    public ModuleBase getModule() {
+        return module;
+    }
+
+    public List<ModuleBase> getModules() {
+        return modules;
+    }
+
+    /**
+     * @return the name of the module, or the names of all fused modules joined by '+'
+     */
+    public String getName() {
+        return modules.stream().map(ModuleBase::getModuleName).collect(Collectors.joining("+"));
+    }
+
+    public ReferenceSequence getRef() {
+        return ref;
+    }
+
+    public int getAccess() {
+        return access;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public long getNanoTime() {
+        return nanoTime;
+    }
+
+    void setNanoTime(long nanoTime) {
+        this.nanoTime = nanoTime;
+    }
+
+    /**
+     * @return the part of {@link #getNanoTime()} spent waiting for the read counts instead of computing
+     */
+    public long getWaitNanoTime() {
+        return waitNanoTime;
+    }
+
+    void setWaitNanoTime(long waitNanoTime) {
+        this.waitNanoTime = waitNanoTime;
+    }
+}
@@ -0,0 +1,145 @@
+package gedi.data;
+
+import gedi.core.reference.ReferenceSequence;
+import gedi.core.reference.Strandness;
+import gedi.utils.ReadType;
+import htsjdk.samtools.AlignmentBlock;
+import htsjdk.samtools.SAMRecord;
+import htsjdk.samtools.SAMRecordIterator;
+import htsjdk.samtools.SAMSequenceDictionary;
+import htsjdk.samtools.SamReader;
+import htsjdk.samtools.SamReaderFactory;
+import htsjdk.samtools.ValidationStringency;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Read counts of a sorted and indexed BAM file, counted directly from its alignments instead of converting it into a
+ * CIT file first. Each BAM file is a single condition, like in the CIT files written by Bam2CIT.
+ *
+ * The reads are counted like the CIT based loaders of {@link DataWrapper} do: the 5' or 3' end of each read is counted
+ * depending on the strandness and {@link ReadType}, weighted by one over the number of its alignments (NH). Reads with
+ * a mismatch at their leading (sense) or trailing (antisense) end, taken from the MD tag, are counted one aligned
+ * position further inside. Of paired-end reads, only the first mate is counted. Read densities are not supported.
+ *
+ * Each call opens its own reader, so references can be counted in parallel.
+ */
+public class BamCoverage {
+    private final File bam;
+    private final Strandness strandness;
+    private final boolean switchFiveAndThreePrimeEnd;
+
+    public BamCoverage(File bam, Strandness strandness, ReadType readType) {
+        if (readType == ReadType.DENSITY) {
+            throw new IllegalArgumentException("Read densities can not be counted from BAM files directly, convert them into a CIT file instead.");
+        }
+        this.bam = bam;
+        this.strandness = strandness;
+        this.switchFiveAndThreePrimeEnd = strandness == Strandness.Antisense && readType == ReadType.FIVE_PRIME || strandness == Strandness.Sense && readType == ReadType.THREE_PRIME;
+    }
+
+    public File getFile() {
+        return bam;
+    }
+
+    /**
+     * Adds the read counts of {@code ref} to {@code target}. References missing in the BAM file have no reads.
+     */
+    public void addCoverage(ReferenceSequence ref, int refLength, CompactCoverage target) throws IOException {
+        ReferenceSequence readRef = strandness == Strandness.Antisense ? ref.toOppositeStrand() : ref;
+        boolean minus = readRef.isMinus();
+        // the counted end and the end checked for mismatches in reference coordinates: the 5' end of a read on the
+        // plus strand is its start, the one of a read on the minus strand its end
+        boolean countStart = minus == switchFiveAndThreePrimeEnd;
+        boolean mismatchAtStart = minus == (strandness == Strandness.Antisense);
+        try (SamReader reader = SamReaderFactory.makeDefault().validationStringency(ValidationStringency.SILENT).open(bam)) {
+            if (!reader.hasIndex()) {
+                throw new IOException(bam.getPath() + " is not indexed. Sort and index it using samtools prior to iTiSS!");
+            }
+            String name = findSequenceName(reader.getFileHeader().getSequenceDictionary(), ref.getName());
+            if (name == null) {
+                return;
+            }
+            try (SAMRecordIterator records = reader.query(name, 0, 0, false)) {
+                while (records.hasNext()) {
+                    SAMRecord record = records.next();
+                    if (record.getReadUnmappedFlag() || record.getSupplementaryAlignmentFlag()
+                            || record.getReadPairedFlag() && record.getSecondOfPairFlag()
+                            || record.getReadNegativeStrandFlag() != minus) {
+                        continue;
+                    }
+                    String md = record.getStringAttribute("MD");
+                    boolean endMismatch = mismatchAtStart ? startsWithMismatch(md) : endsWithMismatch(md);
+                    int pos;
+                    if (endMismatch) {
+                        pos = secondAlignedPosition(record.getAlignmentBlocks(), countStart);
+                    } else {
+                        pos = countStart ? record.getAlignmentStart() - 1 : record.getAlignmentEnd() - 1;
+                    }
+                    if (pos >= 0 && pos < refLength) {
+                        target.add(pos, weight(record));
+                    }
+                }
+            }
+        }
+    }
+
+    private static double weight(SAMRecord record) {
+        Integer nh = record.getIntegerAttribute("NH");
+        return nh == null || nh <= 1 ? 1 : 1. / nh;
+    }
+
+    /**
+     * @return the 0-based reference position of the second aligned base from the start or the end, -1 if there is none
+     */
+    static int secondAlignedPosition(List<AlignmentBlock> blocks, boolean fromStart) {
+        if (fromStart) {
+            AlignmentBlock first = blocks.get(0);
+            if (first.getLength() > 1) {
+                return first.getReferenceStart();
+            }
+            return blocks.size() > 1 ? blocks.get(1).getReferenceStart() - 1 : -1;
+        }
+        AlignmentBlock last = blocks.get(blocks.size() - 1);
+        if (last.getLength() > 1) {
+            return last.getReferenceStart() + last.getLength() - 3;
+        }
+        if (blocks.size() < 2) {
+            return -1;
+        }
+        AlignmentBlock previous = blocks.get(blocks.size() - 2);
+        return previous.getReferenceStart() + previous.getLength() - 2;
+    }
+
+    /**
+     * @return whether the first aligned base is a mismatch according to the MD tag {@code md}
+     */
+    static boolean startsWithMismatch(String md) {
+        return md != null && md.length() > 1 && md.charAt(0) == '0' && Character.isLetter(md.charAt(1));
+    }
+
+    /**
+     * @return whether the last aligned base is a mismatch according to the MD tag {@code md}
+     */
+    static boolean endsWithMismatch(String md) {
+        return md != null && md.length() > 1 && md.charAt(md.length() - 1) == '0' && Character.isLetter(md.charAt(md.length() - 2));
+    }
+
+    /**
+     * @return the name of {@code name} in the BAM file, with or without a leading "chr", or null if it is missing
+     */
+    private static String findSequenceName(SAMSequenceDictionary dictionary, String name) {
+        if (dictionary.getSequence(name) != null) {
+            return name;
+        }
+        if (dictionary.getSequence("chr" + name) != null) {
+            return "chr" + name;
+        }
+        if (name.startsWith("chr") && dictionary.getSequence(name.substring(3)) != null) {
+            return name.substring(3);
+        }
+        return null;
+    }
+}
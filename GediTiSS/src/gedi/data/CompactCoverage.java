@@ -0,0 +1,208 @@
+package gedi.data;
+
+import gedi.util.datastructure.array.NumericArray;
+
+import java.util.Arrays;
+
+/**
+ * Read counts of one lane on one reference, stored in the narrowest type holding them.
+ *
+ * Counts start out as 16-bit ints and are promoted once a count does not fit anymore: to 32-bit ints for higher
+ * integral counts and to floats once multi-mapping weights make them fractional. Unweighted data thus needs a quarter
+ * of the memory of doubles. Every promotion copies the array once, so a reference is copied at most three times.
+ */
+public class CompactCoverage {
+    /**
+     * Integral counts up to this stay exact as floats
+     */
+    private static final double MAX_EXACT_FLOAT = 1 << 24;
+    /**
+     * Number of positions summed up at once by {@link #total(NumericArray[])}
+     */
+    static final int TOTAL_BLOCK_SIZE = 1 << 13;
+
+    private NumericArray counts;
+    private NumericArray.NumericArrayType type;
+    private double maxAbs;
+
+    public CompactCoverage(int length) {
+        this.type = NumericArray.NumericArrayType.Short;
+        this.counts = NumericArray.createMemory(length, type);
+    }
+
+    public int length() {
+        return counts.length();
+    }
+
+    public double getDouble(int pos) {
+        return counts.getDouble(pos);
+    }
+
+    public void add(int pos, double value) {
+        if (value != 0) {
+            set(pos, counts.getDouble(pos) + value);
+        }
+    }
+
+    /**
+     * Adds the counts of {@code other} position by position
+     */
+    public void add(NumericArray other) {
+        for (int i = 0; i < other.length(); i++) {
+            add(i, other.getDouble(i));
+        }
+    }
+
+    public void set(int pos, double value) {
+        maxAbs = Math.max(maxAbs, Math.abs(value));
+        NumericArray.NumericArrayType needed = neededType(value, maxAbs, rank(type) >= rank(NumericArray.NumericArrayType.Float));
+        if (rank(needed) > rank(type)) {
+            promote(needed);
+        }
+        counts.setDouble(pos, value);
+    }
+
+    /**
+     * @return the counts, not copied. Adding to this instance afterwards may replace them by a wider copy.
+     */
+    public NumericArray getCounts() {
+        return counts;
+    }
+
+    /**
+     * @return {@code ary} in the narrowest type holding all of its values, {@code ary} itself if it can not get any
+     * smaller
+     */
+    public static NumericArray compact(NumericArray ary) {
+        NumericArray.NumericArrayType needed = NumericArray.NumericArrayType.Short;
+        double maxAbs = 0;
+        for (int i = 0; i < ary.length(); i++) {
+            double v = ary.getDouble(i);
+            maxAbs = Math.max(maxAbs, Math.abs(v));
+            NumericArray.NumericArrayType t = neededType(v, maxAbs, rank(needed) >= rank(NumericArray.NumericArrayType.Float));
+            if (rank(t) > rank(needed)) {
+                needed = t;
+            }
+        }
+        if (getBytesPerValue(needed) >= getBytesPerValue(ary.getType())) {
+            return ary;
+        }
+        NumericArray compact = NumericArray.createMemory(ary.length(), needed);
+        for (int i = 0; i < ary.length(); i++) {
+            double v = ary.getDouble(i);
+            if (v != 0) {
+                compact.setDouble(i, v);
+            }
+        }
+        return compact;
+    }
+
+    /**
+     * @return the sum of {@code lanes} position by position, as compact as possible
+     */
+    public static NumericArray total(NumericArray[] lanes) {
+        int length = lanes[0].length();
+        CompactCoverage total = new CompactCoverage(length);
+        // the lanes are summed up block by block in a plain double array, so the type of the total is checked once per
+        // block instead of once per lane and position
+        double[] block = new double[Math.min(length, TOTAL_BLOCK_SIZE)];
+        for (int from = 0; from < length; from += block.length) {
+            int n = Math.min(block.length, length - from);
+            Arrays.fill(block, 0, n, 0);
+            for (NumericArray lane : lanes) {
+                for (int i = 0; i < n; i++) {
+                    block[i] += lane.getDouble(from + i);
+                }
+            }
+            total.set(from, block, n);
+        }
+        return total.getCounts();
+    }
+
+    /**
+     * Sets the first {@code n} values of {@code values} to the positions starting at {@code from}, promoting the
+     * counts at most once
+     */
+    private void set(int from, double[] values, int n) {
+        boolean fractional = rank(type) >= rank(NumericArray.NumericArrayType.Float);
+        double max = maxAbs;
+        for (int i = 0; i < n; i++) {
+            double v = values[i];
+            max = Math.max(max, Math.abs(v));
+            fractional |= v != Math.rint(v);
+        }
+        maxAbs = max;
+        NumericArray.NumericArrayType needed = neededType(0, max, fractional);
+        if (rank(needed) > rank(type)) {
+            promote(needed);
+        }
+        for (int i = 0; i < n; i++) {
+            if (values[i] != 0) {
+                counts.setDouble(from + i, values[i]);
+            }
+        }
+    }
+
+    /**
+     * @return the bytes used by the values of {@code ary}
+     */
+    public static long getByteSize(NumericArray ary) {
+        return getBytesPerValue(ary.getType()) * (long) ary.length();
+    }
+
+    public static int getBytesPerValue(NumericArray.NumericArrayType type) {
+        if (type == NumericArray.NumericArrayType.Byte) {
+            return 1;
+        }
+        if (type == NumericArray.NumericArrayType.Short) {
+            return 2;
+        }
+        if (type == NumericArray.NumericArrayType.Integer || type == NumericArray.NumericArrayType.Float) {
+            return 4;
+        }
+        return 8;
+    }
+
+    private void promote(NumericArray.NumericArrayType needed) {
+        NumericArray promoted = NumericArray.createMemory(counts.length(), needed);
+        for (int i = 0; i < counts.length(); i++) {
+            double v = counts.getDouble(i);
+            if (v != 0) {
+                promoted.setDouble(i, v);
+            }
+        }
+        counts = promoted;
+        type = needed;
+    }
+
+    /**
+     * @param maxAbs the largest absolute count stored so far, {@code value} included
+     * @param fractional whether a fractional count was stored before
+     */
+    private static NumericArray.NumericArrayType neededType(double value, double maxAbs, boolean fractional) {
+        if (fractional || value != Math.rint(value)) {
+            // floats would round high integral counts
+            return maxAbs <= MAX_EXACT_FLOAT ? NumericArray.NumericArrayType.Float : NumericArray.NumericArrayType.Double;
+        }
+        if (maxAbs <= Short.MAX_VALUE) {
+            return NumericArray.NumericArrayType.Short;
+        }
+        if (maxAbs <= Integer.MAX_VALUE) {
+            return NumericArray.NumericArrayType.Integer;
+        }
+        return NumericArray.NumericArrayType.Double;
+    }
+
+    /**
+     * Short &lt; Integer &lt; Float &lt; Double, each one holding all counts the ones before it hold
+     */
+    private static int rank(NumericArray.NumericArrayType type) {
+        if (type == NumericArray.NumericArrayType.Byte || type == NumericArray.NumericArrayType.Short) {
+            return 0;
+        }
+        if (type == NumericArray.NumericArrayType.Integer) {
+            return 1;
+        }
+        return type == NumericArray.NumericArrayType.Float ? 2 : 3;
+    }
+}
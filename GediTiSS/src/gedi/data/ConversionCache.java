@@ -0,0 +1,100 @@
+package gedi.data;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Directory keeping the conversions of BAM files between runs, so runs on the same BAM files with a different prefix
+ * or different modules do not convert them again.
+ *
+ * Each entry is named after a hash of the canonical path, size and modification time of its BAM files and of the kind
+ * of conversion. A changed BAM file thus gets a new entry. Entries are never deleted automatically.
+ */
+public class ConversionCache {
+    private final File directory;
+
+    public ConversionCache(File directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * @return {@code ~/.itiss/cache}
+     */
+    public static File getDefaultDirectory() {
+        return new File(new File(System.getProperty("user.home"), ".itiss"), "cache");
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @return the CIT file {@code bams} are converted into by Bam2CIT, one condition per BAM file in this order
+     */
+    public File getCitFile(List<File> bams) throws IOException {
+        return new File(directory, key(bams, "Bam2CIT") + ".cit");
+    }
+
+    /**
+     * @return the directory keeping the {@link CoverageIndex} of {@code bam}
+     */
+    public File getCoverageDirectory(File bam) throws IOException {
+        return new File(directory, key(Collections.singletonList(bam), "coverage") + CoverageIndex.DIRECTORY_SUFFIX);
+    }
+
+    /**
+     * Moves a freshly written {@code tmp} file to {@code target} in a single step if possible, so concurrent jobs never
+     * see a partially written entry
+     */
+    public static void moveInto(File tmp, File target) throws IOException {
+        try {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tmp.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Makes {@code source} available as {@code target}, as a hard link if possible and as a copy otherwise
+     */
+    public static void linkOrCopy(File source, File target) throws IOException {
+        Files.deleteIfExists(target.toPath());
+        try {
+            Files.createLink(target.toPath(), source.toPath());
+        } catch (IOException | UnsupportedOperationException e) {
+            Files.copy(source.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * @return a hex SHA-1 of the canonical path, size and modification time of each of {@code files} and {@code kind}
+     */
+    static String key(List<File> files, String kind) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-1");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 is not available.", e);
+        }
+        StringBuilder sb = new StringBuilder(kind).append('\n');
+        for (File file : files) {
+            if (!file.isFile()) {
+                throw new IOException(file.getPath() + " does not exist.");
+            }
+            sb.append(file.getCanonicalPath()).append('\t').append(file.length()).append('\t').append(file.lastModified()).append('\n');
+        }
+        StringBuilder hex = new StringBuilder();
+        for (byte b : digest.digest(sb.toString().getBytes(StandardCharsets.UTF_8))) {
+            hex.append(String.format("%02x", b));
+        }
+        return hex.toString();
+    }
+}
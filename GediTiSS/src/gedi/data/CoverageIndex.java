@@ -0,0 +1,316 @@
+package gedi.data;
+
+import gedi.centeredDiskIntervalTree.CenteredDiskIntervalTreeStorage;
+import gedi.core.data.reads.AlignedReadsData;
+import gedi.core.data.reads.ReadCountMode;
+import gedi.core.reference.ReferenceSequence;
+import gedi.core.reference.Strandness;
+import gedi.core.region.GenomicRegionStorage;
+import gedi.util.datastructure.array.NumericArray;
+import gedi.utils.ReadType;
+import gedi.utils.TiSSUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent coverage of all conditions of a CIT file, stored per reference in {@code <cit>.tisscov/} next to it.
+ * BAM files read directly (see {@link BamCoverage}) keep theirs in a {@link ConversionCache} instead.
+ *
+ * A reference is extracted from the CIT once, on first use, and written to its own file together with the size and
+ * the modification time of the CIT. Later runs only validate these and read the coverage through a read-only memory
+ * mapping, so the CIT is not decoded again and concurrent jobs share the OS page cache.
+ *
+ * The coverage of each condition is split into blocks of {@link #BLOCK_SIZE} positions. A block is stored empty,
+ * sparse (offset/value pairs) or dense, whichever is smallest.
+ */
+public class CoverageIndex {
+    public static final String DIRECTORY_SUFFIX = ".tisscov";
+
+    private static final int MAGIC = 0x54435631;
+    private static final int VERSION = 1;
+    private static final int BLOCK_SIZE = 1024;
+    private static final int HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 4 + 4;
+    private static final int SPARSE_ENTRY_SIZE = 2 + 4;
+    private static final long MAX_MAPPING_SIZE = 1L << 30;
+
+    private final Extractor extractor;
+    /**
+     * The CIT or BAM file the coverage is extracted from
+     */
+    private final File sourceFile;
+    private final File directory;
+    private final Strandness strandness;
+    private final ReadType readType;
+    private final int numConditions;
+
+    private final ConcurrentHashMap<ReferenceSequence, Object> refLocks = new ConcurrentHashMap<>();
+    private final Set<ReferenceSequence> validated = ConcurrentHashMap.newKeySet();
+
+    private CoverageIndex(Extractor extractor, File sourceFile, int numConditions, File directory, Strandness strandness, ReadType readType) {
+        this.extractor = extractor;
+        this.sourceFile = sourceFile;
+        this.strandness = strandness;
+        this.readType = readType;
+        this.numConditions = numConditions;
+        this.directory = new File(directory, readType.name() + "_" + strandness.name());
+    }
+
+    /**
+     * @return the coverage index of {@code cit} or null if {@code cit} is not a CIT file on disk
+     */
+    public static CoverageIndex open(GenomicRegionStorage<AlignedReadsData> cit, Strandness strandness, ReadType readType) {
+        if (!(cit instanceof CenteredDiskIntervalTreeStorage)) {
+            return null;
+        }
+        File sourceFile = new File(((CenteredDiskIntervalTreeStorage<?>) cit).getPath());
+        if (!sourceFile.isFile()) {
+            return null;
+        }
+        Extractor extractor = (coverage, ref) -> {
+            if (readType == ReadType.DENSITY) {
+                TiSSUtils.extractReadDensitiesForAllConditionsFromSingleFile(coverage, cit, ref, strandness, ReadCountMode.Weight);
+            } else {
+                TiSSUtils.extractCountsForAllConditionsFromSingleFile(coverage, cit, ref, strandness, readType);
+            }
+        };
+        return new CoverageIndex(extractor, sourceFile, cit.getMetaDataConditions().length, new File(sourceFile.getPath() + DIRECTORY_SUFFIX), strandness, readType);
+    }
+
+    /**
+     * @return the coverage index of {@code bam}, a single condition, stored in {@code directory}
+     */
+    public static CoverageIndex open(BamCoverage bam, File directory, Strandness strandness, ReadType readType) {
+        Extractor extractor = (coverage, ref) -> {
+            CompactCoverage counts = new CompactCoverage(coverage[0].length());
+            bam.addCoverage(ref, coverage[0].length(), counts);
+            coverage[0] = counts.getCounts();
+        };
+        return new CoverageIndex(extractor, bam.getFile(), 1, directory, strandness, readType);
+    }
+
+    public File getSourceFile() {
+        return sourceFile;
+    }
+
+    /**
+     * Builds the index file of {@code ref} unless it exists already
+     * @return true if it was built by this call
+     */
+    public boolean prepare(ReferenceSequence ref, int refLength) throws IOException {
+        return obtainBuilding(ref, refLength);
+    }
+
+    /**
+     * @return the bytes held in memory while the index file of a reference with {@code refLength} positions is built,
+     * i.e. one float per position and condition
+     */
+    public long getBuildMemory(int refLength) {
+        return 4L * numConditions * refLength;
+    }
+
+    /**
+     * Adds the coverage of condition {@code cond} on {@code ref} to {@code target}.
+     * The index file of {@code ref} is built first, if it does not exist or is outdated.
+     */
+    public void addCoverage(ReferenceSequence ref, int refLength, int cond, CompactCoverage target) throws IOException {
+        if (cond < 0 || cond >= numConditions) {
+            throw new IllegalArgumentException("Condition " + cond + " does not exist in " + sourceFile.getPath());
+        }
+        File file = obtain(ref, refLength);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            read(channel, cond, refLength, target);
+        }
+    }
+
+    private File getFile(ReferenceSequence ref) {
+        return new File(directory, ref.toPlusMinusString() + ".cov");
+    }
+
+    private File obtain(ReferenceSequence ref, int refLength) throws IOException {
+        obtainBuilding(ref, refLength);
+        return getFile(ref);
+    }
+
+    /**
+     * @return true if the index file of {@code ref} had to be built
+     */
+    private boolean obtainBuilding(ReferenceSequence ref, int refLength) throws IOException {
+        if (validated.contains(ref)) {
+            return false;
+        }
+        synchronized (refLocks.computeIfAbsent(ref, r -> new Object())) {
+            boolean built = false;
+            if (!validated.contains(ref) && !isValid(getFile(ref), refLength)) {
+                System.err.println("Building coverage index for " + ref.toPlusMinusString() + " of " + sourceFile.getPath());
+                build(getFile(ref), ref, refLength);
+                built = true;
+            }
+            validated.add(ref);
+            return built;
+        }
+    }
+
+    private boolean isValid(File file, int refLength) throws IOException {
+        if (!file.isFile() || file.length() < HEADER_SIZE) {
+            return false;
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (header.hasRemaining()) {
+                if (channel.read(header) < 0) {
+                    return false;
+                }
+            }
+        }
+        header.flip();
+        return header.getInt() == MAGIC &&
+                header.getInt() == VERSION &&
+                header.getLong() == sourceFile.length() &&
+                header.getLong() == sourceFile.lastModified() &&
+                header.getInt() == numConditions &&
+                header.getInt() == refLength &&
+                header.getInt() == BLOCK_SIZE;
+    }
+
+    private void build(File file, ReferenceSequence ref, int refLength) throws IOException {
+        NumericArray[] coverage = new NumericArray[numConditions];
+        for (int i = 0; i < coverage.length; i++) {
+            coverage[i] = NumericArray.createMemory(refLength, NumericArray.NumericArrayType.Float);
+        }
+        extractor.extract(coverage, ref);
+
+        if (!directory.isDirectory() && !directory.mkdirs() && !directory.isDirectory()) {
+            throw new IOException("Could not create " + directory.getPath());
+        }
+        // Written to a temporary file first, so concurrent jobs never see a partially written index
+        File tmp = File.createTempFile(file.getName(), ".tmp", directory);
+        try {
+            write(tmp, coverage, refLength);
+            try {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(tmp.toPath());
+        }
+    }
+
+    private static int numBlocks(int length) {
+        return (length + BLOCK_SIZE - 1) / BLOCK_SIZE;
+    }
+
+    private static int encodedSize(NumericArray ary, int blockStart, int blockLength) {
+        int nonZero = 0;
+        for (int i = blockStart; i < blockStart + blockLength; i++) {
+            if (ary.getFloat(i) != 0f) {
+                nonZero++;
+            }
+        }
+        if (nonZero == 0) {
+            return 0;
+        }
+        return Math.min(nonZero * SPARSE_ENTRY_SIZE, blockLength * 4);
+    }
+
+    private void write(File file, NumericArray[] coverage, int length) throws IOException {
+        int numBlocks = numBlocks(length);
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceFile.length());
+            out.writeLong(sourceFile.lastModified());
+            out.writeInt(coverage.length);
+            out.writeInt(length);
+            out.writeInt(BLOCK_SIZE);
+
+            long offset = HEADER_SIZE + (long) coverage.length * (numBlocks + 1) * 8;
+            for (NumericArray ary : coverage) {
+                for (int b = 0; b < numBlocks; b++) {
+                    out.writeLong(offset);
+                    int blockStart = b * BLOCK_SIZE;
+                    offset += encodedSize(ary, blockStart, Math.min(BLOCK_SIZE, length - blockStart));
+                }
+                out.writeLong(offset);
+            }
+
+            for (NumericArray ary : coverage) {
+                for (int b = 0; b < numBlocks; b++) {
+                    int blockStart = b * BLOCK_SIZE;
+                    int blockLength = Math.min(BLOCK_SIZE, length - blockStart);
+                    int size = encodedSize(ary, blockStart, blockLength);
+                    if (size == blockLength * 4) {
+                        for (int i = blockStart; i < blockStart + blockLength; i++) {
+                            out.writeFloat(ary.getFloat(i));
+                        }
+                    } else if (size > 0) {
+                        for (int i = blockStart; i < blockStart + blockLength; i++) {
+                            float v = ary.getFloat(i);
+                            if (v != 0f) {
+                                out.writeShort(i - blockStart);
+                                out.writeFloat(v);
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    private void read(FileChannel channel, int cond, int length, CompactCoverage target) throws IOException {
+        int numBlocks = numBlocks(length);
+        long fileSize = channel.size();
+        LongBuffer table = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_SIZE + (long) cond * (numBlocks + 1) * 8, (numBlocks + 1) * 8L).asLongBuffer();
+
+        MappedByteBuffer window = null;
+        long windowStart = 0;
+        long windowEnd = 0;
+        for (int b = 0; b < numBlocks; b++) {
+            long start = table.get(b);
+            long end = table.get(b + 1);
+            if (start == end) {
+                continue;
+            }
+            if (window == null || start < windowStart || end > windowEnd) {
+                windowStart = start;
+                windowEnd = Math.min(fileSize, start + MAX_MAPPING_SIZE);
+                window = channel.map(FileChannel.MapMode.READ_ONLY, windowStart, windowEnd - windowStart);
+            }
+            int blockStart = b * BLOCK_SIZE;
+            int blockLength = Math.min(BLOCK_SIZE, length - blockStart);
+            int size = (int) (end - start);
+            int p = (int) (start - windowStart);
+            if (size == blockLength * 4) {
+                for (int i = 0; i < blockLength; i++) {
+                    target.add(blockStart + i, window.getFloat(p + 4 * i));
+                }
+            } else {
+                for (int e = 0; e < size / SPARSE_ENTRY_SIZE; e++) {
+                    int pos = blockStart + (window.getShort(p + e * SPARSE_ENTRY_SIZE) & 0xFFFF);
+                    target.add(pos, window.getFloat(p + e * SPARSE_ENTRY_SIZE + 2));
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills the coverage of all conditions of a reference, each array as long as the reference
+     */
+    private interface Extractor {
+        void extract(NumericArray[] coverage, ReferenceSequence ref) throws IOException;
+    }
+}
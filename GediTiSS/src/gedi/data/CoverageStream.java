@@ -0,0 +1,205 @@
+package gedi.data;
+
+import gedi.core.data.reads.AlignedReadsData;
+import gedi.core.data.reads.ReadCountMode;
+import gedi.core.reference.ReferenceSequence;
+import gedi.core.reference.Strandness;
+import gedi.core.region.ArrayGenomicRegion;
+import gedi.core.region.GenomicRegionPosition;
+import gedi.core.region.GenomicRegionStorage;
+import gedi.core.region.ImmutableReferenceGenomicRegion;
+import gedi.util.datastructure.array.NumericArray;
+import gedi.utils.ReadType;
+import gedi.utils.TiSSUtils;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Read counts of a lane set on one reference, computed on the fly while walking through the reads of the CIT files
+ * in coordinate order.
+ *
+ * Only a ring buffer of {@code capacity} positions is held per lane. Reads adding to positions beyond the ring buffer
+ * (e.g. the 5' end of long spliced reads on the minus strand) are kept in a pending map until the ring buffer reaches
+ * them. The memory needed therefore depends on the window size of the modules, not on the length of the reference.
+ *
+ * The read counts are added up the same way as in {@link TiSSUtils#extractCountsForAllConditionsFromSingleFile}.
+ */
+public class CoverageStream {
+    private final ReferenceSequence ref;
+    private final int refLength;
+    private final int capacity;
+    private final Strandness strandness;
+    private final ReadType readType;
+    private final boolean switchFiveAndThreePrimeEnd;
+
+    private final List<Source> sources = new ArrayList<>();
+    private final float[][] ring;
+    private final TreeMap<Integer, float[]> pending = new TreeMap<>();
+    /**
+     * The ring buffer holds the positions [base, base+capacity)
+     */
+    private int base;
+    /**
+     * All positions below the frontier have their final read counts
+     */
+    private int frontier;
+
+    /**
+     * @param lanes the number of lanes returned, 1 if all lanes are totalized
+     * @param capacity the number of positions held in memory, has to be at least the length of the longest window requested
+     */
+    public CoverageStream(ReferenceSequence ref, int refLength, int lanes, int capacity, Strandness strandness, ReadType readType) {
+        this.ref = ref;
+        this.refLength = refLength;
+        this.capacity = capacity;
+        this.strandness = strandness;
+        this.readType = readType;
+        this.switchFiveAndThreePrimeEnd = strandness == Strandness.Antisense && readType == ReadType.FIVE_PRIME || strandness == Strandness.Sense && readType == ReadType.THREE_PRIME;
+        this.ring = new float[lanes][capacity];
+    }
+
+    /**
+     * Adds the conditions {@code conds} of {@code cit} to the lanes {@code targets}
+     */
+    public void addSource(GenomicRegionStorage<AlignedReadsData> cit, List<Integer> conds, int[] targets) {
+        ReferenceSequence refTmp = strandness.equals(Strandness.Antisense) ? ref.toOppositeStrand() : ref;
+        int[] condArray = new int[conds.size()];
+        for (int i = 0; i < condArray.length; i++) {
+            condArray[i] = conds.get(i);
+        }
+        sources.add(new Source(cit.ei(refTmp, new ArrayGenomicRegion(0, refLength)), condArray, targets));
+    }
+
+    /**
+     * Returns the read counts of the positions [from, to). The windows have to be requested in ascending order,
+     * positions below {@code from} are dropped and cannot be requested again.
+     * @return one array per lane, or a single one if the lanes are totalized
+     */
+    public NumericArray[] window(int from, int to) {
+        if (to - from > capacity) {
+            throw new IllegalArgumentException("Window of " + (to - from) + " positions does not fit into the buffer of " + capacity + " positions.");
+        }
+        if (from < base) {
+            throw new IllegalArgumentException("Position " + from + " of " + ref.toPlusMinusString() + " was already dropped.");
+        }
+        moveBase(from);
+        advance(to);
+
+        NumericArray[] out = new NumericArray[ring.length];
+        for (int lane = 0; lane < ring.length; lane++) {
+            out[lane] = NumericArray.createMemory(to - from, NumericArray.NumericArrayType.Float);
+            for (int pos = from; pos < to; pos++) {
+                out[lane].setFloat(pos - from, ring[lane][pos % capacity]);
+            }
+        }
+        return out;
+    }
+
+    private void moveBase(int newBase) {
+        // the slots of the dropped positions are reused for the positions now entering the ring buffer
+        for (int pos = base; pos < newBase && pos < base + capacity; pos++) {
+            for (float[] lane : ring) {
+                lane[pos % capacity] = 0f;
+            }
+        }
+        base = newBase;
+        while (!pending.isEmpty() && pending.firstKey() < base + capacity) {
+            Map.Entry<Integer, float[]> entry = pending.pollFirstEntry();
+            if (entry.getKey() < base) {
+                continue;
+            }
+            for (int lane = 0; lane < ring.length; lane++) {
+                ring[lane][entry.getKey() % capacity] += entry.getValue()[lane];
+            }
+        }
+    }
+
+    /**
+     * Reads until all positions below {@code to} are final. A read only adds to positions from one before its start,
+     * so this is the case once the next read of each source starts behind {@code to}.
+     */
+    private void advance(int to) {
+        if (to <= frontier) {
+            return;
+        }
+        for (Source source : sources) {
+            while (source.next != null && source.next.getRegion().getStart() <= to) {
+                add(source, source.next);
+                source.poll();
+            }
+        }
+        frontier = to;
+    }
+
+    private void add(Source source, ImmutableReferenceGenomicRegion<AlignedReadsData> r) {
+        if (readType == ReadType.DENSITY) {
+            double[] counts = r.getData().getTotalCountsForConditions(ReadCountMode.Weight);
+            r.getRegion().iterator().forEachRemaining(regPart -> {
+                for (int i = Math.max(0, regPart.getStart()); i < Math.min(refLength, regPart.getEnd()); i++) {
+                    for (int c = 0; c < source.conds.length; c++) {
+                        add(i, source.targets[c], (float) counts[source.conds[c]]);
+                    }
+                }
+            });
+            return;
+        }
+        int pos0 = switchFiveAndThreePrimeEnd ? GenomicRegionPosition.ThreePrime.position(r) : GenomicRegionPosition.FivePrime.position(r);
+        int pos1 = switchFiveAndThreePrimeEnd ? GenomicRegionPosition.ThreePrime.position(r, 1) : GenomicRegionPosition.FivePrime.position(r, 1);
+        NumericArray c0 = NumericArray.createMemory(r.getData().getNumConditions(), NumericArray.NumericArrayType.Double);
+        NumericArray c1 = NumericArray.createMemory(r.getData().getNumConditions(), NumericArray.NumericArrayType.Double);
+        for (int k = 0; k < r.getData().getDistinctSequences(); k++) {
+            if (TiSSUtils.hasEndMismatch(r.getData(), k, r.getRegion().getTotalLength(), strandness)) {
+                c1 = r.getData().addCountsForDistinct(k, c1, ReadCountMode.Weight);
+            } else {
+                c0 = r.getData().addCountsForDistinct(k, c0, ReadCountMode.Weight);
+            }
+        }
+        if (pos0 >= 0 && pos0 < refLength && c0.length() > 0) {
+            for (int c = 0; c < source.conds.length; c++) {
+                add(pos0, source.targets[c], c0.getFloat(source.conds[c]));
+            }
+        }
+        if (pos1 >= 0 && pos1 < refLength && c1.length() > 0) {
+            for (int c = 0; c < source.conds.length; c++) {
+                add(pos1, source.targets[c], c1.getFloat(source.conds[c]));
+            }
+        }
+    }
+
+    private void add(int pos, int lane, float value) {
+        if (pos < base) {
+            // skipped by the caller, never requested
+            return;
+        }
+        if (pos < frontier) {
+            throw new IllegalStateException("The reads of " + ref.toPlusMinusString() + " are not sorted by position, cannot stream them.");
+        }
+        if (pos < base + capacity) {
+            ring[lane][pos % capacity] += value;
+        } else {
+            pending.computeIfAbsent(pos, p -> new float[ring.length])[lane] += value;
+        }
+    }
+
+    private static class Source {
+        private final Iterator<ImmutableReferenceGenomicRegion<AlignedReadsData>> reads;
+        private final int[] conds;
+        private final int[] targets;
+        private ImmutableReferenceGenomicRegion<AlignedReadsData> next;
+
+        private Source(Iterator<ImmutableReferenceGenomicRegion<AlignedReadsData>> reads, int[] conds, int[] targets) {
+            this.reads = reads;
+            this.conds = conds;
+            this.targets = targets;
+            poll();
+        }
+
+        private void poll() {
+            next = reads.hasNext() ? reads.next() : null;
+        }
+    }
+}
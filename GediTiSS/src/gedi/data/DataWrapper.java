@@ -12,9 +12,22 @@ import gedi.util.datastructure.array.NumericArray;
 import gedi.util.functions.EI;
 import gedi.utils.ReadType;
 import gedi.utils.TiSSUtils;
+import gedi.utils.WindowStats;
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
 
 /**
  * Container holding and accessing the raw data.
@@ -23,17 +36,25 @@ import java.util.*;
  * The raw data should never be accessed directly anywhere else than here.
  * This class provides functions to access the raw data indirectly.
  *
+ * Accessing the data is thread-safe without a global lock: each (lane set, reference) pair is loaded once
+ * by the first thread asking for it (see {@link MemoryReadCount}), while other pairs can be loaded in parallel.
+ * Read counts can be loaded ahead of their first access on a pool of I/O threads, see {@link #prefetch}.
+ *
  * @author Christopher Juerges
  * @version 1.0
  */
 public class DataWrapper {
     /**
-     * The raw data. Basically the cit-files concatenated in a list ordered in the way the user entered them
-     * in the arguments
+     * Bytes per position of read counts that fit into 16 bits, see {@link CompactCoverage}. Only used to estimate the
+     * memory needed before loading, loaded read counts are accounted with their real size.
      */
-    public final static long SINGLE_VALUE_BYTE_SIZE = 6;
+    public final static long SINGLE_VALUE_BYTE_SIZE = 2;
     public final static long GB = 1024*1024*1024;
 
+    /**
+     * The raw data. Basically the cit-files concatenated in a list ordered in the way the user entered them
+     * in the arguments
+     */
     private List<GenomicRegionStorage<AlignedReadsData>> rawData;
     private Strandness strandness;
     private ReadType readType;
@@ -41,13 +62,33 @@ public class DataWrapper {
 
     private Map<Set<Integer>, Map<ReferenceSequence, MemoryReadCount>> memoryMap;
 
-    private List<MemoryReadCount> memoryReadCountAccessionOrder = new ArrayList<>();
+    /**
+     * The read counts currently in memory
+     */
+    private List<MemoryReadCount> memoryReadCountAccessionOrder = new CopyOnWriteArrayList<>();
 
-    private long vmMemory = Runtime.getRuntime().maxMemory();
-    private long currentlyUsedVmMemory = GB;
+    /**
+     * Bytes the read counts in memory may take, see {@link #setMemoryBudget(long)}
+     */
+    private long memoryBudget = Math.max(Runtime.getRuntime().maxMemory() - GB, Runtime.getRuntime().maxMemory() / 2);
+    private AtomicLong currentlyUsedVmMemory = new AtomicLong();
+    private final Object freeMemoryLock = new Object();
+    private final Object releaseMonitor = new Object();
+    private long releaseGeneration;
 
     private Set<ReferenceSequence> loadedChromosomes;
 
+    /**
+     * One coverage index per CIT file, null for CIT files without index. The whole list is null if disabled.
+     */
+    private List<CoverageIndex> coverageIndices;
+    /**
+     * One per condition if the reads are counted directly from BAM files instead of the raw data, see {@link #fromBams}
+     */
+    private List<BamCoverage> bams;
+    private boolean streaming;
+    private volatile ExecutorService prefetchPool;
+
     public DataWrapper(List<GenomicRegionStorage<AlignedReadsData>> rawData, Strandness strandness, ReadType readType, Set<ReferenceSequence> testChr) {
         this.rawData = rawData;
         this.strandness = strandness;
@@ -59,6 +100,113 @@ public class DataWrapper {
         this(rawData, strandness, ReadType.FIVE_PRIME, null);
     }
 
+    /**
+     * Counts the reads directly from sorted and indexed BAM files, one condition per file, instead of from CIT files.
+     * Streaming is not available then and the coverage index needs a {@link ConversionCache}, see
+     * {@link #useCoverageIndex(ConversionCache)}.
+     */
+    public static DataWrapper fromBams(List<BamCoverage> bams, Strandness strandness, ReadType readType, Set<ReferenceSequence> testChr) {
+        DataWrapper dataWrapper = new DataWrapper(new ArrayList<>(), strandness, readType, testChr);
+        dataWrapper.bams = bams;
+        return dataWrapper;
+    }
+
+    /**
+     * Serve the read counts from the persistent {@link CoverageIndex} next to each CIT file, building it on first use
+     */
+    public void useCoverageIndex(boolean useCoverageIndex) {
+        if (!useCoverageIndex || bams != null) {
+            coverageIndices = null;
+            return;
+        }
+        coverageIndices = new ArrayList<>(rawData.size());
+        for (GenomicRegionStorage<AlignedReadsData> cit : rawData) {
+            coverageIndices.add(CoverageIndex.open(cit, strandness, readType));
+        }
+    }
+
+    /**
+     * Serve the read counts of the BAM files from a persistent {@link CoverageIndex} in {@code cache}, building it on
+     * first use. Only for BAM files read directly, see {@link #fromBams}.
+     */
+    public void useCoverageIndex(ConversionCache cache) throws IOException {
+        if (bams == null) {
+            throw new IllegalStateException("The coverage index of CIT files is stored next to them, see useCoverageIndex(boolean).");
+        }
+        coverageIndices = new ArrayList<>(bams.size());
+        for (BamCoverage bam : bams) {
+            coverageIndices.add(CoverageIndex.open(bam, cache.getCoverageDirectory(bam.getFile()), strandness, readType));
+        }
+    }
+
+    /**
+     * Builds the missing coverage index files of all references up front, one job per file and reference on
+     * {@code nthreads} threads, instead of one after another on first access. Each job reserves the memory of its
+     * build from the memory budget first, so fewer builds run at once if the references are large. Needs to be called
+     * after {@link #initData}. Logs how many were found in the cache and the throughput of the ones built.
+     */
+    public void prepareCoverageIndices(Genomic genomic, int nthreads) {
+        if (coverageIndices == null) {
+            return;
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, nthreads));
+        AtomicInteger cached = new AtomicInteger();
+        AtomicInteger built = new AtomicInteger();
+        Set<File> builtSources = ConcurrentHashMap.newKeySet();
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> jobs = new ArrayList<>();
+            for (CoverageIndex index : new LinkedHashSet<>(coverageIndices)) {
+                if (index == null) {
+                    continue;
+                }
+                for (ReferenceSequence ref : loadedChromosomes) {
+                    int refLength = genomic.getLength(ref.toPlusMinusString());
+                    // a build larger than the whole budget runs on its own
+                    long buildMemory = Math.min(index.getBuildMemory(refLength), memoryBudget);
+                    jobs.add(pool.submit(() -> {
+                        awaitReserved(buildMemory);
+                        try {
+                            if (index.prepare(ref, refLength)) {
+                                built.incrementAndGet();
+                                builtSources.add(index.getSourceFile());
+                            } else {
+                                cached.incrementAndGet();
+                            }
+                        } catch (IOException e) {
+                            System.err.println("Could not build the coverage index for " + ref.toPlusMinusString() + " of " + index.getSourceFile().getPath() + ", it is read on access instead: " + e.getMessage());
+                        } finally {
+                            releaseReserved(buildMemory);
+                        }
+                        return null;
+                    }));
+                }
+            }
+            for (Future<?> job : jobs) {
+                job.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building the coverage indices.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Building the coverage indices failed.", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long bytes = 0;
+        for (File source : builtSources) {
+            bytes += source.length();
+        }
+        if (built.get() == 0) {
+            System.err.println("Coverage index: all " + cached.get() + " references found in the cache");
+        } else {
+            double mb = bytes / (1024. * 1024.);
+            System.err.println(String.format(Locale.US, "Coverage index: %d references found in the cache, %d built from %.1f MB in %.1f s (%.1f MB/s)",
+                    cached.get(), built.get(), mb, seconds, seconds == 0 ? 0 : mb / seconds));
+        }
+    }
+
     public void initData(Genomic genomic, List<Data> lanes) {
         memoryMap = new HashMap<>();
         Map<Set<Integer>, Integer> accessCounts = calculateAccessCounts(lanes);
@@ -67,17 +215,49 @@ public class DataWrapper {
         for (Set<Integer> key : accessCounts.keySet()) {
             Map<ReferenceSequence, MemoryReadCount> refMemoryMap = new HashMap<>();
             boolean multi = hasMulti(lanes, key);
+            boolean totalNeeded = hasTotalized(lanes, key);
             genomic.iterateReferenceSequences().forEachRemaining(r -> {
                 if (testChr != null && !testChr.contains(r)) {
                     return;
                 }
                 loadedChromosomes.add(r);
-                refMemoryMap.put(r, new MemoryReadCount(accessCounts.get(key), multi));
+                MemoryReadCount memoryReadCount = new MemoryReadCount(accessCounts.get(key), multi, this::addUsedMemory);
+                memoryReadCount.setTotalNeeded(totalNeeded);
+                refMemoryMap.put(r, memoryReadCount);
             });
             memoryMap.put(key, refMemoryMap);
         }
     }
 
+    /**
+     * Sets how often the read counts of each reference are accessed, with one entry in {@code accesses} per access of
+     * a reference. The read counts of a reference are released as soon as its last access is finished. Without
+     * calling this, each lane passed to {@link #initData} is accessed once.
+     */
+    public void setAccesses(List<Data> accesses) {
+        Map<Set<Integer>, Integer> accessCounts = calculateAccessCounts(accesses);
+        for (Map.Entry<Set<Integer>, Map<ReferenceSequence, MemoryReadCount>> entry : memoryMap.entrySet()) {
+            int accessCount = accessCounts.getOrDefault(entry.getKey(), 0);
+            boolean totalNeeded = hasTotalized(accesses, entry.getKey());
+            for (MemoryReadCount memoryReadCount : entry.getValue().values()) {
+                memoryReadCount.setMaxAccessCount(accessCount);
+                memoryReadCount.setTotalNeeded(totalNeeded);
+            }
+        }
+    }
+
+    /**
+     * @return whether one of {@code lanes} accesses the read counts of {@code data} totalized
+     */
+    private boolean hasTotalized(List<Data> lanes, Set<Integer> data) {
+        for (Data d : lanes) {
+            if (EI.wrap(d.getLane()).set().equals(data) && !d.isMulti()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     private boolean hasMulti(List<Data> lanes, Set<Integer> data) {
         for (Data d : lanes) {
             if (EI.wrap(d.getLane()).set().equals(data) && d.isMulti()) {
@@ -101,111 +281,496 @@ public class DataWrapper {
         return accessCounts;
     }
 
-    private synchronized long getFreeMemoryIn() {
-        return (vmMemory-Runtime.getRuntime().totalMemory())+Runtime.getRuntime().freeMemory();
+    /**
+     * Limits the memory used by the read counts held in memory. The read counts are accounted with the exact size of
+     * their arrays, without the modules' own data structures, so leave some room for those. Defaults to the maximum
+     * heap size minus 1 GB.
+     */
+    public void setMemoryBudget(long bytes) {
+        if (bytes <= 0) {
+            throw new IllegalArgumentException("The memory budget has to be positive.");
+        }
+        this.memoryBudget = bytes;
+    }
+
+    public long getMemoryBudget() {
+        return memoryBudget;
+    }
+
+    /**
+     * @return the bytes currently used by the read counts in memory
+     */
+    public long getUsedMemory() {
+        return currentlyUsedVmMemory.get();
     }
 
+    /**
+     * Evicts read counts not accessed right now, least recently used first, until {@code neededMemory} more bytes fit
+     * into the budget, and reserves them
+     * @return true if they fit and were reserved
+     */
     private boolean freeMemory(long neededMemory) {
-//        System.err.println("[" + Thread.currentThread().getName() + "] " + "Starting force-delete. list size: " + memoryReadCountAccessionOrder.size());
-        for (int i = memoryReadCountAccessionOrder.size()-1; i >= 0; i--) {
-            if (memoryReadCountAccessionOrder.get(i).getByteSize() > 0) {
-//                System.err.println("[" + Thread.currentThread().getName() + "] " + i + ": access: " + memoryReadCountAccessionOrder.get(i).currentAccessCount + ", size: " + (memoryReadCountAccessionOrder.get(i).getByteSize() / (double) GB) + ", memory: " + (memoryReadCountAccessionOrder.get(i).isInMemory() ? "Y" : "N"));
+        // Only one thread evicts at a time, loading and accessing other read counts goes on in the meantime
+        synchronized (freeMemoryLock) {
+            List<MemoryReadCount> candidates = new ArrayList<>(memoryReadCountAccessionOrder);
+            // the access times can change while sorting, so they are taken once
+            Map<MemoryReadCount, Long> lastAccess = new IdentityHashMap<>();
+            for (MemoryReadCount memoryReadCount : candidates) {
+                lastAccess.put(memoryReadCount, memoryReadCount.getLastAccess());
             }
-            long byteSize = memoryReadCountAccessionOrder.get(i).getByteSize();
-            if (byteSize > 0 && memoryReadCountAccessionOrder.get(i).forceDelete()) {
-                currentlyUsedVmMemory -= byteSize;
+            candidates.sort(Comparator.comparingLong(lastAccess::get));
+            for (MemoryReadCount memoryReadCount : candidates) {
+                if (tryReserve(neededMemory)) {
+                    return true;
+                }
+                // read counts in use are skipped
+                long released = memoryReadCount.forceDelete();
+                if (released >= 0) {
+                    memoryReadCountAccessionOrder.remove(memoryReadCount);
+                    currentlyUsedVmMemory.addAndGet(-released);
+                }
+            }
+            return tryReserve(neededMemory);
+        }
+    }
+
+    /**
+     * Reserves {@code neededMemory} bytes if they fit into the budget. Checking and reserving is a single atomic step,
+     * so loads starting at the same time cannot exceed the budget together.
+     * @return true if they were reserved
+     */
+    private boolean tryReserve(long neededMemory) {
+        while (true) {
+            long used = currentlyUsedVmMemory.get();
+            if (used + neededMemory > memoryBudget) {
+                return false;
             }
-//            if (currentlyUsedVmMemory + neededMemory < vmMemory && getFreeMemoryIn() > 0) {
-            if (neededMemory < getFreeMemoryIn() && getFreeMemoryIn() > vmMemory/2) {
+            if (currentlyUsedVmMemory.compareAndSet(used, used + neededMemory)) {
                 return true;
             }
         }
-        return false;
     }
 
     private void printMemoryUsage(long neededMemory) {
-        System.err.println(String.format("[" + Thread.currentThread().getName() + "] " + "**** c: %.2f Gb, m: %.2f Gb, n: %.2f Gb, f: %.2f Gb, t: %.2f Gb",
-                ((double)currentlyUsedVmMemory/(double)GB),
-                ((double)vmMemory/(double)GB),
+        System.err.println(String.format("[" + Thread.currentThread().getName() + "] " + "**** c: %.2f Gb, b: %.2f Gb, n: %.2f Gb, t: %.2f Gb",
+                ((double)currentlyUsedVmMemory.get()/(double)GB),
+                ((double)memoryBudget/(double)GB),
                 ((double)neededMemory/(double)GB),
-                ((double)getFreeMemoryIn()/(double)GB),
                 ((double)Runtime.getRuntime().totalMemory()/(double)GB)));
     }
 
-    private synchronized boolean checkAndFreeMemory(long neededMemory) {
-        neededMemory *= 1.1;
-//        printMemoryUsage(neededMemory);
-        if ((double)neededMemory> vmMemory) {
-            throw new OutOfMemoryError("Your data is too big for your VMs memory capacity. Either run JavaVM with more memory or totalize your data before.");
+    /**
+     * Reserves {@code neededMemory} bytes of the budget, after evicting other read counts if needed
+     * @return true if they were reserved
+     */
+    private boolean reserveMemory(long neededMemory) {
+        if (neededMemory > memoryBudget) {
+            throw new OutOfMemoryError("Your data is too big for the memory budget of " + String.format("%.2f", memoryBudget/(double)GB) + " GB. Either raise -memBudget, run JavaVM with more memory or totalize your data before.");
         }
-        if (currentlyUsedVmMemory+neededMemory > vmMemory) {
-//            System.err.println("[" + Thread.currentThread().getName() + "] " + "*** Freeing memory ***");
-        } else {
-            return true;
+        return tryReserve(neededMemory) || freeMemory(neededMemory);
+    }
+
+    /**
+     * Reserves {@code neededMemory} bytes of the budget like {@link #reserveMemory}, waiting for other read counts or
+     * reservations to be released if needed
+     */
+    private void awaitReserved(long neededMemory) throws InterruptedException {
+        while (true) {
+            long releaseGeneration = getReleaseGeneration();
+            if (reserveMemory(neededMemory)) {
+                return;
+            }
+            awaitRelease(releaseGeneration);
         }
-        if (freeMemory(neededMemory)) {
-//            System.err.println("[" + Thread.currentThread().getName() + "] " + "Memory successfully freed.");
-            return true;
+    }
+
+    /**
+     * Gives back reserved bytes that are not needed anymore
+     */
+    private void releaseReserved(long reserved) {
+        if (reserved > 0) {
+            currentlyUsedVmMemory.addAndGet(-reserved);
+            notifyReleased();
         }
-        return false;
     }
 
-    private synchronized void addUsedMemory(long byteSizeNeeded) {
-        currentlyUsedVmMemory += byteSizeNeeded;
+    private void addUsedMemory(long byteSizeNeeded) {
+        currentlyUsedVmMemory.addAndGet(byteSizeNeeded);
     }
 
-    public synchronized NumericArray[] startAccessingData(Data data, ReferenceSequence ref, int refLength) {
+    public NumericArray[] startAccessingData(Data data, ReferenceSequence ref, int refLength) {
         Set<Integer> laneList = EI.wrap(data.getLane()).set();
         MemoryReadCount memoryReadCount = memoryMap.get(laneList).get(ref);
-        if (!memoryReadCount.isInMemory()) {
-            long neededMemory = SINGLE_VALUE_BYTE_SIZE * refLength * data.getLane().length;
-//            System.err.println(Thread.currentThread().getName() + " askes for memory");
-            boolean freedSuccessfully = checkAndFreeMemory(neededMemory);
-            if (!freedSuccessfully) {
-                return null;
-            }
-            if (memoryReadCount.isMulti()) {
-                memoryReadCount.setReadCount(loadMultiReadCountToMemory(data.getLane(), ref, refLength));
-            } else {
-                memoryReadCount.setReadCount(new NumericArray[] {totalizeReadCounts(loadMultiReadCountToMemory(data.getLane(), ref, refLength))});
-            }
-            memoryReadCountAccessionOrder.add(memoryReadCount);
-            addUsedMemory(memoryReadCount.getByteSize());
+        AtomicLong totalReserved = new AtomicLong();
+        try {
+            return memoryReadCount.startAccess(data.isMulti(), () -> reserveAndLoad(memoryReadCount, data, refLength, true, totalReserved, () -> {
+                if (bams != null) {
+                    return loadFromBams(data.getLane(), ref, refLength, !memoryReadCount.isMulti());
+                } else if (memoryReadCount.isMulti()) {
+                    return loadMultiReadCountToMemory(data.getLane(), ref, refLength);
+                } else {
+                    return new NumericArray[] {totalizeReadCounts(loadMultiReadCountToMemory(data.getLane(), ref, refLength))};
+                }
+            }));
+        } finally {
+            // the total is computed right after loading, see MemoryReadCount
+            releaseReserved(totalReserved.get());
         }
-        return memoryReadCount.startAccess(data.isMulti());
     }
 
-    public synchronized NumericArray[] startAccessingData2(Data data, ReferenceSequence ref, int refLength) {
+    public NumericArray[] startAccessingData2(Data data, ReferenceSequence ref, int refLength) {
         Set<Integer> laneList = EI.wrap(data.getLane()).set();
         MemoryReadCount memoryReadCount = memoryMap.get(laneList).get(ref);
-        if (!memoryReadCount.isInMemory()) {
-            if (readType == ReadType.DENSITY) {
-                if (memoryReadCount.isMulti()) {
+        AtomicLong totalReserved = new AtomicLong();
+        try {
+            return memoryReadCount.startAccess(data.isMulti(), () -> {
+                if (readType == ReadType.DENSITY && memoryReadCount.isMulti()) {
                     throw new NotImplementedException();
-                } else {
-                    memoryReadCount.setReadCount(new NumericArray[] {TiSSUtils.extractReadDensities(rawData, data.getLane(), ref, refLength, strandness)});
                 }
-            } else {
-                if (memoryReadCount.isMulti()) {
-                    memoryReadCount.setReadCount(loadMultiReadCountToMemory(data.getLane(), ref, refLength));
-                } else {
-                    memoryReadCount.setReadCount(new NumericArray[]{TiSSUtils.extractCounts(rawData, data.getLane(), ref, refLength, strandness, readType)});
+                return reserveAndLoad(memoryReadCount, data, refLength, true, totalReserved,
+                        () -> loadReadCounts(memoryReadCount, data, ref, refLength));
+            });
+        } finally {
+            // the total is computed right after loading, see MemoryReadCount
+            releaseReserved(totalReserved.get());
+        }
+    }
+
+    /**
+     * Loads the read counts of {@code data} on {@code ref} in the background, so a module accessing them later on
+     * does not have to wait for them. Nothing is evicted for this: the read counts are only loaded if they fit into
+     * the free part of the memory budget when the load starts, otherwise the module loads them on access as usual.
+     * Does nothing without prefetch threads, see {@link #setPrefetchThreads(int)}.
+     */
+    public void prefetch(Data data, ReferenceSequence ref, int refLength) {
+        ExecutorService pool = prefetchPool;
+        if (pool == null) {
+            return;
+        }
+        MemoryReadCount memoryReadCount = memoryMap.get(EI.wrap(data.getLane()).set()).get(ref);
+        if (memoryReadCount.isInMemory() || memoryReadCount.isLoading() || memoryReadCount.isSafeToDelete()
+                || readType == ReadType.DENSITY && memoryReadCount.isMulti()) {
+            return;
+        }
+        pool.execute(() -> {
+            AtomicLong totalReserved = new AtomicLong();
+            try {
+                boolean loaded = memoryReadCount.prefetch(() -> reserveAndLoad(memoryReadCount, data, refLength, false, totalReserved,
+                        () -> loadReadCounts(memoryReadCount, data, ref, refLength)));
+                if (loaded) {
+                    System.err.println("[" + Thread.currentThread().getName() + "] prefetched " + Arrays.toString(data.getLane()) + " for: " + ref.toPlusMinusString());
                 }
+            } catch (RuntimeException e) {
+                System.err.println("Could not prefetch " + ref.toPlusMinusString() + ", it is loaded on access instead: " + e.getMessage());
+            } finally {
+                releaseReserved(totalReserved.get());
             }
-            memoryReadCountAccessionOrder.add(memoryReadCount);
-            addUsedMemory(memoryReadCount.getByteSize());
+        });
+    }
+
+    /**
+     * Sets the number of threads loading read counts in the background, see {@link #prefetch}. 0 disables
+     * prefetching. Prefetches already started are finished on the old threads.
+     */
+    public void setPrefetchThreads(int nthreads) {
+        shutdownPrefetch();
+        if (nthreads <= 0) {
+            return;
         }
-        return memoryReadCount.startAccess(data.isMulti());
+        AtomicInteger threadIndex = new AtomicInteger();
+        prefetchPool = Executors.newFixedThreadPool(nthreads, r -> {
+            Thread thread = new Thread(r, "prefetch-" + threadIndex.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
-    public synchronized void finishAccessingData(Data lane, ReferenceSequence ref) {
+    /**
+     * Stops prefetching, read counts not prefetched yet are loaded on access
+     */
+    public void shutdownPrefetch() {
+        ExecutorService pool = prefetchPool;
+        prefetchPool = null;
+        if (pool != null) {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Reserves the estimated memory of the read counts of {@code memoryReadCount} and loads them with {@code loader}.
+     * Once loaded, the reservation of the single lanes is replaced by their real size. The part reserved for their
+     * total is added to {@code totalReserved} and has to be given back by the caller once the total is computed, see
+     * {@link MemoryReadCount#setTotalNeeded(boolean)}. If loading fails, the whole reservation is given back.
+     * @param evict whether other read counts not in use are evicted to make room, otherwise the read counts are only
+     *              loaded if they fit into the free part of the budget
+     * @return the read counts or null if there is currently not enough memory
+     */
+    private NumericArray[] reserveAndLoad(MemoryReadCount memoryReadCount, Data data, int refLength, boolean evict,
+                                          AtomicLong totalReserved, Supplier<NumericArray[]> loader) {
+        long reserved = estimateMemory(memoryReadCount, data, refLength);
+        if (evict ? !reserveMemory(reserved) : !tryReserve(reserved)) {
+            return null;
+        }
+        long totalEstimate = estimateTotalMemory(memoryReadCount, refLength);
+        NumericArray[] readCounts;
+        try {
+            readCounts = loader.get();
+        } catch (RuntimeException | Error e) {
+            releaseReserved(reserved);
+            throw e;
+        }
+        totalReserved.addAndGet(totalEstimate);
+        registerLoaded(memoryReadCount, readCounts, reserved - totalEstimate);
+        return readCounts;
+    }
+
+    /**
+     * Loads the read counts of {@code memoryReadCount} from the BAM files, the coverage index or the CIT files
+     */
+    private NumericArray[] loadReadCounts(MemoryReadCount memoryReadCount, Data data, ReferenceSequence ref, int refLength) {
+        NumericArray[] readCounts;
+        if (bams != null) {
+            readCounts = loadFromBams(data.getLane(), ref, refLength, !memoryReadCount.isMulti());
+        } else {
+            readCounts = loadFromCoverageIndex(data.getLane(), ref, refLength, !memoryReadCount.isMulti());
+        }
+        if (readCounts == null) {
+            if (readType == ReadType.DENSITY) {
+                readCounts = new NumericArray[] {CompactCoverage.compact(TiSSUtils.extractReadDensities(rawData, data.getLane(), ref, refLength, strandness))};
+            } else if (memoryReadCount.isMulti()) {
+                readCounts = loadMultiReadCountToMemory(data.getLane(), ref, refLength);
+            } else {
+                readCounts = new NumericArray[]{CompactCoverage.compact(TiSSUtils.extractCounts(rawData, data.getLane(), ref, refLength, strandness, readType))};
+            }
+        }
+        return readCounts;
+    }
+
+    /**
+     * @return the bytes the read counts of all {@code lanes} on {@code ref} take together once loaded if they fit into
+     * 16 bits. Lanes accessing the same read counts are counted once.
+     */
+    public long estimateMemory(List<Data> lanes, ReferenceSequence ref, int refLength) {
+        Map<MemoryReadCount, Long> estimates = new IdentityHashMap<>();
+        for (Data lane : lanes) {
+            MemoryReadCount memoryReadCount = memoryMap.get(EI.wrap(lane.getLane()).set()).get(ref);
+            estimates.merge(memoryReadCount, estimateMemory(memoryReadCount, lane, refLength), Math::max);
+        }
+        long estimate = 0;
+        for (long bytes : estimates.values()) {
+            estimate += bytes;
+        }
+        return estimate;
+    }
+
+    /**
+     * @return the bytes the read counts of {@code memoryReadCount} take once loaded if they fit into 16 bits, including
+     * their total if needed
+     */
+    private long estimateMemory(MemoryReadCount memoryReadCount, Data data, int refLength) {
+        int arrays = memoryReadCount.isMulti() ? data.getLane().length : 1;
+        return SINGLE_VALUE_BYTE_SIZE * refLength * arrays + estimateTotalMemory(memoryReadCount, refLength);
+    }
+
+    /**
+     * @return the bytes the total of the read counts of {@code memoryReadCount} takes if it is computed on load
+     */
+    private long estimateTotalMemory(MemoryReadCount memoryReadCount, int refLength) {
+        return memoryReadCount.isMulti() && memoryReadCount.isTotalNeeded() ? SINGLE_VALUE_BYTE_SIZE * refLength : 0;
+    }
+
+    /**
+     * @param reserved the bytes reserved for {@code readCounts}, replaced by their real size
+     */
+    private void registerLoaded(MemoryReadCount memoryReadCount, NumericArray[] readCounts, long reserved) {
+        memoryReadCountAccessionOrder.add(memoryReadCount);
+        addUsedMemory(MemoryReadCount.getByteSize(readCounts) - reserved);
+        // The estimate is exceeded if the read counts did not fit into 16 bits. Other read counts not in use make room
+        // for them if possible, otherwise the budget is exceeded until the next ones are released.
+        if (currentlyUsedVmMemory.get() > memoryBudget) {
+            freeMemory(0);
+        }
+    }
+
+    /**
+     * @return the window statistics of {@code ary}, kept and counted with the read counts of {@code lane} on
+     * {@code ref} if it is one of their arrays, otherwise built just for the caller (e.g. for a streamed chunk)
+     */
+    public WindowStats getWindowStats(Data lane, ReferenceSequence ref, NumericArray ary) {
+        Map<ReferenceSequence, MemoryReadCount> refMemoryMap = memoryMap.get(EI.wrap(lane.getLane()).set());
+        MemoryReadCount memoryReadCount = refMemoryMap == null ? null : refMemoryMap.get(ref);
+        WindowStats stats = memoryReadCount == null ? null : memoryReadCount.getWindowStats(ary);
+        if (stats == null) {
+            return new WindowStats(ary);
+        }
+        // like read counts exceeding their estimate, see registerLoaded
+        if (currentlyUsedVmMemory.get() > memoryBudget) {
+            freeMemory(0);
+        }
+        return stats;
+    }
+
+    public void finishAccessingData(Data lane, ReferenceSequence ref) {
+        MemoryReadCount memoryReadCount = memoryMap.get(EI.wrap(lane.getLane()).set()).get(ref);
+        released(memoryReadCount, memoryReadCount.finishAccess());
+    }
+
+    /**
+     * Gives up an access started by {@link #startAccessingData2} without finishing it, e.g. while waiting for other
+     * read counts needed at the same time. The read counts can be evicted in the meantime, so the access has to be
+     * started again.
+     */
+    public void cancelAccessingData(Data lane, ReferenceSequence ref) {
+        memoryMap.get(EI.wrap(lane.getLane()).set()).get(ref).cancelAccess();
+        notifyReleased();
+    }
+
+    /**
+     * Counts an access of a module that streamed {@code ref} instead of accessing its read counts in memory
+     */
+    public void skipAccessingData(Data lane, ReferenceSequence ref) {
         MemoryReadCount memoryReadCount = memoryMap.get(EI.wrap(lane.getLane()).set()).get(ref);
-        long byteSize = memoryReadCount.getByteSize();
-        memoryReadCount.finishAccess();
-        if (memoryReadCount.getByteSize() == 0) {
-            printMemoryUsage(-byteSize);
-            currentlyUsedVmMemory -= byteSize;
+        released(memoryReadCount, memoryReadCount.skipAccess());
+    }
+
+    private void released(MemoryReadCount memoryReadCount, long released) {
+        if (released > 0) {
+            memoryReadCountAccessionOrder.remove(memoryReadCount);
+            printMemoryUsage(-released);
+            currentlyUsedVmMemory.addAndGet(-released);
+        }
+        notifyReleased();
+    }
+
+    private void notifyReleased() {
+        synchronized (releaseMonitor) {
+            releaseGeneration++;
+            releaseMonitor.notifyAll();
+        }
+    }
+
+    /**
+     * Streams the read counts of {@code ref} from the CIT files in coordinate order. The read counts of the lanes of
+     * {@code data} are totalized unless {@code data} is multi.
+     * @param capacity the number of positions held in memory at once
+     */
+    public CoverageStream openStream(Data data, ReferenceSequence ref, int refLength, int capacity) {
+        CitAccessInfo citAccessInfo = getCitIndexAccessListNew(data.getLane());
+        CoverageStream stream = new CoverageStream(ref, refLength, data.isMulti() ? data.getLane().length : 1, capacity, strandness, readType);
+        int index = 0;
+        for (int i = 0; i < citAccessInfo.getCitAccessNum(); i++) {
+            List<Integer> conds = citAccessInfo.getLaneAccess(i);
+            int[] targets = new int[conds.size()];
+            for (int j = 0; j < targets.length; j++) {
+                targets[j] = data.isMulti() ? index++ : 0;
+            }
+            stream.addSource(rawData.get(citAccessInfo.getCitAccess(i)), conds, targets);
+        }
+        return stream;
+    }
+
+    /**
+     * Stream the read counts to the modules supporting it instead of loading whole references into memory. Ignored
+     * when reading BAM files directly.
+     */
+    public void setStreaming(boolean streaming) {
+        this.streaming = streaming && bams == null;
+    }
+
+    public boolean isStreaming() {
+        return streaming;
+    }
+
+    /**
+     * @return a counter increased every time data is released. Pass it to {@link #awaitRelease(long)}.
+     */
+    public long getReleaseGeneration() {
+        synchronized (releaseMonitor) {
+            return releaseGeneration;
+        }
+    }
+
+    /**
+     * Blocks until data was released after {@code generation} was obtained by {@link #getReleaseGeneration()}.
+     */
+    public void awaitRelease(long generation) throws InterruptedException {
+        synchronized (releaseMonitor) {
+            while (releaseGeneration == generation) {
+                releaseMonitor.wait();
+            }
+        }
+    }
+
+    /**
+     * Loads the read counts of each lane, or all lanes totalized, from the coverage indices.
+     * The lanes are added up in the same order as in {@link TiSSUtils#extractCounts}.
+     * @return the read counts or null if there is no coverage index for one of the needed CIT files
+     */
+    private NumericArray[] loadFromCoverageIndex(int[] lane, ReferenceSequence ref, int refLength, boolean totalize) {
+        if (coverageIndices == null) {
+            return null;
+        }
+        CitAccessInfo citAccessInfo = getCitIndexAccessListNew(lane);
+        for (int i = 0; i < citAccessInfo.getCitAccessNum(); i++) {
+            if (coverageIndices.get(citAccessInfo.getCitAccess(i)) == null) {
+                return null;
+            }
+        }
+        CompactCoverage[] readCounts = new CompactCoverage[totalize ? 1 : lane.length];
+        for (int i = 0; i < readCounts.length; i++) {
+            readCounts[i] = new CompactCoverage(refLength);
+        }
+        int index = 0;
+        try {
+            for (int i = 0; i < citAccessInfo.getCitAccessNum(); i++) {
+                CoverageIndex coverageIndex = coverageIndices.get(citAccessInfo.getCitAccess(i));
+                for (int cond : citAccessInfo.getLaneAccess(i)) {
+                    coverageIndex.addCoverage(ref, refLength, cond, readCounts[totalize ? 0 : index]);
+                    index++;
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Could not use the coverage index for " + ref.toPlusMinusString() + ", reading the CIT file instead: " + e.getMessage());
+            return null;
+        }
+        return getCounts(readCounts);
+    }
+
+    /**
+     * Counts the reads of each lane, or all lanes totalized, directly from the BAM files
+     */
+    private NumericArray[] loadFromBams(int[] lane, ReferenceSequence ref, int refLength, boolean totalize) {
+        for (int l : lane) {
+            if (l >= bams.size()) {
+                throw new IllegalArgumentException("Condition " + l + " does not exist, there are only " + bams.size() + " BAM files.");
+            }
+        }
+        CompactCoverage[] readCounts = new CompactCoverage[totalize ? 1 : lane.length];
+        if (coverageIndices != null) {
+            for (int i = 0; i < readCounts.length; i++) {
+                readCounts[i] = new CompactCoverage(refLength);
+            }
+            try {
+                for (int i = 0; i < lane.length; i++) {
+                    coverageIndices.get(lane[i]).addCoverage(ref, refLength, 0, readCounts[totalize ? 0 : i]);
+                }
+                return getCounts(readCounts);
+            } catch (IOException e) {
+                System.err.println("Could not use the coverage index for " + ref.toPlusMinusString() + ", reading the BAM files instead: " + e.getMessage());
+            }
+        }
+        for (int i = 0; i < readCounts.length; i++) {
+            readCounts[i] = new CompactCoverage(refLength);
         }
+        for (int i = 0; i < lane.length; i++) {
+            BamCoverage bam = bams.get(lane[i]);
+            try {
+                bam.addCoverage(ref, refLength, readCounts[totalize ? 0 : i]);
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not read " + ref.toPlusMinusString() + " from " + bam.getFile().getPath(), e);
+            }
+        }
+        return getCounts(readCounts);
     }
 
     private NumericArray[] loadMultiReadCountToMemory(int[] lane, ReferenceSequence ref, int refLength) {
@@ -223,9 +788,9 @@ public class DataWrapper {
     }
 
     private NumericArray[] loadMultiReadCountsToMemoryFromSingleFile(List<Integer> citAccessIndeces, GenomicRegionStorage<AlignedReadsData> cit, ReferenceSequence ref, int refLength) {
-        NumericArray[] readCounts = new NumericArray[citAccessIndeces.size()];
+        CompactCoverage[] readCounts = new CompactCoverage[citAccessIndeces.size()];
         for (int i = 0; i < readCounts.length; i++) {
-            readCounts[i] = NumericArray.createMemory(refLength, NumericArray.NumericArrayType.Double);
+            readCounts[i] = new CompactCoverage(refLength);
         }
         final boolean switchFiveAndThreePrimeEnd = strandness == Strandness.Antisense && readType == ReadType.FIVE_PRIME || strandness == Strandness.Sense && readType == ReadType.THREE_PRIME;
         cit.ei(strandness.equals(Strandness.Antisense) ? ref.toOppositeStrand() : ref).forEachRemaining(r -> {
@@ -244,19 +809,27 @@ public class DataWrapper {
             if (c0.length() > 0) {
                 int index = 0;
                 for (int i : citAccessIndeces) {
-                    readCounts[index].setFloat(pos0, readCounts[index].getFloat(pos0) + c0.getFloat(i));
+                    readCounts[index].add(pos0, c0.getFloat(i));
                     index++;
                 }
             }
             if (c1.length() > 0) {
                 int index = 0;
                 for (int i : citAccessIndeces) {
-                    readCounts[index].setFloat(pos1, readCounts[index].getFloat(pos1) + c1.getFloat(i));
+                    readCounts[index].add(pos1, c1.getFloat(i));
                     index++;
                 }
             }
         });
-        return readCounts;
+        return getCounts(readCounts);
+    }
+
+    private static NumericArray[] getCounts(CompactCoverage[] coverage) {
+        NumericArray[] counts = new NumericArray[coverage.length];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = coverage[i].getCounts();
+        }
+        return counts;
     }
 
     private boolean hasEndMismatch(AlignedReadsData ard, int distict, int readLength) {
@@ -276,11 +849,7 @@ public class DataWrapper {
     }
 
     private NumericArray totalizeReadCounts(NumericArray[] readCounts) {
-        NumericArray totalizedReadCounts = readCounts[0].copy();
-        for (int i = 1; i < readCounts.length; i++) {
-            totalizedReadCounts.add(readCounts[i]);
-        }
-        return totalizedReadCounts;
+        return CompactCoverage.total(readCounts);
     }
 
     private CitAccessInfo getCitIndexAccessListNew(int[] lane) {
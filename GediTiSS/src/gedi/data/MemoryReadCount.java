@@ -1,9 +1,31 @@
 package gedi.data;
 
 import gedi.util.datastructure.array.NumericArray;
+import gedi.utils.WindowStats;
 
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.LongConsumer;
+import java.util.function.Supplier;
+
+/**
+ * Read counts of one lane set on one reference.
+ *
+ * All state is guarded by the instance monitor, so threads working on different references or lane sets never
+ * block each other. The loading itself happens outside of the monitor; concurrent requests for the same read counts
+ * wait for one shared load.
+ *
+ * If the read counts of multiple lanes are also accessed totalized, the total is computed once per load, kept next
+ * to the single lanes and released together with them, see {@link #setTotalNeeded(boolean)}. The same goes for the
+ * {@link WindowStats} of the read counts, see {@link #getWindowStats(NumericArray)}.
+ */
 public class MemoryReadCount {
     private NumericArray[] readCounts;
+    private NumericArray total;
+    private boolean totalNeeded;
+    private final Map<NumericArray, CompletableFuture<WindowStats>> windowStats = new IdentityHashMap<>();
+    private final LongConsumer allocated;
     private int finishedAccesses;
     private int maxAccessCount;
     private boolean safeToDelete;
@@ -13,66 +35,271 @@ public class MemoryReadCount {
     private boolean inMemory;
     private boolean loading;
     private long byteSize;
+    private long lastAccess;
+    private CompletableFuture<NumericArray[]> loadingFuture;
 
     public MemoryReadCount(int maxAccessCount, boolean multi) {
+        this(maxAccessCount, multi, bytes -> {});
+    }
+
+    /**
+     * @param allocated gets the bytes of the totalized read counts and of the window statistics whenever they are
+     *                  computed, see {@link #setTotalNeeded(boolean)} and {@link #getWindowStats(NumericArray)}
+     */
+    public MemoryReadCount(int maxAccessCount, boolean multi, LongConsumer allocated) {
         this.maxAccessCount = maxAccessCount;
         this.multi = multi;
+        this.allocated = allocated;
         finishedAccesses = 0;
     }
 
-    public NumericArray[] startAccess(boolean multi) {
+    public synchronized NumericArray[] startAccess(boolean multi) {
         if (!isInMemory()) {
             throw new IllegalArgumentException("Read counts not in memory. Wrongly accessed.");
         }
         currentAccessCount++;
+        lastAccess = System.nanoTime();
         if (this.multi && !multi) {
-            NumericArray total = readCounts[0].copy();
-            for (int i = 1; i < readCounts.length; i++) {
-                total.add(readCounts[i]);
+            if (total == null) {
+                // not announced by setTotalNeeded, so it is computed on its first access instead of on load
+                setTotal(CompactCoverage.total(readCounts));
             }
             return new NumericArray[] {total};
         }
         return readCounts;
     }
 
-    public void finishAccess() {
+    /**
+     * Starts an access and loads the read counts with {@code loader} first if they are not in memory.
+     * Only the first thread asking for missing read counts runs the loader, all others wait for its result.
+     * @param multi whether the single lanes or the totalized read counts are needed
+     * @param loader loads the read counts. May return null if there is currently not enough memory.
+     * @return the read counts or null if the loader returned null
+     */
+    public NumericArray[] startAccess(boolean multi, Supplier<NumericArray[]> loader) {
+        while (true) {
+            CompletableFuture<NumericArray[]> future;
+            boolean loadHere = false;
+            synchronized (this) {
+                if (inMemory) {
+                    return startAccess(multi);
+                }
+                if (loadingFuture == null) {
+                    loadingFuture = new CompletableFuture<>();
+                    loading = true;
+                    loadHere = true;
+                }
+                future = loadingFuture;
+            }
+            if (loadHere) {
+                if (load(future, loader) == null) {
+                    return null;
+                }
+            } else {
+                // a failed load is retried by this access, so the error shows up where the read counts are needed
+                future.handle((loaded, e) -> loaded).join();
+            }
+            // The read counts might have been force-deleted again before we got here, or another load (e.g. a
+            // prefetch) gave up for lack of memory. In both cases, just retry.
+        }
+    }
+
+    /**
+     * Loads the read counts with {@code loader} ahead of their first access, unless they are in memory or being loaded
+     * already, or all of their accesses are done. Accesses asking for them in the meantime wait for this load.
+     * @param loader loads the read counts. May return null if there is currently not enough memory.
+     * @return true if the read counts were loaded by this call
+     */
+    public boolean prefetch(Supplier<NumericArray[]> loader) {
+        CompletableFuture<NumericArray[]> future;
+        synchronized (this) {
+            if (inMemory || loadingFuture != null || safeToDelete) {
+                return false;
+            }
+            loadingFuture = new CompletableFuture<>();
+            loading = true;
+            future = loadingFuture;
+        }
+        return load(future, loader) != null;
+    }
+
+    /**
+     * Runs {@code loader} outside of the monitor and completes {@code future}, the current {@link #loadingFuture}
+     */
+    private NumericArray[] load(CompletableFuture<NumericArray[]> future, Supplier<NumericArray[]> loader) {
+        NumericArray[] loaded;
+        NumericArray loadedTotal = null;
+        try {
+            loaded = loader.get();
+            if (loaded != null && multi && isTotalNeeded()) {
+                loadedTotal = CompactCoverage.total(loaded);
+            }
+        } catch (RuntimeException | Error e) {
+            synchronized (this) {
+                loadingFuture = null;
+                loading = false;
+            }
+            future.completeExceptionally(e);
+            throw e;
+        }
+        synchronized (this) {
+            if (loaded != null) {
+                setReadCount(loaded);
+                if (loadedTotal != null) {
+                    setTotal(loadedTotal);
+                }
+            }
+            loadingFuture = null;
+            loading = false;
+        }
+        future.complete(loaded);
+        return loaded;
+    }
+
+    /**
+     * Returns the window statistics of {@code ary}, one of the arrays returned by an access. They are built on the
+     * first request, shared by all later ones, counted in {@link #getByteSize()} and released together with the read
+     * counts.
+     * @return the statistics or null if {@code ary} is not held by this instance
+     */
+    public WindowStats getWindowStats(NumericArray ary) {
+        CompletableFuture<WindowStats> future;
+        boolean build = false;
+        synchronized (this) {
+            if (!holds(ary)) {
+                return null;
+            }
+            future = windowStats.get(ary);
+            if (future == null) {
+                future = new CompletableFuture<>();
+                windowStats.put(ary, future);
+                build = true;
+            }
+        }
+        if (build) {
+            WindowStats stats;
+            try {
+                stats = new WindowStats(ary, bytes -> statsAllocated(ary, bytes));
+            } catch (RuntimeException | Error e) {
+                synchronized (this) {
+                    windowStats.remove(ary);
+                }
+                future.completeExceptionally(e);
+                throw e;
+            }
+            statsAllocated(ary, stats.getByteSize());
+            future.complete(stats);
+        }
+        return future.join();
+    }
+
+    private synchronized void statsAllocated(NumericArray ary, long bytes) {
+        // if the read counts were released during the build, the statistics are dropped with them
+        if (holds(ary)) {
+            byteSize += bytes;
+            allocated.accept(bytes);
+        }
+    }
+
+    private boolean holds(NumericArray ary) {
+        if (!inMemory) {
+            return false;
+        }
+        if (ary == total) {
+            return true;
+        }
+        for (NumericArray lane : readCounts) {
+            if (ary == lane) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of bytes released by this call
+     */
+    public synchronized long finishAccess() {
         finishedAccesses++;
         currentAccessCount--;
         if (finishedAccesses >= maxAccessCount) {
             safeToDelete = true;
+            long released = byteSize;
             removeFromMemory();
+            return released;
         }
+        return 0;
     }
 
-    public boolean forceDelete() {
+    /**
+     * Gives up an access started by {@link #startAccess} without counting it as done, so the read counts can be
+     * evicted again until they are accessed the next time
+     */
+    public synchronized void cancelAccess() {
+        currentAccessCount--;
+    }
+
+    /**
+     * Counts an access that did not need the read counts in memory, e.g. a streamed one
+     * @return the number of bytes released by this call
+     */
+    public synchronized long skipAccess() {
+        finishedAccesses++;
+        if (finishedAccesses >= maxAccessCount) {
+            safeToDelete = true;
+            long released = byteSize;
+            removeFromMemory();
+            return released;
+        }
+        return 0;
+    }
+
+    /**
+     * @return the number of bytes released or -1 if the read counts could not be deleted
+     */
+    public synchronized long forceDelete() {
         if (!isInMemory()) {
-            return false;
+            return -1;
         }
         if (currentAccessCount == 0) {
+            long released = byteSize;
             removeFromMemory();
             forceDeleted = true;
-            return true;
+            return released;
         }
-        return false;
+        return -1;
     }
 
     private void removeFromMemory() {
         inMemory = false;
-        for (int i = 0; i < readCounts.length; i++) {
-            readCounts[i] = null;
+        if (readCounts != null) {
+            for (int i = 0; i < readCounts.length; i++) {
+                readCounts[i] = null;
+            }
         }
         readCounts = null;
+        total = null;
+        windowStats.clear();
         byteSize = 0;
     }
 
-    public void setReadCount(NumericArray[] readCounts) {
+    private void setTotal(NumericArray total) {
+        this.total = total;
+        long size = CompactCoverage.getByteSize(total);
+        byteSize += size;
+        allocated.accept(size);
+    }
+
+    public synchronized void setReadCount(NumericArray[] readCounts) {
         this.readCounts = readCounts;
-        this.byteSize = DataWrapper.SINGLE_VALUE_BYTE_SIZE * readCounts[0].length() * readCounts.length + readCounts.length;
+        this.byteSize = getByteSize(readCounts);
+        // freshly loaded read counts are about to be used, so they are not the first ones to be evicted
+        lastAccess = System.nanoTime();
         inMemory = true;
         loading = false;
     }
 
-    public void setLoading(boolean loading) {
+    public synchronized void setLoading(boolean loading) {
         this.loading = loading;
     }
 
@@ -88,11 +315,37 @@ public class MemoryReadCount {
 //        return true;
 //    }
 
-    public boolean isInMemory() {
+    /**
+     * Sets whether the read counts of the lanes are also accessed totalized. If so, the total is computed right after
+     * loading instead of on the first totalized access. Only makes a difference for multi read counts.
+     */
+    public synchronized void setTotalNeeded(boolean totalNeeded) {
+        this.totalNeeded = totalNeeded;
+    }
+
+    public synchronized boolean isTotalNeeded() {
+        return totalNeeded;
+    }
+
+    /**
+     * Sets the number of accesses after which the read counts are not needed anymore and released right away
+     */
+    public synchronized void setMaxAccessCount(int maxAccessCount) {
+        this.maxAccessCount = maxAccessCount;
+    }
+
+    /**
+     * @return the {@link System#nanoTime()} of the last access, used to evict the least recently used read counts first
+     */
+    public synchronized long getLastAccess() {
+        return lastAccess;
+    }
+
+    public synchronized boolean isInMemory() {
         return inMemory;
     }
 
-    public boolean isSafeToDelete() {
+    public synchronized boolean isSafeToDelete() {
         return safeToDelete;
     }
 
@@ -100,11 +353,25 @@ public class MemoryReadCount {
         return multi;
     }
 
-    public boolean isLoading() {
+    public synchronized boolean isLoading() {
         return loading;
     }
 
-    public long getByteSize() {
+    /**
+     * @return the bytes used by the read counts while they are in memory, 0 otherwise
+     */
+    public synchronized long getByteSize() {
         return byteSize;
     }
+
+    /**
+     * @return the bytes used by the values of {@code readCounts}, see {@link CompactCoverage}
+     */
+    public static long getByteSize(NumericArray[] readCounts) {
+        long size = 0;
+        for (NumericArray ary : readCounts) {
+            size += CompactCoverage.getByteSize(ary);
+        }
+        return size;
+    }
 }
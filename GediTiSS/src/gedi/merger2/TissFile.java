@@ -1,6 +1,5 @@
 package gedi.merger2;
 
-import gedi.core.reference.Chromosome;
 import gedi.core.reference.ReferenceSequence;
 import gedi.core.region.ArrayGenomicRegion;
 import gedi.core.region.GenomicRegion;
@@ -10,6 +9,7 @@ import gedi.util.ArrayUtils;
 import gedi.util.StringUtils;
 import gedi.util.functions.EI;
 import gedi.util.functions.ExtendedIterator;
+import gedi.utils.MappedTsvReader;
 
 import java.io.IOException;
 import java.nio.file.Paths;
@@ -53,30 +53,33 @@ public class TissFile {
     public static TissFile loadFromFile(String path) {
         MemoryIntervalTreeStorage<TissFileEntry> entries = new MemoryIntervalTreeStorage<>(TissFileEntry.class);
         try {
-            String[] header = StringUtils.split(EI.lines(path).next(), "\t");
+            MappedTsvReader reader = new MappedTsvReader(path);
+            String[] header = StringUtils.split(reader.nextLine(), "\t");
             int readcountcolumn = ArrayUtils.find(header, READ_COUNT_COLUMN_NAME);
             int foldchangecolumn = ArrayUtils.find(header, FOLD_CHANGE_COLUMN_NAME);
             int zscorecolumn = ArrayUtils.find(header, Z_SCORE_COLUMN_NAME);
             int pvaluecolumn = ArrayUtils.find(header, P_VALUE_COLUMN_NAME);
-            entries.fill(EI.lines(path).skip(1).map(l -> {
-                String[] split = StringUtils.split(l, "\t");
+            int valuecolumn = foldchangecolumn > 1 ? foldchangecolumn : zscorecolumn > 1 ? zscorecolumn : pvaluecolumn > 1 ? pvaluecolumn : -1;
+            int originId = Paths.get(path).getFileName().toString().hashCode();
+            List<List<ImmutableReferenceGenomicRegion<TissFileEntry>>> chunks = reader.read(ArrayList::new, (line, chunk) -> {
+                ReferenceSequence ref = line.reference();
+                int pos = line.parseInt();
                 double readcount = 0;
                 double value = 0;
-                if (readcountcolumn > 1) {
-                    readcount = Double.parseDouble(split[readcountcolumn]);
+                // the columns are read in ascending order
+                for (int column = 2; column <= Math.max(readcountcolumn, valuecolumn); column++) {
+                    if (column == readcountcolumn) {
+                        readcount = line.parseDouble();
+                    } else if (column == valuecolumn) {
+                        value = line.parseDouble();
+                    } else {
+                        line.skip();
+                    }
                 }
-                if (foldchangecolumn > 1) {
-                    value = Double.parseDouble(split[foldchangecolumn]);
-                } else if (zscorecolumn > 1) {
-                    value = Double.parseDouble(split[zscorecolumn]);
-                } else if (pvaluecolumn > 1) {
-                    value = Double.parseDouble(split[pvaluecolumn]);
-                }
-                int pos = Integer.parseInt(split[1]);
-                ReferenceSequence ref = Chromosome.obtain(split[0]);
-                TissFileEntry entry = new TissFileEntry(ref, pos, readcount, value, Paths.get(path).getFileName().toString().hashCode());
-                return new ImmutableReferenceGenomicRegion<>(ref, new ArrayGenomicRegion(pos, pos + 1), entry);
-            }));
+                TissFileEntry entry = new TissFileEntry(ref, pos, readcount, value, originId);
+                chunk.add(new ImmutableReferenceGenomicRegion<>(ref, new ArrayGenomicRegion(pos, pos + 1), entry));
+            });
+            entries.fill(EI.wrap(chunks).unfold(EI::wrap));
         } catch (IOException e) {
             e.printStackTrace();
         }
@@ -21,6 +21,8 @@ public class TissMerger2ParameterSet extends GediParameterSet {
     public GediParameter<Integer> gap = new GediParameter<Integer>(this,"gap", "When to consider two TiSS of a single file to be combined into a TSR", false, new IntParameterType(), 5, true);
     public GediParameter<Boolean> keepFileIds = new GediParameter<>(this, "keepFileIds", "Keep file-associations inside TSR files", false, new BooleanParameterType());
 
+    public GediParameter<Integer> nthreads = new GediParameter<Integer>(this,"nthreads", "The number of threads to use for merging, one reference per thread", false, new IntParameterType(), Runtime.getRuntime().availableProcessors(), true);
+
     public GediParameter<Integer> minScore = new GediParameter<Integer>(this,"minScore", "Minimum number of datasets to support a TSR. Removed otherwise", false, new IntParameterType(), 1, true);
 
     public GediParameter<File> outFile = new GediParameter<File>(this, "${prefix}.tsr", "The final output of merged peaks", false, new FileParameterType());
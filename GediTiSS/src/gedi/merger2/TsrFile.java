@@ -7,18 +7,30 @@ import gedi.core.region.ImmutableReferenceGenomicRegion;
 import gedi.core.region.ReferenceGenomicRegion;
 import gedi.core.region.intervalTree.MemoryIntervalTreeStorage;
 import gedi.util.StringUtils;
-import gedi.util.datastructure.tree.redblacktree.IntervalTree;
 import gedi.util.functions.EI;
 import gedi.util.functions.ExtendedIterator;
-import gedi.util.io.text.LineIterator;
 import gedi.util.io.text.LineOrientedFile;
 import gedi.util.io.text.LineWriter;
+import gedi.utils.MappedTsvReader;
 
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class TsrFile {
+    /**
+     * Dense indices of all origin ids (the hash codes of the origin file names) seen so far, shared by all files so the
+     * origins of entries of different files can be combined as bit sets
+     */
+    private static final Map<Integer, Integer> ORIGIN_INDICES = new ConcurrentHashMap<>();
+    private static final AtomicInteger NEXT_ORIGIN_INDEX = new AtomicInteger();
+
     private MemoryIntervalTreeStorage<TsrFileEntry> entries;
     private String[] originNames;
     private Map<Integer, String> hashCodeToOriginNames;
@@ -27,6 +39,17 @@ public class TsrFile {
         this.entries = entries;
     }
 
+    /**
+     * @return the dense index of {@code originId}, assigned on first request
+     */
+    static int getOriginIndex(int originId) {
+        Integer index = ORIGIN_INDICES.get(originId);
+        if (index == null) {
+            index = ORIGIN_INDICES.computeIfAbsent(originId, id -> NEXT_ORIGIN_INDEX.getAndIncrement());
+        }
+        return index;
+    }
+
     public TsrFile filter(int minScore) {
         MemoryIntervalTreeStorage<TsrFileEntry> filtered = new MemoryIntervalTreeStorage<>(TsrFileEntry.class);
         filtered.fill(entries.ei().filter(e -> e.getData().getScore() >= minScore));
@@ -54,32 +77,100 @@ public class TsrFile {
     }
 
     public TsrFile merge(TsrFile other, int extension) {
-        Map<ReferenceSequence, IntervalTree<GenomicRegion, TsrFileEntry>> tmpmem = new HashMap<>();
-        entries.getReferenceSequences().forEach(ref -> tmpmem.put(ref, new IntervalTree<>(ref)));
-        entries.ei().forEachRemaining(entry -> tmpmem.get(entry.getReference()).put(entry.getRegion(), entry.getData()));
-        for (TsrFileEntry entry : other.loop()) {
-            if (!tmpmem.containsKey(entry.getReference())) {
-                tmpmem.put(entry.getReference(), new IntervalTree<>(entry.getReference()));
+        return merge(Arrays.asList(this, other), extension, 1);
+    }
+
+    /**
+     * Merges {@code files} in one pass, with the same result as merging them one after the other with
+     * {@link #merge(TsrFile, int)}: the entries of the first file are taken as they are and each entry of the following
+     * files is merged with all entries within {@code extension} positions, file by file in coordinate order.
+     *
+     * Instead of copying all entries into new interval trees for each file, each reference keeps a single ordered map of
+     * its merged entries, which is updated in place. References are merged in parallel on {@code nthreads} threads.
+     */
+    public static TsrFile merge(List<TsrFile> files, int extension, int nthreads) {
+        Set<ReferenceSequence> refs = new LinkedHashSet<>();
+        for (TsrFile file : files) {
+            refs.addAll(file.entries.getReferenceSequences());
+        }
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(nthreads, refs.size())));
+        List<Future<Collection<TsrFileEntry>>> jobs = new ArrayList<>();
+        try {
+            for (ReferenceSequence ref : refs) {
+                jobs.add(pool.submit(() -> mergeReference(files, ref, extension)));
             }
-            List<TsrFileEntry> overlaps = EI.wrap(tmpmem.get(entry.getReference()).iterateIntervalsIntersecting(entry.getOriginalStart()-extension, entry.getOriginalStop()+extension, i->true)).map(Map.Entry::getValue).list();
-//            List<TsrFileEntry> overlaps = tmpmem.get(entry.getReference()).ei(entry.getOriginalStart()-extension, entry.getOriginalEnd()+extension).map(e -> e.getValue()).list();
-            if (overlaps.size() == 0) {
-                tmpmem.get(entry.getReference()).put(entry.getOriginalRegion(), entry);
-            } else {
-                for (TsrFileEntry e : overlaps) {
-                    tmpmem.get(e.getReference()).remove(e.getOriginalRegion());
+            List<ImmutableReferenceGenomicRegion<TsrFileEntry>> merged = new ArrayList<>();
+            for (Future<Collection<TsrFileEntry>> job : jobs) {
+                for (TsrFileEntry entry : job.get()) {
+                    merged.add(new ImmutableReferenceGenomicRegion<>(entry.getReference(), entry.getOriginalRegion(), entry));
                 }
-                TsrFileEntry mergedEntry = entry.merge(overlaps);
-                tmpmem.get(mergedEntry.getReference()).put(mergedEntry.getOriginalRegion(), mergedEntry);
             }
+            MemoryIntervalTreeStorage<TsrFileEntry> mem = new MemoryIntervalTreeStorage<>(TsrFileEntry.class);
+            mem.fill(EI.wrap(merged));
+            return new TsrFile(mem);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while merging the TSR files.", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Merging the TSR files failed.", e.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private static Collection<TsrFileEntry> mergeReference(List<TsrFile> files, ReferenceSequence ref, int extension) {
+        ReferenceMerge merge = new ReferenceMerge();
+        for (TsrFileEntry entry : files.get(0).ei(ref).loop()) {
+            merge.put(entry);
+        }
+        for (int i = 1; i < files.size(); i++) {
+            for (TsrFileEntry entry : files.get(i).ei(ref).loop()) {
+                merge.add(entry, extension);
+            }
+        }
+        return merge.entries.values();
+    }
+
+    /**
+     * The merged entries of one reference, ordered by start and end like in the interval trees
+     */
+    private static class ReferenceMerge {
+        private final TreeMap<Long, TsrFileEntry> entries = new TreeMap<>();
+        private int maxLength;
+
+        private static long key(int start, int end) {
+            return ((long) start << 32) + end;
+        }
+
+        void put(TsrFileEntry entry) {
+            entries.put(key(entry.getOriginalStart(), entry.getOriginalEnd()), entry);
+            maxLength = Math.max(maxLength, entry.getOriginalEnd() - entry.getOriginalStart());
+        }
+
+        /**
+         * Merges {@code entry} with all entries intersecting its region extended by {@code extension} positions
+         */
+        void add(TsrFileEntry entry, int extension) {
+            int from = entry.getOriginalStart() - extension;
+            int to = entry.getOriginalStop() + extension;
+            // no entry is longer than maxLength, so entries starting before this can not reach from
+            long fromKey = (long) (from - maxLength + 1) << 32;
+            long toKey = key(to, Integer.MAX_VALUE);
+            List<TsrFileEntry> overlaps = new ArrayList<>();
+            for (TsrFileEntry e : entries.subMap(fromKey, true, toKey, true).values()) {
+                if (e.getOriginalStop() >= from) {
+                    overlaps.add(e);
+                }
+            }
+            if (overlaps.isEmpty()) {
+                put(entry);
+                return;
+            }
+            for (TsrFileEntry e : overlaps) {
+                entries.remove(key(e.getOriginalStart(), e.getOriginalEnd()));
+            }
+            put(entry.merge(overlaps));
         }
-        MemoryIntervalTreeStorage<TsrFileEntry> mem = new MemoryIntervalTreeStorage<>(TsrFileEntry.class);
-        Set<ImmutableReferenceGenomicRegion<TsrFileEntry>> set = new HashSet<>();
-        EI.wrap(tmpmem.keySet()).forEachRemaining(ref -> {
-            set.addAll(tmpmem.get(ref).ei().set());
-        });
-        mem.fill(EI.wrap(set));
-        return new TsrFile(mem);
     }
 
     public void writeToFile(String path, String[] originNames) throws IOException {
@@ -96,23 +187,23 @@ public class TsrFile {
     }
 
     public static TsrFile loadFromFile(String path) throws IOException {
-        LineIterator lines = EI.lines(path);
-        String comment = lines.next();
+        MappedTsvReader reader = new MappedTsvReader(path);
+        String comment = reader.nextLine();
         String[] originNames = null;
         if (comment.startsWith("# ")) {
             originNames = StringUtils.split(StringUtils.splitField(comment, " ", 1), ",");
-            lines.next();
+            reader.nextLine();
         }
-        MemoryIntervalTreeStorage<TsrFileEntry> entries = new MemoryIntervalTreeStorage<>(TsrFileEntry.class);
-        entries.fill(lines.map(l -> {
+        List<List<ImmutableReferenceGenomicRegion<TsrFileEntry>>> chunks = reader.read(ArrayList::new, (line, chunk) -> {
             try {
-                TsrFileEntry entry = TsrFileEntry.parse(l);
-                return new ImmutableReferenceGenomicRegion<>(entry.getReference(), entry.getOriginalRegion(), entry);
+                TsrFileEntry entry = TsrFileEntry.parse(line);
+                chunk.add(new ImmutableReferenceGenomicRegion<>(entry.getReference(), entry.getOriginalRegion(), entry));
             } catch (IOException e) {
                 e.printStackTrace();
-                return null;
             }
-        }).removeNulls());
+        });
+        MemoryIntervalTreeStorage<TsrFileEntry> entries = new MemoryIntervalTreeStorage<>(TsrFileEntry.class);
+        entries.fill(EI.wrap(chunks).unfold(EI::wrap));
         TsrFile file = new TsrFile(entries);
         file.originNames = originNames;
         return file;
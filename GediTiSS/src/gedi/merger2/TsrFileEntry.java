@@ -9,32 +9,59 @@ import gedi.core.region.ReferenceGenomicRegion;
 import gedi.util.ArrayUtils;
 import gedi.util.StringUtils;
 import gedi.util.functions.EI;
+import gedi.utils.MappedTsvReader;
 
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.*;
 
+/**
+ * A TSR and the TiSS it consists of. The TiSS are stored column by column in primitive arrays, and the distinct origins
+ * of the TiSS as a bit set of their indices in {@link TsrFile#getOriginIndex(int)}, so the score is kept up to date
+ * instead of being counted on each call.
+ */
 public class TsrFileEntry {
-    private List<TissFileEntry> tissEntries;
+    private int size;
+    private int[] positions;
+    private double[] readcounts;
+    private double[] values;
+    private int[] originIds;
+    private BitSet origins;
+    private int score;
     private GenomicRegion originalRegion;
     private ReferenceSequence reference;
 
     public TsrFileEntry(ReferenceSequence reference) {
-        this.reference = reference;
-        tissEntries = new ArrayList<>();
+        this(reference, null, new int[4], new double[4], new double[4], new int[4], 0);
     }
 
     public TsrFileEntry(ReferenceSequence reference, GenomicRegion region, List<TissFileEntry> entries) {
-        this.tissEntries = entries;
+        this(reference, region, new int[entries.size()], new double[entries.size()], new double[entries.size()], new int[entries.size()], 0);
+        for (TissFileEntry entry : entries) {
+            add(entry.getPosition(), entry.getReadcount(), entry.getValue(), entry.getOriginId());
+        }
+    }
+
+    private TsrFileEntry(ReferenceSequence reference, GenomicRegion region, int[] positions, double[] readcounts, double[] values, int[] originIds, int size) {
         this.reference = reference;
         this.originalRegion = region;
+        this.positions = positions;
+        this.readcounts = readcounts;
+        this.values = values;
+        this.originIds = originIds;
+        this.size = size;
+        this.origins = new BitSet();
+        for (int i = 0; i < size; i++) {
+            origins.set(TsrFile.getOriginIndex(originIds[i]));
+        }
+        this.score = origins.cardinality();
     }
 
     public void addTissFileEntry(TissFileEntry entry) {
         if (!entry.getReference().equals(reference)) {
             throw new IllegalArgumentException("New entry needs to be of the same reference as the TRSFileEntry. This: " + reference + ", new Entry: " + entry.getReference());
         }
-        tissEntries.add(entry);
+        add(entry.getPosition(), entry.getReadcount(), entry.getValue(), entry.getOriginId());
         if (originalRegion == null) {
             originalRegion = new ArrayGenomicRegion(entry.getPosition(), entry.getPosition()+1);
             return;
@@ -46,6 +73,26 @@ public class TsrFileEntry {
         }
     }
 
+    private void add(int position, double readcount, double value, int originId) {
+        if (size == positions.length) {
+            int capacity = Math.max(4, size * 2);
+            positions = Arrays.copyOf(positions, capacity);
+            readcounts = Arrays.copyOf(readcounts, capacity);
+            values = Arrays.copyOf(values, capacity);
+            originIds = Arrays.copyOf(originIds, capacity);
+        }
+        positions[size] = position;
+        readcounts[size] = readcount;
+        values[size] = value;
+        originIds[size] = originId;
+        size++;
+        int index = TsrFile.getOriginIndex(originId);
+        if (!origins.get(index)) {
+            origins.set(index);
+            score++;
+        }
+    }
+
     public String toLocationString() {
         return getReference().toPlusMinusString() + ":" + getOriginalRegion().toString2();
     }
@@ -55,22 +102,40 @@ public class TsrFileEntry {
     }
 
     public TsrFileEntry merge(List<TsrFileEntry> others) {
-        int start = EI.wrap(others).mapToInt(TsrFileEntry::getOriginalStart).min();
-        int end = EI.wrap(others).mapToInt(TsrFileEntry::getOriginalEnd).max();
-        start = originalRegion.getStart() < start ? originalRegion.getStart() : start;
-        end = originalRegion.getEnd() > end ? originalRegion.getEnd() : end;
-        GenomicRegion newRegion = new ArrayGenomicRegion(start, end);
-        List<TissFileEntry> newEntries = new ArrayList<>();
-        others.forEach(o -> newEntries.addAll(o.tissEntries));
-        newEntries.addAll(tissEntries);
-        return new TsrFileEntry(reference, newRegion, newEntries);
-    }
-
-    // TODO: should be calculated during creation. Careful with resetFileAssociations method!
+        int start = originalRegion.getStart();
+        int end = originalRegion.getEnd();
+        int n = size;
+        for (TsrFileEntry o : others) {
+            start = Math.min(start, o.getOriginalStart());
+            end = Math.max(end, o.getOriginalEnd());
+            n += o.size;
+        }
+        TsrFileEntry merged = new TsrFileEntry(reference, new ArrayGenomicRegion(start, end), new int[n], new double[n], new double[n], new int[n], 0);
+        for (TsrFileEntry o : others) {
+            merged.append(o);
+        }
+        merged.append(this);
+        return merged;
+    }
+
+    /**
+     * Appends the TiSS of {@code other}, the capacity must suffice
+     */
+    private void append(TsrFileEntry other) {
+        System.arraycopy(other.positions, 0, positions, size, other.size);
+        System.arraycopy(other.readcounts, 0, readcounts, size, other.size);
+        System.arraycopy(other.values, 0, values, size, other.size);
+        System.arraycopy(other.originIds, 0, originIds, size, other.size);
+        size += other.size;
+        origins.or(other.origins);
+        score = origins.cardinality();
+    }
+
+    /**
+     * @return the number of distinct origins of the TiSS
+     */
     public int getScore() {
-        Set<Integer> fileCodes = new HashSet<>();
-        tissEntries.forEach(t -> fileCodes.add(t.getOriginId()));
-        return fileCodes.size();
+        return score;
     }
 
     public int getOriginalEnd() {
@@ -94,161 +159,161 @@ public class TsrFileEntry {
     }
 
     public double[] getReadCounts() {
-        double[] readcounts = new double[tissEntries.size()];
-        for (int i = 0; i < tissEntries.size(); i++) {
-            readcounts[i] = tissEntries.get(i).getReadcount();
-        }
-        return readcounts;
+        return Arrays.copyOf(readcounts, size);
     }
 
     public int computeNumberOfDisjunctPeaks() {
+        int[] order = sortedByPosition();
         int count = 1;
-        List<TissFileEntry> tmp = new ArrayList<>(tissEntries);
-        tmp.sort(Comparator.comparingInt(TissFileEntry::getPosition));
-        int lastPosition = tmp.get(0).getPosition();
-        for (int i = 1; i < tmp.size(); i++) {
-            if (tmp.get(i).getPosition() - lastPosition > 1) {
+        for (int i = 1; i < order.length; i++) {
+            if (positions[order[i]] - positions[order[i - 1]] > 1) {
                 count++;
             }
-            lastPosition = tmp.get(i).getPosition();
         }
         return count;
     }
 
     // Per non-disjunct TiSS-clusters the max TiSS is returned
     public double[] getReadCountsFromDisjunctPeaks() {
-        List<TissFileEntry> biggestDisjunctTiss = new ArrayList<>();
-        List<TissFileEntry> lastTiss = new ArrayList<>();
-        List<TissFileEntry> tmp = new ArrayList<>(tissEntries);
-        tmp.sort(Comparator.comparingInt(TissFileEntry::getPosition));
-        int lastPosition = tmp.get(0).getPosition();
-        lastTiss.add(tmp.get(0));
-        for (int i = 1; i < tmp.size(); i++) {
-            if (tmp.get(i).getPosition() - lastPosition > 1) {
-                biggestDisjunctTiss.add(lastTiss.stream().max(Comparator.comparingDouble(TissFileEntry::getReadcount)).get());
-                lastTiss = new ArrayList<>();
+        int[] order = sortedByPosition();
+        double[] peaks = new double[order.length];
+        int peak = 0;
+        double max = readcounts[order[0]];
+        for (int i = 1; i < order.length; i++) {
+            if (positions[order[i]] - positions[order[i - 1]] > 1) {
+                peaks[peak++] = max;
+                max = readcounts[order[i]];
+            } else {
+                max = Math.max(max, readcounts[order[i]]);
             }
-            lastPosition = tmp.get(i).getPosition();
-            lastTiss.add(tmp.get(i));
         }
-        biggestDisjunctTiss.add(lastTiss.stream().max(Comparator.comparingDouble(TissFileEntry::getReadcount)).get());
-        return biggestDisjunctTiss.stream().mapToDouble(TissFileEntry::getReadcount).toArray();
+        peaks[peak] = max;
+        return Arrays.copyOf(peaks, peak + 1);
     }
 
-    public double[] getReadCountsForId(int id) {
-        List<Double> lst = new ArrayList<>();
-        double[] rc = getReadCounts();
-        int[] ids = getOriginIds();
-        for (int i = 0; i < ids.length; i++) {
-            if (ids[i] == id) {
-                lst.add(rc[i]);
-            }
+    /**
+     * @return the indices of the TiSS ordered by position, TiSS at the same position in their order of addition
+     */
+    private int[] sortedByPosition() {
+        long[] keys = new long[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = ((long) positions[i] << 32) + i;
         }
-        if (lst.size() == 0) {
-            return new double[0];
+        Arrays.sort(keys);
+        int[] order = new int[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = (int) keys[i];
         }
-        return lst.stream().mapToDouble(d -> d).toArray();
+        return order;
     }
 
-    public double getMaxValueForId(int id) {
-        List<Double> lst = new ArrayList<>();
-        double[] vals = getValues();
-        int[] ids = getOriginIds();
-        for (int i = 0; i < ids.length; i++) {
-            if (ids[i] == id) {
-                lst.add(vals[i]);
+    public double[] getReadCountsForId(int id) {
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            if (originIds[i] == id) {
+                n++;
             }
         }
-        if (lst.size() == 0) {
-            return 0;
+        double[] rc = new double[n];
+        for (int i = 0, j = 0; j < n; i++) {
+            if (originIds[i] == id) {
+                rc[j++] = readcounts[i];
+            }
         }
-        return lst.stream().mapToDouble(d -> d).max().getAsDouble();
+        return rc;
+    }
+
+    public double getMaxValueForId(int id) {
+        return maxForId(values, id);
     }
 
     public double getMaxReadCountForId(int id) {
-        List<Double> lst = new ArrayList<>();
-        double[] rc = getReadCounts();
-        int[] ids = getOriginIds();
-        for (int i = 0; i < ids.length; i++) {
-            if (ids[i] == id) {
-                lst.add(rc[i]);
+        return maxForId(readcounts, id);
+    }
+
+    /**
+     * @return the maximum of {@code column} over the TiSS of origin {@code id}, 0 if there are none
+     */
+    private double maxForId(double[] column, int id) {
+        double max = Double.NEGATIVE_INFINITY;
+        boolean found = false;
+        for (int i = 0; i < size; i++) {
+            if (originIds[i] == id) {
+                max = Math.max(max, column[i]);
+                found = true;
             }
         }
-        if (lst.size() == 0) {
-            return 0;
-        }
-        return lst.stream().mapToDouble(d -> d).max().getAsDouble();
+        return found ? max : 0;
     }
 
     public double getMaxReadCount() {
-        return EI.wrap(tissEntries).mapToDouble(TissFileEntry::getReadcount).max();
+        double max = readcounts[0];
+        for (int i = 1; i < size; i++) {
+            max = Math.max(max, readcounts[i]);
+        }
+        return max;
     }
 
     public int getMaxReadCountTissPos() {
-        TissFileEntry maxTiss = tissEntries.get(0);
-        for (int i = 1; i < tissEntries.size(); i++) {
-            maxTiss = tissEntries.get(i).getReadcount() > maxTiss.getReadcount() ? tissEntries.get(i) : maxTiss;
+        int max = 0;
+        for (int i = 1; i < size; i++) {
+            if (readcounts[i] > readcounts[max]) {
+                max = i;
+            }
         }
-        return maxTiss.getPosition();
+        return positions[max];
     }
 
     public int getMaxReadCountTissPosForId(int id) {
-        TissFileEntry maxTiss = null;
-        for (int i = 0; i < tissEntries.size(); i++) {
-            if (tissEntries.get(i).getOriginId() != id) {
-                continue;
-            }
-            if (maxTiss == null) {
-                maxTiss = tissEntries.get(i);
-                continue;
+        int max = -1;
+        for (int i = 0; i < size; i++) {
+            if (originIds[i] == id && (max == -1 || readcounts[i] > readcounts[max])) {
+                max = i;
             }
-            maxTiss = tissEntries.get(i).getReadcount() > maxTiss.getReadcount() ? tissEntries.get(i) : maxTiss;
         }
-        return maxTiss == null ? -1 : maxTiss.getPosition();
+        return max == -1 ? -1 : positions[max];
     }
 
     public boolean isValidatedByFile(String fileName) {
         int hash = fileName.hashCode();
-        return Arrays.stream(getOriginIds()).anyMatch(x -> x == hash);
+        for (int i = 0; i < size; i++) {
+            if (originIds[i] == hash) {
+                return true;
+            }
+        }
+        return false;
     }
 
     public double[] getValues() {
-        double[] values = new double[tissEntries.size()];
-        for (int i = 0; i < tissEntries.size(); i++) {
-            values[i] = tissEntries.get(i).getValue();
-        }
-        return values;
+        return Arrays.copyOf(values, size);
     }
 
     public double getMaxValue() {
-        double[] values = new double[tissEntries.size()];
-        for (int i = 0; i < tissEntries.size(); i++) {
-            values[i] = tissEntries.get(i).getValue();
-        }
-        if (values.length == 0) {
+        if (size == 0) {
             return 0;
         }
-        return Arrays.stream(values).max().getAsDouble();
+        double max = values[0];
+        for (int i = 1; i < size; i++) {
+            max = Math.max(max, values[i]);
+        }
+        return max;
     }
 
     public int[] getOriginIds() {
-        int[] originIds = new int[tissEntries.size()];
-        for (int i = 0; i < tissEntries.size(); i++) {
-            originIds[i] = tissEntries.get(i).getOriginId();
-        }
-        return originIds;
+        return Arrays.copyOf(originIds, size);
     }
 
     public int[] getPositions() {
-        int[] readcounts = new int[tissEntries.size()];
-        for (int i = 0; i < tissEntries.size(); i++) {
-            readcounts[i] = tissEntries.get(i).getPosition();
-        }
-        return readcounts;
+        return Arrays.copyOf(positions, size);
     }
 
     public void resetFileAssociations(int newFileId) {
-        tissEntries.forEach(t -> t.setOriginId(newFileId));
+        Arrays.fill(originIds, 0, size, newFileId);
+        origins.clear();
+        if (size > 0) {
+            origins.set(TsrFile.getOriginIndex(newFileId));
+        }
+        score = origins.cardinality();
     }
 
     @Override
@@ -263,7 +328,7 @@ public class TsrFileEntry {
 
     @Override
     public int hashCode() {
-        return (getReference().hashCode() * 59 + getOriginalRegion().hashCode2()) * 59 + tissEntries.size();
+        return (getReference().hashCode() * 59 + getOriginalRegion().hashCode2()) * 59 + size;
     }
 
     @Override
@@ -278,17 +343,27 @@ public class TsrFileEntry {
         if (!entry.getOriginalRegion().equals2(getOriginalRegion())) {
             return false;
         }
-        for (TissFileEntry tiss : tissEntries) {
-            if (!entry.tissEntries.contains(tiss)) {
+        if (size != entry.size) {
+            return false;
+        }
+        for (int i = 0; i < size; i++) {
+            if (!entry.containsTiss(positions[i], readcounts[i], values[i], originIds[i])) {
                 return false;
             }
         }
-        if (tissEntries.size() != entry.tissEntries.size()) {
-            return false;
-        }
         return true;
     }
 
+    private boolean containsTiss(int position, double readcount, double value, int originId) {
+        for (int i = 0; i < size; i++) {
+            if (positions[i] == position && originIds[i] == originId
+                    && Double.compare(readcounts[i], readcount) == 0 && Double.compare(values[i], value) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     public static TsrFileEntry parse(String line) throws IOException {
         String[] split = StringUtils.split(line, "\t");
         ReferenceSequence ref = Chromosome.obtain(split[0]);
@@ -300,10 +375,22 @@ public class TsrFileEntry {
         if (readcounts.length != values.length || values.length != originIds.length || originIds.length != positions.length) {
             throw new IOException(line);
         }
-        List<TissFileEntry> entries = new ArrayList<>();
-        for (int i = 0; i < readcounts.length; i++) {
-            entries.add(new TissFileEntry(ref, positions[i], readcounts[i], values[i], originIds[i]));
+        return new TsrFileEntry(ref, reg, positions, readcounts, values, originIds, positions.length);
+    }
+
+    /**
+     * Like {@link #parse(String)}, reading the fields straight from {@code line}
+     */
+    public static TsrFileEntry parse(MappedTsvReader.Line line) throws IOException {
+        ReferenceSequence ref = line.reference();
+        GenomicRegion reg = GenomicRegion.parse(line.string());
+        double[] readcounts = line.parseDoubles(',');
+        double[] values = line.parseDoubles(',');
+        int[] originIds = line.parseInts(',');
+        int[] positions = line.parseInts(',');
+        if (readcounts.length != values.length || values.length != originIds.length || originIds.length != positions.length) {
+            throw new IOException(line.toString());
         }
-        return new TsrFileEntry(ref, reg, entries);
+        return new TsrFileEntry(ref, reg, positions, readcounts, values, originIds, positions.length);
     }
 }
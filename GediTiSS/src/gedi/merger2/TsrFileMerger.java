@@ -20,6 +20,7 @@ public class TsrFileMerger extends GediProgram {
         addInput(params.minScore);
         addInput(params.inTsrFiles);
         addInput(params.keepFileIds);
+        addInput(params.nthreads);
 
         addOutput(params.outFile);
     }
@@ -33,11 +34,12 @@ public class TsrFileMerger extends GediProgram {
         int minScore = getParameter(4);
         List<String> inTsrFiles = getParameters(5);
         boolean keepFileIds = getParameter(6);
+        int nthreads = getParameter(7);
 
         List<TsrFile> tsrFiles = readTissFiles(inTissFiles, gap);
         tsrFiles.addAll(readTsrFiles(inTsrFiles, keepFileIds));
 
-        TsrFile merged = merge(tsrFiles, ext);
+        TsrFile merged = TsrFile.merge(tsrFiles, ext, nthreads);
         merged = merged.filter(minScore);
 
         String outPath = getOutputFile(0).getPath();
@@ -86,12 +88,4 @@ public class TsrFileMerger extends GediProgram {
         }
         return tsrFiles;
     }
-
-    public TsrFile merge(List<TsrFile> tissFiles, final int extension) {
-        TsrFile finalFile = tissFiles.get(0);
-        for (int i = 1; i < tissFiles.size(); i++) {
-            finalFile = finalFile.merge(tissFiles.get(i), extension);
-        }
-        return finalFile;
-    }
 }
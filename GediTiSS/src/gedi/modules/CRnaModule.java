@@ -13,15 +13,17 @@ import gedi.util.io.text.LineWriter;
 import gedi.util.mutable.MutablePair;
 import gedi.util.mutable.MutableTriple;
 import gedi.util.r.RRunner;
+import gedi.utils.QuantileSketch;
 import gedi.utils.TiSSUtils;
+import gedi.utils.WindowStats;
+import gedi.utils.datastructures.TissResultTable;
 import gedi.utils.machineLearning.PeakAndPos;
-import gedi.utils.sortedNodesList.StaticSizeSortedArrayList;
 import org.apache.commons.math3.distribution.NormalDistribution;
 
 import java.io.IOException;
 import java.util.*;
 
-public class CRnaModule extends ModuleBase{
+public class CRnaModule extends ModuleBase implements StreamableModule {
 
     private double zScoreThresh;
     private int windowSize;
@@ -29,6 +31,11 @@ public class CRnaModule extends ModuleBase{
     private double pseudoCount;
     private int cleanupThresh;
     private int minReadNum;
+    /**
+     * The upstream and downstream z-scores of all candidates, only filled with {@link #setApproximateThreshold(boolean)}
+     */
+    private final QuantileSketch upstreamSketch = new QuantileSketch();
+    private final QuantileSketch downstreamSketch = new QuantileSketch();
 
     public CRnaModule(double zScoreThresh, double pseudoCount, int windowSize, int cleanupThresh, int minReadNum, Data lane,
                       boolean useMM, String name) {
@@ -39,46 +46,74 @@ public class CRnaModule extends ModuleBase{
         this.useMM = useMM;
         this.cleanupThresh = cleanupThresh;
         this.minReadNum = minReadNum;
+        this.res = new TissResultTable(TissFile.READ_COUNT_COLUMN_NAME, "zScore-DS", "zScore-US", TissFile.Z_SCORE_COLUMN_NAME);
     }
 
     @Override
     public void findTiSS(NumericArray[] inData, ReferenceSequence ref) {
         // Should only be one lane, the total lane
         NumericArray data = inData[0];
+        WindowStats stats = getWindowStats(data, ref);
+        addResults(data, 0, ref, scanTiled(windowSize, data.length() - (windowSize+1), (from, to) -> scan(data, stats, ref, from, to, 0)));
+    }
 
-        List<PeakAndPos> mmDataL = useMM ? new ArrayList<>() : null;
-        List<PeakAndPos> mmDataR = useMM ? new ArrayList<>() : null;
-
-        double[] upstream = data.toDoubleArray(0, windowSize);
-        double[] downstream = data.toDoubleArray(windowSize+1, windowSize*2+1);
-        for (int i = 0; i < windowSize; i++) {
-            upstream[i] = upstream[i] + pseudoCount;
-            downstream[i] = downstream[i] + pseudoCount;
-        }
+    @Override
+    public int getStreamingHalo() {
+        return windowSize+1;
+    }
 
-        StaticSizeSortedArrayList<Double> windowUpstream = new StaticSizeSortedArrayList<>(EI.wrap(upstream).toList(), Double::compareTo);
-        StaticSizeSortedArrayList<Double> windowDownstream = new StaticSizeSortedArrayList<>(EI.wrap(downstream).toList(), Double::compareTo);
+    @Override
+    public Runnable scanStreamed(NumericArray[] inData, WindowStats[] stats, int offset, int from, int to, int refLength, ReferenceSequence ref) {
+        int start = Math.max(from, windowSize);
+        int end = Math.min(to, refLength - (windowSize+1));
+        List<MutableTriple<Integer, Double, Double>> peaks = start < end ? scan(inData[0], stats[0], ref, start-offset, end-offset, offset) : new ArrayList<>();
+        return () -> addResults(inData[0], offset, ref, Collections.singletonList(peaks));
+    }
 
-        if (ref.isMinus()) {
-            StaticSizeSortedArrayList<Double> windowTmp = windowUpstream;
-            windowUpstream = windowDownstream;
-            windowDownstream = windowTmp;
+    private void addResults(NumericArray data, int offset, ReferenceSequence ref, List<List<MutableTriple<Integer, Double, Double>>> tiles) {
+        TissResultTable.Rows foundPeaksNew = this.res.getOrCreate(ref);
+        for (List<MutableTriple<Integer, Double, Double>> peaks : tiles) {
+            for (MutableTriple<Integer, Double, Double> peak : peaks) {
+                foundPeaksNew.append(peak.Item1, data.getDouble(peak.Item1 - offset), peak.Item3, peak.Item2, peak.Item2);
+            }
         }
+        if (useMM && isApproximateThreshold()) {
+            // references are scanned concurrently, so both sketches are guarded by the upstream one
+            synchronized (upstreamSketch) {
+                for (List<MutableTriple<Integer, Double, Double>> peaks : tiles) {
+                    for (MutableTriple<Integer, Double, Double> peak : peaks) {
+                        upstreamSketch.update(peak.Item2);
+                        downstreamSketch.update(peak.Item3);
+                    }
+                }
+            }
+        }
+    }
 
-        Map<Integer, Map<String, Double>> foundPeaksNew = this.res.computeIfAbsent(ref, k -> new HashMap<>());
-
-        double sumUpstream = sum(windowUpstream);
-        double sumDownstream = sum(windowDownstream);
-        double meanUpstream = sumUpstream/(windowUpstream.getSize()-1);
-        double meanDownstream = sumDownstream/(windowDownstream.getSize()-1);
-        double sdUpsteam = sampleSd(windowUpstream,sumUpstream/windowUpstream.getSize());
-        double sdDownsteam = sampleSd(windowDownstream, sumDownstream/windowDownstream.getSize());
-
-        for (int i = windowSize; i < data.length() - (windowSize+1); i++) {
-            if (mmDataL != null && i%10000000 == 0) {
-                //System.err.print("Progress " + i + "/" + data.length() + ", mmDataL size: " + mmDataL.size() + ", mmDataR size: " + mmDataR.size() + ", upstream: " + sumUpstream + ", downstream: " + sumDownstream + "\r");
-                System.err.print(String.format("Progress %d / %d, mmDataL size: %d, mmDataR size: %d, upstream: %.2f, downstream: %.2f \r", i, data.length(), mmDataL.size(), mmDataR.size(), sumUpstream, sumDownstream));
+    /**
+     * Scans the indices [from, to) of {@code data} with the windows initialized around {@code from}
+     * @param offset the position of the first index of {@code data} in the reference
+     * @return the positions found together with their upstream and downstream z-score
+     */
+    private List<MutableTriple<Integer, Double, Double>> scan(NumericArray data, WindowStats stats, ReferenceSequence ref, int from, int to, int offset) {
+        List<MutableTriple<Integer, Double, Double>> peaks = new ArrayList<>();
+
+        // the pseudo count is added to every value, which shifts the sums by windowSize*pseudoCount and leaves the
+        // variances as they are
+        double pseudoCountSum = windowSize*pseudoCount;
+        for (int i = nextCandidate(stats, from, to); i < to; i = nextCandidate(stats, i+1, to)) {
+            int upstreamStart = ref.isPlus() ? i-windowSize : i+1;
+            int downstreamStart = ref.isPlus() ? i+1 : i-windowSize;
+            double upstreamSum = stats.sum(upstreamStart, upstreamStart+windowSize) + pseudoCountSum;
+            double downstreamSum = stats.sum(downstreamStart, downstreamStart+windowSize) + pseudoCountSum;
+            if (useMM && (i+offset)%10000000 == 0) {
+                System.err.print(String.format("Progress %d, mmData size: %d, upstream: %.2f, downstream: %.2f \r", i+offset, peaks.size(), upstreamSum, downstreamSum));
             }
+            double meanUpstream = upstreamSum/(windowSize-1);
+            double meanDownstream = downstreamSum/(windowSize-1);
+            double sdUpsteam = Math.sqrt(stats.sampleVariance(upstreamStart, upstreamStart+windowSize));
+            double sdDownsteam = Math.sqrt(stats.sampleVariance(downstreamStart, downstreamStart+windowSize));
+
             double valueOfInterest = data.getDouble(i) + pseudoCount;
             if (sdUpsteam <= pseudoCount) {
                 sdUpsteam = pseudoCount;
@@ -89,71 +124,32 @@ public class CRnaModule extends ModuleBase{
 
             double upstreamZ = (valueOfInterest - meanUpstream) / sdUpsteam;
             double downstreamZ = (valueOfInterest - meanDownstream) / sdDownsteam;
-            if (useMM && mmDataL != null) {
+            if (useMM) {
                 if (upstreamZ > 2 && downstreamZ > 2) {
-                    mmDataL.add(new PeakAndPos(i, upstreamZ));
-                    mmDataR.add(new PeakAndPos(i, downstreamZ));
+                    peaks.add(new MutableTriple<>(i+offset, upstreamZ, downstreamZ));
                 }
             } else {
                 if (upstreamZ > zScoreThresh && downstreamZ > zScoreThresh && data.getDouble(i) >= minReadNum) {
-                    Map<String, Double> infos = new HashMap<>();
-                    infos.put("zScore-US", upstreamZ);
-                    infos.put("zScore-DS", downstreamZ);
-                    infos.put(TissFile.Z_SCORE_COLUMN_NAME, upstreamZ);
-                    infos.put(TissFile.READ_COUNT_COLUMN_NAME, data.getDouble(i));
-                    foundPeaksNew.put(i, infos);
+                    peaks.add(new MutableTriple<>(i+offset, upstreamZ, downstreamZ));
                 }
             }
-
-            boolean indelSuccess;
-            if (ref.isPlus()) {
-                indelSuccess = windowUpstream.insertSortedAndDelete(data.getDouble(i) + pseudoCount, data.getDouble(i - windowSize) + pseudoCount);
-                indelSuccess &= windowDownstream.insertSortedAndDelete(data.getDouble(i + windowSize + 1) + pseudoCount, data.getDouble(i + 1) + pseudoCount);
-                sumUpstream = (sumUpstream - (data.getDouble(i-windowSize)+pseudoCount)) + data.getDouble(i)+pseudoCount;
-                sumDownstream = (sumDownstream - (data.getDouble(i+1)+pseudoCount)) + data.getDouble(i+windowSize+1)+pseudoCount;
-            } else {
-                indelSuccess = windowDownstream.insertSortedAndDelete(data.getDouble(i) + pseudoCount, data.getDouble(i - windowSize) + pseudoCount);
-                indelSuccess &= windowUpstream.insertSortedAndDelete(data.getDouble(i + windowSize + 1) + pseudoCount, data.getDouble(i + 1) + pseudoCount);
-                sumDownstream = (sumUpstream - (data.getDouble(i-windowSize)+pseudoCount)) + data.getDouble(i)+pseudoCount;
-                sumUpstream = (sumDownstream - (data.getDouble(i+1)+pseudoCount)) + data.getDouble(i+windowSize+1)+pseudoCount;
-            }
-
-            if (!indelSuccess) {
-                System.err.println("Error while trying to delete value. Index: " + i);
-            }
-
-            meanUpstream = sumUpstream/(windowUpstream.getSize()-1);
-            meanDownstream = sumDownstream/(windowDownstream.getSize()-1);
-            sdUpsteam = sampleSd(windowUpstream,sumUpstream/windowUpstream.getSize());
-            sdDownsteam = sampleSd(windowDownstream, sumDownstream/windowDownstream.getSize());
-        }
-
-        if (mmDataL != null) {
-            for (int i = 0; i < mmDataL.size(); i++) {
-                Map<String, Double> info = new HashMap<>();
-                info.put("zScore-US", mmDataL.get(i).getValue());
-                info.put("zScore-DS", mmDataR.get(i).getValue());
-                info.put(TissFile.Z_SCORE_COLUMN_NAME, mmDataL.get(i).getValue());
-                info.put(TissFile.READ_COUNT_COLUMN_NAME, data.getDouble(mmDataL.get(i).getPos()));
-                foundPeaksNew.put(mmDataL.get(i).getPos(), info);
-            }
         }
+        return peaks;
     }
 
-    private double sum(StaticSizeSortedArrayList<Double> lst) {
-        double sum = 0;
-        for (int i = 0; i < lst.getSize(); i++) {
-            sum += lst.getValueAtIndex(i);
+    /**
+     * @return the first position of [from, to) that can be a peak at all
+     */
+    private int nextCandidate(WindowStats stats, int from, int to) {
+        if (!useMM && minReadNum > 0) {
+            return stats.nextAtLeast(from, to, minReadNum);
         }
-        return sum;
-    }
-
-    private double sampleSd(StaticSizeSortedArrayList<Double> lst, double mean) {
-        double sum = 0;
-        for (int i = 0; i < lst.getSize(); i++) {
-            sum += Math.pow(lst.getValueAtIndex(i) - mean, 2);
+        // Without reads, a position is at most as high as the window means (which include the pseudocount), so its
+        // z-scores are never positive. Sparse libraries are thus scanned read by read.
+        if (useMM || zScoreThresh >= 0) {
+            return stats.nextNonZero(from, to);
         }
-        return Math.sqrt(sum/(lst.getSize()-1));
+        return from;
     }
 
     @Override
@@ -161,50 +157,45 @@ public class CRnaModule extends ModuleBase{
         LineWriter writerup = new LineOrientedFile(prefix + "densePeakThresholdData.tsv").write();
         writerup.writeLine("Ref\tPos\tValue1\tValue2\t" + TissFile.Z_SCORE_COLUMN_NAME + "\t" + TissFile.READ_COUNT_COLUMN_NAME);
 
-        List<PeakAndPos> mlDataUp = new ArrayList<>();
-        List<PeakAndPos> mlDataDown = new ArrayList<>();
-        for (ReferenceSequence ref : res.keySet()) {
-            Map<Integer, Map<String, Double>> tss = res.get(ref);
-            for (int tssPos : tss.keySet()) {
-                Map<String, Double> info = tss.get(tssPos);
-                mlDataUp.add(new PeakAndPos(tssPos, info.get("zScore-US")));
-                mlDataDown.add(new PeakAndPos(tssPos, info.get("zScore-DS")));
-                writerup.writeLine(ref.toPlusMinusString() + "\t" + tssPos + "\t" + info.get("zScore-US") + "\t" + info.get("zScore-DS") + "\t" + info.get(TissFile.Z_SCORE_COLUMN_NAME) + "\t" + info.get(TissFile.READ_COUNT_COLUMN_NAME));
+        int readCountColumn = res.getColumnIndex(TissFile.READ_COUNT_COLUMN_NAME);
+        int upstreamColumn = res.getColumnIndex("zScore-US");
+        int downstreamColumn = res.getColumnIndex("zScore-DS");
+        int zScoreColumn = res.getColumnIndex(TissFile.Z_SCORE_COLUMN_NAME);
+        double[] mlDataUp = isApproximateThreshold() ? null : new double[(int) res.size()];
+        double[] mlDataDown = isApproximateThreshold() ? null : new double[(int) res.size()];
+        int mlDataSize = 0;
+        for (ReferenceSequence ref : res.getReferences()) {
+            TissResultTable.Rows tss = res.get(ref);
+            for (int row = 0; row < tss.size(); row++) {
+                int tssPos = tss.getPosition(row);
+                if (mlDataUp != null) {
+                    mlDataUp[mlDataSize] = tss.getValue(row, upstreamColumn);
+                    mlDataDown[mlDataSize] = tss.getValue(row, downstreamColumn);
+                    mlDataSize++;
+                }
+                writerup.writeLine(ref.toPlusMinusString() + "\t" + tssPos + "\t" + tss.getValue(row, upstreamColumn) + "\t" + tss.getValue(row, downstreamColumn) + "\t" + tss.getValue(row, zScoreColumn) + "\t" + tss.getValue(row, readCountColumn));
             }
         }
         writerup.close();
-        int movingAverageUp = (int)(mlDataUp.size()*0.2);
-        int movingAverageDown = (int)(mlDataUp.size()*0.2);
-        double upThresh = TiSSUtils.calculateThreshold(mlDataUp, movingAverageUp);
-        double downThresh = TiSSUtils.calculateThreshold(mlDataDown, movingAverageDown);
-
-        for (ReferenceSequence ref : res.keySet()) {
-            Map<Integer, Map<String,Double>> filtered = new HashMap<>();
-            Map<Integer, Map<String, Double>> tss2val = res.get(ref);
-            if (cleanupThresh > 0) {
-                List<MutableTriple<Integer, Double, Double>> upstream = EI.wrap(res.get(ref).keySet()).map(t -> new MutableTriple<>(t, res.get(ref).get(t).get("zScore-US"), res.get(ref).get(t).get(TissFile.READ_COUNT_COLUMN_NAME))).list();
-                List<MutableTriple<Integer, Double, Double>> downstream = EI.wrap(res.get(ref).keySet()).map(t -> new MutableTriple<>(t, res.get(ref).get(t).get("zScore-DS"), res.get(ref).get(t).get(TissFile.READ_COUNT_COLUMN_NAME))).list();
-                upstream = TiSSUtils.cleanUpMultiValueDataTriple(upstream, cleanupThresh);
-                downstream = TiSSUtils.cleanUpMultiValueDataTriple(downstream, cleanupThresh);
-                Map<Integer,Map<String,Double>> tss2valFiltered = new HashMap<>();
-                EI.wrap(upstream).forEachRemaining(u -> {
-                    Map<String, Double> map = tss2valFiltered.computeIfAbsent(u.Item1, absent -> new HashMap<>());
-                    map.put("zScore-US", u.Item2);
-                    map.put(TissFile.Z_SCORE_COLUMN_NAME, u.Item2);
-                    map.put(TissFile.READ_COUNT_COLUMN_NAME, u.Item3);
-                });
-                EI.wrap(downstream).forEachRemaining(u -> {
-                    Map<String, Double> map = tss2valFiltered.computeIfAbsent(u.Item1, absent -> new HashMap<>());
-                    map.put("zScore-DS", u.Item2);
-                });
-                tss2val = tss2valFiltered;
-            }
-            for (int tss : tss2val.keySet()) {
-                if (tss2val.get(tss).containsKey("zScore-US") && tss2val.get(tss).containsKey("zScore-DS") && tss2val.get(tss).get("zScore-US") > upThresh && tss2val.get(tss).get("zScore-DS") > downThresh && tss2val.get(tss).get(TissFile.READ_COUNT_COLUMN_NAME) >= minReadNum) {
-                    filtered.put(tss, tss2val.get(tss));
-                }
-            }
-            res.put(ref, filtered);
+        double upThresh;
+        double downThresh;
+        if (mlDataUp == null) {
+            upThresh = approximateThreshold(upstreamSketch);
+            downThresh = approximateThreshold(downstreamSketch);
+        } else {
+            int movingAverage = (int)(mlDataUp.length*AUTOPARAM_AVG_FRACTION);
+            upThresh = TiSSUtils.calculateThreshold(mlDataUp, movingAverage);
+            downThresh = TiSSUtils.calculateThreshold(mlDataDown, movingAverage);
+        }
+
+        for (ReferenceSequence ref : res.getReferences()) {
+            TissResultTable.Rows tss = res.get(ref);
+            // a position is only kept if neither of its z-scores was removed by the clean-up
+            Map<Long, Integer> upstreamCounts = cleanupThresh > 0 ? TiSSUtils.countValues(tss, upstreamColumn) : null;
+            Map<Long, Integer> downstreamCounts = cleanupThresh > 0 ? TiSSUtils.countValues(tss, downstreamColumn) : null;
+            tss.filter(row -> (upstreamCounts == null || (upstreamCounts.get(Double.doubleToLongBits(tss.getValue(row, upstreamColumn))) < cleanupThresh &&
+                    downstreamCounts.get(Double.doubleToLongBits(tss.getValue(row, downstreamColumn))) < cleanupThresh)) &&
+                    tss.getValue(row, upstreamColumn) > upThresh && tss.getValue(row, downstreamColumn) > downThresh && tss.getValue(row, readCountColumn) >= minReadNum);
         }
 
         if (plot) {
@@ -4,10 +4,9 @@ import gedi.core.reference.ReferenceSequence;
 import gedi.data.Data;
 import gedi.util.datastructure.array.NumericArray;
 import gedi.util.datastructure.array.functions.NumericArrayFunction;
+import gedi.utils.datastructures.TissResultTable;
 
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
 
 public class CountModule extends ModuleBase {
     private int upstreamCount;
@@ -19,21 +18,20 @@ public class CountModule extends ModuleBase {
         this.upstreamCount = upstreamCount;
         this.downstreamCount = downstreamCount;
         this.countThreshold = countThreshold;
+        this.res = new TissResultTable("Number of peaks");
     }
 
     @Override
     public void findTiSS(NumericArray[] data, ReferenceSequence ref) {
         NumericArray dat = data[0];
-        Map<Integer, Map<String, Double>> foundPeaksNew = this.res.computeIfAbsent(ref, k -> new HashMap<>());
+        TissResultTable.Rows foundPeaksNew = this.res.getOrCreate(ref);
 
         int pos = ref.isPlus() ? upstreamCount : downstreamCount;
         double currentSum = dat.slice(0, upstreamCount+downstreamCount).sum();
         for (int i = 0; i < dat.length() - (upstreamCount+downstreamCount+1); i++) {
             currentSum += dat.getDouble(i + downstreamCount+upstreamCount);
             if (currentSum > countThreshold) {
-                Map<String, Double> info = new HashMap<>();
-                info.put("Number of peaks", currentSum);
-                foundPeaksNew.put(pos, info);
+                foundPeaksNew.append(pos, currentSum);
             }
             currentSum -= dat.getDouble(i);
             pos++;
@@ -11,9 +11,11 @@ import gedi.util.io.text.LineWriter;
 import gedi.util.mutable.MutablePair;
 import gedi.util.mutable.MutableTriple;
 import gedi.util.r.RRunner;
+import gedi.utils.QuantileSketch;
 import gedi.utils.TiSSUtils;
+import gedi.utils.WindowStats;
+import gedi.utils.datastructures.TissResultTable;
 import gedi.utils.machineLearning.PeakAndPos;
-import gedi.utils.sortedNodesList.StaticSizeSortedArrayList;
 
 import java.io.IOException;
 import java.util.*;
@@ -21,13 +23,17 @@ import java.util.stream.Collectors;
 
 import static gedi.utils.TiSSUtils.log2;
 
-public class DRnaModule extends ModuleBase {
+public class DRnaModule extends ModuleBase implements StreamableModule {
     private int windowSize;
     private double pseudoCount;
     private double peakCallThreshold;
     private boolean machineLearning;
     private int cleanupThresh;
     private int minReadNum;
+    /**
+     * The fold-changes of all candidates, only filled with {@link #setApproximateThreshold(boolean)}
+     */
+    private final QuantileSketch foldChangeSketch = new QuantileSketch();
 
     public DRnaModule(int windowSize, double pseudoCount, double peakCallThreshold, int cleanupThresh, int minReadNum, Data lane, boolean useMM, String name) {
         super(name, lane);
@@ -37,71 +43,103 @@ public class DRnaModule extends ModuleBase {
         this.machineLearning = useMM;
         this.cleanupThresh = cleanupThresh;
         this.minReadNum = minReadNum;
+        this.res = useMM ? new TissResultTable(TissFile.READ_COUNT_COLUMN_NAME, TissFile.FOLD_CHANGE_COLUMN_NAME) :
+                new TissResultTable("threshold peak height", "peak height");
     }
 
     @Override
     public void findTiSS(NumericArray[] data, ReferenceSequence ref) {
+        // the read counts are shared with other modules, so the pseudocount is added on the fly
         NumericArray xrn1 = data[0];
-        List<PeakAndPos> mmData = machineLearning ? new LinkedList<>() : null;
 
-        System.err.println("Adding pseudocounts");
-        addPseudoCount(xrn1, pseudoCount);
+        System.err.println("Starting TisS identification");
+        WindowStats stats = getWindowStats(xrn1, ref);
+        addResults(xrn1, 0, ref, scanTiled(windowSize, xrn1.length() - (windowSize+1), (from, to) -> scan(xrn1, stats, from, to, 0)));
+
+        System.err.println(res.getOrCreate(ref).size() + " peaks found for ref " + ref.toPlusMinusString());
+    }
+
+    @Override
+    public int getStreamingHalo() {
+        return windowSize+1;
+    }
 
-        System.err.println("Calculating sum");
-        List<PeakAndPos> ptp = new LinkedList<>();
-        double[] tmp = xrn1.toDoubleArray(0, windowSize*2+1);
-        for (int i = 0; i < tmp.length; i++) {
-            ptp.add(new PeakAndPos(i, tmp[i]));
+    @Override
+    public Runnable scanStreamed(NumericArray[] data, WindowStats[] stats, int offset, int from, int to, int refLength, ReferenceSequence ref) {
+        NumericArray xrn1 = data[0];
+        int start = Math.max(from, windowSize);
+        int end = Math.min(to, refLength - (windowSize+1));
+        List<MutableTriple<Integer, Double, Double>> tiss = start < end ? scan(xrn1, stats[0], start-offset, end-offset, offset) : new ArrayList<>();
+        return () -> addResults(xrn1, offset, ref, Collections.singletonList(tiss));
+    }
+
+    private void addResults(NumericArray xrn1, int offset, ReferenceSequence ref, List<List<MutableTriple<Integer, Double, Double>>> tiles) {
+        TissResultTable.Rows foundPeaksNew = this.res.getOrCreate(ref);
+
+        for (List<MutableTriple<Integer, Double, Double>> tiss : tiles) {
+            for (MutableTriple<Integer, Double, Double> i : tiss) {
+                if (machineLearning) {
+                    foundPeaksNew.append(i.Item1, xrn1.getDouble(i.Item1 - offset) + pseudoCount, i.Item2);
+                } else {
+                    foundPeaksNew.append(i.Item1, i.Item3, xrn1.getDouble(i.Item1 - offset) + pseudoCount);
+                }
+            }
         }
-        StaticSizeSortedArrayList<PeakAndPos> window = new StaticSizeSortedArrayList<>(ptp, PeakAndPos::compareTo);
-        double windowSum = 0;
-        for (int i = 0; i < window.getSize(); i++) {
-            windowSum += window.getValueAtIndex(i).getValue();
+        if (machineLearning && isApproximateThreshold()) {
+            synchronized (foldChangeSketch) {
+                for (List<MutableTriple<Integer, Double, Double>> tiss : tiles) {
+                    for (MutableTriple<Integer, Double, Double> i : tiss) {
+                        foldChangeSketch.update(i.Item2);
+                    }
+                }
+            }
         }
+    }
 
-        System.err.println("Starting TisS identification");
-        List<MutablePair<Integer, Map<String, Double>>> tiss = new ArrayList<>();
-        for (int i = windowSize; i < xrn1.length() - (windowSize+1); i++) {
-            if (mmData != null && i%10000000 == 0) {
-                System.err.print("Progress " + i + "/" + xrn1.length() + ", mmData size: " + mmData.size() + "\r");
+    /**
+     * Scans the indices [from, to) of {@code xrn1}
+     * @param offset the position of the first index of {@code xrn1} in the reference
+     * @return the peaks found together with their log2 fold-change and threshold peak height
+     */
+    private List<MutableTriple<Integer, Double, Double>> scan(NumericArray xrn1, WindowStats stats, int from, int to, int offset) {
+        // every value of the window gets the pseudocount
+        double pseudoCountSum = 2*windowSize*pseudoCount;
+        List<MutableTriple<Integer, Double, Double>> tiss = new ArrayList<>();
+        for (int i = nextCandidate(stats, from, to); i < to; i = nextCandidate(stats, i+1, to)) {
+            if (machineLearning && (i+offset)%10000000 == 0) {
+                System.err.print("Progress " + (i+offset) + ", mmData size: " + tiss.size() + "\r");
             }
-            double thresholdPeak = (windowSum-xrn1.getDouble(i)) / (window.getSize()-1);
-            if (mmData != null) {
-                if (xrn1.getDouble(i) > pseudoCount && xrn1.getDouble(i) > thresholdPeak) {
-                    mmData.add(new PeakAndPos(i, log2(xrn1.getDouble(i) / thresholdPeak)));
+            double value = xrn1.getDouble(i) + pseudoCount;
+            double thresholdPeak = (stats.sum(i-windowSize, i) + stats.sum(i+1, i+windowSize+1) + pseudoCountSum) / (2*windowSize);
+            if (machineLearning) {
+                if (value > pseudoCount && value > thresholdPeak) {
+                    tiss.add(new MutableTriple<>(i+offset, log2(value / thresholdPeak), thresholdPeak));
                 }
             } else {
-                if (thresholdPeak >= pseudoCount && xrn1.getDouble(i) > peakCallThreshold * thresholdPeak && xrn1.getDouble(i) >= minReadNum) {
-                    Map<String, Double> infos = new HashMap<>();
-                    infos.put("peak height", xrn1.getDouble(i));
-                    infos.put("threshold peak height", thresholdPeak);
-                    tiss.add(new MutablePair<>(i, infos));
+                if (thresholdPeak >= pseudoCount && value > peakCallThreshold * thresholdPeak && value >= minReadNum) {
+                    tiss.add(new MutableTriple<>(i+offset, log2(value / thresholdPeak), thresholdPeak));
                 }
             }
-
-            window.insertSortedAndDelete(new PeakAndPos(i+windowSize+1, xrn1.getDouble(i+windowSize+1)), new PeakAndPos(i-windowSize, xrn1.getDouble(i-windowSize)));
-            windowSum += xrn1.getDouble(i+windowSize+1);
-            windowSum -= xrn1.getDouble(i-windowSize);
         }
+        return tiss;
+    }
 
-        Map<Integer, Map<String, Double>> foundPeaksNew = this.res.computeIfAbsent(ref, k -> new HashMap<>());
-        List<Double> mmDatOut = this.allMmData.computeIfAbsent(ref, k-> new ArrayList<>());
-
-        if (mmData != null) {
-            mmDatOut.addAll(mmData.stream().map(PeakAndPos::getValue).collect(Collectors.toList()));
-            mmData.forEach(m -> {
-                Map<String, Double> info = new HashMap<>();
-                info.put(TissFile.FOLD_CHANGE_COLUMN_NAME, m.getValue());
-                info.put(TissFile.READ_COUNT_COLUMN_NAME, xrn1.getDouble(m.getPos()));
-                foundPeaksNew.put(m.getPos(), info);
-            });
-        } else {
-            for (MutablePair<Integer, Map<String, Double>> i : tiss) {
-                foundPeaksNew.put(i.Item1, i.Item2);
-            }
+    /**
+     * @return the first position of [from, to) that can be a peak at all
+     */
+    private int nextCandidate(WindowStats stats, int from, int to) {
+        // Without ML, only positions with at least minReadNum reads (pseudocount included) can be peaks. The bound is
+        // lowered a bit so rounding can not skip any of them, the actual check in scan is unchanged.
+        double minCandidate = minReadNum - pseudoCount - 4*Math.ulp(Math.max(minReadNum, pseudoCount));
+        if (!machineLearning && minCandidate > 0) {
+            return stats.nextAtLeast(from, to, minCandidate);
         }
-
-        System.err.println(foundPeaksNew.keySet().size() + " peaks found for ref " + ref.toPlusMinusString());
+        // Positions without reads are never above the pseudocount with ML, and never above peakCallThreshold times
+        // their window mean (which includes the pseudocount) otherwise. Sparse libraries are thus scanned read by read.
+        if (machineLearning || peakCallThreshold >= 1) {
+            return stats.nextNonZero(from, to);
+        }
+        return from;
     }
 
     private List<PeakAndPos> filterMultiPeaks(List<PeakAndPos> lst) {
@@ -124,42 +162,28 @@ public class DRnaModule extends ModuleBase {
         LineWriter writerup = new LineOrientedFile(prefix + "sparsePeakThresholdData.tsv").write();
         writerup.writeLine("Ref\tPos\t" + TissFile.FOLD_CHANGE_COLUMN_NAME + "\t" + TissFile.READ_COUNT_COLUMN_NAME);
 
-        List<PeakAndPos> mlData = new ArrayList<>();
-        for (ReferenceSequence ref : res.keySet()) {
-            Map<Integer, Map<String, Double>> tss = res.get(ref);
-            for (int tssPos : tss.keySet()) {
-                Map<String, Double> info = tss.get(tssPos);
-                mlData.add(new PeakAndPos(tssPos, info.get(TissFile.FOLD_CHANGE_COLUMN_NAME)));
-                writerup.writeLine(ref.toPlusMinusString() + "\t" + tssPos + "\t" + info.get(TissFile.FOLD_CHANGE_COLUMN_NAME) + "\t" + info.get(TissFile.READ_COUNT_COLUMN_NAME));
+        int readCountColumn = res.getColumnIndex(TissFile.READ_COUNT_COLUMN_NAME);
+        int foldChangeColumn = res.getColumnIndex(TissFile.FOLD_CHANGE_COLUMN_NAME);
+        double[] mlData = isApproximateThreshold() ? null : new double[(int) res.size()];
+        int mlDataSize = 0;
+        for (ReferenceSequence ref : res.getReferences()) {
+            TissResultTable.Rows tss = res.get(ref);
+            for (int row = 0; row < tss.size(); row++) {
+                if (mlData != null) {
+                    mlData[mlDataSize++] = tss.getValue(row, foldChangeColumn);
+                }
+                writerup.writeLine(ref.toPlusMinusString() + "\t" + tss.getPosition(row) + "\t" + tss.getValue(row, foldChangeColumn) + "\t" + tss.getValue(row, readCountColumn));
             }
         }
         writerup.close();
-        int movingAverage = (int)(mlData.size()*0.2);
-        double upThresh = TiSSUtils.calculateThreshold(mlData, movingAverage);
-
-        for (ReferenceSequence ref : res.keySet()) {
-            Map<Integer, Map<String,Double>> filtered = new HashMap<>();
-
-            Map<Integer, Map<String, Double>> tss2val = res.get(ref);
-            if (cleanupThresh > 0) {
-                // Triple<Pos, Fold-change, Read-count>
-                List<MutableTriple<Integer, Double, Double>> vals = EI.wrap(res.get(ref).keySet()).map(t -> new MutableTriple<>(t, res.get(ref).get(t).get(TissFile.FOLD_CHANGE_COLUMN_NAME), res.get(ref).get(t).get(TissFile.READ_COUNT_COLUMN_NAME))).list();
-                vals = TiSSUtils.cleanUpMultiValueDataTriple(vals, cleanupThresh);
-                Map<Integer,Map<String,Double>> tss2valFiltered = new HashMap<>();
-                EI.wrap(vals).forEachRemaining(u -> {
-                    Map<String, Double> tmpmap = tss2valFiltered.computeIfAbsent(u.Item1, absent->new HashMap<>());
-                    tmpmap.put(TissFile.FOLD_CHANGE_COLUMN_NAME, u.Item2);
-                    tmpmap.put(TissFile.READ_COUNT_COLUMN_NAME, u.Item3);
-                });
-                tss2val = tss2valFiltered;
-            }
-
-            for (int tss : tss2val.keySet()) {
-                if (tss2val.get(tss).get(TissFile.FOLD_CHANGE_COLUMN_NAME) > upThresh && tss2val.get(tss).get(TissFile.READ_COUNT_COLUMN_NAME) >= minReadNum) {
-                    filtered.put(tss, tss2val.get(tss));
-                }
-            }
-            res.put(ref, filtered);
+        double upThresh = mlData == null ? approximateThreshold(foldChangeSketch) :
+                TiSSUtils.calculateThreshold(mlData, (int)(mlData.length*AUTOPARAM_AVG_FRACTION));
+
+        for (ReferenceSequence ref : res.getReferences()) {
+            TissResultTable.Rows tss = res.get(ref);
+            Map<Long, Integer> foldChangeCounts = cleanupThresh > 0 ? TiSSUtils.countValues(tss, foldChangeColumn) : null;
+            tss.filter(row -> (foldChangeCounts == null || foldChangeCounts.get(Double.doubleToLongBits(tss.getValue(row, foldChangeColumn))) < cleanupThresh) &&
+                    tss.getValue(row, foldChangeColumn) > upThresh && tss.getValue(row, readCountColumn) >= minReadNum);
         }
 
         if (plot) {
@@ -179,10 +203,4 @@ public class DRnaModule extends ModuleBase {
         r.addSource(getClass().getResourceAsStream("/resources/plotSparseThresh.R"));
         r.run(false);
     }
-
-    private void addPseudoCount(NumericArray ary, double pseudoCount) {
-        for (int i = 0; i < ary.length(); i++) {
-            ary.setDouble(i, ary.getDouble(i)+pseudoCount);
-        }
-    }
 }
@@ -2,18 +2,20 @@ package gedi.modules;
 
 import gedi.core.reference.ReferenceSequence;
 import gedi.data.Data;
-import gedi.util.ArrayUtils;
 import gedi.util.datastructure.array.NumericArray;
-import gedi.util.functions.EI;
-import gedi.utils.sortedNodesList.StaticSizeSortedArrayList;
+import gedi.util.mutable.MutablePair;
+import gedi.utils.WindowStats;
+import gedi.utils.datastructures.TissResultTable;
+import gedi.utils.sortedNodesList.StaticSizeSortedDoubleTree;
 import org.apache.commons.math3.distribution.NormalDistribution;
 import org.apache.commons.math3.stat.inference.KolmogorovSmirnovTest;
 
-import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.ArrayList;
+import java.util.List;
 
 public class EqualTranscriptionModule extends ModuleBase {
+    private static final String[] RESULT_COLUMNS = {"upP", "downP"};
+
     private int window = 500;
     private int tissMaskWindow = 40;
     private double threshold = 0.001;
@@ -47,30 +49,47 @@ public class EqualTranscriptionModule extends ModuleBase {
         this.prefix = prefix;
         this.minDownstreamReadMean = minDownstreamReadMean;
         this.upstreamDownstreamEqualityThresh = upstreamDownstreamEqualityThresh;
+        this.res = new TissResultTable(RESULT_COLUMNS);
     }
 
     public EqualTranscriptionModule(String moduleName, Data lane) {
         super(moduleName, lane);
+        this.res = new TissResultTable(RESULT_COLUMNS);
     }
 
     @Override
     public void findTiSS(NumericArray[] data, ReferenceSequence ref) {
         NumericArray reads = data[0];
+        TissResultTable.Rows foundPeaks = this.res.getOrCreate(ref);
+
+        WindowStats stats = getWindowStats(reads, ref);
+        List<List<MutablePair<Integer, double[]>>> tiles = scanTiled(0, reads.length() - (window*2+tissMaskWindow)-1, (from, to) -> scan(reads, stats, ref, from, to));
+        for (List<MutablePair<Integer, double[]>> tile : tiles) {
+            for (MutablePair<Integer, double[]> peak : tile) {
+                foundPeaks.append(peak.Item1, peak.Item2);
+            }
+        }
+    }
 
+    /**
+     * Scans the window starts [from, to) with the windows initialized at {@code from}
+     * @return the positions found together with their p-values in the order of the result columns
+     */
+    private List<MutablePair<Integer, double[]>> scan(NumericArray reads, WindowStats stats, ReferenceSequence ref, int from, int to) {
         double[] upstreamWindow = new double[window];
         double[] downstreamWindow = new double[window];
         // TODO use maskWindow size
         double[] tissMaskMiddleWindow = new double[window];
 
         for (int i = 0; i < window; i++) {
-            upstreamWindow[i] = reads.getDouble(i);
+            upstreamWindow[i] = reads.getDouble(from+i);
         }
         // TODO is this correct?
         for (int i = window; i < window+tissMaskWindow; i++) {
-            tissMaskMiddleWindow[i-window] = reads.getDouble(i);
+            tissMaskMiddleWindow[i-window] = reads.getDouble(from+i);
         }
         for (int i = window + tissMaskWindow; i < window*2+tissMaskWindow; i++) {
-            downstreamWindow[i-(window+tissMaskWindow)] = reads.getDouble(i);
+            downstreamWindow[i-(window+tissMaskWindow)] = reads.getDouble(from+i);
         }
         if (ref.isMinus()) {
             double[] tmp = upstreamWindow;
@@ -78,152 +97,74 @@ public class EqualTranscriptionModule extends ModuleBase {
             downstreamWindow = tmp;
         }
 
-        double upstreamMean = calculateMean(upstreamWindow);
-        double downstreamMean = calculateMean(downstreamWindow);
-        StaticSizeSortedArrayList<Double> upstreamWindowList = new StaticSizeSortedArrayList<>(EI.wrap(upstreamWindow).list(), Comparator.comparingDouble(d -> -d));
-        StaticSizeSortedArrayList<Double> downstreamWindowList = new StaticSizeSortedArrayList<>(EI.wrap(downstreamWindow).list(), Comparator.comparingDouble(d -> -d));
-        StaticSizeSortedArrayList<Double> tissMaskWindowList = new StaticSizeSortedArrayList<>(EI.wrap(tissMaskMiddleWindow).list(), Comparator.comparingDouble(d -> -d));
+        StaticSizeSortedDoubleTree upstreamWindowList = new StaticSizeSortedDoubleTree(upstreamWindow);
+        StaticSizeSortedDoubleTree downstreamWindowList = new StaticSizeSortedDoubleTree(downstreamWindow);
+        StaticSizeSortedDoubleTree tissMaskWindowList = new StaticSizeSortedDoubleTree(tissMaskMiddleWindow);
 
-        Map<Integer, Map<String, Double>> foundPeaks = this.res.computeIfAbsent(ref, k -> new HashMap<>());
+        List<MutablePair<Integer, double[]>> foundPeaks = new ArrayList<>();
 
-        for (int i = 0; i < reads.length() - (window*2+tissMaskWindow)-1; i++) {
+        for (int i = from; i < to; i++) {
             if (i%10000000 == 0) {
-                System.err.print("Progress " + i + "/" + reads.length() + ", found peaks: " + foundPeaks.keySet().size() + "\r");
+                System.err.print("Progress " + i + "/" + reads.length() + ", found peaks: " + foundPeaks.size() + "\r");
             }
+            int upstreamStart = ref.isPlus() ? i : i+window+tissMaskWindow;
+            int downstreamStart = ref.isPlus() ? i+window+tissMaskWindow : i;
+            double upstreamMean = stats.mean(upstreamStart, upstreamStart+window);
+            double downstreamMean = stats.mean(downstreamStart, downstreamStart+window);
 
             // This TiSS needs to be the highest peak, otherwise this probably isn't the right TiSS
-            if (downstreamWindowList.getValueAtIndex(0) > tissMaskWindowList.getValueAtIndex(0) || upstreamWindowList.getValueAtIndex(0) > tissMaskWindowList.getValueAtIndex(0)) {
-                if (ref.isPlus()) {
-                    updateLists(reads, upstreamWindowList, downstreamWindowList, tissMaskWindowList, i);
-                    double rem = reads.getDouble(i+window+tissMaskWindow);
-                    double add = reads.getDouble(i+window*2+tissMaskWindow);
-                    downstreamMean -= rem/window;
-                    downstreamMean += add/window;
-                    rem = reads.getDouble(i);
-                    add = reads.getDouble(i+window);
-                    upstreamMean -= rem/window;
-                    upstreamMean += add/window;
-                } else {
-                    updateLists(reads, downstreamWindowList, upstreamWindowList, tissMaskWindowList, i);
-                    double rem = reads.getDouble(i);
-                    double add = reads.getDouble(i+window);
-                    downstreamMean -= rem/window;
-                    downstreamMean += add/window;
-                    rem = reads.getDouble(i+window+tissMaskWindow);
-                    add = reads.getDouble(i+window*2+tissMaskWindow);
-                    upstreamMean -= rem/window;
-                    upstreamMean += add/window;
-                }
+            if (max(downstreamWindowList) > max(tissMaskWindowList) || max(upstreamWindowList) > max(tissMaskWindowList)) {
+                updateLists(reads, ref, upstreamWindowList, downstreamWindowList, tissMaskWindowList, i);
                 continue;
             }
 
             if (downstreamMean < minDownstreamReadMean || downstreamMean <= upstreamMean) {
-                if (ref.isPlus()) {
-                    updateLists(reads, upstreamWindowList, downstreamWindowList, tissMaskWindowList, i);
-                    double rem = reads.getDouble(i+window+tissMaskWindow);
-                    double add = reads.getDouble(i+window*2+tissMaskWindow);
-                    downstreamMean -= rem/window;
-                    downstreamMean += add/window;
-                    rem = reads.getDouble(i);
-                    add = reads.getDouble(i+window);
-                    upstreamMean -= rem/window;
-                    upstreamMean += add/window;
-                } else {
-                    updateLists(reads, downstreamWindowList, upstreamWindowList, tissMaskWindowList, i);
-                    double rem = reads.getDouble(i);
-                    double add = reads.getDouble(i+window);
-                    downstreamMean -= rem/window;
-                    downstreamMean += add/window;
-                    rem = reads.getDouble(i+window+tissMaskWindow);
-                    add = reads.getDouble(i+window*2+tissMaskWindow);
-                    upstreamMean -= rem/window;
-                    upstreamMean += add/window;
-                }
+                updateLists(reads, ref, upstreamWindowList, downstreamWindowList, tissMaskWindowList, i);
                 continue;
             }
 
             KolmogorovSmirnovTest test = new KolmogorovSmirnovTest();
-            double[] downstreamAry = EI.wrap(downstreamWindowList.toList()).toDoubleArray();
-            double[] upstreamAry = EI.wrap(upstreamWindowList.toList()).toDoubleArray();
+            double[] downstreamAry = downstreamWindowList.toArray();
+            double[] upstreamAry = upstreamWindowList.toArray();
             double bothEqualPVal = test.kolmogorovSmirnovTest(upstreamAry, downstreamAry);
 
             if (bothEqualPVal > upstreamDownstreamEqualityThresh) {
-                if (ref.isPlus()) {
-                    updateLists(reads, upstreamWindowList, downstreamWindowList, tissMaskWindowList, i);
-                    double rem = reads.getDouble(i+window+tissMaskWindow);
-                    double add = reads.getDouble(i+window*2+tissMaskWindow);
-                    downstreamMean -= rem/window;
-                    downstreamMean += add/window;
-                    rem = reads.getDouble(i);
-                    add = reads.getDouble(i+window);
-                    upstreamMean -= rem/window;
-                    upstreamMean += add/window;
-                } else {
-                    updateLists(reads, downstreamWindowList, upstreamWindowList, tissMaskWindowList, i);
-                    double rem = reads.getDouble(i);
-                    double add = reads.getDouble(i+window);
-                    downstreamMean -= rem/window;
-                    downstreamMean += add/window;
-                    rem = reads.getDouble(i+window+tissMaskWindow);
-                    add = reads.getDouble(i+window*2+tissMaskWindow);
-                    upstreamMean -= rem/window;
-                    upstreamMean += add/window;
-                }
+                updateLists(reads, ref, upstreamWindowList, downstreamWindowList, tissMaskWindowList, i);
                 continue;
             }
 
-            double downstreamSd = sampleSd(downstreamAry, downstreamMean);
-            double upstreamSd = sampleSd(upstreamAry, upstreamMean);
-            double downstreamPVal = test.kolmogorovSmirnovTest(new NormalDistribution(downstreamMean, downstreamSd), EI.wrap(downstreamWindowList.toList()).toDoubleArray());
-            double upstreamPVal = test.kolmogorovSmirnovTest(new NormalDistribution(upstreamMean, upstreamSd), EI.wrap(upstreamWindowList.toList()).toDoubleArray());
+            double downstreamSd = Math.sqrt(stats.sampleVariance(downstreamStart, downstreamStart+window));
+            double upstreamSd = Math.sqrt(stats.sampleVariance(upstreamStart, upstreamStart+window));
+            double downstreamPVal = test.kolmogorovSmirnovTest(new NormalDistribution(downstreamMean, downstreamSd), downstreamAry);
+            double upstreamPVal = test.kolmogorovSmirnovTest(new NormalDistribution(upstreamMean, upstreamSd), upstreamAry);
 
             if (upstreamPVal < downstreamPVal) {
-                Map<String, Double> info = new HashMap<>();
-                info.put("downP", downstreamPVal);
-                info.put("upP", upstreamPVal);
-                foundPeaks.put(i + window + tissMaskWindow / 2, info);
+                foundPeaks.add(new MutablePair<>(i + window + tissMaskWindow / 2, new double[] {upstreamPVal, downstreamPVal}));
             }
 
-            if (ref.isPlus()) {
-                updateLists(reads, upstreamWindowList, downstreamWindowList, tissMaskWindowList, i);
-                double rem = reads.getDouble(i+window+tissMaskWindow);
-                double add = reads.getDouble(i+window*2+tissMaskWindow);
-                downstreamMean -= rem/window;
-                downstreamMean += add/window;
-                rem = reads.getDouble(i);
-                add = reads.getDouble(i+window);
-                upstreamMean -= rem/window;
-                upstreamMean += add/window;
-            } else {
-                updateLists(reads, downstreamWindowList, upstreamWindowList, tissMaskWindowList, i);
-                double rem = reads.getDouble(i);
-                double add = reads.getDouble(i+window);
-                downstreamMean -= rem/window;
-                downstreamMean += add/window;
-                rem = reads.getDouble(i+window+tissMaskWindow);
-                add = reads.getDouble(i+window*2+tissMaskWindow);
-                upstreamMean -= rem/window;
-                upstreamMean += add/window;
-            }
+            updateLists(reads, ref, upstreamWindowList, downstreamWindowList, tissMaskWindowList, i);
         }
+        return foundPeaks;
     }
 
-    private void updateLists(NumericArray reads, StaticSizeSortedArrayList<Double> upstreamWindowList, StaticSizeSortedArrayList<Double> downstreamWindowList, StaticSizeSortedArrayList<Double> tissMaskWindowList, int i) {
+    /**
+     * Moves the windows from the start {@code i} to {@code i+1}
+     */
+    private void updateLists(NumericArray reads, ReferenceSequence ref, StaticSizeSortedDoubleTree upstreamWindowList, StaticSizeSortedDoubleTree downstreamWindowList, StaticSizeSortedDoubleTree tissMaskWindowList, int i) {
+        if (ref.isPlus()) {
+            updateLists(reads, upstreamWindowList, downstreamWindowList, tissMaskWindowList, i);
+        } else {
+            updateLists(reads, downstreamWindowList, upstreamWindowList, tissMaskWindowList, i);
+        }
+    }
+
+    private void updateLists(NumericArray reads, StaticSizeSortedDoubleTree upstreamWindowList, StaticSizeSortedDoubleTree downstreamWindowList, StaticSizeSortedDoubleTree tissMaskWindowList, int i) {
         upstreamWindowList.insertSortedAndDelete(reads.getDouble(i+window), reads.getDouble(i));
         downstreamWindowList.insertSortedAndDelete(reads.getDouble(i+window*2+tissMaskWindow), reads.getDouble(i+window+tissMaskWindow));
         tissMaskWindowList.insertSortedAndDelete(reads.getDouble(i+window+tissMaskWindow), reads.getDouble(i+window));
     }
 
-    private double sampleSd(double[] sample, double mean) {
-        double sqrtSum = 0;
-        for (int i = 0; i < sample.length; i++) {
-            sqrtSum += Math.pow(sample[i] - mean, 2);
-        }
-        return Math.sqrt(sqrtSum/(sample.length-1));
-    }
-
-    private double calculateMean(double[] ary) {
-        double sum = ArrayUtils.sum(ary);
-        return sum/ary.length;
+    private double max(StaticSizeSortedDoubleTree window) {
+        return window.getValueAtIndex(window.getSize()-1);
     }
 }
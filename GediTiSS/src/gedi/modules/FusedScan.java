@@ -0,0 +1,78 @@
+package gedi.modules;
+
+import gedi.core.reference.ReferenceSequence;
+import gedi.util.datastructure.array.NumericArray;
+import gedi.utils.WindowStats;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs several modules on the same reference in a single pass over its read counts.
+ *
+ * The reference is cut into chunks of {@link #CHUNK_SIZE} positions. Every {@link StreamableModule} scans a chunk
+ * right after the others, while the chunk is still in the cache, instead of each module walking the whole reference
+ * on its own. The modules get the read counts of the whole reference together with their {@link WindowStats}, which
+ * are built once for all modules on the same read counts. The chunks are grouped into tiles (see
+ * {@link ModuleBase#scanTiled}) so large references are still scanned in parallel, and the results are added to the
+ * modules in ascending order afterwards. Modules that cannot be streamed get the whole reference as usual.
+ */
+public class FusedScan {
+    /**
+     * Number of positions all modules scan before moving on, small enough to keep a few lanes in the L2 cache
+     */
+    public static final int CHUNK_SIZE = 1 << 14;
+
+    private FusedScan() {
+    }
+
+    /**
+     * @param modules the modules, all of them working on the same reference
+     * @param data the read counts of each module, as the module would get them in {@link ModuleBase#findTiSS}
+     */
+    public static void findTiSS(List<ModuleBase> modules, List<NumericArray[]> data, ReferenceSequence ref, int refLength) {
+        List<StreamableModule> streamable = new ArrayList<>();
+        List<NumericArray[]> streamableData = new ArrayList<>();
+        for (int i = 0; i < modules.size(); i++) {
+            if (modules.get(i) instanceof StreamableModule) {
+                streamable.add((StreamableModule) modules.get(i));
+                streamableData.add(data.get(i));
+            } else {
+                modules.get(i).findTiSS(data.get(i), ref);
+            }
+        }
+        if (streamable.isEmpty()) {
+            return;
+        }
+
+        // modules on the same read counts share their WindowStats, which come from the data wrapper like in findTiSS
+        Map<NumericArray, WindowStats> shared = new IdentityHashMap<>();
+        List<WindowStats[]> streamableStats = new ArrayList<>();
+        for (int i = 0; i < streamable.size(); i++) {
+            ModuleBase module = (ModuleBase) streamable.get(i);
+            NumericArray[] moduleData = streamableData.get(i);
+            WindowStats[] stats = new WindowStats[moduleData.length];
+            for (int j = 0; j < moduleData.length; j++) {
+                stats[j] = shared.computeIfAbsent(moduleData[j], d -> module.getWindowStats(d, ref));
+            }
+            streamableStats.add(stats);
+        }
+        List<List<Runnable>> tiles = ((ModuleBase) streamable.get(0)).scanTiled(0, refLength, (from, to) -> {
+            List<Runnable> added = new ArrayList<>();
+            for (int chunkFrom = from, chunkTo; chunkFrom < to; chunkFrom = chunkTo) {
+                chunkTo = to - chunkFrom <= CHUNK_SIZE ? to : chunkFrom + CHUNK_SIZE;
+                for (int i = 0; i < streamable.size(); i++) {
+                    added.add(streamable.get(i).scanStreamed(streamableData.get(i), streamableStats.get(i), 0, chunkFrom, chunkTo, refLength, ref));
+                }
+            }
+            return added;
+        });
+        for (List<Runnable> tile : tiles) {
+            for (Runnable add : tile) {
+                add.run();
+            }
+        }
+    }
+}
@@ -5,12 +5,13 @@ import gedi.core.reference.ReferenceSequence;
 import gedi.data.Data;
 import gedi.util.ArrayUtils;
 import gedi.util.datastructure.array.NumericArray;
-import gedi.util.functions.EI;
 import gedi.util.io.text.LineOrientedFile;
 import gedi.util.io.text.LineWriter;
 import gedi.utils.TiSSUtils;
+import gedi.utils.WindowStats;
+import gedi.utils.datastructures.TissResultTable;
 import gedi.utils.machineLearning.PeakAndPos;
-import gedi.utils.sortedNodesList.StaticSizeSortedArrayList;
+import gedi.utils.sortedNodesList.StaticSizeSortedDoubleTree;
 
 import java.io.IOException;
 import java.util.*;
@@ -23,10 +24,16 @@ public class InterquartileRangeModule extends ModuleBase{
     private double iqrThreshold;
     private int windowSize;
     private double minReadDensity;
-    private final double ZERO_THRESHOLD = 0.5;
     private boolean machineLearning;
     private boolean dumpMmVal;
 
+    /**
+     * In the column order of the output files written before the result table was introduced
+     */
+    private static final String[] IQR_COLUMNS = {"IQR threshold left", "read coverage right", "IQR threshold right",
+            "read coverage center", "IQR left", "IQR value left", "IQR value right", "IQR right", "IQR threshold center",
+            "read coverage left", "IQR value center", "IQR center", "peak height"};
+
     private int firstQuartileEnd;
     private int thirdQuartileStart;
 
@@ -40,6 +47,7 @@ public class InterquartileRangeModule extends ModuleBase{
         this.dumpMmVal = dumpMmVal;
         firstQuartileEnd = windowSize/4;
         thirdQuartileStart = (int)((((double)windowSize)/4.)*3.);
+        this.res = useMM ? new TissResultTable("Fold-change") : new TissResultTable(IQR_COLUMNS);
     }
 
     @Override
@@ -49,21 +57,24 @@ public class InterquartileRangeModule extends ModuleBase{
         List<PeakAndPos> mmDataL = machineLearning ? new ArrayList<>() : null;
         List<PeakAndPos> mmDataC = machineLearning ? new ArrayList<>() : null;
         List<PeakAndPos> mmDataR = machineLearning ? new ArrayList<>() : null;
-        StaticSizeSortedArrayList<Double> windowLeft = new StaticSizeSortedArrayList<>(EI.wrap(data.toDoubleArray(0, windowSize)).toList(), Double::compareTo);
+        StaticSizeSortedDoubleTree windowLeft = new StaticSizeSortedDoubleTree(data.toDoubleArray(0, windowSize));
         int leftCenter = (windowSize % 2 == 0) ? windowSize/2 : windowSize/2+1;
         int rightCenter = (windowSize*2-leftCenter)+1;
-        List<Double> lst = EI.wrap(data.toDoubleArray(leftCenter, windowSize)).chain(EI.wrap(data.toDoubleArray(windowSize+1, rightCenter))).toList();
-        StaticSizeSortedArrayList<Double> windowCenter = new StaticSizeSortedArrayList<>(lst, Double::compareTo);
-        StaticSizeSortedArrayList<Double> windowRight = new StaticSizeSortedArrayList<>(EI.wrap(data.toDoubleArray(windowSize+1, windowSize*2+1)).toList(), Double::compareTo);
-        int leftWindowZeroCount = zeroCount(data.toDoubleArray(0, windowSize), ZERO_THRESHOLD);
-        int rightWindowZeroCount = zeroCount(data.toDoubleArray(windowSize+1, windowSize*2+1), ZERO_THRESHOLD);
-        int centerWindowZeroCount = zeroCount(ArrayUtils.concat(data.toDoubleArray(leftCenter, windowSize), data.toDoubleArray(windowSize+1, rightCenter)), ZERO_THRESHOLD);
-
-        Map<Integer, Map<String, Double>> foundPeaksNew = this.res.computeIfAbsent(ref, k -> new HashMap<>());
+        StaticSizeSortedDoubleTree windowCenter = new StaticSizeSortedDoubleTree(ArrayUtils.concat(data.toDoubleArray(leftCenter, windowSize), data.toDoubleArray(windowSize+1, rightCenter)));
+        StaticSizeSortedDoubleTree windowRight = new StaticSizeSortedDoubleTree(data.toDoubleArray(windowSize+1, windowSize*2+1));
+        WindowStats stats = getWindowStats(data, ref);
+        // The center window starts without the position windowSize, and as it slides, the same values are added and
+        // removed as from windowCenter. So the zeros of [leftCenter+k, rightCenter+k) are counted without that one.
+        int centerExcludedZero = data.getDouble(windowSize) <= WindowStats.ZERO_THRESHOLD ? 1 : 0;
+
+        TissResultTable.Rows foundPeaksNew = this.res.getOrCreate(ref);
         List<Double> mmDatOut = this.allMmData.computeIfAbsent(ref, k-> new ArrayList<>());
 
         for (int i = windowSize; i < data.length() - (windowSize+1); i++) {
             double valueOfInterest = data.getDouble(i);
+            int leftWindowZeroCount = stats.zeroCount(i-windowSize, i);
+            int rightWindowZeroCount = stats.zeroCount(i+1, i+windowSize+1);
+            int centerWindowZeroCount = stats.zeroCount(leftCenter+(i-windowSize), rightCenter+(i-windowSize)) - centerExcludedZero;
             boolean ignoreLeft = notEnoughReads(leftWindowZeroCount);
             boolean ignoreCenter = notEnoughReads(centerWindowZeroCount);
             boolean ignoreRight = notEnoughReads(rightWindowZeroCount);
@@ -84,42 +95,22 @@ public class InterquartileRangeModule extends ModuleBase{
                         (valueGreaterIQRthreshold(valueOfInterest, windowCenter, iqrThreshold) || ignoreCenter) &&
                         (valueGreaterIQRthreshold(valueOfInterest, windowRight, iqrThreshold) || ignoreRight) &&
                         !(ignoreLeft && ignoreCenter && ignoreRight)) {
-                    Map<String, Double> infos = new HashMap<>();
-                    infos.put("peak height", valueOfInterest);
-                    infos.put("read coverage right", (1 - (rightWindowZeroCount / (double) windowSize)));
-                    infos.put("read coverage center", (1 - (centerWindowZeroCount / (double) windowSize)));
-                    infos.put("read coverage left", (1 - (leftWindowZeroCount / (double) windowSize)));
-                    infos.put("IQR right", (windowIqr(windowRight)));
-                    infos.put("IQR threshold right", (windowIqr(windowRight) * iqrThreshold));
-                    infos.put("IQR value right", (valueIqr(valueOfInterest, windowRight)));
-                    infos.put("IQR center", (windowIqr(windowCenter)));
-                    infos.put("IQR threshold center", (windowIqr(windowCenter) * iqrThreshold));
-                    infos.put("IQR value center", (valueIqr(valueOfInterest, windowCenter)));
-                    infos.put("IQR left", (windowIqr(windowLeft)));
-                    infos.put("IQR threshold left", (windowIqr(windowLeft) * iqrThreshold));
-                    infos.put("IQR value left", (valueIqr(valueOfInterest, windowLeft)));
-                    foundPeaksNew.put(i, infos);
+                    foundPeaksNew.append(i,
+                            windowIqr(windowLeft) * iqrThreshold,
+                            1 - (rightWindowZeroCount / (double) windowSize),
+                            windowIqr(windowRight) * iqrThreshold,
+                            1 - (centerWindowZeroCount / (double) windowSize),
+                            windowIqr(windowLeft),
+                            valueIqr(valueOfInterest, windowLeft),
+                            valueIqr(valueOfInterest, windowRight),
+                            windowIqr(windowRight),
+                            windowIqr(windowCenter) * iqrThreshold,
+                            1 - (leftWindowZeroCount / (double) windowSize),
+                            valueIqr(valueOfInterest, windowCenter),
+                            windowIqr(windowCenter),
+                            valueOfInterest);
                 }
             }
-            if (data.getDouble(i) <= ZERO_THRESHOLD) {
-                leftWindowZeroCount++;
-            }
-            if (data.getDouble(i - windowSize) <= ZERO_THRESHOLD) {
-                leftWindowZeroCount--;
-            }
-            if (data.getDouble(rightCenter + (i - windowSize)) <= ZERO_THRESHOLD) {
-                centerWindowZeroCount++;
-            }
-            if (data.getDouble(leftCenter + (i - windowSize)) <= ZERO_THRESHOLD) {
-                centerWindowZeroCount--;
-            }
-            if (data.getDouble(i + windowSize + 1) <= ZERO_THRESHOLD) {
-                rightWindowZeroCount++;
-            }
-            if (data.getDouble(i + 1) <= ZERO_THRESHOLD) {
-                rightWindowZeroCount--;
-            }
-
             windowLeft.insertSortedAndDelete(data.getDouble(i), data.getDouble(i-windowSize));
             windowCenter.insertSortedAndDelete(data.getDouble(rightCenter+(i-windowSize)), data.getDouble(leftCenter+(i-windowSize)));
             windowRight.insertSortedAndDelete(data.getDouble(i+windowSize+1), data.getDouble(i+1));
@@ -133,11 +124,7 @@ public class InterquartileRangeModule extends ModuleBase{
 //            int movingAverage = (int)(mmDataC.size()*0.2);
 //            double thresh = dumpMmVal ? -999.0 : TiSSUtils.calculateThreshold(mmDataC, movingAverage);
             mmDatOut.addAll(mmDataC.stream().map(PeakAndPos::getValue).collect(Collectors.toList()));
-            mmDataC.forEach(m -> {
-                Map<String, Double> info = new HashMap<>();
-                info.put("Fold-change", m.getValue());
-                foundPeaksNew.put(m.getPos(), info);
-            });
+            mmDataC.forEach(m -> foundPeaksNew.append(m.getPos(), m.getValue()));
 //            this.thresholds.put(ref, thresh);
 //            System.err.println("--== Threshold: " + thresh + " ==--");
 //            System.err.println("--== Moving avg: " + movingAverage + " ==--");
@@ -184,40 +171,29 @@ public class InterquartileRangeModule extends ModuleBase{
             }
         }
         writer.close();
-        List<PeakAndPos> mlData = getAllMmData().values().stream()
-                .map(lst -> new ArrayList<>(lst.stream().map(d -> new PeakAndPos(-1, d)).collect(Collectors.toList())))
-                .reduce(new ArrayList<>(), (out, next) -> {
-                    out.addAll(next);
-                    return out;
-                });
-        int movingAverage = (int)(mlData.size()*0.2);
-        System.err.println("Using " + mlData.size() + " values to calculate threshold.");
+        double[] mlData = getAllMmData().values().stream().flatMap(List::stream).mapToDouble(Double::doubleValue).toArray();
+        int movingAverage = (int)(mlData.length*AUTOPARAM_AVG_FRACTION);
+        System.err.println("Using " + mlData.length + " values to calculate threshold.");
         final double thresh = TiSSUtils.calculateThreshold(mlData, movingAverage);
         globalThreshold = thresh;
         thresholds.put(Chromosome.obtain("global"), thresh);
 
-        for (ReferenceSequence ref : res.keySet()) {
-            Map<Integer, Map<String,Double>> filtered = new HashMap<>();
-            for (int tss : res.get(ref).keySet()) {
-                if (res.get(ref).get(tss).get("Fold-change") > thresh) {
-                    filtered.put(tss, res.get(ref).get(tss));
-                }
-            }
-            res.put(ref, filtered);
+        int foldChangeColumn = res.getColumnIndex("Fold-change");
+        for (ReferenceSequence ref : res.getReferences()) {
+            TissResultTable.Rows tss = res.get(ref);
+            tss.filter(row -> tss.getValue(row, foldChangeColumn) > thresh);
         }
     }
 
     private void identifyFoundPeaksMM(List<PeakAndPos> query, List<PeakAndPos> peakA, List<PeakAndPos> peakB,
                                       List<PeakAndPos> nonPeakA, List<PeakAndPos> nonPeakB,
-                                      Map<Integer, Map<String, Double>> foundPeaksNew) {
+                                      TissResultTable.Rows foundPeaksNew) {
         for (PeakAndPos pap : query) {
             if (!peakA.contains(pap) || !peakB.contains(pap)) {
                 continue;
             }
             removePAP(pap, peakA, peakB);
-            Map<String, Double> info = new HashMap<>();
-            info.put("LogIQRfc", pap.getValue());
-            foundPeaksNew.put(pap.getPos(), info);
+            foundPeaksNew.append(pap.getPos(), pap.getValue());
         }
     }
 
@@ -230,29 +206,19 @@ public class InterquartileRangeModule extends ModuleBase{
         return ((double)zeroCount)/((double)windowSize) >= 1.-minReadDensity;
     }
 
-    private boolean valueGreaterIQRthreshold(double value, StaticSizeSortedArrayList<Double> window, double thresh) {
+    private boolean valueGreaterIQRthreshold(double value, StaticSizeSortedDoubleTree window, double thresh) {
         double iqr = windowIqr(window);
         return valueIqr(value, window) > thresh*iqr;
     }
 
-    private double windowIqr(StaticSizeSortedArrayList<Double> window) {
+    private double windowIqr(StaticSizeSortedDoubleTree window) {
         return window.getValueAtIndex(thirdQuartileStart) - window.getValueAtIndex(firstQuartileEnd);
     }
 
-    private double valueIqr(double value, StaticSizeSortedArrayList<Double> window) {
+    private double valueIqr(double value, StaticSizeSortedDoubleTree window) {
         return value-window.getValueAtIndex(thirdQuartileStart);
     }
 
-    private int zeroCount(double[] array, double zeroThreshold) {
-        int zeros = 0;
-        for (int i = 0; i<array.length; i++) {
-            if (array[i] <= zeroThreshold) {
-                zeros++;
-            }
-        }
-        return zeros;
-    }
-
     private class ReadCount {
         double readCount;
         int peakCount;
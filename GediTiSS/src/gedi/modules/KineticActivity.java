@@ -1,38 +1,41 @@
 package gedi.modules;
 
-import gedi.core.reference.Chromosome;
 import gedi.core.reference.ReferenceSequence;
 import gedi.data.Data;
 import gedi.merger2.TissFile;
 import gedi.util.ArrayUtils;
-import gedi.util.StringUtils;
 import gedi.util.datastructure.array.NumericArray;
 import gedi.util.dynamic.impl.DoubleDynamicObject;
 import gedi.util.dynamic.impl.IntDynamicObject;
-import gedi.util.functions.EI;
-import gedi.util.io.text.LineOrientedFile;
-import gedi.util.io.text.LineWriter;
 import gedi.util.math.stat.testing.DirichletLikelihoodRatioTest;
 import gedi.util.mutable.MutablePair;
 import gedi.util.mutable.MutableTriple;
 import gedi.util.r.RRunner;
-import gedi.utils.ArrayUtils2;
+import gedi.utils.QuantileSketch;
 import gedi.utils.TiSSUtils;
-import gedi.utils.machineLearning.PeakAndPos;
+import gedi.utils.WindowStats;
+import gedi.utils.datastructures.CandidateSpill;
+import gedi.utils.datastructures.TissResultTable;
 
 import java.io.IOException;
 import java.util.*;
 
-public class KineticActivity extends ModuleBase {
+public class KineticActivity extends ModuleBase implements StreamableModule {
     private int windowSize;
     private double significanceThresh;
     private double pseudoCount;
     private boolean useML;
     private int cleanupThresh;
     private boolean useUpAndDownstream;
-    private String writerPath;
-    private LineWriter mlWriter;
+    /**
+     * p-value and read count of all candidates, only used with ML
+     */
+    private CandidateSpill candidates;
     private int minReadNum;
+    /**
+     * 1-p of all candidates, only filled with {@link #setApproximateThreshold(boolean)}
+     */
+    private final QuantileSketch pValueSketch = new QuantileSketch();
 
     public KineticActivity(int windowSize, double significanceThresh, double pseudoCount, int cleanupThresh, boolean useML, boolean useUpAndDownstream, int minReadNum, String prefix, Data lane, String name) {
         super(name, lane);
@@ -44,126 +47,174 @@ public class KineticActivity extends ModuleBase {
         this.useUpAndDownstream = useUpAndDownstream;
         this.minReadNum = minReadNum;
         if (useML) {
-            writerPath = prefix + "kineticThresholdData.tsv";
-            mlWriter = new LineOrientedFile(writerPath).write();
-            try {
-                mlWriter.writeLine("Ref\tPos\tValue\tReadCount");
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            candidates = createCandidateSpill(prefix, "kineticCandidates");
         }
 
+        this.res = new TissResultTable(TissFile.READ_COUNT_COLUMN_NAME, TissFile.P_VALUE_COLUMN_NAME);
     }
 
     @Override
     public void findTiSS(NumericArray[] data, ReferenceSequence ref) {
         // data contains the timeseries in ascending order
-        Map<Integer, Map<String, Double>> foundPeaksNew = this.res.computeIfAbsent(ref, k -> new HashMap<>());
-        List<MutableTriple<Integer, Double, Double>> posPVal = new ArrayList<>(data[0].length()/100);
-
-        double[] windowSum = sum(data, 0, windowSize);
-        if (ref.isMinus()) {
-            windowSum = sum(data, windowSize+1, windowSize*2+1);
+        WindowStats[] stats = new WindowStats[data.length];
+        for (int j = 0; j < data.length; j++) {
+            stats[j] = getWindowStats(data[j], ref);
         }
-        if (useUpAndDownstream) {
-            windowSum = sum(data, 0, windowSize*2+1);
-            ArrayUtils2.subtract(windowSum, sum(data, windowSize, windowSize+1));
-        }
-        for (int i = windowSize; i < data[0].length()-(windowSize+1); i++) {
-            if (useML && i%10000000 == 0) {
-                System.err.print("Progress " + i + "/" + data[0].length() + ", mmData size: " + posPVal.size() + "\r");
-            }
-            double[] peaks = new double[windowSum.length];
-            for (int j = 0; j < windowSum.length; j++) {
-                peaks[j] = data[j].getDouble(i);
-            }
-            double[] windowMeans = new double[windowSum.length];
-            for (int j = 0; j < windowSum.length; j++) {
-                windowMeans[j] = windowSum[j]/(useUpAndDownstream ? windowSize*2 : windowSize);
-            }
-            double p = DirichletLikelihoodRatioTest.testMultinomials(pseudoCount, windowMeans, peaks);
-            if (useML) {
-                if (p < 0.1) {
-//                Map<String, Double> info = new HashMap<>();
-//                info.put("pValue", p);
-//                foundPeaksNew.put(i, info);
-                    posPVal.add(new MutableTriple<>(i, p, ArrayUtils.max(peaks)));
+        addResults(ref, scanTiled(windowSize, data[0].length()-(windowSize+1), (from, to) -> scan(data, stats, ref, from, to, 0)));
+    }
+
+    @Override
+    public int getStreamingHalo() {
+        return windowSize+1;
+    }
+
+    @Override
+    public Runnable scanStreamed(NumericArray[] data, WindowStats[] stats, int offset, int from, int to, int refLength, ReferenceSequence ref) {
+        int start = Math.max(from, windowSize);
+        int end = Math.min(to, refLength-(windowSize+1));
+        List<MutableTriple<Integer, Double, Double>> posPVal = start < end ? scan(data, stats, ref, start-offset, end-offset, offset) : new ArrayList<>();
+        return () -> addResults(ref, Collections.singletonList(posPVal));
+    }
+
+    private void addResults(ReferenceSequence ref, List<List<MutableTriple<Integer, Double, Double>>> tiles) {
+        TissResultTable.Rows foundPeaksNew = this.res.getOrCreate(ref);
+
+        if (useML) {
+            try {
+                CandidateSpill.Writer writer = candidates.getWriter(ref);
+                for (List<MutableTriple<Integer, Double, Double>> posPVal : tiles) {
+                    for (MutableTriple<Integer, Double, Double> tss : posPVal) {
+                        writer.append(tss.Item1, tss.Item2, tss.Item3);
+                    }
+                }
+                if (isApproximateThreshold()) {
+                    synchronized (pValueSketch) {
+                        for (List<MutableTriple<Integer, Double, Double>> posPVal : tiles) {
+                            for (MutableTriple<Integer, Double, Double> tss : posPVal) {
+                                pValueSketch.update(1.-tss.Item2);
+                            }
+                        }
+                    }
                 }
-            } else if (p <= significanceThresh && ArrayUtils.max(peaks) >= minReadNum) {
-                Map<String,Double> infos = new HashMap<>();
-                infos.put(TissFile.P_VALUE_COLUMN_NAME, p);
-                infos.put(TissFile.READ_COUNT_COLUMN_NAME, ArrayUtils.max(peaks));
-                foundPeaksNew.put(i, infos);
+            } catch (IOException e) {
+                e.printStackTrace();
             }
-
-            for (int j = 0; j < windowSum.length; j++) {
-                double subtract = ref.isPlus() || useUpAndDownstream ? data[j].getDouble(i-windowSize) : data[j].getDouble(i+1);
-                double add = ref.isPlus() && !useUpAndDownstream ? data[j].getDouble(i) : data[j].getDouble(i+windowSize+1);
-                windowSum[j] -= subtract;
-                windowSum[j] += add;
+        } else {
+            for (List<MutableTriple<Integer, Double, Double>> posPVal : tiles) {
+                for (MutableTriple<Integer, Double, Double> tss : posPVal) {
+                    foundPeaksNew.append(tss.Item1, tss.Item3, tss.Item2);
+                }
             }
         }
+    }
 
-        try {
-            for (MutableTriple<Integer, Double, Double> tss : posPVal) {
-                mlWriter.writeLine(ref.toPlusMinusString() + "\t" + tss.Item1 + "\t" + tss.Item2 + "\t" + tss.Item3);
+    /**
+     * Scans the indices [from, to) of {@code data} with the windows initialized around {@code from}
+     * @param offset the position of the first index of {@code data} in the reference
+     * @return the positions found together with their p-value and maximal read count
+     */
+    private List<MutableTriple<Integer, Double, Double>> scan(NumericArray[] data, WindowStats[] stats, ReferenceSequence ref, int from, int to, int offset) {
+        List<MutableTriple<Integer, Double, Double>> posPVal = new ArrayList<>((to-from)/100);
+
+        // reused at every position, the test does not keep references to them
+        double[] peaks = new double[data.length];
+        double[] windowMeans = new double[data.length];
+        double windowLength = useUpAndDownstream ? windowSize*2 : windowSize;
+        for (int i = nextCandidate(stats, from, to); i < to; i = nextCandidate(stats, i+1, to)) {
+            if (useML && (i+offset)%10000000 == 0) {
+                System.err.print("Progress " + (i+offset) + ", mmData size: " + posPVal.size() + "\r");
+            }
+            double maxPeak = 0;
+            boolean empty = true;
+            for (int j = 0; j < data.length; j++) {
+                double windowSum = windowSum(stats[j], ref, i);
+                peaks[j] = data[j].getDouble(i);
+                windowMeans[j] = windowSum/windowLength;
+                maxPeak = Math.max(maxPeak, peaks[j]);
+                empty &= peaks[j] == 0 && windowSum == 0;
+            }
+            // Without any reads, the peak and the window are the same distribution and the test can never be
+            // significant.
+            boolean skip = useML ? empty : maxPeak < minReadNum || empty;
+            if (!skip) {
+                double p = DirichletLikelihoodRatioTest.testMultinomials(pseudoCount, windowMeans, peaks);
+                if (useML) {
+                    if (p < 0.1) {
+                        posPVal.add(new MutableTriple<>(i+offset, p, maxPeak));
+                    }
+                } else if (p <= significanceThresh) {
+                    posPVal.add(new MutableTriple<>(i+offset, p, maxPeak));
+                }
             }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+        return posPVal;
     }
 
-    private double sum(NumericArray ary, int from, int to) {
-        double sum = 0.;
-        for (int i = from; i < to; i++) {
-            sum += ary.getDouble(i);
+    /**
+     * @return the sum of the window the position {@code i} is compared to, i.e. the positions upstream of it and with
+     * {@link #useUpAndDownstream} also the ones downstream of it
+     */
+    private double windowSum(WindowStats stats, ReferenceSequence ref, int i) {
+        if (useUpAndDownstream) {
+            return stats.sum(i-windowSize, i) + stats.sum(i+1, i+windowSize+1);
         }
-        return sum;
+        return ref.isPlus() ? stats.sum(i-windowSize, i) : stats.sum(i+1, i+windowSize+1);
     }
 
-    private double[] sum(NumericArray[] ary, int from, int to) {
-        double[] sum = new double[ary.length];
-        for (int i = 0; i < sum.length; i++) {
-            sum[i] = sum(ary[i], from, to);
+    /**
+     * @return the first position of [from, to) that is not skipped by {@link #scan}
+     */
+    private int nextCandidate(WindowStats[] stats, int from, int to) {
+        int next = to;
+        for (WindowStats s : stats) {
+            if (!useML && minReadNum > 0) {
+                // Without ML, positions below minReadNum are never reported
+                next = s.nextAtLeast(from, next, minReadNum);
+            } else {
+                // positions without any read around them in all lanes are skipped as empty
+                next = s.nextCovered(from, next, windowSize, windowSize);
+            }
         }
-        return sum;
+        return next;
     }
 
     @Override
     public void calculateMLResults(String prefix, boolean plot) throws IOException {
-        mlWriter.close();
-        Map<ReferenceSequence, List<MutableTriple<Integer, Double, Double>>> refPosPVal = new HashMap<>();
-        List<PeakAndPos> mlData = new ArrayList<>();
-        EI.lines(writerPath).skip(1).forEachRemaining(l -> {
-            String[] split = StringUtils.split(l, "\t");
-            mlData.add(new PeakAndPos(Integer.parseInt(split[1]), 1.-Double.parseDouble(split[2])));
-            refPosPVal.computeIfAbsent(Chromosome.obtain(split[0]), absent->new ArrayList<>()).add(new MutableTriple<>(Integer.parseInt(split[1]), Double.parseDouble(split[2]), Double.parseDouble(split[3])));
-        });
-        int movingAverage = (int)(mlData.size()*0.2);
-        double upThresh = TiSSUtils.calculateThreshold(mlData, movingAverage);
-        upThresh = 1.-upThresh;
-
-        for (ReferenceSequence ref : refPosPVal.keySet()) {
-            Map<Integer, Map<String,Double>> filtered = new HashMap<>();
-            List<MutableTriple<Integer, Double, Double>> tss2val = refPosPVal.get(ref);
-            if (cleanupThresh > 0) {
-                tss2val = TiSSUtils.cleanUpMultiValueDataTriple(tss2val, cleanupThresh);
+        double upThresh;
+        if (isApproximateThreshold()) {
+            upThresh = approximateThreshold(pValueSketch);
+        } else {
+            double[] mlData = new double[(int) candidates.size()];
+            int n = 0;
+            for (ReferenceSequence ref : candidates.getReferences()) {
+                CandidateSpill.Records records = candidates.read(ref);
+                for (int i = 0; i < records.size(); i++) {
+                    mlData[n++] = 1.-records.getValue(i, 0);
+                }
             }
+            upThresh = TiSSUtils.calculateThreshold(mlData, (int)(mlData.length*AUTOPARAM_AVG_FRACTION));
+        }
+        upThresh = 1.-upThresh;
 
-            for (MutableTriple<Integer, Double, Double> tss : tss2val) {
-                if (tss.Item2 < upThresh && tss.Item3 >= minReadNum) {
-                    Map<String, Double> info = new HashMap<>();
-                    info.put(TissFile.P_VALUE_COLUMN_NAME, tss.Item2);
-                    info.put(TissFile.READ_COUNT_COLUMN_NAME, tss.Item3);
-                    filtered.put(tss.Item1, info);
-                }
+        int pValueColumn = res.getColumnIndex(TissFile.P_VALUE_COLUMN_NAME);
+        int readCountColumn = res.getColumnIndex(TissFile.READ_COUNT_COLUMN_NAME);
+        for (ReferenceSequence ref : candidates.getReferences()) {
+            CandidateSpill.Records records = candidates.read(ref);
+            TissResultTable.Rows filtered = res.getOrCreate(ref);
+            for (int i = 0; i < records.size(); i++) {
+                filtered.append(records.getPosition(i), records.getValue(i, 1), records.getValue(i, 0));
             }
-            res.put(ref, filtered);
+            Map<Long, Integer> pValueCounts = cleanupThresh > 0 ? TiSSUtils.countValues(filtered, pValueColumn) : null;
+            double thresh = upThresh;
+            filtered.filter(row -> (pValueCounts == null || pValueCounts.get(Double.doubleToLongBits(filtered.getValue(row, pValueColumn))) < cleanupThresh) &&
+                    filtered.getValue(row, pValueColumn) < thresh && filtered.getValue(row, readCountColumn) >= minReadNum);
         }
 
         if (plot) {
+            writeThresholdData(candidates, prefix + "kineticThresholdData.tsv");
             plotData(prefix, prefix + "kineticThresholdData.tsv", upThresh);
         }
+        candidates.delete();
     }
 
     private void plotData(String prefix, String dataFilePath, double thresh) throws IOException {
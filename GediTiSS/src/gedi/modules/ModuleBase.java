@@ -9,20 +9,42 @@ import gedi.util.functions.EI;
 import gedi.util.io.text.LineOrientedFile;
 import gedi.util.io.text.LineWriter;
 import gedi.util.mutable.MutablePair;
+import gedi.utils.QuantileSketch;
 import gedi.utils.TiSSUtils;
+import gedi.utils.WindowStats;
+import gedi.utils.datastructures.CandidateSpill;
+import gedi.utils.datastructures.TissResultTable;
 import gedi.utils.machineLearning.PeakAndPos;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.stream.Collectors;
 
 public abstract class ModuleBase {
+    /**
+     * Number of positions scanned by a single tile, see {@link #scanTiled(int, int, TileScanner)}
+     */
+    public static final int TILE_SIZE = 1 << 20;
+    /**
+     * Share of the candidates the autoparam threshold averages over, see {@link TiSSUtils#calculateThreshold(double[], int)}
+     */
+    public static final double AUTOPARAM_AVG_FRACTION = 0.2;
+
     protected Data lane;
-    protected Map<ReferenceSequence, Map<Integer, Map<String,Double>>> res = new HashMap<>();
+    /**
+     * The positions found, modules with values set the columns in their constructor
+     */
+    protected TissResultTable res = new TissResultTable();
     protected Map<ReferenceSequence, List<Double>> allMmData = new HashMap<>();
     protected Map<ReferenceSequence, Double> thresholds = new HashMap<>();
     protected double globalThreshold;
     protected String moduleName;
+    private ForkJoinPool tilePool;
+    private volatile DataWrapper dataWrapper;
+    private boolean approximateThreshold;
 
     public ModuleBase(String moduleName, Data lane){
         this.lane = lane;
@@ -39,7 +61,7 @@ public abstract class ModuleBase {
         return tmp.hashCode();
     }
 
-    public Map<ReferenceSequence, Map<Integer, Map<String, Double>>> getResultsNew() {
+    public TissResultTable getResultsNew() {
         return res;
     }
 
@@ -66,4 +88,116 @@ public abstract class ModuleBase {
     public void calculateMLResults(String prefix, boolean plot) throws IOException {
         return;
     }
+
+    /**
+     * If set, the autoparam thresholds are estimated from quantile sketches fed during the scan instead of being
+     * computed from all candidate values
+     */
+    public void setApproximateThreshold(boolean approximateThreshold) {
+        this.approximateThreshold = approximateThreshold;
+    }
+
+    public boolean isApproximateThreshold() {
+        return approximateThreshold;
+    }
+
+    /**
+     * @return the autoparam threshold of all values of {@code sketch}
+     */
+    protected double approximateThreshold(QuantileSketch sketch) {
+        double thresh = TiSSUtils.calculateThreshold(sketch, AUTOPARAM_AVG_FRACTION);
+        System.err.println(String.format("%s: threshold %s estimated from %d values, rank error at most %.3g%%",
+                moduleName, thresh, sketch.getN(), 100 * sketch.getNormalizedRankError()));
+        return thresh;
+    }
+
+    /**
+     * @return a spill of the candidates with p-value and read count, in the output directory of {@code prefix}
+     */
+    protected static CandidateSpill createCandidateSpill(String prefix, String name) {
+        File parent = new File(prefix + name).getAbsoluteFile().getParentFile();
+        return new CandidateSpill(parent.toPath(), name, 2);
+    }
+
+    /**
+     * Writes the candidates of {@code spill} as table for plotting, the columns of the spill are p-value and read count
+     */
+    protected static void writeThresholdData(CandidateSpill spill, String path) throws IOException {
+        LineWriter writer = new LineOrientedFile(path).write();
+        writer.writeLine("Ref\tPos\tValue\tReadCount");
+        for (ReferenceSequence ref : spill.getReferences()) {
+            String refName = ref.toPlusMinusString();
+            CandidateSpill.Records records = spill.read(ref);
+            for (int i = 0; i < records.size(); i++) {
+                writer.writeLine(refName + "\t" + records.getPosition(i) + "\t" + records.getValue(i, 0) + "\t" + records.getValue(i, 1));
+            }
+        }
+        writer.close();
+    }
+
+    /**
+     * Sets the pool the tiles of a reference are scanned in. If null, the tiles are scanned one after another in the
+     * calling thread.
+     */
+    public void setTilePool(ForkJoinPool tilePool) {
+        this.tilePool = tilePool;
+    }
+
+    /**
+     * Sets the data wrapper the read counts passed to {@link #findTiSS} come from, so their {@link WindowStats} are
+     * kept and counted with them, see {@link #getWindowStats}
+     */
+    public void setDataWrapper(DataWrapper dataWrapper) {
+        this.dataWrapper = dataWrapper;
+    }
+
+    /**
+     * @return the statistics of {@code data}, shared with the other modules on the same read counts if they come from
+     * the data wrapper, otherwise built for this call only
+     */
+    protected WindowStats getWindowStats(NumericArray data, ReferenceSequence ref) {
+        DataWrapper wrapper = dataWrapper;
+        return wrapper == null ? new WindowStats(data) : wrapper.getWindowStats(lane, ref, data);
+    }
+
+    /**
+     * Splits the positions [from, to) into tiles of {@link #TILE_SIZE} positions and scans each of them with
+     * {@code scanner}. The scanner has to initialize its sliding windows at the start of the tile from the
+     * surrounding positions (the halo) and must only read the data, so the tiles can be scanned concurrently.
+     * As the tiles do not depend on the number of threads, the result is the same with or without a tile pool.
+     * @return the results of the tiles in ascending order of their positions
+     */
+    protected <T> List<T> scanTiled(int from, int to, TileScanner<T> scanner) {
+        List<int[]> tiles = new ArrayList<>();
+        for (int start = from; start < to; ) {
+            int end = to - start <= TILE_SIZE ? to : start + TILE_SIZE;
+            tiles.add(new int[] {start, end});
+            start = end;
+        }
+
+        List<T> results = new ArrayList<>(tiles.size());
+        ForkJoinPool pool = tilePool;
+        if (pool == null || tiles.size() < 2) {
+            for (int[] tile : tiles) {
+                results.add(scanner.scan(tile[0], tile[1]));
+            }
+            return results;
+        }
+        List<ForkJoinTask<T>> tasks = new ArrayList<>(tiles.size());
+        for (int[] tile : tiles) {
+            tasks.add(pool.submit(() -> scanner.scan(tile[0], tile[1])));
+        }
+        for (ForkJoinTask<T> task : tasks) {
+            results.add(task.join());
+        }
+        return results;
+    }
+
+    @FunctionalInterface
+    protected interface TileScanner<T> {
+        /**
+         * Scans the positions [from, to) of a reference
+         */
+        T scan(int from, int to);
+    }
 }
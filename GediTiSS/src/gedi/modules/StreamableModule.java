@@ -0,0 +1,39 @@
+package gedi.modules;
+
+import gedi.core.reference.ReferenceSequence;
+import gedi.util.datastructure.array.NumericArray;
+import gedi.utils.WindowStats;
+
+/**
+ * A module that only looks at a fixed number of positions around each scanned position, so it can be fed a reference
+ * chunk by chunk (see {@link FusedScan} and the -stream option) instead of getting its whole read counts at once.
+ */
+public interface StreamableModule {
+    /**
+     * @return the number of positions needed on each side of a scanned position
+     */
+    int getStreamingHalo();
+
+    /**
+     * Scans a chunk like {@link #findTiSSStreamed} but only reads {@code data}, so chunks of the same reference can be
+     * scanned concurrently. The positions found are added to the results by the returned runnable, which has to be
+     * run in ascending order of the chunks.
+     * @param stats the statistics of each of {@code data}, indexed like them
+     */
+    Runnable scanStreamed(NumericArray[] data, WindowStats[] stats, int offset, int from, int to, int refLength, ReferenceSequence ref);
+
+    /**
+     * Scans the positions [from, to) of {@code ref} without the read counts of the whole reference in memory.
+     * {@code data} only holds the positions [offset, offset + data[0].length()), which include the
+     * {@link #getStreamingHalo()} positions on each side of [from, to) as far as the reference reaches.
+     * The chunks of a reference are passed in ascending order and together cover the whole reference.
+     */
+    default void findTiSSStreamed(NumericArray[] data, int offset, int from, int to, int refLength, ReferenceSequence ref) {
+        // the statistics of a streamed chunk are only needed while it is scanned
+        WindowStats[] stats = new WindowStats[data.length];
+        for (int j = 0; j < data.length; j++) {
+            stats[j] = new WindowStats(data[j]);
+        }
+        scanStreamed(data, stats, offset, from, to, refLength, ref).run();
+    }
+}
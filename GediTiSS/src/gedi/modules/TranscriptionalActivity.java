@@ -1,36 +1,39 @@
 package gedi.modules;
 
-import gedi.core.reference.Chromosome;
 import gedi.core.reference.ReferenceSequence;
 import gedi.data.Data;
 import gedi.merger2.TissFile;
-import gedi.util.StringUtils;
 import gedi.util.datastructure.array.NumericArray;
 import gedi.util.dynamic.impl.DoubleDynamicObject;
-import gedi.util.functions.EI;
-import gedi.util.io.text.LineOrientedFile;
-import gedi.util.io.text.LineWriter;
-import gedi.util.math.stat.testing.FishersExact;
 import gedi.util.mutable.MutablePair;
 import gedi.util.mutable.MutableTriple;
 import gedi.util.r.RRunner;
+import gedi.utils.FishersExactCache;
+import gedi.utils.QuantileSketch;
 import gedi.utils.TiSSUtils;
-import gedi.utils.machineLearning.PeakAndPos;
-import gedi.utils.sortedNodesList.StaticSizeSortedArrayList;
+import gedi.utils.WindowStats;
+import gedi.utils.datastructures.CandidateSpill;
+import gedi.utils.datastructures.TissResultTable;
+import gedi.utils.sortedNodesList.StaticSizeSortedDoubleTree;
 
 import java.io.IOException;
 import java.util.*;
 
-public class TranscriptionalActivity extends ModuleBase {
+public class TranscriptionalActivity extends ModuleBase implements StreamableModule {
     private double significanceThresh;
     private int windowSize;
     private double minReadDensity;
-    private final double ZERO_THRESHOLD = 0.5;
     private boolean useML;
     private int cleanupThresh;
-    private String writerPath;
-    private LineWriter mlWriter;
+    /**
+     * p-value and read count of all candidates, only used with ML
+     */
+    private CandidateSpill candidates;
     private int minReadNum;
+    /**
+     * 1-p of all candidates, only filled with {@link #setApproximateThreshold(boolean)}
+     */
+    private final QuantileSketch pValueSketch = new QuantileSketch();
 
     public TranscriptionalActivity(double significanceThresh, int windowSize, double minReadDensity, int cleanupThresh, int minReadNum, boolean useML, String prefix, Data lane, String name) {
         super(name, lane);
@@ -41,45 +44,106 @@ public class TranscriptionalActivity extends ModuleBase {
         this.cleanupThresh = cleanupThresh;
         this.minReadNum = minReadNum;
         if (useML) {
-            writerPath = prefix + "densityThresholdData.tsv";
-            mlWriter = new LineOrientedFile(writerPath).write();
-            try {
-                mlWriter.writeLine("Ref\tPos\tValue\tReadCount");
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            candidates = createCandidateSpill(prefix, "densityCandidates");
         }
+        this.res = new TissResultTable(TissFile.READ_COUNT_COLUMN_NAME, TissFile.P_VALUE_COLUMN_NAME);
     }
 
     @Override
     public void findTiSS(NumericArray[] inData, ReferenceSequence ref) {
         //should only be one lane, the total lane
         NumericArray data = inData[0];
-        StaticSizeSortedArrayList<Double> windowUpstream = new StaticSizeSortedArrayList<>(EI.wrap(data.toDoubleArray(0, windowSize)).toList(), Double::compareTo);
-        StaticSizeSortedArrayList<Double> windowDownstream = new StaticSizeSortedArrayList<>(EI.wrap(data.toDoubleArray(windowSize+1, windowSize*2+1)).toList(), Double::compareTo);
-        if (ref.isMinus()) {
-            StaticSizeSortedArrayList<Double> tmp = windowUpstream;
-            windowUpstream = windowDownstream;
-            windowDownstream = tmp;
-        }
-        double downstreamWindowSum = sum(data, windowSize+1, windowSize*2+1);
-        if (ref.isMinus()) {
-            downstreamWindowSum = sum(data, 0, windowSize);
-        }
-        double threshold = downstreamWindowSum/(double)windowSize;
-        int zeroReadsInRightWindow = getZeroReads(data, windowSize+1, windowSize*2+1);
+        WindowStats stats = getWindowStats(data, ref);
+        addResults(ref, scanTiled(windowSize, data.length() - (windowSize+1), (from, to) -> scan(data, stats, ref, from, to, 0)));
+    }
+
+    @Override
+    public int getStreamingHalo() {
+        return windowSize+1;
+    }
+
+    @Override
+    public Runnable scanStreamed(NumericArray[] inData, WindowStats[] stats, int offset, int from, int to, int refLength, ReferenceSequence ref) {
+        int start = Math.max(from, windowSize);
+        int end = Math.min(to, refLength - (windowSize+1));
+        List<MutableTriple<Integer, Double, Double>> posPVal = start < end ? scan(inData[0], stats[0], ref, start-offset, end-offset, offset) : new ArrayList<>();
+        return () -> addResults(ref, Collections.singletonList(posPVal));
+    }
 
-        Map<Integer, Map<String, Double>> foundPeaksNew = this.res.computeIfAbsent(ref, k -> new HashMap<>());
+    private void addResults(ReferenceSequence ref, List<List<MutableTriple<Integer, Double, Double>>> tiles) {
+        TissResultTable.Rows foundPeaksNew = this.res.getOrCreate(ref);
         List<Double> mmDatOut = this.allMmData.computeIfAbsent(ref, k-> new ArrayList<>());
-        List<MutableTriple<Integer, Double, Double>> posPVal = new ArrayList<>(data.length()/100);
 
-        for (int i = windowSize; i < data.length() - (windowSize+1); i++) {
-            if (useML && i%10000000 == 0) {
-                System.err.print("Progress " + i + "/" + data.length() + ", mmData size: " + posPVal.size() + "\r");
+        if (useML) {
+            try {
+                CandidateSpill.Writer writer = candidates.getWriter(ref);
+                for (List<MutableTriple<Integer, Double, Double>> posPVal : tiles) {
+                    for (MutableTriple<Integer, Double, Double> tss : posPVal) {
+                        writer.append(tss.Item1, tss.Item2, tss.Item3);
+                    }
+                }
+                if (isApproximateThreshold()) {
+                    synchronized (pValueSketch) {
+                        for (List<MutableTriple<Integer, Double, Double>> posPVal : tiles) {
+                            for (MutableTriple<Integer, Double, Double> tss : posPVal) {
+                                pValueSketch.update(1.-tss.Item2);
+                            }
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        } else {
+            for (List<MutableTriple<Integer, Double, Double>> posPVal : tiles) {
+                for (MutableTriple<Integer, Double, Double> tss : posPVal) {
+                    foundPeaksNew.append(tss.Item1, tss.Item3, tss.Item2);
+                }
+            }
+        }
+    }
+
+    /**
+     * Scans the indices [from, to) of {@code data} with the windows initialized around {@code from}
+     * @param offset the position of the first index of {@code data} in the reference
+     * @return the positions found together with their p-value and read count
+     */
+    private List<MutableTriple<Integer, Double, Double>> scan(NumericArray data, WindowStats stats, ReferenceSequence ref, int from, int to, int offset) {
+        StaticSizeSortedDoubleTree windowUpstream = createWindow(data, ref.isPlus() ? from-windowSize : from+1);
+        StaticSizeSortedDoubleTree windowDownstream = createWindow(data, ref.isPlus() ? from+1 : from-windowSize);
+        int windowsAt = from;
+        // the downstream window starts right after i on the plus strand and ends right before it on the minus strand
+        int downstreamShift = ref.isPlus() ? 1 : -windowSize;
+
+        List<MutableTriple<Integer, Double, Double>> posPVal = new ArrayList<>((to-from)/100);
+        FishersExactCache fishersExact = FishersExactCache.forWindowSize(windowSize);
+
+        for (int i = nextCandidate(stats, ref, from, to); i < to; i = nextCandidate(stats, ref, i+1, to)) {
+            if (useML && (i+offset)%10000000 == 0) {
+                System.err.print("Progress " + (i+offset) + ", mmData size: " + posPVal.size() + "\r");
+            }
+            if (i - windowsAt > windowSize) {
+                // after a long jump, filling the windows anew is cheaper than sliding them over all skipped positions
+                windowUpstream = createWindow(data, ref.isPlus() ? i-windowSize : i+1);
+                windowDownstream = createWindow(data, ref.isPlus() ? i+1 : i-windowSize);
+            } else {
+                for (; windowsAt < i; windowsAt++) {
+                    if (ref.isPlus()) {
+                        windowUpstream.insertSortedAndDelete(data.getDouble(windowsAt), data.getDouble(windowsAt - windowSize));
+                        windowDownstream.insertSortedAndDelete(data.getDouble(windowsAt + windowSize + 1), data.getDouble(windowsAt + 1));
+                    } else {
+                        windowDownstream.insertSortedAndDelete(data.getDouble(windowsAt), data.getDouble(windowsAt - windowSize));
+                        windowUpstream.insertSortedAndDelete(data.getDouble(windowsAt + windowSize + 1), data.getDouble(windowsAt + 1));
+                    }
+                }
             }
+            windowsAt = i;
 
-            if (zeroReadsInRightWindow < windowDownstream.getSize()) {
-                if (zeroReadsInRightWindow / (double) windowSize < 1. - minReadDensity) {
+            int downstreamStart = i + downstreamShift;
+            int zeroReadsInDownstreamWindow = stats.zeroCount(downstreamStart, downstreamStart + windowSize);
+            if (zeroReadsInDownstreamWindow < windowDownstream.getSize()) {
+                if (zeroReadsInDownstreamWindow / (double) windowSize < 1. - minReadDensity) {
+                    double threshold = stats.mean(downstreamStart, downstreamStart + windowSize);
                     threshold = threshold < 1. ? 1 : threshold;
                     // a = left window under threshold
                     // b = left window over threshold
@@ -91,118 +155,69 @@ public class TranscriptionalActivity extends ModuleBase {
                     c = windowDownstream.getNextLowerIndex(threshold) + 1;
                     d = windowSize - c;
 
-                    FishersExact fishersExact = new FishersExact(a + b + c + d);
-                    double p = fishersExact.getTwoTailedP(a, b, c, d);
+                    double p = fishersExact.getTwoTailedP(a, c);
 
                     if (useML){
                         if(p <= 0.1 && d > b) {
-                            Map<String, Double> info = new HashMap<>();
-                            posPVal.add(new MutableTriple<>(i, p, data.getDouble(i)));
-//                        info.put("pValue", p);
-//                        foundPeaksNew.put(i, info);
+                            posPVal.add(new MutableTriple<>(i+offset, p, data.getDouble(i)));
                         }
                     } else if (p <= significanceThresh && d > b && data.getDouble(i) >= minReadNum) {
-                        Map<String, Double> infos = new HashMap<>();
-                        infos.put(TissFile.P_VALUE_COLUMN_NAME, p);
-                        infos.put(TissFile.READ_COUNT_COLUMN_NAME, data.getDouble(i));
-                        foundPeaksNew.put(i, infos);
+                        posPVal.add(new MutableTriple<>(i+offset, p, data.getDouble(i)));
                     }
                 }
             }
-
-            if (ref.isPlus()) {
-                if (data.getDouble(i+1) <= ZERO_THRESHOLD) {
-                    zeroReadsInRightWindow--;
-                }
-                if (data.getDouble(i+windowSize+1) <= ZERO_THRESHOLD) {
-                    zeroReadsInRightWindow++;
-                }
-                downstreamWindowSum -= data.getDouble(i+1);
-//                threshold = rightWindowSum/(double) (windowSize-1);
-                downstreamWindowSum += data.getDouble(i+windowSize+1);
-                threshold = downstreamWindowSum/(double) windowSize;
-//                threshold = ((windowSize-1)/(double)windowSize) * threshold + (1./windowSize) * data.getDouble(i+windowSize+1);
-                windowUpstream.insertSortedAndDelete(data.getDouble(i), data.getDouble(i - windowSize));
-                windowDownstream.insertSortedAndDelete(data.getDouble(i + windowSize + 1), data.getDouble(i + 1));
-            } else {
-                if (data.getDouble(i - windowSize) <= ZERO_THRESHOLD) {
-                    zeroReadsInRightWindow--;
-                }
-                if (data.getDouble(i) <= ZERO_THRESHOLD) {
-                    zeroReadsInRightWindow++;
-                }
-                downstreamWindowSum -= data.getDouble(i - windowSize);
-//                threshold = rightWindowSum/(double) (windowSize-1);
-                downstreamWindowSum += data.getDouble(i);
-//                threshold = ((windowSize-1)/(double)windowSize) * threshold + (1./windowSize) * data.getDouble(i);
-                threshold = downstreamWindowSum/(double) windowSize;
-                windowDownstream.insertSortedAndDelete(data.getDouble(i), data.getDouble(i - windowSize));
-                windowUpstream.insertSortedAndDelete(data.getDouble(i + windowSize + 1), data.getDouble(i + 1));
-            }
-        }
-        try {
-            for (MutableTriple<Integer, Double, Double> tss : posPVal) {
-                mlWriter.writeLine(ref.toPlusMinusString() + "\t" + tss.Item1 + "\t" + tss.Item2 + "\t" + tss.Item3);
-            }
-        } catch (IOException e) {
-            e.printStackTrace();
         }
+        return posPVal;
     }
 
-    private double sum(NumericArray ary, int from, int to) {
-        double sum = 0;
-        for (int i = from; i < to; i++) {
-            sum+=ary.getDouble(i);
-        }
-        return sum;
+    private StaticSizeSortedDoubleTree createWindow(NumericArray data, int start) {
+        return new StaticSizeSortedDoubleTree(data.toDoubleArray(start, start+windowSize));
     }
 
-    private int getZeroReads(NumericArray ary, int from, int to) {
-        int zeroReads = 0;
-        for (int i = from; i < to; i++) {
-            if (ary.getDouble(i) <= ZERO_THRESHOLD) {
-                zeroReads++;
-            }
-        }
-        return zeroReads;
+    /**
+     * @return the first position of [from, to) with a read in its downstream window, all others are never reported
+     */
+    private int nextCandidate(WindowStats stats, ReferenceSequence ref, int from, int to) {
+        return ref.isPlus() ? stats.nextCovered(from, to, 0, windowSize) : stats.nextCovered(from, to, windowSize, 0);
     }
 
     @Override
     public void calculateMLResults(String prefix, boolean plot) throws IOException {
-        mlWriter.close();
-        Map<ReferenceSequence, List<MutableTriple<Integer, Double, Double>>> refPosPVal = new HashMap<>();
-        List<PeakAndPos> mlData = new ArrayList<>();
-        EI.lines(writerPath).skip(1).forEachRemaining(l -> {
-            String[] split = StringUtils.split(l, "\t");
-            mlData.add(new PeakAndPos(Integer.parseInt(split[1]), 1.-Double.parseDouble(split[2])));
-            refPosPVal.computeIfAbsent(Chromosome.obtain(split[0]), absent->new ArrayList<>()).add(new MutableTriple<>(Integer.parseInt(split[1]), Double.parseDouble(split[2]), Double.parseDouble(split[3])));
-        });
-
-        int movingAverage = (int)(mlData.size()*0.2);
-        double upThresh = TiSSUtils.calculateThreshold(mlData, movingAverage);
-        upThresh = 1.-upThresh;
-
-        for (ReferenceSequence ref : refPosPVal.keySet()) {
-            Map<Integer, Map<String,Double>> filtered = new HashMap<>();
-            List<MutableTriple<Integer, Double, Double>> tss2val = refPosPVal.get(ref);
-            if (cleanupThresh > 0) {
-                tss2val = TiSSUtils.cleanUpMultiValueDataTriple(tss2val, cleanupThresh);
+        double upThresh;
+        if (isApproximateThreshold()) {
+            upThresh = approximateThreshold(pValueSketch);
+        } else {
+            double[] mlData = new double[(int) candidates.size()];
+            int n = 0;
+            for (ReferenceSequence ref : candidates.getReferences()) {
+                CandidateSpill.Records records = candidates.read(ref);
+                for (int i = 0; i < records.size(); i++) {
+                    mlData[n++] = 1.-records.getValue(i, 0);
+                }
             }
+            upThresh = TiSSUtils.calculateThreshold(mlData, (int)(mlData.length*AUTOPARAM_AVG_FRACTION));
+        }
+        upThresh = 1.-upThresh;
 
-            for (MutableTriple<Integer, Double, Double> tss : tss2val) {
-                if (tss.Item2 < upThresh && tss.Item3 >= minReadNum) {
-                    Map<String, Double> info = new HashMap<>();
-                    info.put(TissFile.P_VALUE_COLUMN_NAME, tss.Item2);
-                    info.put(TissFile.READ_COUNT_COLUMN_NAME, tss.Item3);
-                    filtered.put(tss.Item1, info);
-                }
+        int pValueColumn = res.getColumnIndex(TissFile.P_VALUE_COLUMN_NAME);
+        int readCountColumn = res.getColumnIndex(TissFile.READ_COUNT_COLUMN_NAME);
+        for (ReferenceSequence ref : candidates.getReferences()) {
+            CandidateSpill.Records records = candidates.read(ref);
+            TissResultTable.Rows filtered = res.getOrCreate(ref);
+            for (int i = 0; i < records.size(); i++) {
+                filtered.append(records.getPosition(i), records.getValue(i, 1), records.getValue(i, 0));
             }
-            res.put(ref, filtered);
+            Map<Long, Integer> pValueCounts = cleanupThresh > 0 ? TiSSUtils.countValues(filtered, pValueColumn) : null;
+            double thresh = upThresh;
+            filtered.filter(row -> (pValueCounts == null || pValueCounts.get(Double.doubleToLongBits(filtered.getValue(row, pValueColumn))) < cleanupThresh) &&
+                    filtered.getValue(row, pValueColumn) < thresh && filtered.getValue(row, readCountColumn) >= minReadNum);
         }
 
         if (plot) {
+            writeThresholdData(candidates, prefix + "densityThresholdData.tsv");
             plotData(prefix, prefix + "densityThresholdData.tsv", upThresh);
         }
+        candidates.delete();
     }
 
     private void plotData(String prefix, String dataFilePath, double thresh) throws IOException {
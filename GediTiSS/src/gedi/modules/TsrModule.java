@@ -9,11 +9,10 @@ import gedi.util.datastructure.array.NumericArray;
 import gedi.util.datastructure.array.decorators.NumericArraySlice;
 import gedi.util.datastructure.array.functions.NumericArrayFunction;
 import gedi.util.functions.EI;
+import gedi.utils.datastructures.TissResultTable;
 
 import java.io.IOException;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.Map;
 
 public class TsrModule extends ModuleBase {
     private int tsrSize;
@@ -27,12 +26,13 @@ public class TsrModule extends ModuleBase {
         this.minReads = minReads;
         this.bufferUpstream = bufferUpstream;
         this.bufferDownstream = bufferDownstream;
+        this.res = new TissResultTable("tsr max", "tsr sum");
     }
 
     @Override
     public void findTiSS(NumericArray[] data, ReferenceSequence ref) {
         NumericArray readCounts = data[0];
-        Map<Integer, Map<String, Double>> foundPeaksNew = this.res.computeIfAbsent(ref, k -> new HashMap<>());
+        TissResultTable.Rows foundPeaksNew = this.res.getOrCreate(ref);
 
         final GenomicRegion[] gr = {new ArrayGenomicRegion()};
         EI.seq(0,readCounts.length()).
@@ -48,10 +48,7 @@ public class TsrModule extends ModuleBase {
                     if (slice.sum() >= minReads) {
                         gr[0] = gr[0].union(new ArrayGenomicRegion(i-tsrSize, i+1));
                         int maxPos = argMax(slice) + (i-tsrSize+1);
-                        Map<String, Double> info = new HashMap<>();
-                        info.put("tsr max", readCounts.getDouble(maxPos));
-                        info.put("tsr sum", slice.sum());
-                        foundPeaksNew.put(maxPos, info);
+                        foundPeaksNew.append(maxPos, readCounts.getDouble(maxPos), slice.sum());
                     }
                 });
     }
@@ -9,6 +9,7 @@ import gedi.util.io.text.LineOrientedFile;
 import gedi.util.io.text.LineWriter;
 import gedi.util.mutable.MutablePair;
 import gedi.utils.TiSSUtils;
+import gedi.utils.datastructures.TissResultTable;
 import gedi.utils.machineLearning.PeakAndPos;
 import gedi.utils.machineLearning.PeakClusterer;
 import gedi.utils.sortedNodesList.StaticSizeSortedArrayList;
@@ -45,16 +46,18 @@ public class XRN1module extends ModuleBase {
         this.minReadNum = minReadNum;
         this.machineLearning = useMM;
         this.dumpMmVal = dumpMmVal;
+        this.res = useMM ? new TissResultTable("Fold-change", "water height") :
+                new TissResultTable("threshold peak height", "water height", "threshold peak pos", "peak height");
     }
 
     @Override
     public void findTiSS(NumericArray[] data, ReferenceSequence ref) {
-        NumericArray xrn1 = data[0];
+        // the read counts are shared with other modules and may be stored as integers, so the pseudocounts go into a
+        // copy of doubles
+        NumericArray xrn1 = addPseudoCount(data[0], pseudoCount);
         NumericArray water = waterCheck ? data[1] : null;
         List<PeakAndPos> mmData = machineLearning ? new ArrayList<>() : null;
 
-        addPseudoCount(xrn1, pseudoCount);
-
         List<PeakAndPos> ptp = new LinkedList<>();
         double[] tmp = xrn1.toDoubleArray(0, windowSize*2+1);
         for (int i = 0; i < tmp.length; i++) {
@@ -62,7 +65,8 @@ public class XRN1module extends ModuleBase {
         }
         StaticSizeSortedArrayList<PeakAndPos> window = new StaticSizeSortedArrayList<>(ptp, PeakAndPos::compareTo);
 
-        List<MutablePair<Integer, Map<String, Double>>> tiss = new ArrayList<>();
+        // the values of each peak in the order of the result columns, the water height is added below
+        List<MutablePair<Integer, double[]>> tiss = new ArrayList<>();
         for (int i = windowSize; i < xrn1.length() - (windowSize+1); i++) {
             PeakAndPos thresholdPeak = thresholdPeak(window);
             if (mmData != null) {
@@ -82,18 +86,14 @@ public class XRN1module extends ModuleBase {
 //                System.err.println("=====");
 //            }
             if (thresholdPeak.getValue() >= pseudoCount && xrn1.getDouble(i) > peakCallThreshold*thresholdPeak.getValue()) {
-                Map<String, Double> infos = new HashMap<>();
-                infos.put("peak height", xrn1.getDouble(i));
-                infos.put("threshold peak pos", (double)thresholdPeak.getPos());
-                infos.put("threshold peak height", thresholdPeak.getValue());
-                tiss.add(new MutablePair<>(i, infos));
+                tiss.add(new MutablePair<>(i, new double[] {thresholdPeak.getValue(), Double.NaN, thresholdPeak.getPos(), xrn1.getDouble(i)}));
             }
             window.insertSortedAndDelete(new PeakAndPos(i+windowSize+1, xrn1.getDouble(i+windowSize+1)), new PeakAndPos(i-windowSize, xrn1.getDouble(i-windowSize)));
         }
 
         System.err.println(tiss.size() + " peaks found in XRN1 with ref " + ref.toPlusMinusString());
 
-        Map<Integer, Map<String, Double>> foundPeaksNew = this.res.computeIfAbsent(ref, k -> new HashMap<>());
+        TissResultTable.Rows foundPeaksNew = this.res.getOrCreate(ref);
         List<Double> mmDatOut = this.allMmData.computeIfAbsent(ref, k-> new ArrayList<>());
 
         if (mmData != null) {
@@ -105,27 +105,24 @@ public class XRN1module extends ModuleBase {
             System.err.println("--== Threshold: " + thresh + " ==--");
             System.err.println("--== Moving avg: " + movingAverage + " ==--");
             tiss = EI.wrap(peaks)
-                    .map(a -> {
-                        Map<String, Double> tmpMap = new HashMap<>();
-                        tmpMap.put("Fold-change", a.getValue());
-                        return new MutablePair<>(a.getPos(), tmpMap);
-                    }).list();
+                    .map(a -> new MutablePair<>(a.getPos(), new double[] {a.getValue(), Double.NaN}))
+                    .list();
         }
 
-        for (MutablePair<Integer, Map<String, Double>> i : tiss) {
+        int waterColumn = res.getColumnIndex("water height");
+        for (MutablePair<Integer, double[]> i : tiss) {
             if (waterCheck) {
 //                if ((xrn1.getDouble(i.Item1) + xrn1Mean) * maxWater2XRN1FoldChange >= water.getDouble(i.Item1)) {
                 if ((xrn1.getDouble(i.Item1)) * maxWater2XRN1FoldChange >= water.getDouble(i.Item1)) {
-                    i.Item2.put("water height", water.getDouble(i.Item1));
-                    foundPeaksNew.put(i.Item1, i.Item2);
+                    i.Item2[waterColumn] = water.getDouble(i.Item1);
+                    foundPeaksNew.append(i.Item1, i.Item2);
                 }
             } else {
-                i.Item2.put("water height", Double.NaN);
-                foundPeaksNew.put(i.Item1, i.Item2);
+                foundPeaksNew.append(i.Item1, i.Item2);
             }
         }
 
-        System.err.println(foundPeaksNew.keySet().size() + " peaks left after reduction with water for ref " + ref.toPlusMinusString());
+        System.err.println(foundPeaksNew.size() + " peaks left after reduction with water for ref " + ref.toPlusMinusString());
     }
 
     @Override
@@ -138,26 +135,17 @@ public class XRN1module extends ModuleBase {
             }
         }
         writer.close();
-        List<PeakAndPos> mlData = getAllMmData().values().stream()
-                .map(lst -> new ArrayList<>(lst.stream().map(d -> new PeakAndPos(-1, d)).collect(Collectors.toList())))
-                .reduce(new ArrayList<>(), (out, next) -> {
-                    out.addAll(next);
-                    return out;
-                });
-        int movingAverage = (int)(mlData.size()*0.2);
-        System.err.println("Using " + mlData.size() + " values to calculate threshold.");
+        double[] mlData = getAllMmData().values().stream().flatMap(List::stream).mapToDouble(Double::doubleValue).toArray();
+        int movingAverage = (int)(mlData.length*AUTOPARAM_AVG_FRACTION);
+        System.err.println("Using " + mlData.length + " values to calculate threshold.");
         final double thresh = TiSSUtils.calculateThreshold(mlData, movingAverage);
         globalThreshold = thresh;
         thresholds.put(Chromosome.obtain("global"), thresh);
 
-        for (ReferenceSequence ref : res.keySet()) {
-            Map<Integer, Map<String,Double>> filtered = new HashMap<>();
-            for (int tss : res.get(ref).keySet()) {
-                if (res.get(ref).get(tss).get("Fold-change") > thresh) {
-                    filtered.put(tss, res.get(ref).get(tss));
-                }
-            }
-            res.put(ref, filtered);
+        int foldChangeColumn = res.getColumnIndex("Fold-change");
+        for (ReferenceSequence ref : res.getReferences()) {
+            TissResultTable.Rows tss = res.get(ref);
+            tss.filter(row -> tss.getValue(row, foldChangeColumn) > thresh);
         }
     }
 
@@ -178,9 +166,11 @@ public class XRN1module extends ModuleBase {
         return threshold;
     }
 
-    private void addPseudoCount(NumericArray ary, double pseudoCount) {
+    private NumericArray addPseudoCount(NumericArray ary, double pseudoCount) {
+        NumericArray withPseudoCount = NumericArray.createMemory(ary.length(), NumericArray.NumericArrayType.Double);
         for (int i = 0; i < ary.length(); i++) {
-            ary.setDouble(i, ary.getDouble(i)+pseudoCount);
+            withPseudoCount.setDouble(i, ary.getDouble(i)+pseudoCount);
         }
+        return withPseudoCount;
     }
 }
@@ -0,0 +1,73 @@
+package gedi.utils;
+
+import gedi.util.math.stat.testing.FishersExact;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Two-tailed p-values of Fisher's exact test for 2x2 tables with both row sums equal to the window size.
+ *
+ * With {@code a+b = c+d = windowSize}, the p-value only depends on a and c, so there are at most
+ * {@code (windowSize+1)^2} different tables. They are computed on first use by a single {@link FishersExact}
+ * (log-factorials precomputed once per window size) and looked up afterwards. The values are the same as the ones
+ * of {@link FishersExact#getTwoTailedP(int, int, int, int)}.
+ *
+ * One cache per window size is shared by all threads and modules, see {@link #forWindowSize(int)}.
+ */
+public class FishersExactCache {
+    private static final ConcurrentHashMap<Integer, FishersExactCache> CACHES = new ConcurrentHashMap<>();
+    /**
+     * Marks a p-value that has not been computed yet. A NaN that {@link FishersExact} never returns.
+     */
+    private static final long MISSING = -1L;
+
+    private final int windowSize;
+    private final FishersExact fishersExact;
+    /**
+     * One row of p-values per a, allocated when the first p-value of the row is needed
+     */
+    private final AtomicReferenceArray<AtomicLongArray> pValues;
+
+    private FishersExactCache(int windowSize) {
+        this.windowSize = windowSize;
+        this.fishersExact = new FishersExact(windowSize * 2);
+        this.pValues = new AtomicReferenceArray<>(windowSize + 1);
+    }
+
+    public static FishersExactCache forWindowSize(int windowSize) {
+        return CACHES.computeIfAbsent(windowSize, FishersExactCache::new);
+    }
+
+    /**
+     * @param a the number of values of the first window under the threshold
+     * @param c the number of values of the second window under the threshold
+     * @return the same as {@code new FishersExact(2*windowSize).getTwoTailedP(a, windowSize-a, c, windowSize-c)}
+     */
+    public double getTwoTailedP(int a, int c) {
+        AtomicLongArray row = pValues.get(a);
+        if (row == null) {
+            AtomicLongArray newRow = new AtomicLongArray(windowSize + 1);
+            for (int i = 0; i < newRow.length(); i++) {
+                newRow.set(i, MISSING);
+            }
+            row = pValues.compareAndSet(a, null, newRow) ? newRow : pValues.get(a);
+        }
+        long bits = row.get(c);
+        if (bits == MISSING) {
+            // computing the same value twice is harmless, both threads store the same bits
+            double p;
+            synchronized (fishersExact) {
+                p = fishersExact.getTwoTailedP(a, windowSize - a, c, windowSize - c);
+            }
+            bits = Double.doubleToRawLongBits(p);
+            row.set(c, bits);
+        }
+        return Double.longBitsToDouble(bits);
+    }
+
+    public int getWindowSize() {
+        return windowSize;
+    }
+}
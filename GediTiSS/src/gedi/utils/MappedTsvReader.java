@@ -0,0 +1,496 @@
+package gedi.utils;
+
+import gedi.core.reference.Chromosome;
+import gedi.core.reference.ReferenceSequence;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Supplier;
+
+/**
+ * Reads large tab separated files, like TiSS and TSR files, in memory mapped chunks parsed in parallel.
+ *
+ * Header lines are read one by one with {@link #nextLine()}. The remaining lines are split into chunks of about
+ * {@link #CHUNK_SIZE} bytes at line breaks, and each chunk is parsed into its own collector by a {@link LineParser}.
+ * The {@link Line} handed to the parser reads numbers straight from the mapped bytes, without creating a String per
+ * line or field, and resolves each reference name once per file. The collectors are returned in the order of the
+ * chunks, so concatenating them keeps the order of the lines.
+ *
+ * Empty lines are skipped, and line breaks may be \n or \r\n.
+ */
+public class MappedTsvReader {
+    public static final int CHUNK_SIZE = 1 << 26;
+    private static final int SCAN_SIZE = 1 << 16;
+    private static final double[] POWERS_OF_TEN = new double[23];
+
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+        }
+    }
+
+    private final File file;
+    private final int chunkSize;
+    private final Map<String, ReferenceSequence> references = new ConcurrentHashMap<>();
+    private long dataStart;
+
+    public MappedTsvReader(String path) {
+        this(new File(path), CHUNK_SIZE);
+    }
+
+    MappedTsvReader(File file, int chunkSize) {
+        this.file = file;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Reads the next line, e.g. a header line, so it is not handed to the parsers of {@link #read}
+     * @return the line without its line break, or null at the end of the file
+     */
+    public String nextLine() throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            ByteBuffer buffer = ByteBuffer.allocate(SCAN_SIZE);
+            long pos = dataStart;
+            while (true) {
+                buffer.clear();
+                int n = channel.read(buffer, pos);
+                if (n <= 0) {
+                    if (line.size() == 0 && pos == dataStart) {
+                        return null;
+                    }
+                    dataStart = pos;
+                    break;
+                }
+                int i = 0;
+                while (i < n && buffer.get(i) != '\n') {
+                    i++;
+                }
+                line.write(buffer.array(), 0, i);
+                pos += i;
+                if (i < n) {
+                    dataStart = pos + 1;
+                    break;
+                }
+            }
+        }
+        String s = new String(line.toByteArray(), StandardCharsets.UTF_8);
+        return s.endsWith("\r") ? s.substring(0, s.length() - 1) : s;
+    }
+
+    /**
+     * Skips {@code lines} lines, see {@link #nextLine()}
+     */
+    public void skipLines(int lines) throws IOException {
+        for (int i = 0; i < lines; i++) {
+            nextLine();
+        }
+    }
+
+    /**
+     * Parses all remaining lines on all processors
+     */
+    public <C> List<C> read(Supplier<C> collectors, LineParser<C> parser) throws IOException {
+        return read(collectors, parser, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Parses all remaining lines on {@code nthreads} threads, each chunk into a new collector of {@code collectors}
+     * @return the collectors in the order of the chunks
+     */
+    public <C> List<C> read(Supplier<C> collectors, LineParser<C> parser, int nthreads) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            List<Long> bounds = findChunkBounds(channel);
+            int chunks = bounds.size() - 1;
+            List<C> parsed = new ArrayList<>();
+            if (chunks <= 1 || nthreads <= 1) {
+                for (int i = 0; i < chunks; i++) {
+                    parsed.add(parseChunk(channel, bounds.get(i), bounds.get(i + 1), collectors, parser));
+                }
+                return parsed;
+            }
+            ExecutorService pool = Executors.newFixedThreadPool(Math.min(nthreads, chunks));
+            try {
+                List<Future<C>> jobs = new ArrayList<>();
+                for (int i = 0; i < chunks; i++) {
+                    long from = bounds.get(i);
+                    long to = bounds.get(i + 1);
+                    jobs.add(pool.submit(() -> parseChunk(channel, from, to, collectors, parser)));
+                }
+                for (Future<C> job : jobs) {
+                    parsed.add(job.get());
+                }
+                return parsed;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while reading " + file.getPath(), e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) {
+                    throw (IOException) e.getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IOException("Reading " + file.getPath() + " failed.", e.getCause());
+            } finally {
+                pool.shutdownNow();
+            }
+        }
+    }
+
+    /**
+     * @return the starts of the chunks, each one at the start of a line, followed by the end of the file
+     */
+    private List<Long> findChunkBounds(FileChannel channel) throws IOException {
+        long size = channel.size();
+        List<Long> bounds = new ArrayList<>();
+        bounds.add(Math.min(dataStart, size));
+        long next = dataStart + chunkSize;
+        ByteBuffer buffer = ByteBuffer.allocate(SCAN_SIZE);
+        while (next < size) {
+            // the chunk ends after the line break at or after next - 1
+            long pos = next - 1;
+            long lineStart = size;
+            while (pos < size) {
+                buffer.clear();
+                int n = channel.read(buffer, pos);
+                if (n <= 0) {
+                    break;
+                }
+                int i = 0;
+                while (i < n && buffer.get(i) != '\n') {
+                    i++;
+                }
+                if (i < n) {
+                    lineStart = pos + i + 1;
+                    break;
+                }
+                pos += n;
+            }
+            if (lineStart >= size) {
+                break;
+            }
+            bounds.add(lineStart);
+            next = lineStart + chunkSize;
+        }
+        bounds.add(size);
+        return bounds;
+    }
+
+    private <C> C parseChunk(FileChannel channel, long from, long to, Supplier<C> collectors, LineParser<C> parser) throws IOException {
+        C collector = collectors.get();
+        if (to <= from) {
+            return collector;
+        }
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, from, to - from);
+        Line line = new Line(buffer);
+        int limit = buffer.limit();
+        int start = 0;
+        while (start < limit) {
+            int end = start;
+            while (end < limit && buffer.get(end) != '\n') {
+                end++;
+            }
+            int contentEnd = end > start && buffer.get(end - 1) == '\r' ? end - 1 : end;
+            if (contentEnd > start) {
+                line.reset(start, contentEnd);
+                parser.parse(line, collector);
+            }
+            start = end + 1;
+        }
+        return collector;
+    }
+
+    private ReferenceSequence obtainReference(String name) {
+        return references.computeIfAbsent(name, Chromosome::obtain);
+    }
+
+    public interface LineParser<C> {
+        void parse(Line line, C collector) throws IOException;
+    }
+
+    /**
+     * One line of a chunk, read field by field: each accessor reads the current field and moves on to the next one.
+     * Only valid during the call of the {@link LineParser}.
+     */
+    public class Line {
+        private final ByteBuffer buffer;
+        private int lineStart;
+        private int lineEnd;
+        private int pos;
+        private int fieldEnd;
+        private byte[] lastName = new byte[0];
+        private ReferenceSequence lastReference;
+
+        private Line(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        private void reset(int start, int end) {
+            lineStart = start;
+            lineEnd = end;
+            pos = start;
+            findFieldEnd();
+        }
+
+        private void findFieldEnd() {
+            fieldEnd = pos;
+            while (fieldEnd < lineEnd && buffer.get(fieldEnd) != '\t') {
+                fieldEnd++;
+            }
+        }
+
+        private void advance() {
+            pos = fieldEnd + 1;
+            findFieldEnd();
+        }
+
+        private void checkField() throws IOException {
+            if (pos > lineEnd) {
+                throw new IOException("Missing field in line: " + this);
+            }
+        }
+
+        /**
+         * @return the number of fields of the line
+         */
+        public int fieldCount() {
+            int count = 1;
+            for (int i = lineStart; i < lineEnd; i++) {
+                if (buffer.get(i) == '\t') {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        public Line skip() throws IOException {
+            checkField();
+            advance();
+            return this;
+        }
+
+        public Line skip(int fields) throws IOException {
+            for (int i = 0; i < fields; i++) {
+                skip();
+            }
+            return this;
+        }
+
+        public String string() throws IOException {
+            checkField();
+            String s = decode(pos, fieldEnd);
+            advance();
+            return s;
+        }
+
+        /**
+         * @return the reference named by the field, obtained once per name and file
+         */
+        public ReferenceSequence reference() throws IOException {
+            checkField();
+            int length = fieldEnd - pos;
+            boolean same = lastReference != null && length == lastName.length;
+            for (int i = 0; same && i < length; i++) {
+                same = buffer.get(pos + i) == lastName[i];
+            }
+            if (!same) {
+                lastName = new byte[length];
+                for (int i = 0; i < length; i++) {
+                    lastName[i] = buffer.get(pos + i);
+                }
+                lastReference = obtainReference(new String(lastName, StandardCharsets.UTF_8));
+            }
+            advance();
+            return lastReference;
+        }
+
+        public int parseInt() throws IOException {
+            checkField();
+            int value = parseInt(pos, fieldEnd);
+            advance();
+            return value;
+        }
+
+        public double parseDouble() throws IOException {
+            checkField();
+            double value = parseDouble(pos, fieldEnd);
+            advance();
+            return value;
+        }
+
+        /**
+         * @return the values of the field separated by {@code separator}
+         */
+        public int[] parseInts(char separator) throws IOException {
+            checkField();
+            int[] values = new int[count(separator)];
+            int from = pos;
+            for (int i = 0; i < values.length; i++) {
+                int to = next(from, separator);
+                values[i] = parseInt(from, to);
+                from = to + 1;
+            }
+            advance();
+            return values;
+        }
+
+        /**
+         * @return the values of the field separated by {@code separator}
+         */
+        public double[] parseDoubles(char separator) throws IOException {
+            checkField();
+            double[] values = new double[count(separator)];
+            int from = pos;
+            for (int i = 0; i < values.length; i++) {
+                int to = next(from, separator);
+                values[i] = parseDouble(from, to);
+                from = to + 1;
+            }
+            advance();
+            return values;
+        }
+
+        private int count(char separator) {
+            int count = 1;
+            for (int i = pos; i < fieldEnd; i++) {
+                if (buffer.get(i) == separator) {
+                    count++;
+                }
+            }
+            return count;
+        }
+
+        private int next(int from, char separator) {
+            int to = from;
+            while (to < fieldEnd && buffer.get(to) != separator) {
+                to++;
+            }
+            return to;
+        }
+
+        private int parseInt(int from, int to) {
+            int i = from;
+            boolean negative = false;
+            if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+                negative = buffer.get(i) == '-';
+                i++;
+            }
+            if (i == to || to - i > 10) {
+                return Integer.parseInt(decode(from, to));
+            }
+            long value = 0;
+            for (; i < to; i++) {
+                int digit = buffer.get(i) - '0';
+                if (digit < 0 || digit > 9) {
+                    return Integer.parseInt(decode(from, to));
+                }
+                value = value * 10 + digit;
+            }
+            value = negative ? -value : value;
+            if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) {
+                return Integer.parseInt(decode(from, to));
+            }
+            return (int) value;
+        }
+
+        /**
+         * Decimal numbers of up to 15 significant digits and small exponents are converted exactly, by a single
+         * multiplication or division of two exact doubles. All others are left to {@link Double#parseDouble(String)}.
+         */
+        private double parseDouble(int from, int to) {
+            int i = from;
+            boolean negative = false;
+            if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+                negative = buffer.get(i) == '-';
+                i++;
+            }
+            long mantissa = 0;
+            int significant = 0;
+            int exponent = 0;
+            boolean digits = false;
+            for (; i < to && isDigit(buffer.get(i)); i++) {
+                digits = true;
+                int digit = buffer.get(i) - '0';
+                if (mantissa != 0 || digit != 0) {
+                    mantissa = mantissa * 10 + digit;
+                    significant++;
+                }
+            }
+            if (i < to && buffer.get(i) == '.') {
+                for (i++; i < to && isDigit(buffer.get(i)); i++) {
+                    digits = true;
+                    int digit = buffer.get(i) - '0';
+                    if (mantissa != 0 || digit != 0) {
+                        mantissa = mantissa * 10 + digit;
+                        significant++;
+                    }
+                    exponent--;
+                }
+            }
+            if (i < to && (buffer.get(i) == 'e' || buffer.get(i) == 'E') && digits) {
+                i++;
+                boolean negativeExponent = false;
+                if (i < to && (buffer.get(i) == '-' || buffer.get(i) == '+')) {
+                    negativeExponent = buffer.get(i) == '-';
+                    i++;
+                }
+                int e = 0;
+                int start = i;
+                for (; i < to && isDigit(buffer.get(i)) && i - start < 4; i++) {
+                    e = e * 10 + buffer.get(i) - '0';
+                }
+                if (i == start) {
+                    return Double.parseDouble(decode(from, to));
+                }
+                exponent += negativeExponent ? -e : e;
+            }
+            if (!digits || i != to || significant > 15) {
+                return Double.parseDouble(decode(from, to));
+            }
+            double value;
+            if (mantissa == 0) {
+                value = 0;
+            } else if (exponent >= 0 && exponent < POWERS_OF_TEN.length) {
+                value = mantissa * POWERS_OF_TEN[exponent];
+            } else if (exponent < 0 && -exponent < POWERS_OF_TEN.length) {
+                value = mantissa / POWERS_OF_TEN[-exponent];
+            } else {
+                return Double.parseDouble(decode(from, to));
+            }
+            return negative ? -value : value;
+        }
+
+        private boolean isDigit(byte b) {
+            return b >= '0' && b <= '9';
+        }
+
+        private String decode(int from, int to) {
+            byte[] bytes = new byte[to - from];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = buffer.get(from + i);
+            }
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+
+        @Override
+        public String toString() {
+            return decode(lineStart, lineEnd);
+        }
+    }
+}
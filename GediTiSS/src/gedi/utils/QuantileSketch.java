@@ -0,0 +1,201 @@
+package gedi.utils;
+
+import java.util.Arrays;
+
+/**
+ * Mergeable quantile sketch (KLL) of a stream of values, using memory independent of the number of values.
+ *
+ * Values are added to level 0. A full level is sorted and every other value is promoted to the next level with twice
+ * the weight, alternating between the even and the odd values. The capacity of a level shrinks by 2/3 for each level
+ * below the top one, so only about 3k values are kept. As long as no level was compacted, the sketch holds all
+ * values and is exact.
+ *
+ * Each compaction of level h shifts the rank of any value by at most 2^h. The sum over all compactions is kept as a
+ * deterministic bound of the rank error, see {@link #getMaxRankError()}.
+ *
+ * Not thread-safe. Fill one sketch per thread and {@link #merge(QuantileSketch)} them.
+ */
+public class QuantileSketch {
+    public static final int DEFAULT_K = 2000;
+    private static final double CAPACITY_FACTOR = 2. / 3.;
+    private static final int MIN_CAPACITY = 2;
+
+    private final int k;
+    private double[][] levels = new double[0][];
+    private int[] sizes = new int[0];
+    private boolean[] oddOffsets = new boolean[0];
+    private int[] capacities = new int[0];
+    private int totalCapacity;
+    private long n;
+    private long maxRankError;
+    private int retained;
+
+    public QuantileSketch() {
+        this(DEFAULT_K);
+    }
+
+    /**
+     * @param k the capacity of the top level, the larger the more accurate
+     */
+    public QuantileSketch(int k) {
+        if (k < MIN_CAPACITY) {
+            throw new IllegalArgumentException("k has to be at least " + MIN_CAPACITY);
+        }
+        this.k = k;
+        addLevel();
+    }
+
+    public void update(double value) {
+        append(0, value);
+        n++;
+        compress();
+    }
+
+    /**
+     * Adds all values of {@code other} to this sketch. {@code other} is not changed.
+     */
+    public void merge(QuantileSketch other) {
+        if (other == this) {
+            throw new IllegalArgumentException("Cannot merge a sketch with itself.");
+        }
+        for (int h = 0; h < other.levels.length; h++) {
+            double[] level = other.levels[h];
+            for (int i = 0; i < other.sizes[h]; i++) {
+                append(h, level[i]);
+            }
+        }
+        n += other.n;
+        maxRankError += other.maxRankError;
+        compress();
+    }
+
+    /**
+     * @return the number of values added
+     */
+    public long getN() {
+        return n;
+    }
+
+    /**
+     * @return the number of values held by the sketch
+     */
+    public int getRetained() {
+        return retained;
+    }
+
+    /**
+     * @return an upper bound of the difference between the rank of a value in the sketch and its true rank
+     */
+    public long getMaxRankError() {
+        return maxRankError;
+    }
+
+    /**
+     * @return {@link #getMaxRankError()} relative to the number of values
+     */
+    public double getNormalizedRankError() {
+        return n == 0 ? 0 : maxRankError / (double) n;
+    }
+
+    public boolean isExact() {
+        return maxRankError == 0;
+    }
+
+    /**
+     * Approximates the values at the ranks {@code (j+0.5)*n/m} for {@code j = 0..m-1}, i.e. the values of a sorted
+     * sample of size m. If the sketch is exact and {@code m == n}, these are the sorted values themselves.
+     */
+    public double[] getSortedValues(int m) {
+        if (n == 0) {
+            return new double[0];
+        }
+        double[] values = new double[retained];
+        long[] weights = new long[retained];
+        int p = 0;
+        for (int h = 0; h < levels.length; h++) {
+            double[] level = levels[h];
+            for (int i = 0; i < sizes[h]; i++) {
+                values[p] = level[i];
+                weights[p] = 1L << h;
+                p++;
+            }
+        }
+        Integer[] idx = new Integer[retained];
+        for (int i = 0; i < idx.length; i++) {
+            idx[i] = i;
+        }
+        Arrays.sort(idx, (a, b) -> Double.compare(values[a], values[b]));
+
+        double[] out = new double[m];
+        int item = 0;
+        long cumulative = weights[idx[0]];
+        for (int j = 0; j < m; j++) {
+            double rank = (j + 0.5) * n / m;
+            while (cumulative <= rank && item < idx.length - 1) {
+                item++;
+                cumulative += weights[idx[item]];
+            }
+            out[j] = values[idx[item]];
+        }
+        return out;
+    }
+
+    private void addLevel() {
+        int numLevels = levels.length + 1;
+        levels = Arrays.copyOf(levels, numLevels);
+        levels[numLevels - 1] = new double[MIN_CAPACITY];
+        sizes = Arrays.copyOf(sizes, numLevels);
+        oddOffsets = Arrays.copyOf(oddOffsets, numLevels);
+        // the capacities depend on the distance to the top level
+        capacities = new int[numLevels];
+        totalCapacity = 0;
+        for (int h = 0; h < capacities.length; h++) {
+            int depth = capacities.length - 1 - h;
+            capacities[h] = Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(CAPACITY_FACTOR, depth)));
+            totalCapacity += capacities[h];
+        }
+    }
+
+    private void append(int h, double value) {
+        while (levels.length <= h) {
+            addLevel();
+        }
+        if (sizes[h] == levels[h].length) {
+            levels[h] = Arrays.copyOf(levels[h], levels[h].length * 2);
+        }
+        levels[h][sizes[h]++] = value;
+        retained++;
+    }
+
+    private void compress() {
+        while (retained >= totalCapacity) {
+            int h = 0;
+            while (sizes[h] < capacities[h]) {
+                h++;
+            }
+            compact(h);
+        }
+    }
+
+    /**
+     * Promotes every other value of level {@code h} to level {@code h+1}, one value stays if the size is odd
+     */
+    private void compact(int h) {
+        double[] level = levels[h];
+        int size = sizes[h];
+        Arrays.sort(level, 0, size);
+        int keep = size % 2;
+        int offset = oddOffsets[h] ? 1 : 0;
+        oddOffsets[h] = !oddOffsets[h];
+        retained -= size - keep;
+        // the kept value is the largest one, the pairs below it are compacted
+        for (int i = offset; i < size - keep; i += 2) {
+            append(h + 1, level[i]);
+        }
+        if (keep == 1) {
+            level[0] = level[size - 1];
+        }
+        sizes[h] = keep;
+        maxRankError += 1L << h;
+    }
+}
@@ -29,6 +29,7 @@ import gedi.util.io.text.LineWriter;
 import gedi.util.mutable.MutablePair;
 import gedi.util.mutable.MutableTriple;
 import gedi.utils.datastructures.SparseNumericArray;
+import gedi.utils.datastructures.TissResultTable;
 import gedi.utils.loader.TsrData;
 import gedi.utils.machineLearning.PeakAndPos;
 
@@ -140,16 +141,16 @@ public class TiSSUtils {
     }
 
     public static Map<ReferenceSequence, List<Integer>> extractTissFromFile(String path, int skip) throws IOException {
-        Map<ReferenceSequence, List<Integer>> out = new HashMap<>();
-        EI.lines(path).skip(skip).forEachRemaining(l -> {
-            String[] split = StringUtils.split(l, "\t");
-            ReferenceSequence ref = Chromosome.obtain(split[0]);
-            int tiss = Integer.parseInt(split[1]);
-            if (!out.containsKey(ref)) {
-                out.put(ref, new ArrayList<>());
-            }
-            out.get(ref).add(tiss);
+        MappedTsvReader reader = new MappedTsvReader(path);
+        reader.skipLines(skip);
+        List<Map<ReferenceSequence, List<Integer>>> chunks = reader.read(HashMap::new, (line, chunk) -> {
+            ReferenceSequence ref = line.reference();
+            chunk.computeIfAbsent(ref, r -> new ArrayList<>()).add(line.parseInt());
         });
+        Map<ReferenceSequence, List<Integer>> out = new HashMap<>();
+        for (Map<ReferenceSequence, List<Integer>> chunk : chunks) {
+            chunk.forEach((ref, tiss) -> out.computeIfAbsent(ref, r -> new ArrayList<>()).addAll(tiss));
+        }
         return out;
     }
 
@@ -347,29 +348,85 @@ public class TiSSUtils {
         return Math.log(x) / Math.log(2) + 1e-10;
     }
 
+    /**
+     * Number of points the sorted values are reconstructed from a {@link QuantileSketch} with
+     */
+    private static final int SKETCH_KNEE_POINTS = 100_000;
+
     public static double calculateThreshold(List<PeakAndPos> peaks, int avg) {
-        if (peaks.size() <= avg) {
+        double[] values = new double[peaks.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = peaks.get(i).getValue();
+        }
+        return calculateThreshold(values, avg);
+    }
+
+    /**
+     * Walks down the sorted values until the mean of a window of {@code avg} values is less than 1/n (relative to the
+     * maximum) above the mean of the {@code avg} largest values and returns the value in the middle of that window.
+     *
+     * The window means are taken from prefix sums. Only if a mean is so close to the decision boundary that the
+     * rounding error of the prefix sums could matter, it is summed up element by element as before, so the result is
+     * the same as the one of the former O(n*avg) implementation.
+     * @param values sorted in place
+     * @return the threshold or -9999 if there are not enough values
+     */
+    public static double calculateThreshold(double[] values, int avg) {
+        int n = values.length;
+        if (n <= avg) {
             return -9999;
         }
-        double xStep = 1.0/peaks.size();
-        double yMax = peaks.stream().mapToDouble(PeakAndPos::getValue).max().getAsDouble();
-        peaks.sort(Comparator.comparingDouble(PeakAndPos::getValue));
-        List<PeakAndPos> peaksNorm = peaks.stream().map(a -> new PeakAndPos(a.getPos(), a.getValue()/yMax)).collect(Collectors.toList());
-        peaksNorm.sort(Comparator.comparingDouble(PeakAndPos::getValue));
-        double lastMean = lstAvg(peaksNorm, peaksNorm.size() - avg, peaksNorm.size());
-        for (int i = peaksNorm.size()-1; i > avg; i--) {
-            double currentMean = lstAvg(peaksNorm, i-avg, i);
-            if (currentMean - lastMean < xStep) {
-                return peaks.get(i-avg/2).getValue();
+        double xStep = 1.0/n;
+        Arrays.sort(values);
+        // the maximum, or NaN if there is any
+        double yMax = values[n-1];
+        double[] norm = new double[n];
+        for (int i = 0; i < n; i++) {
+            norm[i] = values[i]/yMax;
+        }
+        if (!(yMax > 0)) {
+            // dividing by a non-positive maximum does not keep the order
+            Arrays.sort(norm);
+        }
+
+        double[] prefix = new double[n+1];
+        double absSum = 0;
+        for (int i = 0; i < n; i++) {
+            prefix[i+1] = prefix[i] + norm[i];
+            absSum += Math.abs(norm[i]);
+        }
+        boolean exactOnly = Double.isNaN(absSum) || Double.isInfinite(absSum) || avg == 0;
+        // bound of the rounding error of a window mean from prefix sums and of a directly summed one
+        double tolerance = exactOnly ? 0 : 4 * (n+1) * Math.ulp(1.0) * absSum / avg;
+
+        double lastMean = windowMean(norm, n - avg, n);
+        for (int i = n-1; i > avg; i--) {
+            double diff = (prefix[i] - prefix[i-avg])/avg - lastMean;
+            if (exactOnly || Math.abs(diff - xStep) <= tolerance) {
+                diff = windowMean(norm, i-avg, i) - lastMean;
+            }
+            if (diff < xStep) {
+                return values[i-avg/2];
             }
         }
         return -9999;
     }
 
-    private static double lstAvg(List<PeakAndPos> lst, int from, int to) {
+    /**
+     * Same as {@link #calculateThreshold(double[], int)} with {@code avg = n*avgFraction}, on the sorted values
+     * reconstructed from {@code sketch}. The result is identical as long as the sketch is exact and holds at most
+     * {@link #SKETCH_KNEE_POINTS} values.
+     */
+    public static double calculateThreshold(QuantileSketch sketch, double avgFraction) {
+        int m = (int) Math.min(sketch.getN(), SKETCH_KNEE_POINTS);
+        double[] values = sketch.getSortedValues(m);
+        return calculateThreshold(values, (int)(m*avgFraction));
+    }
+
+    private static double windowMean(double[] values, int from, int to) {
         double sum = 0;
         for (int i = from; i < to; i++) {
-            sum += lst.get(i).getValue();
+            sum += values[i];
         }
         return sum/(to-from);
     }
@@ -816,6 +873,60 @@ public class TiSSUtils {
         });
     }
 
+    /**
+     * Same as {@link #extractCountsFromSingleFile(NumericArray, GenomicRegionStorage, int, ReferenceSequence, Strandness, GenomicRegion, ReadType)}
+     * for the whole reference, but extracts all conditions of {@code reads} in a single pass.
+     * @param arys one array per condition of {@code reads}, each as long as the reference
+     */
+    public static void extractCountsForAllConditionsFromSingleFile(NumericArray[] arys, GenomicRegionStorage<AlignedReadsData> reads, ReferenceSequence ref, Strandness strandness, ReadType readType) {
+        ReferenceSequence refTmp = strandness.equals(Strandness.Antisense) ? ref.toOppositeStrand() : ref;
+        final boolean switchFiveAndThreePrimeEnd = strandness == Strandness.Antisense && readType == ReadType.FIVE_PRIME || strandness == Strandness.Sense && readType == ReadType.THREE_PRIME;
+        GenomicRegion region = new ArrayGenomicRegion(0, arys[0].length());
+        reads.ei(refTmp, region).forEachRemaining(r -> {
+            int pos0 = switchFiveAndThreePrimeEnd ? GenomicRegionPosition.ThreePrime.position(r) : GenomicRegionPosition.FivePrime.position(r);
+            int pos1 = switchFiveAndThreePrimeEnd ? GenomicRegionPosition.ThreePrime.position(r, 1) : GenomicRegionPosition.FivePrime.position(r, 1);
+            NumericArray c0 = NumericArray.createMemory(r.getData().getNumConditions(), NumericArray.NumericArrayType.Double);
+            NumericArray c1 = NumericArray.createMemory(r.getData().getNumConditions(), NumericArray.NumericArrayType.Double);
+            for (int k = 0; k < r.getData().getDistinctSequences(); k++) {
+                if (hasEndMismatch(r.getData(), k, r.getRegion().getTotalLength(), strandness)) {
+                    c1 = r.getData().addCountsForDistinct(k, c1, ReadCountMode.Weight);
+                } else {
+                    c0 = r.getData().addCountsForDistinct(k, c0, ReadCountMode.Weight);
+                }
+            }
+            if (pos0 >= 0 && pos0 < arys[0].length() && c0.length() > 0) {
+                for (int cond = 0; cond < arys.length; cond++) {
+                    arys[cond].setFloat(pos0, arys[cond].getFloat(pos0) + c0.getFloat(cond));
+                }
+            }
+            if (pos1 >= 0 && pos1 < arys[0].length() && c1.length() > 0) {
+                for (int cond = 0; cond < arys.length; cond++) {
+                    arys[cond].setFloat(pos1, arys[cond].getFloat(pos1) + c1.getFloat(cond));
+                }
+            }
+        });
+    }
+
+    /**
+     * Same as {@link #extractReadDensitiesFromSingleFile(NumericArray, GenomicRegionStorage, int[], ReferenceSequence, Strandness, GenomicRegion, ReadCountMode)}
+     * for the whole reference, but extracts all conditions of {@code reads} in a single pass.
+     * @param arys one array per condition of {@code reads}, each as long as the reference
+     */
+    public static void extractReadDensitiesForAllConditionsFromSingleFile(NumericArray[] arys, GenomicRegionStorage<AlignedReadsData> reads, ReferenceSequence ref, Strandness strandness, ReadCountMode mode) {
+        ReferenceSequence refTmp = strandness.equals(Strandness.Antisense) ? ref.toOppositeStrand() : ref;
+        int length = arys[0].length();
+        reads.ei(refTmp, new ArrayGenomicRegion(0, length)).forEachRemaining(r -> {
+            double[] counts = r.getData().getTotalCountsForConditions(mode);
+            r.getRegion().iterator().forEachRemaining(regPart -> {
+                for (int i = Math.max(0, regPart.getStart()); i < Math.min(length, regPart.getEnd()); i++) {
+                    for (int cond = 0; cond < arys.length; cond++) {
+                        arys[cond].setFloat(i, arys[cond].getFloat(i) + (float)counts[cond]);
+                    }
+                }
+            });
+        });
+    }
+
     public static SparseNumericArray<Double> extractFivePrimeCountsNormalizedSparse(List<GenomicRegionStorage<AlignedReadsData>> reads,
                                                                 int[] condIndex, ReferenceSequence ref, GenomicRegion region, Strandness strandness,
                                                                 float[] totals) {
@@ -908,7 +1019,7 @@ public class TiSSUtils {
         });
     }
 
-    private static boolean hasEndMismatch(AlignedReadsData ard, int distict, int readLength, Strandness strandness) {
+    public static boolean hasEndMismatch(AlignedReadsData ard, int distict, int readLength, Strandness strandness) {
         if (strandness.equals(Strandness.Antisense)) {
             return hasTailingMismatch(ard, distict, readLength);
         } else {
@@ -969,6 +1080,19 @@ public class TiSSUtils {
         return EI.wrap(lstToClean).filter(i -> countMap.get(Double.doubleToLongBits(i.Item2)) < multiThreshold).list();
     }
 
+    /**
+     * Counts how often each value of {@code column} occurs in {@code rows}, the counterpart of
+     * {@link #cleanUpMultiValueDataTriple(List, int)} for result tables.
+     * @return the number of rows per value, keyed by {@link Double#doubleToLongBits(double)}
+     */
+    public static Map<Long, Integer> countValues(TissResultTable.Rows rows, int column) {
+        Map<Long, Integer> countMap = new HashMap<>();
+        for (int row = 0; row < rows.size(); row++) {
+            countMap.merge(Double.doubleToLongBits(rows.getValue(row, column)), 1, Integer::sum);
+        }
+        return countMap;
+    }
+
     public static void addNeighbourWeights(List<MutableTriple<Integer, Double, Double>> sortedLst) {
         for (int i = 0; i < sortedLst.size(); i++) {
             MutableTriple<Integer, Double, Double> current = sortedLst.get(i);
@@ -0,0 +1,321 @@
+package gedi.utils;
+
+import gedi.util.datastructure.array.NumericArray;
+
+import java.util.function.LongConsumer;
+
+/**
+ * Cumulative sums, zero counts and squared sums of the read counts of one lane, so the sum, mean, variance or number
+ * of zeros of any window [from, to) is answered in O(1) instead of being updated by each module while sliding.
+ *
+ * The statistics of read counts in memory are built once per array by their {@link gedi.data.MemoryReadCount}, shared
+ * read-only by all modules working on the same array and released together with the read counts. The array must not
+ * be changed afterwards.
+ *
+ * For read counts, i.e. integral values, the cumulative sums are stored per block of {@link #BLOCK_SIZE} positions
+ * plus an int offset within the block. This keeps them exact and takes about 5 bytes per position (9 with squares).
+ * For other values, plain cumulative doubles are used. The squared sums are only built when a variance is asked for.
+ *
+ * A bitmap of the non-zero positions lets sparse libraries, where most positions have no reads at all, jump from one
+ * read to the next, see {@link #nextNonZero(int, int)} and {@link #nextCovered(int, int, int, int)}.
+ */
+public class WindowStats {
+    /**
+     * Values up to this are counted as zero, see {@link #zeroCount(int, int)}
+     */
+    public static final double ZERO_THRESHOLD = 0.5;
+    private static final int BLOCK_BITS = 6;
+    public static final int BLOCK_SIZE = 1 << BLOCK_BITS;
+
+    /**
+     * Only needed for the squares and {@link #nextAtLeast}
+     */
+    private final NumericArray data;
+    private final LongConsumer squaresAllocated;
+    private final int length;
+    private final Cumulative sums;
+    private final int[] zeroBlocks;
+    private final byte[] zeroOffsets;
+    private final double[] blockMax;
+    private final long[] nonZero;
+    private volatile Cumulative squares;
+
+    public WindowStats(NumericArray data) {
+        this(data, bytes -> {});
+    }
+
+    /**
+     * @param squaresAllocated gets the bytes of the squared sums when they are built on demand, see
+     *                         {@link #getByteSize()}
+     */
+    public WindowStats(NumericArray data, LongConsumer squaresAllocated) {
+        this.data = data;
+        this.squaresAllocated = squaresAllocated;
+        this.length = data.length();
+        int blocks = (length >>> BLOCK_BITS) + 1;
+        zeroBlocks = new int[blocks];
+        zeroOffsets = new byte[length + 1];
+        blockMax = new double[blocks];
+        nonZero = new long[(length >>> 6) + 1];
+        int zeros = 0;
+        for (int i = 0; i < length; i++) {
+            int block = i >>> BLOCK_BITS;
+            if ((i & (BLOCK_SIZE - 1)) == 0) {
+                zeroBlocks[block] = zeros;
+                blockMax[block] = Double.NEGATIVE_INFINITY;
+            }
+            zeroOffsets[i] = (byte) (zeros - zeroBlocks[block]);
+            double v = data.getDouble(i);
+            if (v <= ZERO_THRESHOLD) {
+                zeros++;
+            }
+            if (v > blockMax[block]) {
+                blockMax[block] = v;
+            }
+            if (v != 0) {
+                nonZero[i >>> 6] |= 1L << i;
+            }
+        }
+        int block = length >>> BLOCK_BITS;
+        if ((length & (BLOCK_SIZE - 1)) == 0) {
+            zeroBlocks[block] = zeros;
+        }
+        zeroOffsets[length] = (byte) (zeros - zeroBlocks[block]);
+        sums = Cumulative.build(data, false);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public double sum(int from, int to) {
+        return sums.upTo(to) - sums.upTo(from);
+    }
+
+    public double mean(int from, int to) {
+        return sum(from, to) / (to - from);
+    }
+
+    /**
+     * @return the number of values of [from, to) that are at most {@link #ZERO_THRESHOLD}
+     */
+    public int zeroCount(int from, int to) {
+        return zeros(to) - zeros(from);
+    }
+
+    public double sumOfSquares(int from, int to) {
+        Cumulative sq = getSquares();
+        return sq.upTo(to) - sq.upTo(from);
+    }
+
+    /**
+     * @return the sample variance of the values of [from, to), needs at least two values
+     */
+    public double sampleVariance(int from, int to) {
+        int n = to - from;
+        double sum = sum(from, to);
+        double sumOfSquares = sumOfSquares(from, to);
+        double m2;
+        if (sums.isExact() && getSquares().isExact() && Math.abs(sum) < (1L << 31) && sumOfSquares * n < (1L << 62)) {
+            // n*sum(x^2) - sum(x)^2 without rounding
+            m2 = ((long) sumOfSquares * n - (long) sum * (long) sum) / (double) n;
+        } else {
+            m2 = sumOfSquares - sum * sum / n;
+        }
+        return m2 <= 0 ? 0 : m2 / (n - 1);
+    }
+
+    /**
+     * @return the first position of [from, to) with a value of at least {@code min}, or {@code to} if there is none.
+     * Blocks without such a value are skipped as a whole.
+     */
+    public int nextAtLeast(int from, int to, double min) {
+        int i = from;
+        while (i < to) {
+            if ((i & (BLOCK_SIZE - 1)) == 0 && blockMax[i >>> BLOCK_BITS] < min) {
+                i += BLOCK_SIZE;
+                continue;
+            }
+            if (data.getDouble(i) >= min) {
+                return i;
+            }
+            i++;
+        }
+        return to;
+    }
+
+    /**
+     * @return the first position of [from, to) with a value other than 0, or {@code to} if there is none
+     */
+    public int nextNonZero(int from, int to) {
+        if (from >= to) {
+            return to;
+        }
+        int word = from >>> 6;
+        long bits = nonZero[word] & (-1L << from);
+        while (bits == 0) {
+            word++;
+            if (word << 6 >= to) {
+                return to;
+            }
+            bits = nonZero[word];
+        }
+        return Math.min(to, (word << 6) + Long.numberOfTrailingZeros(bits));
+    }
+
+    /**
+     * @return the first position i of [from, to) whose window [i-before, i+after] contains a value other than 0, or
+     * {@code to} if there is none. Positions outside of the array count as 0.
+     */
+    public int nextCovered(int from, int to, int before, int after) {
+        if (from >= to) {
+            return to;
+        }
+        int searchFrom = Math.max(0, from - before);
+        int searchTo = (int) Math.min(length, (long) to + after);
+        int next = nextNonZero(searchFrom, searchTo);
+        if (next >= searchTo) {
+            return to;
+        }
+        return Math.min(to, Math.max(from, next - after));
+    }
+
+    /**
+     * @return the bytes used by the statistics, without the read counts themselves
+     */
+    public long getByteSize() {
+        Cumulative sq = squares;
+        return sums.getByteSize() + (sq == null ? 0 : sq.getByteSize()) + zeroBlocks.length * 4L + zeroOffsets.length
+                + blockMax.length * 8L + nonZero.length * 8L;
+    }
+
+    private int zeros(int i) {
+        return zeroBlocks[i >>> BLOCK_BITS] + zeroOffsets[i];
+    }
+
+    private Cumulative getSquares() {
+        Cumulative sq = squares;
+        if (sq == null) {
+            synchronized (this) {
+                sq = squares;
+                if (sq == null) {
+                    sq = Cumulative.build(data, true);
+                    squares = sq;
+                    squaresAllocated.accept(sq.getByteSize());
+                }
+            }
+        }
+        return sq;
+    }
+
+    /**
+     * Sums of the values (or their squares) of [0, i) for each position i
+     */
+    private abstract static class Cumulative {
+        abstract double upTo(int i);
+
+        /**
+         * @return whether the sums are integral and without rounding errors
+         */
+        abstract boolean isExact();
+
+        abstract long getByteSize();
+
+        static Cumulative build(NumericArray data, boolean squared) {
+            Cumulative blocked = Blocked.build(data, squared);
+            return blocked != null ? blocked : Plain.build(data, squared);
+        }
+    }
+
+    private static class Blocked extends Cumulative {
+        private final double[] blocks;
+        private final int[] offsets;
+
+        private Blocked(double[] blocks, int[] offsets) {
+            this.blocks = blocks;
+            this.offsets = offsets;
+        }
+
+        /**
+         * @return null if the values are not integral or a block sum does not fit into an int
+         */
+        static Blocked build(NumericArray data, boolean squared) {
+            int length = data.length();
+            double[] blocks = new double[(length >>> BLOCK_BITS) + 1];
+            int[] offsets = new int[length + 1];
+            long total = 0;
+            long blockStart = 0;
+            for (int i = 0; i < length; i++) {
+                if ((i & (BLOCK_SIZE - 1)) == 0) {
+                    blockStart = total;
+                    blocks[i >>> BLOCK_BITS] = blockStart;
+                }
+                offsets[i] = (int) (total - blockStart);
+                double v = data.getDouble(i);
+                if (squared) {
+                    v *= v;
+                }
+                if (v != Math.rint(v) || Math.abs(v) > Integer.MAX_VALUE) {
+                    return null;
+                }
+                total += (long) v;
+                if (Math.abs(total - blockStart) > Integer.MAX_VALUE || Math.abs(total) > (1L << 53)) {
+                    return null;
+                }
+            }
+            if ((length & (BLOCK_SIZE - 1)) == 0) {
+                blockStart = total;
+                blocks[length >>> BLOCK_BITS] = blockStart;
+            }
+            offsets[length] = (int) (total - blockStart);
+            return new Blocked(blocks, offsets);
+        }
+
+        @Override
+        double upTo(int i) {
+            return blocks[i >>> BLOCK_BITS] + offsets[i];
+        }
+
+        @Override
+        boolean isExact() {
+            return true;
+        }
+
+        @Override
+        long getByteSize() {
+            return blocks.length * 8L + offsets.length * 4L;
+        }
+    }
+
+    private static class Plain extends Cumulative {
+        private final double[] sums;
+
+        private Plain(double[] sums) {
+            this.sums = sums;
+        }
+
+        static Plain build(NumericArray data, boolean squared) {
+            double[] sums = new double[data.length() + 1];
+            for (int i = 0; i < data.length(); i++) {
+                double v = data.getDouble(i);
+                sums[i + 1] = sums[i] + (squared ? v * v : v);
+            }
+            return new Plain(sums);
+        }
+
+        @Override
+        double upTo(int i) {
+            return sums[i];
+        }
+
+        @Override
+        boolean isExact() {
+            return false;
+        }
+
+        @Override
+        long getByteSize() {
+            return sums.length * 8L;
+        }
+    }
+}
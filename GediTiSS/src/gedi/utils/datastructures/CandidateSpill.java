@@ -0,0 +1,215 @@
+package gedi.utils.datastructures;
+
+import gedi.core.reference.ReferenceSequence;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Candidate positions of an autoparam module kept on disk until the threshold is known.
+ *
+ * Each reference is spilled to its own file of fixed-width records, the position as int followed by the values as
+ * doubles, and read back into primitive arrays by {@link #read(ReferenceSequence)}. The files are created in a
+ * temporary directory on first use and removed by {@link #delete()}.
+ *
+ * Thread-safe. The records of a reference keep the order in which they were appended.
+ */
+public class CandidateSpill {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final Path parent;
+    private final String name;
+    private final int valueCount;
+    private final Map<ReferenceSequence, Writer> writers = new HashMap<>();
+    private Path directory;
+
+    /**
+     * @param parent the directory the temporary directory of the files is created in
+     * @param name the prefix of the temporary directory
+     * @param valueCount the number of values per position
+     */
+    public CandidateSpill(Path parent, String name, int valueCount) {
+        this.parent = parent;
+        this.name = name;
+        this.valueCount = valueCount;
+    }
+
+    public int getValueCount() {
+        return valueCount;
+    }
+
+    /**
+     * @return the number of bytes of a single record
+     */
+    public int getRecordSize() {
+        return Integer.BYTES + valueCount * Double.BYTES;
+    }
+
+    /**
+     * @return the writer of {@code ref}, the file is created on first call
+     */
+    public synchronized Writer getWriter(ReferenceSequence ref) throws IOException {
+        Writer writer = writers.get(ref);
+        if (writer == null) {
+            if (directory == null) {
+                directory = Files.createTempDirectory(parent, name);
+            }
+            writer = new Writer(directory.resolve(writers.size() + ".bin"));
+            writers.put(ref, writer);
+        }
+        return writer;
+    }
+
+    public synchronized Set<ReferenceSequence> getReferences() {
+        return new HashSet<>(writers.keySet());
+    }
+
+    /**
+     * @return the number of records over all references
+     */
+    public synchronized long size() {
+        long size = 0;
+        for (Writer writer : writers.values()) {
+            size += writer.size();
+        }
+        return size;
+    }
+
+    /**
+     * Closes the writer of {@code ref} and reads its records. Nothing can be appended to {@code ref} afterwards.
+     * @return the records of {@code ref}, empty if nothing was appended
+     */
+    public Records read(ReferenceSequence ref) throws IOException {
+        Writer writer;
+        synchronized (this) {
+            writer = writers.get(ref);
+        }
+        if (writer == null) {
+            return new Records(new int[0], new double[valueCount][0]);
+        }
+        return writer.read();
+    }
+
+    /**
+     * Closes all writers and removes the files
+     */
+    public synchronized void delete() throws IOException {
+        List<IOException> errors = new ArrayList<>();
+        for (Writer writer : writers.values()) {
+            try {
+                writer.close();
+                Files.deleteIfExists(writer.file);
+            } catch (IOException e) {
+                errors.add(e);
+            }
+        }
+        writers.clear();
+        if (directory != null) {
+            Files.deleteIfExists(directory);
+            directory = null;
+        }
+        if (!errors.isEmpty()) {
+            throw errors.get(0);
+        }
+    }
+
+    /**
+     * Appends the records of a single reference
+     */
+    public class Writer {
+        private final Path file;
+        private DataOutputStream out;
+        private long size;
+
+        private Writer(Path file) throws IOException {
+            this.file = file;
+            this.out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE));
+        }
+
+        /**
+         * @param values one value per column, see {@link #getValueCount()}
+         */
+        public synchronized void append(int position, double... values) throws IOException {
+            if (values.length != valueCount) {
+                throw new IllegalArgumentException("Expected " + valueCount + " values, got " + values.length);
+            }
+            if (out == null) {
+                throw new IllegalStateException("The candidates of this reference were already read.");
+            }
+            out.writeInt(position);
+            for (double v : values) {
+                out.writeDouble(v);
+            }
+            size++;
+        }
+
+        public synchronized long size() {
+            return size;
+        }
+
+        private synchronized void close() throws IOException {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+
+        private synchronized Records read() throws IOException {
+            close();
+            if (size > Integer.MAX_VALUE) {
+                throw new IOException("Too many candidates to read at once: " + size);
+            }
+            int n = (int) size;
+            int[] positions = new int[n];
+            double[][] values = new double[valueCount][n];
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE))) {
+                for (int i = 0; i < n; i++) {
+                    positions[i] = in.readInt();
+                    for (int c = 0; c < valueCount; c++) {
+                        values[c][i] = in.readDouble();
+                    }
+                }
+            } catch (EOFException e) {
+                throw new IOException("Truncated candidate file " + file, e);
+            }
+            return new Records(positions, values);
+        }
+    }
+
+    /**
+     * The records of a single reference in the order they were appended
+     */
+    public static class Records {
+        private final int[] positions;
+        private final double[][] values;
+
+        private Records(int[] positions, double[][] values) {
+            this.positions = positions;
+            this.values = values;
+        }
+
+        public int size() {
+            return positions.length;
+        }
+
+        public int getPosition(int record) {
+            return positions[record];
+        }
+
+        public double getValue(int record, int column) {
+            return values[column][record];
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package gedi.utils.datastructures;
+
+import gedi.core.reference.ReferenceSequence;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.IntPredicate;
+
+/**
+ * Called or candidate positions of a module together with their values.
+ *
+ * All positions share the same columns, so the values are stored column by column in primitive arrays per reference
+ * instead of one map per position. Positions are appended while scanning and sorted on first read. Appending a
+ * position twice keeps the values appended last.
+ */
+public class TissResultTable {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private final String[] columns;
+    private final Map<ReferenceSequence, Rows> rows = new HashMap<>();
+
+    public TissResultTable(String... columns) {
+        this.columns = columns.clone();
+    }
+
+    public String[] getColumns() {
+        return columns.clone();
+    }
+
+    public int getColumnCount() {
+        return columns.length;
+    }
+
+    /**
+     * @throws IllegalArgumentException if there is no column {@code column}
+     */
+    public int getColumnIndex(String column) {
+        for (int i = 0; i < columns.length; i++) {
+            if (columns[i].equals(column)) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Unknown column " + column + ", available: " + Arrays.toString(columns));
+    }
+
+    public synchronized Set<ReferenceSequence> getReferences() {
+        return rows.keySet();
+    }
+
+    /**
+     * @return the rows of {@code ref} or null if nothing was added for {@code ref}
+     */
+    public synchronized Rows get(ReferenceSequence ref) {
+        return rows.get(ref);
+    }
+
+    public synchronized Rows getOrCreate(ReferenceSequence ref) {
+        return rows.computeIfAbsent(ref, k -> new Rows(columns.length));
+    }
+
+    /**
+     * @return the number of positions over all references
+     */
+    public synchronized long size() {
+        long size = 0;
+        for (Rows r : rows.values()) {
+            size += r.size();
+        }
+        return size;
+    }
+
+    /**
+     * The positions of a single reference. Not thread-safe, a module only works on one reference at a time.
+     */
+    public static class Rows {
+        private int[] positions;
+        private double[][] values;
+        private int size;
+        private boolean sorted = true;
+
+        private Rows(int columnCount) {
+            positions = new int[INITIAL_CAPACITY];
+            values = new double[columnCount][INITIAL_CAPACITY];
+        }
+
+        /**
+         * @param rowValues one value per column, in the order of the columns of the table
+         */
+        public void append(int position, double... rowValues) {
+            if (rowValues.length != values.length) {
+                throw new IllegalArgumentException("Expected " + values.length + " values, got " + rowValues.length);
+            }
+            if (size == positions.length) {
+                int capacity = positions.length * 2;
+                positions = Arrays.copyOf(positions, capacity);
+                for (int c = 0; c < values.length; c++) {
+                    values[c] = Arrays.copyOf(values[c], capacity);
+                }
+            }
+            if (size > 0 && positions[size-1] >= position) {
+                sorted = false;
+            }
+            positions[size] = position;
+            for (int c = 0; c < values.length; c++) {
+                values[c][size] = rowValues[c];
+            }
+            size++;
+        }
+
+        public int size() {
+            ensureSorted();
+            return size;
+        }
+
+        /**
+         * @return the position of the {@code row}-th row, the rows are sorted by position
+         */
+        public int getPosition(int row) {
+            ensureSorted();
+            return positions[row];
+        }
+
+        public double getValue(int row, int column) {
+            ensureSorted();
+            return values[column][row];
+        }
+
+        /**
+         * @return the row of {@code position} or -1 if it is not part of the table
+         */
+        public int indexOf(int position) {
+            ensureSorted();
+            int row = Arrays.binarySearch(positions, 0, size, position);
+            return row < 0 ? -1 : row;
+        }
+
+        public boolean contains(int position) {
+            return indexOf(position) >= 0;
+        }
+
+        /**
+         * Removes all rows {@code keep} returns false for. The rows are tested in ascending order before any row is
+         * moved, so {@code keep} can look up the values of the row it is given.
+         */
+        public void filter(IntPredicate keep) {
+            ensureSorted();
+            int kept = 0;
+            for (int row = 0; row < size; row++) {
+                if (keep.test(row)) {
+                    move(row, kept++);
+                }
+            }
+            size = kept;
+            trimToSize();
+        }
+
+        private void move(int from, int to) {
+            if (from == to) {
+                return;
+            }
+            positions[to] = positions[from];
+            for (double[] column : values) {
+                column[to] = column[from];
+            }
+        }
+
+        private void trimToSize() {
+            int capacity = Math.max(size, INITIAL_CAPACITY);
+            if (capacity < positions.length) {
+                positions = Arrays.copyOf(positions, capacity);
+                for (int c = 0; c < values.length; c++) {
+                    values[c] = Arrays.copyOf(values[c], capacity);
+                }
+            }
+        }
+
+        private void ensureSorted() {
+            if (sorted) {
+                return;
+            }
+            // position in the upper, row in the lower half, so equal positions stay in the order they were appended
+            long[] order = new long[size];
+            for (int row = 0; row < size; row++) {
+                order[row] = ((long) positions[row] << 32) | row;
+            }
+            Arrays.sort(order);
+
+            int[] sortedPositions = new int[Math.max(size, INITIAL_CAPACITY)];
+            double[][] sortedValues = new double[values.length][sortedPositions.length];
+            int n = 0;
+            for (int i = 0; i < size; i++) {
+                int row = (int) order[i];
+                if (i+1 < size && (int) (order[i+1] >>> 32) == positions[row]) {
+                    // replaced by a later row of the same position
+                    continue;
+                }
+                sortedPositions[n] = positions[row];
+                for (int c = 0; c < values.length; c++) {
+                    sortedValues[c][n] = values[c][row];
+                }
+                n++;
+            }
+            positions = sortedPositions;
+            values = sortedValues;
+            size = n;
+            sorted = true;
+        }
+    }
+}
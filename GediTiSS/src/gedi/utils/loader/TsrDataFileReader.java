@@ -3,12 +3,21 @@ package gedi.utils.loader;
 import gedi.core.reference.Chromosome;
 import gedi.core.reference.ReferenceSequence;
 import gedi.core.region.GenomicRegion;
+import gedi.core.region.ImmutableReferenceGenomicRegion;
 import gedi.core.region.MutableReferenceGenomicRegion;
+import gedi.core.region.intervalTree.MemoryIntervalTreeStorage;
+import gedi.util.functions.EI;
 import gedi.util.functions.TriConsumer;
 import gedi.util.io.text.HeaderLine;
 import gedi.util.io.text.tsv.GenomicTsvFileReader;
+import gedi.utils.MappedTsvReader;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class TsrDataFileReader extends GenomicTsvFileReader<TsrData> {
@@ -17,6 +26,43 @@ public class TsrDataFileReader extends GenomicTsvFileReader<TsrData> {
         super(path, true, "\t", new TsrDataElementParser(), null, TsrData.class);
     }
 
+    /**
+     * Reads {@code path} like {@link #readIntoMemoryTakeFirst()}, but parses the lines in parallel with a
+     * {@link MappedTsvReader}. Of several lines of the same region, only the first one is kept.
+     */
+    public static MemoryIntervalTreeStorage<TsrData> readIntoMemory(String path) throws IOException {
+        MappedTsvReader reader = new MappedTsvReader(path);
+        reader.skipLines(1);
+        List<List<ImmutableReferenceGenomicRegion<TsrData>>> chunks = reader.read(ArrayList::new, (line, chunk) -> {
+            int fields = line.fieldCount();
+            ReferenceSequence ref = line.reference();
+            int maxTissPos = line.parseInt();
+            GenomicRegion reg = GenomicRegion.parse(line.string());
+            Set<Integer> score = new HashSet<>();
+            for (int i = 3; i < fields-2; i++) {
+                int called = line.parseInt();
+                if (called == 1) {
+                    score.add(i-3);
+                } else if (called != 0) {
+                    throw new IllegalStateException();
+                }
+            }
+            chunk.add(new ImmutableReferenceGenomicRegion<>(ref, reg, new TsrData(score.size(), maxTissPos, score)));
+        });
+        Map<ReferenceSequence, Set<GenomicRegion>> seen = new HashMap<>();
+        List<ImmutableReferenceGenomicRegion<TsrData>> first = new ArrayList<>();
+        for (List<ImmutableReferenceGenomicRegion<TsrData>> chunk : chunks) {
+            for (ImmutableReferenceGenomicRegion<TsrData> rgr : chunk) {
+                if (seen.computeIfAbsent(rgr.getReference(), r -> new HashSet<>()).add(rgr.getRegion())) {
+                    first.add(rgr);
+                }
+            }
+        }
+        MemoryIntervalTreeStorage<TsrData> mem = new MemoryIntervalTreeStorage<>(TsrData.class);
+        mem.fill(EI.wrap(first));
+        return mem;
+    }
+
     public static class TsrDataElementParser implements TriConsumer<HeaderLine, String[], MutableReferenceGenomicRegion<TsrData>> {
 
         @Override
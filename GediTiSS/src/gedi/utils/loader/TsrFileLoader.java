@@ -20,7 +20,7 @@ public class TsrFileLoader implements WorkspaceItemLoader<MemoryIntervalTreeStor
 
     @Override
     public MemoryIntervalTreeStorage<TsrData> load(Path path) throws IOException {
-        return new TsrDataFileReader(path.toString()).readIntoMemoryTakeFirst();
+        return TsrDataFileReader.readIntoMemory(path.toString());
     }
 
     @Override
@@ -10,6 +10,15 @@ import java.util.List;
 
 public class BamConverter {
     public static GenomicRegionStorage<DefaultAlignedReadsData> convertBam(List<String> bamFiles, String outputPath) throws IOException {
+        convert(bamFiles, outputPath);
+        GenomicRegionStorage<DefaultAlignedReadsData> cit = new CenteredDiskIntervalTreeStorage<>(outputPath, DefaultAlignedReadsData.class);
+        return cit;
+    }
+
+    /**
+     * Converts {@code bamFiles} into a single CIT file at {@code outputPath}, one condition per BAM file
+     */
+    public static void convert(List<String> bamFiles, String outputPath) throws IOException {
         String[] bam2CitArgs = new String[bamFiles.size()+1];
         bam2CitArgs[0] = outputPath;
 //        bam2CitArgs[0] = "";
@@ -17,7 +26,5 @@ public class BamConverter {
             bam2CitArgs[i] = bamFiles.get(i-1);
         }
         Bam2CIT.main(bam2CitArgs);
-        GenomicRegionStorage<DefaultAlignedReadsData> cit = new CenteredDiskIntervalTreeStorage<>(outputPath, DefaultAlignedReadsData.class);
-        return cit;
     }
 }
@@ -4,15 +4,25 @@ import gedi.TiSSParameterSet;
 import gedi.centeredDiskIntervalTree.CenteredDiskIntervalTreeStorage;
 import gedi.core.data.reads.DefaultAlignedReadsData;
 import gedi.core.region.GenomicRegionStorage;
+import gedi.data.ConversionCache;
 import gedi.util.program.GediProgram;
 import gedi.util.program.GediProgramContext;
+import gedi.utils.ReadType;
 
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Locale;
 
 public class ConvertBam extends GediProgram {
     public ConvertBam(TiSSParameterSet params) {
         addInput(params.bamFiles);
         addInput(params.prefix);
+        addInput(params.keepCit);
+        addInput(params.readType);
+        addInput(params.bamCache);
+        addInput(params.noBamCache);
 
         addOutput(params.reads);
     }
@@ -21,18 +31,71 @@ public class ConvertBam extends GediProgram {
     public String execute(GediProgramContext context) throws Exception {
         List<String> bamFiles = getParameters(0);
         String prefix = getParameter(1);
+        boolean keepCit = getParameter(2);
+        ReadType readType = getParameter(3);
+        String bamCache = getParameter(4);
+        boolean noBamCache = getParameter(5);
 
         if (bamFiles.size() == 0) {
             context.getLog().info("No BAM files provided. Using CIT-file.");
             return null;
         }
+        if (!keepCit && readType != ReadType.DENSITY) {
+            context.getLog().info("Counting the reads directly from the BAM files. Use -keepCit to convert them into a CIT-file instead.");
+            return null;
+        }
         context.getLog().info("Converting BAMs into CIT-files. This might take a while depending on the BAM size");
         context.getLog().info("Keep in mind that they need to be sorted and indexed using samtools prior to iTiSS!");
-        String readsOutputFile = prefix + "BAM2CIT_convertedReads.cit";
+        File readsOutputFile = new File(prefix + "BAM2CIT_convertedReads.cit");
+        File outputDirectory = readsOutputFile.getAbsoluteFile().getParentFile();
+        if (outputDirectory != null) {
+            outputDirectory.mkdirs();
+        }
 
-        GenomicRegionStorage<DefaultAlignedReadsData> cit = BamConverter.convertBam(bamFiles, readsOutputFile);
+        GenomicRegionStorage<DefaultAlignedReadsData> cit;
+        if (noBamCache) {
+            convert(context, bamFiles, readsOutputFile);
+            cit = new CenteredDiskIntervalTreeStorage<>(readsOutputFile.getPath(), DefaultAlignedReadsData.class);
+        } else {
+            ConversionCache cache = new ConversionCache(new File(bamCache));
+            List<File> bams = new ArrayList<>();
+            for (String bam : bamFiles) {
+                bams.add(new File(bam));
+            }
+            File cached = cache.getCitFile(bams);
+            if (cached.isFile()) {
+                context.getLog().info("Cache hit: reusing " + cached.getPath() + ", converted from the same BAM files before");
+            } else {
+                if (!cache.getDirectory().isDirectory() && !cache.getDirectory().mkdirs() && !cache.getDirectory().isDirectory()) {
+                    throw new IOException("Could not create " + cache.getDirectory().getPath());
+                }
+                // converted next to the cache entry first, so concurrent jobs never see a partially written CIT-file
+                File tmp = new File(cache.getDirectory(), "tmp" + System.nanoTime() + "_" + cached.getName());
+                try {
+                    convert(context, bamFiles, tmp);
+                    ConversionCache.moveInto(tmp, cached);
+                } finally {
+                    tmp.delete();
+                }
+            }
+            ConversionCache.linkOrCopy(cached, readsOutputFile);
+            // opened in the cache, so its coverage index is kept there as well
+            cit = new CenteredDiskIntervalTreeStorage<>(cached.getPath(), DefaultAlignedReadsData.class);
+        }
 
         setOutput(0, cit);
         return null;
     }
+
+    private void convert(GediProgramContext context, List<String> bamFiles, File output) throws IOException {
+        long bytes = 0;
+        for (String bam : bamFiles) {
+            bytes += new File(bam).length();
+        }
+        long start = System.nanoTime();
+        BamConverter.convert(bamFiles, output.getPath());
+        double seconds = (System.nanoTime() - start) / 1e9;
+        double mb = bytes / (1024. * 1024.);
+        context.getLog().info(String.format(Locale.US, "Converted %.1f MB of BAM files in %.1f s (%.1f MB/s)", mb, seconds, seconds == 0 ? 0 : mb / seconds));
+    }
 }
@@ -58,6 +58,23 @@ public class AccessionList {
         accession[index] = AccessionStatus.CURRENTLY_ACCESSED;
     }
 
+    public boolean isNeeded(int index) {
+        return accession[index] == AccessionStatus.NOT_ACCESSED;
+    }
+
+    public boolean isAccessing() {
+        for (AccessionStatus anAccession : accession) {
+            if (anAccession == AccessionStatus.CURRENTLY_ACCESSED) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    public int size() {
+        return accession.length;
+    }
+
     public boolean isFree(int index) {
         return accession[index] != AccessionStatus.CURRENTLY_ACCESSED;
     }
@@ -0,0 +1,324 @@
+package gedi.utils.sortedNodesList;
+
+import java.util.Arrays;
+
+/**
+ * Ascending ordered multiset of primitive doubles with a static size.
+ * Drop-in replacement for {@code StaticSizeSortedArrayList<Double>} used by the sliding window modules.
+ *
+ * Internally an array-backed treap over the distinct values, each node holding the multiplicity of its value:
+ * insert, delete, rank and select are O(log n) and no objects are allocated after construction. Values are ordered like {@link Double#compare(double, double)}, so
+ * -0.0 is smaller than 0.0, exactly as with {@code Double::compareTo}.
+ */
+public class StaticSizeSortedDoubleTree {
+    private static final int NIL = 0;
+
+    private final double[] keys;
+    private final int[] left;
+    private final int[] right;
+    private final int[] count;
+    private final int[] multiplicity;
+    private final int[] prio;
+    private final int[] stack;
+    private int root;
+    private int freeHead;
+    private int randomState = 0x2545F491;
+    private int size;
+
+    // results of split(), kept as fields to avoid allocating a pair per call
+    private int splitL;
+    private int splitR;
+    private boolean removed;
+
+    public StaticSizeSortedDoubleTree(double[] values) {
+        int capacity = values.length + 1;
+        keys = new double[capacity + 1];
+        left = new int[capacity + 1];
+        right = new int[capacity + 1];
+        count = new int[capacity + 1];
+        multiplicity = new int[capacity + 1];
+        prio = new int[capacity + 1];
+        stack = new int[capacity + 1];
+        for (int i = capacity; i >= 1; i--) {
+            left[i] = freeHead;
+            freeHead = i;
+        }
+        root = NIL;
+        for (double v : values) {
+            insert(v);
+        }
+        this.size = values.length;
+    }
+
+    private int nextPriority() {
+        randomState ^= randomState << 13;
+        randomState ^= randomState >>> 17;
+        randomState ^= randomState << 5;
+        return randomState;
+    }
+
+    private int allocate(double value) {
+        int n = freeHead;
+        if (n == NIL) {
+            throw new IllegalStateException("StaticSizeSortedDoubleTree is full. Should never happen.");
+        }
+        freeHead = left[n];
+        keys[n] = value;
+        left[n] = NIL;
+        right[n] = NIL;
+        count[n] = 1;
+        multiplicity[n] = 1;
+        prio[n] = nextPriority();
+        return n;
+    }
+
+    private void release(int n) {
+        left[n] = freeHead;
+        right[n] = NIL;
+        count[n] = 0;
+        multiplicity[n] = 0;
+        freeHead = n;
+    }
+
+    private void update(int t) {
+        count[t] = multiplicity[t] + count[left[t]] + count[right[t]];
+    }
+
+    /**
+     * Splits {@code t} into {@code splitL} (all keys smaller than {@code key}) and {@code splitR} (all others)
+     */
+    private void split(int t, double key) {
+        if (t == NIL) {
+            splitL = NIL;
+            splitR = NIL;
+            return;
+        }
+        if (Double.compare(keys[t], key) < 0) {
+            split(right[t], key);
+            right[t] = splitL;
+            update(t);
+            splitL = t;
+        } else {
+            split(left[t], key);
+            left[t] = splitR;
+            update(t);
+            splitR = t;
+        }
+    }
+
+    private int merge(int a, int b) {
+        if (a == NIL) {
+            return b;
+        }
+        if (b == NIL) {
+            return a;
+        }
+        if (prio[a] > prio[b]) {
+            right[a] = merge(right[a], b);
+            update(a);
+            return a;
+        }
+        left[b] = merge(a, left[b]);
+        update(b);
+        return b;
+    }
+
+    private int insert(int t, int n) {
+        if (t == NIL) {
+            return n;
+        }
+        if (prio[n] > prio[t]) {
+            split(t, keys[n]);
+            left[n] = splitL;
+            right[n] = splitR;
+            update(n);
+            return n;
+        }
+        if (Double.compare(keys[n], keys[t]) < 0) {
+            left[t] = insert(left[t], n);
+        } else {
+            right[t] = insert(right[t], n);
+        }
+        update(t);
+        return t;
+    }
+
+    private int remove(int t, double value) {
+        if (t == NIL) {
+            return NIL;
+        }
+        int c = Double.compare(value, keys[t]);
+        if (c == 0) {
+            int merged = merge(left[t], right[t]);
+            release(t);
+            removed = true;
+            return merged;
+        }
+        if (c < 0) {
+            left[t] = remove(left[t], value);
+        } else {
+            right[t] = remove(right[t], value);
+        }
+        if (removed) {
+            update(t);
+        }
+        return t;
+    }
+
+    private int find(double value) {
+        int t = root;
+        while (t != NIL) {
+            int c = Double.compare(value, keys[t]);
+            if (c == 0) {
+                return t;
+            }
+            t = c < 0 ? left[t] : right[t];
+        }
+        return NIL;
+    }
+
+    /**
+     * Adds {@code delta} to the subtree sizes on the path from the root to the node holding {@code value}
+     */
+    private void updatePath(double value, int delta) {
+        int t = root;
+        while (t != NIL) {
+            count[t] += delta;
+            int c = Double.compare(value, keys[t]);
+            if (c == 0) {
+                return;
+            }
+            t = c < 0 ? left[t] : right[t];
+        }
+    }
+
+    private void insert(double value) {
+        if (Double.isNaN(value)) {
+            throw new IllegalArgumentException("NaN values are not supported for StaticSizeSortedDoubleTree");
+        }
+        int n = find(value);
+        if (n != NIL) {
+            multiplicity[n]++;
+            updatePath(value, 1);
+            return;
+        }
+        root = insert(root, allocate(value));
+    }
+
+    private boolean delete(double value) {
+        int n = find(value);
+        if (n == NIL) {
+            return false;
+        }
+        if (multiplicity[n] > 1) {
+            multiplicity[n]--;
+            updatePath(value, -1);
+            return true;
+        }
+        removed = false;
+        root = remove(root, value);
+        return removed;
+    }
+
+    public boolean insertSortedAndDelete(double val2Insert, double val2Delete) {
+        if (delete(val2Delete)) {
+            insert(val2Insert);
+            return true;
+        }
+        return false;
+    }
+
+    public double getValueAtIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        int t = root;
+        while (true) {
+            int l = count[left[t]];
+            if (index < l) {
+                t = left[t];
+            } else if (index < l + multiplicity[t]) {
+                return keys[t];
+            } else {
+                index -= l + multiplicity[t];
+                t = right[t];
+            }
+        }
+    }
+
+    /**
+     * Number of values strictly smaller than {@code value} (or smaller or equal if {@code inclusive} is set)
+     */
+    private int rank(double value, boolean inclusive) {
+        int rank = 0;
+        int t = root;
+        while (t != NIL) {
+            int c = Double.compare(keys[t], value);
+            if (c < 0 || (inclusive && c == 0)) {
+                rank += count[left[t]] + multiplicity[t];
+                t = right[t];
+            } else {
+                t = left[t];
+            }
+        }
+        return rank;
+    }
+
+    /**
+     * Returns the index of the next greater value than {@code value}.
+     * Returns {@code getSize()} if the value is equal or greater than the largest value
+     * @param value The value to check
+     * @return Highest position of {@code value}
+     */
+    public int getNextHigherIndex(double value) {
+        return rank(value, true);
+    }
+
+    /**
+     * Returns the index of the next lower value than {@code value}.
+     * Returns -1 if the value is equal or lower than the lowest value
+     * @param value The value to check
+     * @return Lowest position of {@code value}
+     */
+    public int getNextLowerIndex(double value) {
+        return rank(value, false) - 1;
+    }
+
+    public int getSize() {
+        return size;
+    }
+
+    /**
+     * Writes all values in ascending order into {@code out} in O(n).
+     * @param out needs to be at least of length {@link #getSize()}
+     * @return the number of values written
+     */
+    public int toArray(double[] out) {
+        int sp = 0;
+        int index = 0;
+        int t = root;
+        while (t != NIL || sp > 0) {
+            while (t != NIL) {
+                stack[sp++] = t;
+                t = left[t];
+            }
+            t = stack[--sp];
+            for (int m = multiplicity[t]; m > 0; m--) {
+                out[index++] = keys[t];
+            }
+            t = right[t];
+        }
+        return index;
+    }
+
+    public double[] toArray() {
+        double[] out = new double[size];
+        toArray(out);
+        return out;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(toArray());
+    }
+}
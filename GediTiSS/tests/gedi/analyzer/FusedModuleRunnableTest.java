@@ -0,0 +1,136 @@
+package gedi.analyzer;
+
+import gedi.core.data.annotation.Transcript;
+import gedi.core.data.reads.AlignedReadsData;
+import gedi.core.data.reads.AlignedReadsDataFactory;
+import gedi.core.genomic.Annotation;
+import gedi.core.genomic.Genomic;
+import gedi.core.reference.Chromosome;
+import gedi.core.reference.ReferenceSequence;
+import gedi.core.reference.Strandness;
+import gedi.core.region.ArrayGenomicRegion;
+import gedi.core.region.GenomicRegionStorage;
+import gedi.core.region.ImmutableReferenceGenomicRegion;
+import gedi.core.region.ReferenceGenomicRegion;
+import gedi.core.region.intervalTree.MemoryIntervalTreeStorage;
+import gedi.data.Data;
+import gedi.data.DataWrapper;
+import gedi.modules.CRnaModule;
+import gedi.modules.ModuleBase;
+import gedi.util.functions.EI;
+import org.junit.Assert;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+class FusedModuleRunnableTest {
+    private static final ReferenceSequence REF = Chromosome.obtain("JN555585+");
+    private static final int REF_LENGTH = 100;
+    /**
+     * The bytes of a single totalized lane on {@link #REF}
+     */
+    private static final long LANE_BYTES = DataWrapper.SINGLE_VALUE_BYTE_SIZE * REF_LENGTH;
+
+    private static Genomic genomic;
+    private static List<GenomicRegionStorage<AlignedReadsData>> rawData;
+
+    @BeforeAll
+    static void setUp() {
+        genomic = new Genomic();
+        ReferenceGenomicRegion<Transcript> plus = new ImmutableReferenceGenomicRegion<Transcript>(REF,
+                new ArrayGenomicRegion(0,1), new Transcript("gene","trans",-1,-1));
+        GenomicRegionStorage<Transcript> transcripts = new MemoryIntervalTreeStorage<>(Transcript.class);
+        List<ReferenceGenomicRegion<Transcript>> lst = new ArrayList<>();
+        lst.add(plus);
+        transcripts.fill(EI.wrap(lst));
+        genomic.add(new Annotation<Transcript>(Genomic.AnnotationType.Transcripts.name()).set(transcripts));
+
+        rawData = new ArrayList<>();
+        for (int[] counts : new int[][] {{1,2,3,4,5}, {6,7,8,9,10}}) {
+            AlignedReadsData readsData = AlignedReadsDataFactory.createSimple(counts);
+            List<ReferenceGenomicRegion<AlignedReadsData>> reads = new ArrayList<>();
+            reads.add(new ImmutableReferenceGenomicRegion<AlignedReadsData>(REF, new ArrayGenomicRegion(10, 60), readsData));
+            GenomicRegionStorage<AlignedReadsData> storage = new MemoryIntervalTreeStorage<>(AlignedReadsData.class);
+            storage.fill(EI.wrap(reads));
+            rawData.add(storage);
+        }
+    }
+
+    @Test
+    void lanesNotFittingTogetherRunOneAfterAnother() {
+        Data first = new Data(new int[] {0}, false);
+        Data second = new Data(new int[] {5}, false);
+        DataWrapper wrapper = createWrapper(first, second);
+        wrapper.setMemoryBudget(LANE_BYTES + LANE_BYTES / 2);
+        FusedModuleRunnable fused = createRunnable(first, second);
+        fused.init(wrapper, 0, REF_LENGTH, REF);
+
+        assertTimeoutPreemptively(Duration.ofSeconds(10), fused::run);
+
+        // each lane was finished right after its modules were done
+        Assert.assertTrue(fused.getHeldLanes().isEmpty());
+        Assert.assertEquals(0, wrapper.getUsedMemory());
+        for (ModuleBase module : fused.getModules()) {
+            Assert.assertNotNull(module.getResultsNew().get(REF));
+        }
+    }
+
+    @Test
+    void lanesGivenBackWhileWaitingForMemory() {
+        Data first = new Data(new int[] {0}, false);
+        Data second = new Data(new int[] {5}, false);
+        Data other = new Data(new int[] {1}, false);
+        Data another = new Data(new int[] {6}, false);
+        DataWrapper wrapper = createWrapper(first, second, other, another);
+        // both lanes of the fused modules fit, but not while another module holds its lane
+        wrapper.setMemoryBudget(2 * LANE_BYTES);
+        Assert.assertNotNull(wrapper.startAccessingData2(other, REF, REF_LENGTH));
+        FusedModuleRunnable fused = createRunnable(first, second);
+        fused.init(wrapper, 0, REF_LENGTH, REF);
+
+        ExecutorService pool = Executors.newFixedThreadPool(1);
+        try {
+            Future<?> run = pool.submit(fused);
+            assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+                // the lane the fused modules got first must not keep the other module from getting its second lane
+                ModuleRunnable.accessData(wrapper, another, REF, REF_LENGTH);
+                wrapper.finishAccessingData(other, REF);
+                wrapper.finishAccessingData(another, REF);
+                run.get();
+            });
+        } finally {
+            pool.shutdownNow();
+        }
+
+        Assert.assertEquals(Arrays.asList(first, second), fused.getHeldLanes());
+        for (ModuleBase module : fused.getModules()) {
+            Assert.assertNotNull(module.getResultsNew().get(REF));
+        }
+        for (Data lane : fused.getHeldLanes()) {
+            wrapper.finishAccessingData(lane, REF);
+        }
+        Assert.assertEquals(0, wrapper.getUsedMemory());
+    }
+
+    private DataWrapper createWrapper(Data... lanes) {
+        DataWrapper wrapper = new DataWrapper(rawData, Strandness.Sense);
+        wrapper.initData(genomic, Arrays.asList(lanes));
+        return wrapper;
+    }
+
+    private FusedModuleRunnable createRunnable(Data first, Data second) {
+        List<ModuleBase> modules = new ArrayList<>();
+        modules.add(new CRnaModule(2, 1., 10, 0, 0, first, false, "DENSE_PEAK_FIRST"));
+        modules.add(new CRnaModule(2, 1., 10, 0, 0, second, false, "DENSE_PEAK_SECOND"));
+        return new FusedModuleRunnable(modules);
+    }
+}
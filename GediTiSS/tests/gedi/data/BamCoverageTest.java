@@ -0,0 +1,36 @@
+package gedi.data;
+
+import htsjdk.samtools.AlignmentBlock;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+class BamCoverageTest {
+
+    @Test
+    void endMismatches() {
+        Assert.assertTrue(BamCoverage.startsWithMismatch("0A35"));
+        Assert.assertFalse(BamCoverage.startsWithMismatch("10A25"));
+        Assert.assertFalse(BamCoverage.startsWithMismatch("36"));
+        Assert.assertTrue(BamCoverage.endsWithMismatch("35G0"));
+        Assert.assertFalse(BamCoverage.endsWithMismatch("35G10"));
+        Assert.assertFalse(BamCoverage.endsWithMismatch("10"));
+        Assert.assertFalse(BamCoverage.startsWithMismatch(null));
+        Assert.assertFalse(BamCoverage.endsWithMismatch(null));
+    }
+
+    @Test
+    void secondAlignedPosition() {
+        // 1-based blocks [101, 110] and [201, 201]
+        AlignmentBlock first = new AlignmentBlock(1, 101, 10);
+        AlignmentBlock last = new AlignmentBlock(11, 201, 1);
+        Assert.assertEquals(101, BamCoverage.secondAlignedPosition(Arrays.asList(first, last), true));
+        Assert.assertEquals(108, BamCoverage.secondAlignedPosition(Collections.singletonList(first), false));
+        // the second base from the end lies in the previous block
+        Assert.assertEquals(109, BamCoverage.secondAlignedPosition(Arrays.asList(first, last), false));
+        Assert.assertEquals(199, BamCoverage.secondAlignedPosition(Arrays.asList(new AlignmentBlock(1, 100, 1), new AlignmentBlock(2, 200, 5)), true));
+        Assert.assertEquals(-1, BamCoverage.secondAlignedPosition(Collections.singletonList(last), true));
+    }
+}
@@ -0,0 +1,83 @@
+package gedi.data;
+
+import gedi.util.datastructure.array.NumericArray;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+class CompactCoverageTest {
+
+    @Test
+    void promotion() {
+        CompactCoverage coverage = new CompactCoverage(1000);
+        coverage.add(3, 5);
+        coverage.add(3, 2);
+        Assert.assertEquals(NumericArray.NumericArrayType.Short, coverage.getCounts().getType());
+        Assert.assertEquals(2000, CompactCoverage.getByteSize(coverage.getCounts()));
+
+        coverage.add(10, 100000);
+        Assert.assertEquals(NumericArray.NumericArrayType.Integer, coverage.getCounts().getType());
+        coverage.add(11, 0.5);
+        Assert.assertEquals(NumericArray.NumericArrayType.Float, coverage.getCounts().getType());
+        Assert.assertEquals(4000, CompactCoverage.getByteSize(coverage.getCounts()));
+
+        // integral counts after a fractional one stay fractional
+        coverage.add(12, 3);
+        Assert.assertEquals(NumericArray.NumericArrayType.Float, coverage.getCounts().getType());
+        Assert.assertEquals(7, coverage.getDouble(3), 0);
+        Assert.assertEquals(100000, coverage.getDouble(10), 0);
+        Assert.assertEquals(0.5, coverage.getDouble(11), 0);
+        Assert.assertEquals(3, coverage.getDouble(12), 0);
+        Assert.assertEquals(0, coverage.getDouble(13), 0);
+    }
+
+    @Test
+    void highCountsStayExact() {
+        CompactCoverage coverage = new CompactCoverage(10);
+        coverage.add(0, 1e8 + 1);
+        coverage.add(1, 0.25);
+        Assert.assertEquals(NumericArray.NumericArrayType.Double, coverage.getCounts().getType());
+        Assert.assertEquals(1e8 + 1, coverage.getDouble(0), 0);
+    }
+
+    @Test
+    void compactAndTotal() {
+        NumericArray a = NumericArray.createMemory(100, NumericArray.NumericArrayType.Double);
+        NumericArray b = NumericArray.createMemory(100, NumericArray.NumericArrayType.Double);
+        for (int i = 0; i < 100; i++) {
+            a.setDouble(i, i);
+            b.setDouble(i, 32700);
+        }
+        NumericArray compact = CompactCoverage.compact(a);
+        Assert.assertEquals(NumericArray.NumericArrayType.Short, compact.getType());
+        for (int i = 0; i < 100; i++) {
+            Assert.assertEquals(i, compact.getDouble(i), 0);
+        }
+        b.setDouble(7, 0.5);
+        Assert.assertEquals(NumericArray.NumericArrayType.Float, CompactCoverage.compact(b).getType());
+
+        NumericArray total = CompactCoverage.total(new NumericArray[] {a, b});
+        Assert.assertEquals(NumericArray.NumericArrayType.Float, total.getType());
+        Assert.assertEquals(32799, total.getDouble(99), 0);
+        Assert.assertEquals(7.5, total.getDouble(7), 0);
+    }
+
+    @Test
+    void totalOverSeveralBlocks() {
+        int length = 2 * CompactCoverage.TOTAL_BLOCK_SIZE + 17;
+        NumericArray a = NumericArray.createMemory(length, NumericArray.NumericArrayType.Short);
+        NumericArray b = NumericArray.createMemory(length, NumericArray.NumericArrayType.Short);
+        for (int i = 0; i < length; i++) {
+            a.setDouble(i, i % 7);
+            b.setDouble(i, i % 3);
+        }
+        // only the last block needs ints
+        a.setDouble(length - 1, 30000);
+        b.setDouble(length - 1, 30000);
+        NumericArray total = CompactCoverage.total(new NumericArray[] {a, b});
+        Assert.assertEquals(NumericArray.NumericArrayType.Integer, total.getType());
+        for (int i = 0; i < length - 1; i++) {
+            Assert.assertEquals(i % 7 + i % 3, total.getDouble(i), 0);
+        }
+        Assert.assertEquals(60000, total.getDouble(length - 1), 0);
+    }
+}
@@ -0,0 +1,43 @@
+package gedi.data;
+
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+class ConversionCacheTest {
+
+    @Test
+    void keyedByFilesAndKind() throws IOException {
+        File dir = Files.createTempDirectory("conversionCache").toFile();
+        File a = new File(dir, "a.bam");
+        File b = new File(dir, "b.bam");
+        Files.write(a.toPath(), new byte[] {1, 2, 3});
+        Files.write(b.toPath(), new byte[] {4, 5});
+        ConversionCache cache = new ConversionCache(new File(dir, "cache"));
+
+        File cit = cache.getCitFile(Arrays.asList(a, b));
+        Assert.assertEquals(cit, cache.getCitFile(Arrays.asList(a, b)));
+        Assert.assertNotEquals(cit, cache.getCitFile(Arrays.asList(b, a)));
+        Assert.assertNotEquals(cit.getName(), cache.getCoverageDirectory(a).getName());
+
+        File coverage = cache.getCoverageDirectory(a);
+        Files.write(a.toPath(), new byte[] {1, 2, 3, 4});
+        Assert.assertNotEquals(coverage, cache.getCoverageDirectory(a));
+        Assert.assertEquals(cache.getCoverageDirectory(a), cache.getCoverageDirectory(new File(dir, "./a.bam")));
+    }
+
+    @Test
+    void linkOrCopy() throws IOException {
+        File dir = Files.createTempDirectory("conversionCache").toFile();
+        File source = new File(dir, "source.cit");
+        File target = new File(dir, "target.cit");
+        Files.write(source.toPath(), new byte[] {1, 2, 3});
+        Files.write(target.toPath(), new byte[] {9});
+        ConversionCache.linkOrCopy(source, target);
+        Assert.assertArrayEquals(new byte[] {1, 2, 3}, Files.readAllBytes(target.toPath()));
+    }
+}
@@ -0,0 +1,93 @@
+package gedi.data;
+
+import gedi.centeredDiskIntervalTree.CenteredDiskIntervalTreeStorage;
+import gedi.core.data.reads.AlignedReadsData;
+import gedi.core.reference.Chromosome;
+import gedi.core.reference.ReferenceSequence;
+import gedi.core.reference.Strandness;
+import gedi.core.region.GenomicRegionStorage;
+import gedi.util.datastructure.array.NumericArray;
+import gedi.utils.ReadType;
+import gedi.utils.TiSSUtils;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+class CoverageIndexTest {
+    private static final String TESTDATA_CIT = "../testdata/analysis/drnaseq/Peaks_RepABAM2CIT_convertedReads.cit";
+    private static final int TESTDATA_LENGTH = 152222;
+    private static final ReferenceSequence[] REFS = {Chromosome.obtain("JN555585+"), Chromosome.obtain("JN555585-")};
+
+    @Test
+    void readBackLikeExtracted() throws IOException {
+        File cit = copyTestdata();
+        List<GenomicRegionStorage<AlignedReadsData>> reads = new ArrayList<>();
+        reads.add(new CenteredDiskIntervalTreeStorage<>(cit.getPath()));
+        for (ReadType readType : new ReadType[] {ReadType.FIVE_PRIME, ReadType.THREE_PRIME}) {
+            CoverageIndex index = CoverageIndex.open(reads.get(0), Strandness.Sense, readType);
+            Assert.assertNotNull(index);
+            for (ReferenceSequence ref : REFS) {
+                NumericArray expected = TiSSUtils.extractCounts(reads, new int[] {0}, ref, TESTDATA_LENGTH, Strandness.Sense, readType);
+                CompactCoverage found = new CompactCoverage(TESTDATA_LENGTH);
+                index.addCoverage(ref, TESTDATA_LENGTH, 0, found);
+                assertSameCounts(readType + " " + ref, expected, found);
+            }
+        }
+    }
+
+    @Test
+    void rebuiltIfSourceChanged() throws IOException {
+        File cit = copyTestdata();
+        GenomicRegionStorage<AlignedReadsData> reads = new CenteredDiskIntervalTreeStorage<>(cit.getPath());
+        ReferenceSequence ref = REFS[0];
+
+        Assert.assertTrue(CoverageIndex.open(reads, Strandness.Sense, ReadType.FIVE_PRIME).prepare(ref, TESTDATA_LENGTH));
+        Assert.assertFalse(CoverageIndex.open(reads, Strandness.Sense, ReadType.FIVE_PRIME).prepare(ref, TESTDATA_LENGTH));
+        // another reference length does not match the header
+        Assert.assertTrue(CoverageIndex.open(reads, Strandness.Sense, ReadType.FIVE_PRIME).prepare(ref, TESTDATA_LENGTH + 1));
+
+        Assert.assertTrue(CoverageIndex.open(reads, Strandness.Sense, ReadType.FIVE_PRIME).prepare(ref, TESTDATA_LENGTH));
+        Assert.assertTrue(cit.setLastModified(cit.lastModified() - 60_000));
+        CoverageIndex touched = CoverageIndex.open(reads, Strandness.Sense, ReadType.FIVE_PRIME);
+        Assert.assertTrue(touched.prepare(ref, TESTDATA_LENGTH));
+        Assert.assertFalse(touched.prepare(ref, TESTDATA_LENGTH));
+
+        CompactCoverage found = new CompactCoverage(TESTDATA_LENGTH);
+        touched.addCoverage(ref, TESTDATA_LENGTH, 0, found);
+        List<GenomicRegionStorage<AlignedReadsData>> list = new ArrayList<>();
+        list.add(reads);
+        assertSameCounts(ref.toString(), TiSSUtils.extractCounts(list, new int[] {0}, ref, TESTDATA_LENGTH, Strandness.Sense, ReadType.FIVE_PRIME), found);
+    }
+
+    private static void assertSameCounts(String message, NumericArray expected, CompactCoverage found) {
+        Assert.assertEquals(message, expected.length(), found.length());
+        double sum = 0;
+        for (int i = 0; i < expected.length(); i++) {
+            Assert.assertEquals(message + " at " + i, expected.getDouble(i), found.getDouble(i), 1e-4);
+            sum += expected.getDouble(i);
+        }
+        Assert.assertTrue(message + " has no reads", sum > 0);
+    }
+
+    /**
+     * Copies the test CIT with its metadata to a temporary directory, so the index is written next to the copy
+     */
+    private static File copyTestdata() throws IOException {
+        File source = new File(TESTDATA_CIT);
+        Assert.assertTrue("Missing test data " + source.getPath(), source.isFile());
+        Path dir = Files.createTempDirectory("coverageIndex");
+        File copy = dir.resolve(source.getName()).toFile();
+        Files.copy(source.toPath(), copy.toPath());
+        File metadata = new File(source.getPath() + ".metadata.json");
+        if (metadata.isFile()) {
+            Files.copy(metadata.toPath(), dir.resolve(metadata.getName()));
+        }
+        return copy;
+    }
+}
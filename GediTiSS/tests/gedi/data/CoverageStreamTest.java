@@ -0,0 +1,73 @@
+package gedi.data;
+
+import gedi.centeredDiskIntervalTree.CenteredDiskIntervalTreeStorage;
+import gedi.core.data.reads.AlignedReadsData;
+import gedi.core.reference.Chromosome;
+import gedi.core.reference.ReferenceSequence;
+import gedi.core.reference.Strandness;
+import gedi.core.region.GenomicRegionStorage;
+import gedi.util.datastructure.array.NumericArray;
+import gedi.utils.ReadType;
+import gedi.utils.TiSSUtils;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+class CoverageStreamTest {
+    private static final String TESTDATA_CIT = "../testdata/analysis/drnaseq/Peaks_RepABAM2CIT_convertedReads.cit";
+    private static final int TESTDATA_LENGTH = 152222;
+    private static final int WINDOW_SIZE = 5000;
+    private static final int STEP = 3000;
+
+    @Test
+    void overlappingWindowsLikeExtracted() {
+        File cit = new File(TESTDATA_CIT);
+        Assert.assertTrue("Missing test data " + cit.getPath(), cit.isFile());
+        List<GenomicRegionStorage<AlignedReadsData>> reads = new ArrayList<>();
+        reads.add(new CenteredDiskIntervalTreeStorage<>(cit.getPath()));
+
+        for (ReadType readType : new ReadType[] {ReadType.FIVE_PRIME, ReadType.THREE_PRIME}) {
+            for (ReferenceSequence ref : new ReferenceSequence[] {Chromosome.obtain("JN555585+"), Chromosome.obtain("JN555585-")}) {
+                String message = readType + " " + ref;
+                NumericArray expected = TiSSUtils.extractCounts(reads, new int[] {0}, ref, TESTDATA_LENGTH, Strandness.Sense, readType);
+                CoverageStream stream = new CoverageStream(ref, TESTDATA_LENGTH, 1, WINDOW_SIZE, Strandness.Sense, readType);
+                stream.addSource(reads.get(0), Collections.singletonList(0), new int[] {0});
+
+                double sum = 0;
+                for (int from = 0; from < TESTDATA_LENGTH; from += STEP) {
+                    int to = Math.min(from + WINDOW_SIZE, TESTDATA_LENGTH);
+                    NumericArray[] window = stream.window(from, to);
+                    Assert.assertEquals(1, window.length);
+                    Assert.assertEquals(to - from, window[0].length());
+                    for (int pos = from; pos < to; pos++) {
+                        Assert.assertEquals(message + " at " + pos, expected.getDouble(pos), window[0].getDouble(pos - from), 1e-4);
+                        sum += window[0].getDouble(pos - from);
+                    }
+                }
+                Assert.assertTrue(message + " has no reads", sum > 0);
+            }
+        }
+    }
+
+    @Test
+    void windowsRequestedInOrder() {
+        CoverageStream stream = new CoverageStream(Chromosome.obtain("JN555585+"), TESTDATA_LENGTH, 1, WINDOW_SIZE, Strandness.Sense, ReadType.FIVE_PRIME);
+        stream.window(100, 200);
+        try {
+            stream.window(50, 150);
+            Assert.fail("Dropped positions must not be returned");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            stream.window(200, 200 + WINDOW_SIZE + 1);
+            Assert.fail("Windows larger than the buffer must not be returned");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
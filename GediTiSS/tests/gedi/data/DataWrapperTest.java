@@ -36,6 +36,7 @@ class DataWrapperTest {
     private static DataWrapper dwAnti;
     private static Genomic genomic;
     private static int[][] lanes2check;
+    private static List<GenomicRegionStorage<AlignedReadsData>> rawData;
 
     @BeforeAll
     static void setUp() {
@@ -69,7 +70,7 @@ class DataWrapperTest {
         gr1.fill(EI.wrap(l1));
         gr2.fill(EI.wrap(l2));
 
-        List<GenomicRegionStorage<AlignedReadsData>> rawData = new ArrayList<>();
+        rawData = new ArrayList<>();
         rawData.add(gr1); rawData.add(gr2);
 
         dw = new DataWrapper(rawData, Strandness.Sense);
@@ -96,6 +97,35 @@ class DataWrapperTest {
         multiTest();
     }
 
+    @Test
+    void memoryReservedForLoads() {
+        DataWrapper wrapper = new DataWrapper(rawData, Strandness.Sense);
+        Data multi = new Data(lanes2check[2], true);
+        Data total = new Data(lanes2check[2], false);
+        List<Data> data = new ArrayList<>();
+        data.add(multi);
+        data.add(total);
+        wrapper.initData(genomic, data);
+        // the 4 lanes and their total on one reference, all of them fit into 16 bits
+        wrapper.setMemoryBudget(5 * 2 * 100);
+
+        NumericArray[] lanes = wrapper.startAccessingData2(multi, Chromosome.obtain("JN555585+"), 100);
+        Assert.assertEquals(4, lanes.length);
+        Assert.assertEquals(1000, wrapper.getUsedMemory());
+        // the read counts in use cannot be evicted for the other reference
+        Assert.assertNull(wrapper.startAccessingData2(multi, Chromosome.obtain("JN555585-"), 100));
+        Assert.assertEquals(1000, wrapper.getUsedMemory());
+
+        Assert.assertEquals(1, wrapper.startAccessingData2(total, Chromosome.obtain("JN555585+"), 100).length);
+        Assert.assertEquals(1000, wrapper.getUsedMemory());
+        wrapper.finishAccessingData(multi, Chromosome.obtain("JN555585+"));
+        wrapper.finishAccessingData(total, Chromosome.obtain("JN555585+"));
+        Assert.assertEquals(0, wrapper.getUsedMemory());
+
+        Assert.assertEquals(4, wrapper.startAccessingData2(multi, Chromosome.obtain("JN555585-"), 100).length);
+        Assert.assertEquals(1000, wrapper.getUsedMemory());
+    }
+
     private void multiTest() throws Exception {
         NumericArray[] readCounts1 = dw.startAccessingData(new Data(lanes2check[2], true), Chromosome.obtain("JN555585+"), 100);
         NumericArray[] readCounts2 = dw.startAccessingData(new Data(lanes2check[2], false), Chromosome.obtain("JN555585-"), 100);
@@ -0,0 +1,73 @@
+package gedi.data;
+
+import gedi.util.datastructure.array.NumericArray;
+import gedi.utils.WindowStats;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+class MemoryReadCountTest {
+
+    @Test
+    void totalComputedOnceAndReleasedWithLanes() {
+        NumericArray a = NumericArray.createMemory(100, NumericArray.NumericArrayType.Short);
+        NumericArray b = NumericArray.createMemory(100, NumericArray.NumericArrayType.Short);
+        a.setDouble(3, 2);
+        b.setDouble(3, 5);
+        AtomicLong allocated = new AtomicLong();
+        MemoryReadCount memoryReadCount = new MemoryReadCount(3, true, allocated::addAndGet);
+        memoryReadCount.setTotalNeeded(true);
+
+        NumericArray[] lanes = memoryReadCount.startAccess(true, () -> new NumericArray[] {a, b});
+        Assert.assertEquals(2, lanes.length);
+        Assert.assertEquals(200, allocated.get());
+        Assert.assertEquals(600, memoryReadCount.getByteSize());
+
+        NumericArray[] total1 = memoryReadCount.startAccess(false, () -> null);
+        NumericArray[] total2 = memoryReadCount.startAccess(false, () -> null);
+        Assert.assertSame(total1[0], total2[0]);
+        Assert.assertEquals(7, total1[0].getDouble(3), 0);
+        Assert.assertEquals(200, allocated.get());
+
+        Assert.assertEquals(0, memoryReadCount.finishAccess());
+        Assert.assertEquals(0, memoryReadCount.finishAccess());
+        Assert.assertEquals(600, memoryReadCount.finishAccess());
+        Assert.assertFalse(memoryReadCount.isInMemory());
+    }
+
+    @Test
+    void totalComputedOnFirstAccessIfNotAnnounced() {
+        NumericArray a = NumericArray.createMemory(10, NumericArray.NumericArrayType.Short);
+        AtomicLong allocated = new AtomicLong();
+        MemoryReadCount memoryReadCount = new MemoryReadCount(2, true, allocated::addAndGet);
+        memoryReadCount.startAccess(true, () -> new NumericArray[] {a, a});
+        Assert.assertEquals(0, allocated.get());
+        memoryReadCount.startAccess(false, () -> null);
+        Assert.assertEquals(20, allocated.get());
+        Assert.assertEquals(60, memoryReadCount.getByteSize());
+    }
+
+    @Test
+    void windowStatsKeptAndReleasedWithReadCounts() {
+        NumericArray a = NumericArray.createMemory(100, NumericArray.NumericArrayType.Short);
+        NumericArray other = NumericArray.createMemory(100, NumericArray.NumericArrayType.Short);
+        a.setDouble(3, 2);
+        AtomicLong allocated = new AtomicLong();
+        MemoryReadCount memoryReadCount = new MemoryReadCount(2, false, allocated::addAndGet);
+        NumericArray[] lanes = memoryReadCount.startAccess(false, () -> new NumericArray[] {a});
+
+        WindowStats stats = memoryReadCount.getWindowStats(lanes[0]);
+        Assert.assertSame(stats, memoryReadCount.getWindowStats(lanes[0]));
+        Assert.assertNull(memoryReadCount.getWindowStats(other));
+        Assert.assertEquals(stats.getByteSize(), allocated.get());
+        stats.sampleVariance(0, 10);
+        Assert.assertEquals(stats.getByteSize(), allocated.get());
+        Assert.assertEquals(200 + stats.getByteSize(), memoryReadCount.getByteSize());
+
+        Assert.assertEquals(0, memoryReadCount.finishAccess());
+        memoryReadCount.startAccess(false, () -> null);
+        Assert.assertEquals(200 + stats.getByteSize(), memoryReadCount.finishAccess());
+        Assert.assertNull(memoryReadCount.getWindowStats(lanes[0]));
+    }
+}
@@ -0,0 +1,86 @@
+package gedi.merger2;
+
+import gedi.core.reference.Chromosome;
+import gedi.core.reference.ReferenceSequence;
+import gedi.core.region.ImmutableReferenceGenomicRegion;
+import gedi.core.region.intervalTree.MemoryIntervalTreeStorage;
+import gedi.util.functions.EI;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+class TsrFileTest {
+    private static final ReferenceSequence REF = Chromosome.obtain("1+");
+    private static final ReferenceSequence OTHER_REF = Chromosome.obtain("2+");
+
+    @Test
+    void mergeSeveralFiles() {
+        TsrFile first = tsrFile(tiss(REF, 10, 1), tiss(REF, 14, 1), tiss(REF, 40, 1), tiss(REF, 42, 1));
+        TsrFile second = tsrFile(tiss(REF, 12, 2), tiss(OTHER_REF, 100, 2));
+        TsrFile third = tsrFile(tiss(REF, 17, 3));
+
+        List<TsrFileEntry> merged = TsrFile.merge(Arrays.asList(first, second, third), 2, 2).ei().list();
+
+        Assert.assertEquals(5, merged.size());
+        TsrFileEntry joined = merged.get(0);
+        Assert.assertEquals(10, joined.getOriginalStart());
+        Assert.assertEquals(15, joined.getOriginalEnd());
+        // the entries already merged come first, like when merging the files one after the other
+        Assert.assertArrayEquals(new int[] {10, 14, 12}, joined.getPositions());
+        Assert.assertEquals(2, joined.getScore());
+        // 17 is 3 positions away from 14
+        Assert.assertArrayEquals(new int[] {17}, merged.get(1).getPositions());
+        // entries of the first file are not merged with each other
+        Assert.assertArrayEquals(new int[] {40}, merged.get(2).getPositions());
+        Assert.assertArrayEquals(new int[] {42}, merged.get(3).getPositions());
+        Assert.assertEquals(OTHER_REF, merged.get(4).getReference());
+    }
+
+    @Test
+    void mergeUpToExtension() {
+        TsrFile first = tsrFile(tiss(REF, 10, 1), tiss(REF, 20, 1));
+        TsrFile second = tsrFile(tiss(REF, 15, 2), tiss(REF, 24, 2));
+
+        List<TsrFileEntry> merged = first.merge(second, 4).ei().list();
+
+        Assert.assertEquals(3, merged.size());
+        Assert.assertArrayEquals(new int[] {10}, merged.get(0).getPositions());
+        Assert.assertArrayEquals(new int[] {15}, merged.get(1).getPositions());
+        Assert.assertArrayEquals(new int[] {20, 24}, merged.get(2).getPositions());
+    }
+
+    @Test
+    void scoreAndOrigins() throws IOException {
+        TsrFileEntry entry = TsrFileEntry.parse("1+\t10-14\t10.0,11.0,13.0\t1.0,2.0,3.0\t1,2,1\t10,11,13\t2");
+        TsrFileEntry other = TsrFileEntry.parse("1+\t12-13\t5.0\t4.0\t3\t12\t1");
+
+        Assert.assertEquals(2, entry.getScore());
+        TsrFileEntry merged = entry.merge(Arrays.asList(other));
+        Assert.assertEquals(3, merged.getScore());
+        Assert.assertEquals(13, merged.getMaxReadCountForId(1), 0);
+        Assert.assertEquals(0, merged.getMaxValueForId(4), 0);
+        Assert.assertArrayEquals(new double[] {10, 13}, merged.getReadCountsForId(1), 0);
+        Assert.assertArrayEquals(new double[] {13}, merged.getReadCountsFromDisjunctPeaks(), 0);
+
+        merged.resetFileAssociations(5);
+        Assert.assertEquals(1, merged.getScore());
+        Assert.assertEquals(merged, TsrFileEntry.parse(merged.toString()));
+    }
+
+    private static TissFileEntry tiss(ReferenceSequence ref, int pos, int originId) {
+        return new TissFileEntry(ref, pos, 1, 1, originId);
+    }
+
+    private static TsrFile tsrFile(TissFileEntry... tiss) {
+        MemoryIntervalTreeStorage<TsrFileEntry> mem = new MemoryIntervalTreeStorage<>(TsrFileEntry.class);
+        mem.fill(EI.wrap(tiss).map(t -> {
+            TsrFileEntry entry = new TsrFileEntry(t.getReference());
+            entry.addTissFileEntry(t);
+            return new ImmutableReferenceGenomicRegion<>(t.getReference(), entry.getOriginalRegion(), entry);
+        }));
+        return new TsrFile(mem);
+    }
+}
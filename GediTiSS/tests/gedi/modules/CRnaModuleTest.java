@@ -0,0 +1,110 @@
+package gedi.modules;
+
+import gedi.centeredDiskIntervalTree.CenteredDiskIntervalTreeStorage;
+import gedi.core.data.reads.AlignedReadsData;
+import gedi.core.reference.Chromosome;
+import gedi.core.reference.ReferenceSequence;
+import gedi.core.reference.Strandness;
+import gedi.core.region.GenomicRegionStorage;
+import gedi.data.Data;
+import gedi.merger2.TissFile;
+import gedi.util.datastructure.array.NumericArray;
+import gedi.utils.ReadType;
+import gedi.utils.TiSSUtils;
+import gedi.utils.datastructures.TissResultTable;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.util.*;
+
+class CRnaModuleTest {
+    private static final String TESTDATA_CIT = "../testdata/analysis/drnaseq/Peaks_RepABAM2CIT_convertedReads.cit";
+    private static final int TESTDATA_LENGTH = 152222;
+    private static final int WINDOW_SIZE = 100;
+    private static final double PSEUDO_COUNT = 1.;
+
+    @Test
+    void zScoresOnDenseData() {
+        Random random = new Random(42);
+        NumericArray data = NumericArray.createMemory(50000, NumericArray.NumericArrayType.Double);
+        for (int i = 0; i < data.length(); i++) {
+            data.setDouble(i, random.nextInt(30) + (random.nextDouble() < 0.005 ? random.nextInt(2000) : 0));
+        }
+        checkZScores(data, Chromosome.obtain("chr1+"));
+        checkZScores(data, Chromosome.obtain("chr1-"));
+    }
+
+    @Test
+    void zScoresOnTestdata() {
+        File cit = new File(TESTDATA_CIT);
+        Assert.assertTrue("Missing test data " + cit.getPath(), cit.isFile());
+        List<GenomicRegionStorage<AlignedReadsData>> reads = new ArrayList<>();
+        reads.add(new CenteredDiskIntervalTreeStorage<>(cit.getPath()));
+        for (ReferenceSequence ref : new ReferenceSequence[] {Chromosome.obtain("JN555585+"), Chromosome.obtain("JN555585-")}) {
+            NumericArray data = TiSSUtils.extractCounts(reads, new int[] {0}, ref, TESTDATA_LENGTH, Strandness.Sense, ReadType.FIVE_PRIME);
+            checkZScores(data, ref);
+        }
+    }
+
+    /**
+     * Compares the z-scores of the module with the ones recomputed from scratch at each position
+     */
+    private void checkZScores(NumericArray data, ReferenceSequence ref) {
+        CRnaModule module = new CRnaModule(2, PSEUDO_COUNT, WINDOW_SIZE, 0, 0, new Data(new int[] {0}, false), true, "DENSE_PEAK");
+        module.findTiSS(new NumericArray[] {data}, ref);
+        TissResultTable.Rows found = module.getResultsNew().get(ref);
+        int upstreamColumn = module.getResultsNew().getColumnIndex("zScore-US");
+        int downstreamColumn = module.getResultsNew().getColumnIndex("zScore-DS");
+        int readCountColumn = module.getResultsNew().getColumnIndex(TissFile.READ_COUNT_COLUMN_NAME);
+
+        Map<Integer, double[]> expected = recompute(data, ref);
+        Assert.assertEquals(expected.size(), found.size());
+        for (int pos : expected.keySet()) {
+            double[] z = expected.get(pos);
+            int row = found.indexOf(pos);
+            Assert.assertTrue("Missing position " + pos, row >= 0);
+            Assert.assertEquals(z[0], found.getValue(row, upstreamColumn), 1e-9 * Math.max(1, Math.abs(z[0])));
+            Assert.assertEquals(z[1], found.getValue(row, downstreamColumn), 1e-9 * Math.max(1, Math.abs(z[1])));
+            Assert.assertEquals(data.getDouble(pos), found.getValue(row, readCountColumn), 0);
+        }
+    }
+
+    private Map<Integer, double[]> recompute(NumericArray data, ReferenceSequence ref) {
+        Map<Integer, double[]> out = new HashMap<>();
+        for (int i = WINDOW_SIZE; i < data.length() - (WINDOW_SIZE+1); i++) {
+            double[] left = window(data, i - WINDOW_SIZE);
+            double[] right = window(data, i + 1);
+            double[] upstream = ref.isPlus() ? left : right;
+            double[] downstream = ref.isPlus() ? right : left;
+            double value = data.getDouble(i) + PSEUDO_COUNT;
+            double upstreamZ = zScore(value, upstream);
+            double downstreamZ = zScore(value, downstream);
+            if (upstreamZ > 2 && downstreamZ > 2) {
+                out.put(i, new double[] {upstreamZ, downstreamZ});
+            }
+        }
+        return out;
+    }
+
+    private double[] window(NumericArray data, int from) {
+        double[] window = data.toDoubleArray(from, from + WINDOW_SIZE);
+        for (int i = 0; i < window.length; i++) {
+            window[i] += PSEUDO_COUNT;
+        }
+        return window;
+    }
+
+    private double zScore(double value, double[] window) {
+        double sum = 0;
+        for (double v : window) {
+            sum += v;
+        }
+        double sqSum = 0;
+        for (double v : window) {
+            sqSum += Math.pow(v - sum / window.length, 2);
+        }
+        double sd = Math.max(Math.sqrt(sqSum / (window.length - 1)), PSEUDO_COUNT);
+        return (value - sum / (window.length - 1)) / sd;
+    }
+}
@@ -0,0 +1,60 @@
+package gedi.modules;
+
+import gedi.core.reference.Chromosome;
+import gedi.core.reference.ReferenceSequence;
+import gedi.data.Data;
+import gedi.util.datastructure.array.NumericArray;
+import gedi.utils.datastructures.TissResultTable;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+class FusedScanTest {
+    private static final int WINDOW_SIZE = 100;
+
+    @Test
+    void sameResultsAsSeparateScans() {
+        Random random = new Random(7);
+        NumericArray data = NumericArray.createMemory(3 * FusedScan.CHUNK_SIZE + 1234, NumericArray.NumericArrayType.Double);
+        for (int i = 0; i < data.length(); i++) {
+            data.setDouble(i, random.nextInt(5) + (random.nextDouble() < 0.01 ? random.nextInt(500) : 0));
+        }
+        for (ReferenceSequence ref : new ReferenceSequence[] {Chromosome.obtain("1+"), Chromosome.obtain("1-")}) {
+            List<ModuleBase> separate = createModules();
+            for (ModuleBase module : separate) {
+                module.findTiSS(new NumericArray[] {data}, ref);
+            }
+            List<ModuleBase> fused = createModules();
+            List<NumericArray[]> fusedData = new ArrayList<>();
+            for (int i = 0; i < fused.size(); i++) {
+                fusedData.add(new NumericArray[] {data});
+            }
+            FusedScan.findTiSS(fused, fusedData, ref, data.length());
+
+            for (int i = 0; i < separate.size(); i++) {
+                TissResultTable.Rows expected = separate.get(i).getResultsNew().get(ref);
+                TissResultTable.Rows actual = fused.get(i).getResultsNew().get(ref);
+                Assert.assertTrue(expected.size() > 0);
+                Assert.assertEquals(expected.size(), actual.size());
+                for (int row = 0; row < expected.size(); row++) {
+                    Assert.assertEquals(expected.getPosition(row), actual.getPosition(row));
+                    for (int c = 0; c < separate.get(i).getResultsNew().getColumnCount(); c++) {
+                        Assert.assertEquals(expected.getValue(row, c), actual.getValue(row, c), 1e-9);
+                    }
+                }
+            }
+        }
+    }
+
+    private List<ModuleBase> createModules() {
+        Data lane = new Data(new int[] {0}, false);
+        return new ArrayList<>(Arrays.asList(
+                new CRnaModule(2, 1., WINDOW_SIZE, 0, 0, lane, false, "DENSE_PEAK"),
+                new DRnaModule(WINDOW_SIZE, 1., 4., 0, 0, lane, false, "SPARSE_PEAK"),
+                new TranscriptionalActivity(0.01, WINDOW_SIZE, 0., 0, 0, false, "", lane, "DENSITY")));
+    }
+}
@@ -0,0 +1,82 @@
+package gedi.modules;
+
+import gedi.core.reference.Chromosome;
+import gedi.core.reference.ReferenceSequence;
+import gedi.data.Data;
+import gedi.util.datastructure.array.NumericArray;
+import gedi.utils.WindowStats;
+import gedi.utils.datastructures.TissResultTable;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+class InterquartileRangeModuleTest {
+    private static final int WINDOW_SIZE = 20;
+
+    @Test
+    void readCoverageOnSparseData() {
+        Random random = new Random(42);
+        NumericArray data = NumericArray.createMemory(4000, NumericArray.NumericArrayType.Double);
+        for (int i = 0; i < data.length(); i++) {
+            data.setDouble(i, random.nextDouble() < 0.6 ? 0 : random.nextInt(20));
+        }
+        checkReadCoverage(data, Chromosome.obtain("chr1+"));
+    }
+
+    @Test
+    void readCoverageWithZeroAtExcludedPosition() {
+        Random random = new Random(7);
+        NumericArray data = NumericArray.createMemory(2000, NumericArray.NumericArrayType.Double);
+        for (int i = 0; i < data.length(); i++) {
+            data.setDouble(i, random.nextDouble() < 0.3 ? 0 : random.nextInt(20));
+        }
+        data.setDouble(WINDOW_SIZE, 0);
+        checkReadCoverage(data, Chromosome.obtain("chr1+"));
+    }
+
+    /**
+     * Compares the read coverages of the module with the zeros counted from scratch in the values the sliding
+     * windows hold at each position
+     */
+    private void checkReadCoverage(NumericArray data, ReferenceSequence ref) {
+        InterquartileRangeModule module = new InterquartileRangeModule(0, WINDOW_SIZE, 0, new Data(new int[] {0}, false), false, false, "IQR");
+        module.findTiSS(new NumericArray[] {data}, ref);
+        TissResultTable.Rows found = module.getResultsNew().get(ref);
+        int leftColumn = module.getResultsNew().getColumnIndex("read coverage left");
+        int centerColumn = module.getResultsNew().getColumnIndex("read coverage center");
+        int rightColumn = module.getResultsNew().getColumnIndex("read coverage right");
+
+        Assert.assertTrue(found.size() > 0);
+        for (int row = 0; row < found.size(); row++) {
+            int pos = found.getPosition(row);
+            Assert.assertEquals(1 - zeros(data, pos-WINDOW_SIZE, pos) / (double) WINDOW_SIZE, found.getValue(row, leftColumn), 1e-9);
+            Assert.assertEquals(1 - centerZeros(data, pos) / (double) WINDOW_SIZE, found.getValue(row, centerColumn), 1e-9);
+            Assert.assertEquals(1 - zeros(data, pos+1, pos+WINDOW_SIZE+1) / (double) WINDOW_SIZE, found.getValue(row, rightColumn), 1e-9);
+        }
+    }
+
+    /**
+     * The center window starts with [leftCenter, rightCenter) without the position WINDOW_SIZE and then drops the
+     * value at leftCenter+k and adds the one at rightCenter+k for each step k, so it never drops that position again.
+     */
+    private int centerZeros(NumericArray data, int pos) {
+        int leftCenter = (WINDOW_SIZE % 2 == 0) ? WINDOW_SIZE/2 : WINDOW_SIZE/2+1;
+        int rightCenter = (WINDOW_SIZE*2-leftCenter)+1;
+        int count = zeros(data, leftCenter, WINDOW_SIZE) + zeros(data, WINDOW_SIZE+1, rightCenter);
+        for (int k = 0; k < pos-WINDOW_SIZE; k++) {
+            count += zeros(data, rightCenter+k, rightCenter+k+1) - zeros(data, leftCenter+k, leftCenter+k+1);
+        }
+        return count;
+    }
+
+    private int zeros(NumericArray data, int from, int to) {
+        int count = 0;
+        for (int i = from; i < to; i++) {
+            if (data.getDouble(i) <= WindowStats.ZERO_THRESHOLD) {
+                count++;
+            }
+        }
+        return count;
+    }
+}
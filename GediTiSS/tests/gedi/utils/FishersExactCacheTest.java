@@ -0,0 +1,44 @@
+package gedi.utils;
+
+import gedi.util.math.stat.testing.FishersExact;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+
+class FishersExactCacheTest {
+
+    @Test
+    void sameAsFishersExact() {
+        int windowSize = 25;
+        FishersExactCache cache = FishersExactCache.forWindowSize(windowSize);
+        for (int a = 0; a <= windowSize; a++) {
+            for (int c = 0; c <= windowSize; c++) {
+                double expected = new FishersExact(2 * windowSize).getTwoTailedP(a, windowSize - a, c, windowSize - c);
+                Assert.assertEquals(expected, cache.getTwoTailedP(a, c), 0);
+                // second lookup comes from the cache
+                Assert.assertEquals(expected, cache.getTwoTailedP(a, c), 0);
+            }
+        }
+    }
+
+    @Test
+    void sharedAndThreadSafe() {
+        int windowSize = 40;
+        Assert.assertSame(FishersExactCache.forWindowSize(windowSize), FishersExactCache.forWindowSize(windowSize));
+
+        FishersExact fishersExact = new FishersExact(2 * windowSize);
+        IntStream.range(0, 16).parallel().forEach(t -> {
+            FishersExactCache cache = FishersExactCache.forWindowSize(windowSize);
+            for (int a = 0; a <= windowSize; a++) {
+                for (int c = windowSize; c >= 0; c--) {
+                    double expected;
+                    synchronized (fishersExact) {
+                        expected = fishersExact.getTwoTailedP(a, windowSize - a, c, windowSize - c);
+                    }
+                    Assert.assertEquals(expected, cache.getTwoTailedP(a, c), 0);
+                }
+            }
+        });
+    }
+}
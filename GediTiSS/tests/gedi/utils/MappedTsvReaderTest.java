@@ -0,0 +1,89 @@
+package gedi.utils;
+
+import gedi.core.reference.ReferenceSequence;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+class MappedTsvReaderTest {
+
+    @Test
+    void parseLikeStrings() throws IOException {
+        Random random = new Random(42);
+        StringBuilder sb = new StringBuilder("Ref\tPos\tValue\n");
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            double d = random.nextGaussian() * Math.pow(10, random.nextInt(40) - 20);
+            String value;
+            switch (i % 4) {
+                case 0: value = Double.toString(d); break;
+                case 1: value = String.format(Locale.US, "%.3f", d); break;
+                case 2: value = String.format(Locale.US, "%e", d); break;
+                default: value = Integer.toString(random.nextInt(1000)); break;
+            }
+            String line = (i < 1000 ? "1+" : "2-") + "\t" + (random.nextInt() >> random.nextInt(31)) + "\t" + value;
+            lines.add(line);
+            sb.append(line).append(i % 7 == 0 ? "\r\n" : "\n");
+            if (i % 100 == 0) {
+                sb.append('\n');
+            }
+        }
+        File file = write(sb.toString());
+
+        MappedTsvReader reader = new MappedTsvReader(file, 100);
+        Assert.assertEquals("Ref\tPos\tValue", reader.nextLine());
+        List<List<String>> chunks = reader.read(ArrayList::new, (line, parsed) -> {
+            ReferenceSequence ref = line.reference();
+            int pos = line.parseInt();
+            double value = line.parseDouble();
+            parsed.add(ref + "\t" + pos + "\t" + Double.doubleToLongBits(value));
+        }, 4);
+
+        Assert.assertTrue(chunks.size() > 1);
+        List<String> parsed = new ArrayList<>();
+        chunks.forEach(parsed::addAll);
+        Assert.assertEquals(lines.size(), parsed.size());
+        for (int i = 0; i < lines.size(); i++) {
+            String[] fields = lines.get(i).split("\t");
+            String expected = fields[0] + "\t" + Integer.parseInt(fields[1]) + "\t" + Double.doubleToLongBits(Double.parseDouble(fields[2]));
+            Assert.assertEquals(lines.get(i), expected, parsed.get(i));
+        }
+    }
+
+    @Test
+    void parseLists() throws IOException {
+        File file = write("# header\n1+\t10-14\t1.5,-2,3E2\t7,-8\tend\n");
+
+        MappedTsvReader reader = new MappedTsvReader(file.getPath());
+        reader.skipLines(1);
+        List<List<Object>> chunks = reader.read(ArrayList::new, (line, parsed) -> {
+            Assert.assertEquals(5, line.fieldCount());
+            line.skip();
+            parsed.add(line.string());
+            parsed.add(line.parseDoubles(','));
+            parsed.add(line.parseInts(','));
+            parsed.add(line.string());
+        });
+
+        List<Object> parsed = chunks.get(0);
+        Assert.assertEquals("10-14", parsed.get(0));
+        Assert.assertArrayEquals(new double[] {1.5, -2, 300}, (double[]) parsed.get(1), 0);
+        Assert.assertArrayEquals(new int[] {7, -8}, (int[]) parsed.get(2));
+        Assert.assertEquals("end", parsed.get(3));
+    }
+
+    private static File write(String content) throws IOException {
+        File file = File.createTempFile("tsv", ".tsv");
+        file.deleteOnExit();
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+}
@@ -0,0 +1,52 @@
+package gedi.utils;
+
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+class QuantileSketchTest {
+
+    @Test
+    void exactForFewValues() {
+        QuantileSketch sketch = new QuantileSketch(100);
+        double[] values = new double[] {5, 3, 9, 1, 7, 3, 8};
+        for (double v : values) {
+            sketch.update(v);
+        }
+        Assert.assertTrue(sketch.isExact());
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        Assert.assertArrayEquals(sorted, sketch.getSortedValues(values.length), 0);
+        Assert.assertEquals(TiSSUtils.calculateThreshold(values.clone(), 1),
+                TiSSUtils.calculateThreshold(sketch, 1. / values.length), 0);
+    }
+
+    @Test
+    void rankErrorWithinBound() {
+        Random random = new Random(7);
+        int n = 200_000;
+        double[] values = new double[n];
+        QuantileSketch first = new QuantileSketch(200);
+        QuantileSketch second = new QuantileSketch(200);
+        for (int i = 0; i < n; i++) {
+            values[i] = random.nextGaussian();
+            (i % 2 == 0 ? first : second).update(values[i]);
+        }
+        first.merge(second);
+        Assert.assertEquals(n, first.getN());
+        Assert.assertFalse(first.isExact());
+        Assert.assertTrue(first.getRetained() < 1000);
+
+        Arrays.sort(values);
+        int m = 100;
+        double[] approx = first.getSortedValues(m);
+        for (int j = 0; j < m; j++) {
+            long rank = (long) ((j + 0.5) * n / m);
+            int low = Arrays.binarySearch(values, approx[j]);
+            Assert.assertTrue(low >= 0);
+            Assert.assertTrue(Math.abs(low - rank) <= first.getMaxRankError() + 1);
+        }
+    }
+}
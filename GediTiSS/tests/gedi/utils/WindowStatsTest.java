@@ -0,0 +1,103 @@
+package gedi.utils;
+
+import gedi.util.datastructure.array.NumericArray;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+class WindowStatsTest {
+
+    @Test
+    void readCounts() {
+        Random random = new Random(3);
+        NumericArray data = NumericArray.createMemory(1000, NumericArray.NumericArrayType.Double);
+        for (int i = 0; i < data.length(); i++) {
+            data.setDouble(i, random.nextDouble() < 0.7 ? 0 : random.nextInt(random.nextDouble() < 0.01 ? 100000 : 20));
+        }
+        compareToWindows(data, 0);
+    }
+
+    @Test
+    void fractionalValues() {
+        Random random = new Random(5);
+        NumericArray data = NumericArray.createMemory(777, NumericArray.NumericArrayType.Double);
+        for (int i = 0; i < data.length(); i++) {
+            data.setDouble(i, random.nextDouble() * 3);
+        }
+        compareToWindows(data, 1e-9);
+    }
+
+    @Test
+    void squaresAllocatedOnDemand() {
+        NumericArray data = NumericArray.createMemory(100, NumericArray.NumericArrayType.Double);
+        data.setDouble(10, 3);
+        long[] allocated = new long[1];
+        WindowStats stats = new WindowStats(data, bytes -> allocated[0] += bytes);
+        long withoutSquares = stats.getByteSize();
+        Assert.assertEquals(0, allocated[0]);
+        Assert.assertEquals(9, stats.sumOfSquares(0, 100), 0);
+        Assert.assertTrue(allocated[0] > 0);
+        Assert.assertEquals(withoutSquares + allocated[0], stats.getByteSize());
+        stats.sampleVariance(0, 100);
+        Assert.assertEquals(withoutSquares + allocated[0], stats.getByteSize());
+    }
+
+    @Test
+    void nextAtLeast() {
+        NumericArray data = NumericArray.createMemory(1000, NumericArray.NumericArrayType.Double);
+        data.setDouble(5, 3);
+        data.setDouble(700, 2);
+        data.setDouble(999, 10);
+        WindowStats stats = new WindowStats(data);
+        Assert.assertEquals(5, stats.nextAtLeast(0, 1000, 2));
+        Assert.assertEquals(700, stats.nextAtLeast(6, 1000, 2));
+        Assert.assertEquals(999, stats.nextAtLeast(6, 1000, 3));
+        Assert.assertEquals(999, stats.nextAtLeast(701, 999, 2));
+    }
+
+    @Test
+    void sparseJumps() {
+        NumericArray data = NumericArray.createMemory(1000, NumericArray.NumericArrayType.Double);
+        data.setDouble(63, 0.2);
+        data.setDouble(64, 1);
+        data.setDouble(500, 4);
+        WindowStats stats = new WindowStats(data);
+        Assert.assertEquals(63, stats.nextNonZero(0, 1000));
+        Assert.assertEquals(64, stats.nextNonZero(64, 1000));
+        Assert.assertEquals(500, stats.nextNonZero(65, 1000));
+        Assert.assertEquals(400, stats.nextNonZero(65, 400));
+        Assert.assertEquals(1000, stats.nextNonZero(501, 1000));
+
+        Assert.assertEquals(0, stats.nextCovered(0, 1000, 0, 100));
+        Assert.assertEquals(400, stats.nextCovered(65, 1000, 0, 100));
+        Assert.assertEquals(65, stats.nextCovered(65, 1000, 1, 0));
+        Assert.assertEquals(500, stats.nextCovered(66, 1000, 1, 0));
+        Assert.assertEquals(600, stats.nextCovered(600, 1000, 100, 0));
+        Assert.assertEquals(1000, stats.nextCovered(601, 1000, 100, 0));
+        Assert.assertEquals(450, stats.nextCovered(65, 450, 0, 10));
+    }
+
+    private void compareToWindows(NumericArray data, double delta) {
+        WindowStats stats = new WindowStats(data);
+        Assert.assertEquals(data.length(), stats.length());
+        for (int from = 0; from < data.length(); from += 13) {
+            for (int to = from + 2; to <= data.length(); to += 17) {
+                double sum = 0;
+                int zeros = 0;
+                for (int i = from; i < to; i++) {
+                    sum += data.getDouble(i);
+                    zeros += data.getDouble(i) <= WindowStats.ZERO_THRESHOLD ? 1 : 0;
+                }
+                double mean = sum / (to - from);
+                double m2 = 0;
+                for (int i = from; i < to; i++) {
+                    m2 += (data.getDouble(i) - mean) * (data.getDouble(i) - mean);
+                }
+                Assert.assertEquals(sum, stats.sum(from, to), delta);
+                Assert.assertEquals(zeros, stats.zeroCount(from, to));
+                Assert.assertEquals(m2 / (to - from - 1), stats.sampleVariance(from, to), 1e-9 * Math.max(1, m2));
+            }
+        }
+    }
+}
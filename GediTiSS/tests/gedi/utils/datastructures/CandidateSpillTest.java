@@ -0,0 +1,74 @@
+package gedi.utils.datastructures;
+
+import gedi.core.reference.Chromosome;
+import gedi.core.reference.ReferenceSequence;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+class CandidateSpillTest {
+
+    @Test
+    void concurrentReferences() throws IOException, InterruptedException {
+        Path dir = Files.createTempDirectory("spillTest");
+        CandidateSpill spill = new CandidateSpill(dir, "candidates", 2);
+        List<Thread> threads = new ArrayList<>();
+        List<IOException> errors = new ArrayList<>();
+        for (int r = 0; r < 4; r++) {
+            ReferenceSequence ref = Chromosome.obtain(r + "+");
+            threads.add(new Thread(() -> {
+                try {
+                    CandidateSpill.Writer writer = spill.getWriter(ref);
+                    for (int i = 0; i < 10000; i++) {
+                        writer.append(i * 3, i / 10000., i);
+                    }
+                } catch (IOException e) {
+                    synchronized (errors) {
+                        errors.add(e);
+                    }
+                }
+            }));
+        }
+        threads.forEach(Thread::start);
+        for (Thread t : threads) {
+            t.join();
+        }
+        Assert.assertTrue(errors.isEmpty());
+        Assert.assertEquals(40000, spill.size());
+        Assert.assertEquals(4, spill.getReferences().size());
+
+        CandidateSpill.Records records = spill.read(Chromosome.obtain("2+"));
+        Assert.assertEquals(10000, records.size());
+        for (int i = 0; i < records.size(); i++) {
+            Assert.assertEquals(i * 3, records.getPosition(i));
+            Assert.assertEquals(i / 10000., records.getValue(i, 0), 0);
+            Assert.assertEquals(i, records.getValue(i, 1), 0);
+        }
+        Assert.assertEquals(0, spill.read(Chromosome.obtain("5+")).size());
+
+        spill.delete();
+        Assert.assertFalse(Files.list(dir).findAny().isPresent());
+        Files.delete(dir);
+    }
+
+    @Test
+    void noAppendAfterRead() throws IOException {
+        CandidateSpill spill = new CandidateSpill(Files.createTempDirectory("spillTest"), "candidates", 1);
+        ReferenceSequence ref = Chromosome.obtain("1-");
+        CandidateSpill.Writer writer = spill.getWriter(ref);
+        writer.append(5, 1.5);
+        Assert.assertEquals(1, spill.read(ref).size());
+        try {
+            writer.append(6, 2.5);
+            Assert.fail();
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        spill.delete();
+    }
+}
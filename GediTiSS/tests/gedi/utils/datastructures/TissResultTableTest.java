@@ -0,0 +1,66 @@
+package gedi.utils.datastructures;
+
+import gedi.core.reference.Chromosome;
+import gedi.core.reference.ReferenceSequence;
+import org.junit.Assert;
+import org.junit.jupiter.api.Test;
+
+class TissResultTableTest {
+
+    @Test
+    void appendUnsortedKeepsLastValue() {
+        TissResultTable table = new TissResultTable("a", "b");
+        ReferenceSequence ref = Chromosome.obtain("1+");
+        TissResultTable.Rows rows = table.getOrCreate(ref);
+        rows.append(30, 3, 30);
+        rows.append(10, 1, 10);
+        rows.append(20, 2, 20);
+        rows.append(10, 4, 40);
+
+        Assert.assertEquals(3, rows.size());
+        Assert.assertArrayEquals(new int[] {10, 20, 30}, new int[] {rows.getPosition(0), rows.getPosition(1), rows.getPosition(2)});
+        Assert.assertEquals(4, rows.getValue(0, table.getColumnIndex("a")), 0);
+        Assert.assertEquals(40, rows.getValue(0, table.getColumnIndex("b")), 0);
+        Assert.assertEquals(1, rows.indexOf(20));
+        Assert.assertEquals(-1, rows.indexOf(15));
+        Assert.assertSame(rows, table.get(ref));
+        Assert.assertNull(table.get(Chromosome.obtain("1-")));
+    }
+
+    @Test
+    void filterInPlace() {
+        TissResultTable table = new TissResultTable("value");
+        TissResultTable.Rows rows = table.getOrCreate(Chromosome.obtain("1+"));
+        for (int i = 0; i < 1000; i++) {
+            rows.append(i, i % 7);
+        }
+        rows.filter(row -> rows.getValue(row, 0) > 4);
+
+        Assert.assertEquals(2 * 143 - 1, rows.size());
+        for (int row = 0; row < rows.size(); row++) {
+            Assert.assertTrue(rows.getValue(row, 0) > 4);
+            Assert.assertEquals(rows.getPosition(row) % 7, rows.getValue(row, 0), 0);
+            if (row > 0) {
+                Assert.assertTrue(rows.getPosition(row) > rows.getPosition(row - 1));
+            }
+        }
+        Assert.assertEquals(rows.size(), table.size());
+    }
+
+    @Test
+    void wrongNumberOfValues() {
+        TissResultTable table = new TissResultTable("a", "b");
+        try {
+            table.getOrCreate(Chromosome.obtain("1+")).append(1, 1.0);
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        try {
+            table.getColumnIndex("c");
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package gedi.utils.sortedNodesList;
+
+import gedi.util.functions.EI;
+import org.junit.Assert;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+class StaticSizeSortedDoubleTreeTest {
+    private static StaticSizeSortedDoubleTree tree;
+    private static int treeSize;
+
+    @BeforeEach
+    void setUp() {
+        double[] data = new double[] {10.0, 0.0, -0.0, 13.37, -200.223, -123.123, 1532.234, 11.11, 11.11, 11.11};
+        tree = new StaticSizeSortedDoubleTree(data);
+        treeSize = data.length;
+        Assert.assertTrue(isTreeSorted());
+    }
+
+    @Test
+    void insertSortedAndDelete() {
+        Assert.assertTrue(tree.insertSortedAndDelete(-99999.0, 11.11));
+        isSortedAndEqualLengthTest();
+        Assert.assertFalse(tree.insertSortedAndDelete(0.0, -200.233));
+        isSortedAndEqualLengthTest();
+        Assert.assertTrue(tree.insertSortedAndDelete(-0.0, -0.0));
+        isSortedAndEqualLengthTest();
+        Assert.assertTrue(tree.insertSortedAndDelete(10000.0, 0.0));
+        isSortedAndEqualLengthTest();
+    }
+
+    @Test
+    void getValueAtIndex() {
+        tree.insertSortedAndDelete(99999.0, 1532.234);
+        Assert.assertEquals(99999.0, tree.getValueAtIndex(treeSize-1), Double.MIN_VALUE);
+        tree.insertSortedAndDelete(-9999999.0, -0.0);
+        Assert.assertEquals(-9999999.0, tree.getValueAtIndex(0), Double.MIN_VALUE);
+    }
+
+    @Test
+    void getNextHigherIndex() {
+        Assert.assertEquals(8, tree.getNextHigherIndex(11.11));
+        Assert.assertEquals(4, tree.getNextHigherIndex(0.0));
+        Assert.assertEquals(1, tree.getNextHigherIndex(-200.));
+        Assert.assertEquals(0, tree.getNextHigherIndex(-201.));
+        Assert.assertEquals(9, tree.getNextHigherIndex(1532.));
+        Assert.assertEquals(10, tree.getNextHigherIndex(1533.));
+    }
+
+    @Test
+    void getNextLowerIndex() {
+        Assert.assertEquals(4, tree.getNextLowerIndex(11.11));
+        Assert.assertEquals(2, tree.getNextLowerIndex(0.0));
+        Assert.assertEquals(0, tree.getNextLowerIndex(-200.));
+        Assert.assertEquals(-1, tree.getNextLowerIndex(-201.));
+        Assert.assertEquals(8, tree.getNextLowerIndex(1532.));
+        Assert.assertEquals(9, tree.getNextLowerIndex(1533.));
+    }
+
+    @Test
+    void getSize() {
+        Assert.assertEquals(treeSize, tree.getSize());
+    }
+
+    @Test
+    void sameAsStaticSizeSortedArrayList() {
+        Random random = new Random(1337);
+        for (int windowSize : new int[] {1, 2, 10, 100, 500}) {
+            double[] data = new double[windowSize * 20];
+            for (int i = 0; i < data.length; i++) {
+                // lots of duplicates, just like read counts
+                data[i] = random.nextDouble() < 0.6 ? 0 : random.nextInt(10);
+            }
+            double[] init = new double[windowSize];
+            System.arraycopy(data, 0, init, 0, windowSize);
+            StaticSizeSortedDoubleTree tree = new StaticSizeSortedDoubleTree(init);
+            StaticSizeSortedArrayList<Double> list = new StaticSizeSortedArrayList<>(EI.wrap(init).toList(), Double::compareTo);
+            double[] buffer = new double[windowSize];
+            for (int i = windowSize; i < data.length; i++) {
+                tree.insertSortedAndDelete(data[i], data[i - windowSize]);
+                list.insertSortedAndDelete(data[i], data[i - windowSize]);
+                tree.toArray(buffer);
+                for (int j = 0; j < windowSize; j++) {
+                    Assert.assertEquals(list.getValueAtIndex(j), tree.getValueAtIndex(j), 0);
+                    Assert.assertEquals(list.getValueAtIndex(j), buffer[j], 0);
+                }
+                double query = random.nextInt(12) - 1;
+                Assert.assertEquals(list.getNextHigherIndex(query), tree.getNextHigherIndex(query));
+                Assert.assertEquals(list.getNextLowerIndex(query), tree.getNextLowerIndex(query));
+            }
+        }
+    }
+
+    private void isSortedAndEqualLengthTest() {
+        Assert.assertTrue(isTreeSorted());
+        getSize();
+    }
+
+    private static boolean isTreeSorted() {
+        double lastVal = -Double.MAX_VALUE;
+        for (int i = 0; i < tree.getSize(); i++) {
+            if (tree.getValueAtIndex(i) < lastVal) {
+                return false;
+            }
+            lastVal = tree.getValueAtIndex(i);
+        }
+        return true;
+    }
+}